@@ -99,4 +99,44 @@ public @interface ServletConfig {
      *         disable reloading of instances of this Servlet, return 0.
      */
     public int maxUses() default -1;
+
+    /**
+     * If true, and the container supports Servlet 3 asynchronous requests,
+     * the InvokerFilter releases the container's thread and services this
+     * servlet (and the filters in front of it) on its own bounded executor,
+     * so that slow servlets, e.g. those waiting on upstream calls, don't
+     * exhaust the container's request threads.  Otherwise requests are
+     * serviced synchronously as usual.
+     *
+     * @return true if requests should be serviced asynchronously
+     */
+    public boolean async() default false;
+
+    /**
+     * Limits the number of requests this servlet may be servicing at once;
+     * requests beyond the limit are rejected with a 503.
+     *
+     * @return The max number of concurrent requests, or 0 for no limit
+     */
+    public int maxConcurrent() default 0;
+
+    /**
+     * Overrides the global value of filter.invoker.async.timeout for this
+     * servlet only.  Only applies when async is true.
+     *
+     * @return The number of milliseconds an asynchronous request may run
+     *         before it is interrupted and answered with a 503, or -1 to
+     *         use the default specified by the InvokerFilter config
+     */
+    public long asyncTimeout() default -1;
+
+    /**
+     * Overrides the Cache-Control header the InvokerFilter would otherwise
+     * send for the paths this servlet serves, as configured by extension
+     * with filter.invoker.cache-control.ext.*
+     *
+     * @return A Cache-Control value, e.g. "private, max-age=60", or an
+     *         empty string to use the InvokerFilter's policy
+     */
+    public String cacheControl() default "";
 }
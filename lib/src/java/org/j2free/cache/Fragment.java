@@ -41,6 +41,20 @@ public interface Fragment {
      */
     public String get(long waitFor, TimeUnit unit) throws InterruptedException;
 
+    /**
+     * @param condition The current condition
+     * @return How many ms the content has been out of date for, i.e. since it
+     *         expired, or 1 if it has not expired but the condition has changed;
+     *         0 if it is up to date, or -1 if it has never been initialized.
+     */
+    public long getStaleness(String condition);
+
+    /**
+     * @return How many ms until the content expires; 0 if it has expired, or
+     *         -1 if it has never been initialized.
+     */
+    public long getTimeToLive();
+
     /**
      * @return true if the Fragment is locked and the lockWait has passed, otherwise false.
      */
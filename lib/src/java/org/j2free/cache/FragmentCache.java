@@ -17,6 +17,7 @@
  */
 package org.j2free.cache;
 
+import java.util.Collection;
 import java.util.Iterator;
 import net.jcip.annotations.ThreadSafe;
 
@@ -73,12 +74,82 @@ public interface FragmentCache<T extends Fragment> {
          *
          */
         public static final String ENGINE_PREFIX    = PREFIX + "strategy.";
+        /**
+         * The number of threads re-rendering stale fragments in the background
+         */
+        public static final String REVALIDATE_THREADS = PREFIX + "revalidate.threads";
+        /**
+         * The max number of stale fragments waiting to be re-rendered
+         */
+        public static final String REVALIDATE_QUEUE   = PREFIX + "revalidate.queue-size";
+        /**
+         * If true, the revalidator's counters are registered with JMX
+         */
+        public static final String REVALIDATE_JMX     = PREFIX + "revalidate.jmx.enabled";
+        /**
+         * If true, the most requested fragments with a registered renderer are
+         * re-rendered in the background before they expire
+         */
+        public static final String REFRESH_ENABLED     = PREFIX + "refresh.enabled";
+        /**
+         * The number of threads re-rendering fragments before they expire
+         */
+        public static final String REFRESH_THREADS     = PREFIX + "refresh.threads";
+        /**
+         * How often to look for fragments to refresh, in seconds
+         */
+        public static final String REFRESH_INTERVAL    = PREFIX + "refresh.interval";
+        /**
+         * The min number of recent lookups for a fragment to be kept warm
+         */
+        public static final String REFRESH_MIN_LOOKUPS = PREFIX + "refresh.min-lookups";
+        /**
+         * The max number of fragments refreshed per interval
+         */
+        public static final String REFRESH_MAX         = PREFIX + "refresh.max-per-interval";
+        /**
+         * The max number of keys lookups are tracked for
+         */
+        public static final String REFRESH_MAX_KEYS    = PREFIX + "refresh.max-keys";
+        /**
+         * If true, how each fragment is served is profiled by a {@link FragmentCacheAnalyzer}
+         */
+        public static final String ANALYZER_ENABLED    = PREFIX + "analyzer.enabled";
+        /**
+         * The max number of keys, and of key prefixes, the analyzer keeps stats for
+         */
+        public static final String ANALYZER_MAX_KEYS   = PREFIX + "analyzer.max-keys";
+        /**
+         * The chars ending the prefix of a key, by default ":/?#"
+         */
+        public static final String ANALYZER_DELIMITERS = PREFIX + "analyzer.prefix-delimiters";
+        /**
+         * If true, the stats for each key prefix are registered with JMX
+         */
+        public static final String ANALYZER_JMX        = PREFIX + "analyzer.jmx.enabled";
+        /**
+         * The max number of bytes the fragments in all strategies may take together,
+         * shared out by a {@link FragmentCacheManager}; 0 to leave each to itself
+         */
+        public static final String PARTITION_MAX_BYTES = PREFIX + "partitions.max-bytes";
+        /**
+         * How often to rebalance the strategies' budgets, in seconds
+         */
+        public static final String PARTITION_INTERVAL  = PREFIX + "partitions.interval";
 
         // FragmentCache implementation config templates
         /**
          *
          */
         public static final String ENGINE_CLASS_TEMPLATE = ENGINE_PREFIX + "%s.class";
+        /**
+         * The bytes a strategy is promised out of partitions.max-bytes
+         */
+        public static final String PARTITION_QUOTA_TEMPLATE    = ENGINE_PREFIX + "%s.quota";
+        /**
+         * How valuable a strategy's fragments are; the lowest priority gives up memory first
+         */
+        public static final String PARTITION_PRIORITY_TEMPLATE = ENGINE_PREFIX + "%s.priority";
     }
 
     /**
@@ -132,6 +203,17 @@ public interface FragmentCache<T extends Fragment> {
      */
     public T get(String key);
 
+    /**
+     * Gets the {@link Fragment} stored under the argument key if one exists,
+     * without counting it as a request, e.g. towards the hit rate or the
+     * frequency the cache evicts by; for looking fragments up in the
+     * background.
+     *
+     * @param key The key of a {@link Fragment} to get
+     * @return The {@link Fragment} stored via the argument key otherwise null.
+     */
+    public T peek(String key);
+
     /**
      * @return statistics about the current state of the cache, or historical data
      *         if the implementation supports that.
@@ -157,6 +239,33 @@ public interface FragmentCache<T extends Fragment> {
      */
     public boolean evict(String key, T expected);
 
+    /**
+     * Removes every {@link Fragment} tagged with the argument tag.
+     *
+     * @param tag A tag given to {@link Fragment} instances via {@link #tag}
+     * @return The number of {@link Fragment} instances evicted.
+     */
+    public int evictByTag(String tag);
+
+    /**
+     * Removes every {@link Fragment} whose key starts with the argument prefix.
+     *
+     * @param prefix A key prefix
+     * @return The number of {@link Fragment} instances evicted.
+     */
+    public int evictByPrefix(String prefix);
+
+    /**
+     * Tags the {@link Fragment} stored under the argument key, replacing any tags
+     * the key had, so that it can be evicted along with every other {@link Fragment}
+     * sharing a tag via {@link #evictByTag}.  Does nothing if no {@link Fragment}
+     * is stored under the key.
+     *
+     * @param key The key of a {@link Fragment}
+     * @param tags The tags, e.g. the entities the content was rendered from
+     */
+    public void tag(String key, Collection<String> tags);
+
     /**
      * @return An {@link Iterator} for the keys in the cache.
      */
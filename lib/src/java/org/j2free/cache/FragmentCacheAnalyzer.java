@@ -17,12 +17,308 @@
  */
 package org.j2free.cache;
 
+import com.reardencommerce.kernel.collections.shared.evictable.ConcurrentLinkedHashMap;
+import com.reardencommerce.kernel.collections.shared.evictable.ConcurrentLinkedHashMap.EvictionListener;
+import com.reardencommerce.kernel.collections.shared.evictable.ConcurrentLinkedHashMap.EvictionPolicy;
+
+import java.lang.management.ManagementFactory;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import java.util.concurrent.ConcurrentMap;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import net.jcip.annotations.ThreadSafe;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
 /**
- * Nothing for now, but the intention is to have something that can
- * analyze the cache and report back on it's effectiveness.
+ * Profiles how effectively the {@link FragmentCache} is serving each
+ * fragment key, and each group of keys sharing a prefix, while it runs.
+ *
+ * The {@link org.j2free.jsp.tags.FragmentCacheTag} records every lookup,
+ * hit, render, wait and abandoned lock into the {@link FragmentStats} for
+ * the key, which rolls it up into the stats for the key's prefix.  The
+ * prefix of a key is everything before the first of the prefix delimiters
+ * (by default <tt>:/?#</tt>), so <tt>user:42:sidebar</tt> is counted under
+ * <tt>user</tt>.  Counters are striped, so recording costs a map lookup
+ * and a few uncontended adds per tag.
+ *
+ * Stats are kept for at most <tt>maxKeys</tt> keys and as many prefixes,
+ * the least recently used being dropped beyond that.  A key whose prefix
+ * was dropped keeps rolling up into the dropped stats until the key itself
+ * is dropped.
+ *
+ * When JMX is enabled, the stats for each prefix are registered with the
+ * platform MBeanServer as <tt>org.j2free:type=FragmentCache,name=&lt;prefix&gt;</tt>;
+ * there are too many keys to register each of them.
  *
  * @author Ryan Wilson
  */
-public class FragmentCacheAnalyzer {
+@ThreadSafe
+public final class FragmentCacheAnalyzer {
+
+    /**
+     * Orders for the reports, each highest first
+     */
+    public static enum Ranking {
+
+        /** By the estimated render time saved by caching */
+        SAVED {
+            long valueOf(FragmentStats stats) { return stats.getSavedMillis(); }
+        },
+
+        /** By the number of hits */
+        HITS {
+            long valueOf(FragmentStats stats) { return stats.getHits(); }
+        },
+
+        /** By the number of renders */
+        MISSES {
+            long valueOf(FragmentStats stats) { return stats.getMisses(); }
+        },
+
+        /** By the total time spent rendering */
+        RENDER {
+            long valueOf(FragmentStats stats) { return stats.getRenderMillis(); }
+        },
+
+        /** By the total time spent waiting for content */
+        WAIT {
+            long valueOf(FragmentStats stats) { return stats.getWaitMillis(); }
+        },
+
+        /** By the number of condition changes */
+        CHURN {
+            long valueOf(FragmentStats stats) { return stats.getConditionChanges(); }
+        },
+
+        /** By the number of abandoned locks */
+        ABANDONED {
+            long valueOf(FragmentStats stats) { return stats.getLockAbandonments(); }
+        },
+
+        /** By the mean content size */
+        SIZE {
+            long valueOf(FragmentStats stats) { return stats.getMeanSize(); }
+        };
+
+        abstract long valueOf(FragmentStats stats);
+
+        private final Comparator<FragmentStats> comparator = new Comparator<FragmentStats>() {
+            public int compare(FragmentStats a, FragmentStats b) {
+                long x = valueOf(a), y = valueOf(b);
+                return x < y ? 1 : (x > y ? -1 : a.getName().compareTo(b.getName()));
+            }
+        };
+    }
+
+    /**
+     * The default delimiters ending a key prefix
+     */
+    public static final String DEFAULT_DELIMITERS = ":/?#";
+
+    private static final String DOMAIN = "org.j2free";
+
+    private final Log log = LogFactory.getLog(getClass());
+
+    private final ConcurrentMap<String, FragmentStats> keys;
+    private final ConcurrentMap<String, FragmentStats> prefixes;
+
+    private final String delimiters;
+
+    private volatile boolean jmxEnabled = false;
+
+    /**
+     * Creates an analyzer keeping stats for up to 10000 keys, with the
+     * default prefix delimiters.
+     */
+    public FragmentCacheAnalyzer() {
+        this(10000, DEFAULT_DELIMITERS);
+    }
+
+    /**
+     * @param maxKeys The max number of keys, and of prefixes, to keep stats for
+     * @param delimiters The chars any of which ends the prefix of a key
+     */
+    public FragmentCacheAnalyzer(int maxKeys, String delimiters) {
+        this.delimiters = delimiters == null || delimiters.length() == 0 ? DEFAULT_DELIMITERS : delimiters;
+
+        this.keys = ConcurrentLinkedHashMap.create(EvictionPolicy.LRU, Math.max(maxKeys, 1), 16);
+
+        this.prefixes = ConcurrentLinkedHashMap.create(
+                            EvictionPolicy.LRU,
+                            Math.max(maxKeys, 1),
+                            16,
+                            new EvictionListener<String, FragmentStats>() {
+                                public void onEviction(String prefix, FragmentStats stats) {
+                                    if (jmxEnabled)
+                                        unregister(stats);
+                                }
+                            }
+                        );
+    }
+
+    /**
+     * Records a lookup of the fragment, noting whether the condition has
+     * changed since the previous lookup.
+     *
+     * @param key The fragment key
+     * @param condition The condition the fragment was looked up with
+     * @return The stats for the key, into which the outcome of the lookup
+     *         should be recorded
+     */
+    public FragmentStats lookup(String key, String condition) {
+        FragmentStats stats = keys.get(key);
+        if (stats == null) {
+            FragmentStats created = new FragmentStats(key, prefix(prefixOf(key)));
+
+            stats = keys.putIfAbsent(key, created);
+            if (stats == null)
+                stats = created;
+        }
+
+        stats.lookup(condition);
+        return stats;
+    }
+
+    /**
+     * @param key A fragment key
+     * @return The stats for the key, or null if there are none
+     */
+    public FragmentStats getKey(String key) {
+        return keys.get(key);
+    }
+
+    /**
+     * @param prefix A key prefix
+     * @return The stats for the prefix, or null if there are none
+     */
+    public FragmentStats getPrefix(String prefix) {
+        return prefixes.get(prefix);
+    }
+
+    /**
+     * @param ranking The order to report in
+     * @param limit The max number of keys to report, or -1 for all
+     * @return The stats for the top keys by <tt>ranking</tt>
+     */
+    public List<FragmentStats> getKeys(Ranking ranking, int limit) {
+        return rank(keys.values(), ranking, limit);
+    }
+
+    /**
+     * @param ranking The order to report in
+     * @param limit The max number of prefixes to report, or -1 for all
+     * @return The stats for the top prefixes by <tt>ranking</tt>
+     */
+    public List<FragmentStats> getPrefixes(Ranking ranking, int limit) {
+        return rank(prefixes.values(), ranking, limit);
+    }
+
+    /**
+     * @param key A fragment key
+     * @return The prefix the key is counted under
+     */
+    public String prefixOf(String key) {
+        // Skip the first char, so that a leading delimiter doesn't make an empty prefix
+        for (int i = 1; i < key.length(); i++) {
+            if (delimiters.indexOf(key.charAt(i)) >= 0)
+                return key.substring(0, i);
+        }
+        return key;
+    }
+
+    /**
+     * Enables or disables registration with JMX, registering or
+     * unregistering the stats for existing prefixes as needed.
+     *
+     * @param enabled
+     */
+    public synchronized void setJmxEnabled(boolean enabled) {
+        if (enabled == jmxEnabled)
+            return;
+
+        jmxEnabled = enabled;
+
+        for (FragmentStats stats : prefixes.values()) {
+            if (enabled)
+                register(stats);
+            else
+                unregister(stats);
+        }
+    }
+
+    /**
+     * Unregisters and forgets all stats
+     */
+    public synchronized void clear() {
+        if (jmxEnabled) {
+            for (FragmentStats stats : prefixes.values())
+                unregister(stats);
+        }
+
+        keys.clear();
+        prefixes.clear();
+    }
+
+    private FragmentStats prefix(String prefix) {
+        FragmentStats stats = prefixes.get(prefix);
+        if (stats == null) {
+            FragmentStats created = new FragmentStats(prefix, null);
+
+            stats = prefixes.putIfAbsent(prefix, created);
+            if (stats == null) {
+                stats = created;
+                if (jmxEnabled)
+                    register(stats);
+            }
+        }
+        return stats;
+    }
+
+    private static List<FragmentStats> rank(Collection<FragmentStats> all, Ranking ranking, int limit) {
+        ArrayList<FragmentStats> sorted = new ArrayList<FragmentStats>(all);
+        Collections.sort(sorted, ranking.comparator);
+
+        if (limit >= 0 && sorted.size() > limit)
+            return new ArrayList<FragmentStats>(sorted.subList(0, limit));
+
+        return sorted;
+    }
+
+    private void register(FragmentStats stats) {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = nameOf(stats);
+
+            if (!server.isRegistered(name))
+                server.registerMBean(stats, name);
+        } catch (Exception e) {
+            log.warn("Unable to register fragment stats MBean for " + stats.getName(), e);
+        }
+    }
+
+    private void unregister(FragmentStats stats) {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = nameOf(stats);
+
+            if (server.isRegistered(name))
+                server.unregisterMBean(name);
+        } catch (Exception e) {
+            log.warn("Unable to unregister fragment stats MBean for " + stats.getName(), e);
+        }
+    }
 
+    private static ObjectName nameOf(FragmentStats stats) throws Exception {
+        return new ObjectName(DOMAIN + ":type=FragmentCache,name=" + ObjectName.quote(stats.getName()));
+    }
 }
@@ -0,0 +1,324 @@
+/*
+ * FragmentCacheManager.java
+ *
+ * Copyright (c) 2011 FooBrew, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.j2free.cache;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import net.jcip.annotations.GuardedBy;
+import net.jcip.annotations.ThreadSafe;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Shares a budget of bytes out between several {@link WeighedFragmentCache}s,
+ * the partitions, e.g. the strategies of the
+ * {@link org.j2free.jsp.tags.FragmentCacheTag}, so that one noisy section of
+ * a site can't crowd out the fragments of another.
+ *
+ * Each partition is given a quota of bytes, and a priority.  Every
+ * <tt>interval</tt>, the manager weighs the partitions and resets the budget
+ * of each:
+ *
+ *  - While the partitions take less than the budget altogether, the bytes
+ *    left over are shared out between them, in proportion to their quotas,
+ *    and each may grow by its share, or to its quota if that is more.
+ *  - Once they take more, none may grow past its quota, and the excess is
+ *    taken back from the partitions of the lowest value first: the lowest
+ *    priority, then the furthest over its quota.  Bytes a partition has
+ *    borrowed over its quota are taken back before any partition is cut
+ *    below its quota, which only happens if the quotas add up to more than
+ *    the budget.
+ *
+ * The partitions do their own evicting, within the budgets they are set, so
+ * they may go over the budget between rebalances, by at most the quota the
+ * partitions under it weren't using.
+ *
+ * @author Ryan Wilson
+ */
+@ThreadSafe
+public class FragmentCacheManager {
+
+    /**
+     * A cache managed by a {@link FragmentCacheManager}
+     */
+    public static final class Partition {
+
+        private final String               name;
+        private final WeighedFragmentCache<?> cache;
+        private final long                 quota;
+        private final int                  priority;
+
+        // The budget the cache was last set
+        private volatile long limit;
+
+        // The weight of the cache, only touched by a rebalance
+        private long weight;
+
+        private Partition(String name, WeighedFragmentCache<?> cache, long quota, int priority) {
+            this.name     = name;
+            this.cache    = cache;
+            this.quota    = quota;
+            this.priority = priority;
+        }
+
+        /**
+         * @return The name of the partition
+         */
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * @return The cache
+         */
+        public WeighedFragmentCache<?> getCache() {
+            return cache;
+        }
+
+        /**
+         * @return The bytes the partition is promised
+         */
+        public long getQuota() {
+            return quota;
+        }
+
+        /**
+         * @return The priority of the partition, higher giving up bytes last
+         */
+        public int getPriority() {
+            return priority;
+        }
+
+        /**
+         * @return The budget of bytes the cache was last set
+         */
+        public long getLimit() {
+            return limit;
+        }
+
+        /**
+         * @return The approximate number of bytes the cache holds
+         */
+        public long getWeight() {
+            return cache.getWeight();
+        }
+    }
+
+    // Lowest priority first, then furthest over quota
+    private static final Comparator<Partition> LOWEST_VALUE_FIRST = new Comparator<Partition>() {
+        public int compare(Partition a, Partition b) {
+            if (a.priority != b.priority)
+                return a.priority < b.priority ? -1 : 1;
+
+            return Double.compare((double) b.weight / b.quota, (double) a.weight / a.quota);
+        }
+    };
+
+    private final Log log = LogFactory.getLog(getClass());
+
+    private final ConcurrentMap<String, Partition> partitions;
+
+    private final long maxBytes;
+
+    private final ScheduledExecutorService executor;
+
+    /**
+     * @param maxBytes The max number of bytes the partitions may take altogether
+     * @param interval How often, in ms, to rebalance the partitions
+     */
+    public FragmentCacheManager(long maxBytes, long interval) {
+        if (maxBytes <= 0)
+            throw new IllegalArgumentException("maxBytes must be greater than 0");
+
+        this.maxBytes   = maxBytes;
+        this.partitions = new ConcurrentHashMap<String, Partition>();
+
+        this.executor = Executors.newSingleThreadScheduledExecutor(
+            new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "fragment-cache-manager");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            }
+        );
+
+        executor.scheduleWithFixedDelay(
+            new Runnable() {
+                public void run() {
+                    try {
+                        rebalance();
+                    } catch (RuntimeException e) {
+                        log.error("Error rebalancing fragment cache partitions", e);
+                    }
+                }
+            },
+            interval, interval, TimeUnit.MILLISECONDS
+        );
+    }
+
+    /**
+     * Adds a cache to be managed, replacing any partition of the same name,
+     * and rebalances the partitions.
+     *
+     * @param name The name of the partition
+     * @param cache The cache
+     * @param quota The bytes the partition is promised
+     * @param priority The priority of the partition, higher giving up bytes last
+     * @return The partition
+     */
+    public Partition addPartition(String name, WeighedFragmentCache<?> cache, long quota, int priority) {
+        if (quota <= 0)
+            throw new IllegalArgumentException("quota must be greater than 0");
+
+        Partition partition = new Partition(name, cache, quota, priority);
+        partitions.put(name, partition);
+
+        rebalance();
+        return partition;
+    }
+
+    /**
+     * Stops managing a partition, leaving its cache with the budget it was last set
+     *
+     * @param name The name of the partition
+     * @return The partition, or null if there wasn't one by that name
+     */
+    public Partition removePartition(String name) {
+        return partitions.remove(name);
+    }
+
+    /**
+     * @param name The name of the partition
+     * @return The partition, or null if there isn't one by that name
+     */
+    public Partition getPartition(String name) {
+        return partitions.get(name);
+    }
+
+    /**
+     * @return The partitions
+     */
+    public Collection<Partition> getPartitions() {
+        return Collections.unmodifiableCollection(partitions.values());
+    }
+
+    /**
+     * @return The max number of bytes the partitions may take altogether
+     */
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    /**
+     * @return The approximate number of bytes the partitions take altogether
+     */
+    public long getWeight() {
+        long weight = 0;
+        for (Partition partition : partitions.values())
+            weight += partition.getWeight();
+        return weight;
+    }
+
+    /**
+     * Weighs the partitions, and resets the budget of each
+     *
+     * @return The number of bytes taken back from the partitions
+     */
+    public synchronized long rebalance() {
+        List<Partition> ordered = new ArrayList<Partition>(partitions.values());
+        if (ordered.isEmpty())
+            return 0;
+
+        long total = 0, quotas = 0;
+        for (Partition partition : ordered) {
+            partition.weight = partition.cache.getWeight();
+            total  += partition.weight;
+            quotas += partition.quota;
+        }
+
+        long excess = total - maxBytes;
+        if (excess <= 0) {
+            for (Partition partition : ordered) {
+                // In double, as the bytes left over times a quota may overflow a long
+                long share = (long) ((double) -excess * partition.quota / quotas);
+                resize(partition, Math.max(partition.weight + share, partition.quota));
+            }
+            return 0;
+        }
+
+        Collections.sort(ordered, LOWEST_VALUE_FIRST);
+
+        long[] limits = new long[ordered.size()];
+        for (int i = 0; i < limits.length; i++) {
+            Partition partition = ordered.get(i);
+            limits[i] = Math.max(partition.weight, partition.quota);
+        }
+
+        // Take back what was borrowed over quota first, then whatever is left
+        long reclaimed = 0;
+        for (int pass = 0; pass < 2 && reclaimed < excess; pass++) {
+            for (int i = 0; i < limits.length && reclaimed < excess; i++) {
+                Partition partition = ordered.get(i);
+
+                long floor = pass == 0 ? partition.quota : 0;
+                long cut   = Math.min(Math.min(partition.weight, limits[i]) - floor, excess - reclaimed);
+                if (cut > 0) {
+                    limits[i]  = Math.min(partition.weight, limits[i]) - cut;
+                    reclaimed += cut;
+                }
+            }
+        }
+
+        for (int i = 0; i < limits.length; i++)
+            resize(ordered.get(i), Math.max(limits[i], 1));
+
+        if (log.isDebugEnabled())
+            log.debug("Took back " + reclaimed + " bytes from fragment cache partitions over " + maxBytes + " bytes");
+
+        return reclaimed;
+    }
+
+    /**
+     * Stops rebalancing the partitions, leaving each with the budget it was last set
+     */
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    @GuardedBy("this")
+    private void resize(Partition partition, long limit) {
+        if (limit == partition.limit)
+            return;
+
+        partition.limit = limit;
+        partition.cache.setMaxWeight(limit);
+    }
+}
@@ -35,4 +35,10 @@ public interface FragmentCacheStatistics {
      * @return
      */
     public long getTimestamp();
+    /**
+     *
+     * @return The number of fragments evicted to keep the cache within its
+     *         bounds, as opposed to having expired
+     */
+    public long getEvictionCount();
 }
@@ -0,0 +1,189 @@
+/*
+ * FragmentIndex.java
+ *
+ * Copyright (c) 2011 FooBrew, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.j2free.cache;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import net.jcip.annotations.GuardedBy;
+import net.jcip.annotations.ThreadSafe;
+
+/**
+ * A secondary index over the keys of a {@link FragmentCache}, by tag and by
+ * key order, so that {@link FragmentCache#evictByTag} and
+ * {@link FragmentCache#evictByPrefix} can find the matching keys in time
+ * proportional to the number of matches, rather than scanning every key.
+ *
+ * The cache tells the index about every fragment it stores and removes.
+ * Each entry remembers the fragment it was added for, so that a removal
+ * racing with the key being cached again doesn't drop the new fragment
+ * from the index.  Tags belong to the key rather than the fragment: they
+ * carry over when a fragment is replaced, until the key is tagged again.
+ *
+ * The index is guarded by a single lock.  It is only changed when fragments
+ * are stored, rendered or removed, never when they are served.
+ *
+ * @author Ryan Wilson
+ */
+@ThreadSafe
+public final class FragmentIndex {
+
+    private static final Set<String> NO_TAGS = Collections.emptySet();
+
+    private static final class Entry {
+        private Fragment    fragment;
+        private Set<String> tags = NO_TAGS;
+
+        private Entry(Fragment fragment) {
+            this.fragment = fragment;
+        }
+    }
+
+    // Sorted, so that the keys with a prefix are contiguous
+    @GuardedBy("this")
+    private final TreeMap<String, Entry> keys = new TreeMap<String, Entry>();
+
+    @GuardedBy("this")
+    private final Map<String, Set<String>> tagged = new HashMap<String, Set<String>>();
+
+    /**
+     * Indexes the fragment stored under the key, keeping any tags the key has
+     *
+     * @param key
+     * @param fragment
+     */
+    public synchronized void add(String key, Fragment fragment) {
+        Entry entry = keys.get(key);
+        if (entry == null)
+            keys.put(key, new Entry(fragment));
+        else
+            entry.fragment = fragment;
+    }
+
+    /**
+     * Replaces the tags of a key in the index; does nothing if the key isn't
+     * indexed, since it is no longer cached.
+     *
+     * @param key
+     * @param tags The tags, replacing any the key had
+     */
+    public synchronized void tag(String key, Collection<String> tags) {
+        Entry entry = keys.get(key);
+        if (entry == null)
+            return;
+
+        untag(key, entry);
+
+        if (tags.isEmpty())
+            return;
+
+        entry.tags = new HashSet<String>(tags);
+        for (String tag : entry.tags) {
+            Set<String> members = tagged.get(tag);
+            if (members == null) {
+                members = new HashSet<String>();
+                tagged.put(tag, members);
+            }
+            members.add(key);
+        }
+    }
+
+    /**
+     * Removes the key from the index, if it is still indexed for the fragment
+     *
+     * @param key
+     * @param fragment The fragment that was removed from the cache
+     * @return true if the key was removed
+     */
+    public synchronized boolean remove(String key, Fragment fragment) {
+        Entry entry = keys.get(key);
+        if (entry == null || entry.fragment != fragment)
+            return false;
+
+        keys.remove(key);
+        untag(key, entry);
+        return true;
+    }
+
+    /**
+     * @param tag
+     * @return The keys with the tag
+     */
+    public synchronized List<String> keysTagged(String tag) {
+        Set<String> members = tagged.get(tag);
+        return members == null ? Collections.<String>emptyList() : new ArrayList<String>(members);
+    }
+
+    /**
+     * @param prefix
+     * @return The keys starting with the prefix
+     */
+    public synchronized List<String> keysWithPrefix(String prefix) {
+        ArrayList<String> matches = new ArrayList<String>();
+        for (String key : keys.tailMap(prefix).keySet()) {
+            if (!key.startsWith(prefix))
+                break;
+            matches.add(key);
+        }
+        return matches;
+    }
+
+    /**
+     * @param key
+     * @return The tags of the key
+     */
+    public synchronized Set<String> getTags(String key) {
+        Entry entry = keys.get(key);
+        return entry == null ? NO_TAGS : Collections.unmodifiableSet(entry.tags);
+    }
+
+    /**
+     * @return The number of keys in the index
+     */
+    public synchronized int size() {
+        return keys.size();
+    }
+
+    /**
+     * Empties the index
+     */
+    public synchronized void clear() {
+        keys.clear();
+        tagged.clear();
+    }
+
+    @GuardedBy("this")
+    private void untag(String key, Entry entry) {
+        for (String tag : entry.tags) {
+            Set<String> members = tagged.get(tag);
+            if (members != null) {
+                members.remove(key);
+                if (members.isEmpty())
+                    tagged.remove(tag);
+            }
+        }
+        entry.tags = NO_TAGS;
+    }
+}
@@ -0,0 +1,333 @@
+/*
+ * FragmentRefresher.java
+ *
+ * Copyright (c) 2011 FooBrew, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.j2free.cache;
+
+import com.reardencommerce.kernel.collections.shared.evictable.ConcurrentLinkedHashMap;
+import com.reardencommerce.kernel.collections.shared.evictable.ConcurrentLinkedHashMap.EvictionPolicy;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Set;
+
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.jcip.annotations.ThreadSafe;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import org.j2free.util.concurrent.ConcurrentHashSet;
+
+/**
+ * Keeps the most requested {@link Fragment}s warm, by re-rendering them in
+ * the background shortly before they expire, so that no request has to pay
+ * to render them.
+ *
+ * Fragments are rendered by the renderers registered with the
+ * {@link FragmentRenderers} the refresher is given.  The
+ * {@link org.j2free.jsp.tags.FragmentCacheTag} reports every lookup of a key
+ * with a renderer, along with the cache, condition and timeout it was
+ * looked up with.  Every <tt>interval</tt>, the refresher ranks those keys
+ * by their recent lookups, each interval counting half as much as the one
+ * after it, and re-renders the hottest ones that are missing or will expire
+ * within the lead time: twice the interval, but at most half the timeout.
+ *
+ * Lookups are tracked for at most <tt>maxKeys</tt> keys, the least recently
+ * used being dropped beyond that.  Fragments are re-rendered under their
+ * lock-for-update, so a request that finds one expired in the meantime
+ * renders it as usual, and the refresher skips it.  The refresher looks
+ * fragments up with {@link FragmentCache#peek}, so that its checks don't
+ * count as requests for them.
+ *
+ * @author Ryan Wilson
+ */
+@ThreadSafe
+public class FragmentRefresher {
+
+    // A key that has been looked up, and how to render it
+    private static final class Entry {
+        private final String        key;
+        private final AtomicInteger lookups = new AtomicInteger(0);
+
+        private volatile FragmentCache<?> cache;
+        private volatile String        condition;
+        private volatile long          timeout;
+
+        // Decayed lookup count, only touched by the scan
+        private long score;
+
+        private Entry(String key) {
+            this.key = key;
+        }
+    }
+
+    private static final Comparator<Entry> HOTTEST_FIRST = new Comparator<Entry>() {
+        public int compare(Entry a, Entry b) {
+            return a.score < b.score ? 1 : (a.score > b.score ? -1 : 0);
+        }
+    };
+
+    private final Log log = LogFactory.getLog(getClass());
+
+    private final ScheduledExecutorService executor;
+
+    private final FragmentRenderers renderers;
+
+    private final ConcurrentMap<String, Entry> entries;
+
+    // Keys with a refresh queued or in progress
+    private final Set<String> pending;
+
+    private final long interval;
+    private final int  minLookups;
+    private final int  maxRefreshes;
+
+    private final AtomicLong refreshes = new AtomicLong(0);
+    private final AtomicLong failures  = new AtomicLong(0);
+
+    /**
+     * @param renderers The renderers to render fragments with
+     * @param threads The number of threads to render fragments on
+     * @param interval How often, in ms, to look for fragments to refresh
+     * @param minLookups The min number of decayed lookups for a fragment to be kept warm
+     * @param maxRefreshes The max number of fragments to refresh per interval
+     * @param maxKeys The max number of keys to track lookups for
+     */
+    public FragmentRefresher(FragmentRenderers renderers, int threads, long interval, int minLookups, int maxRefreshes, int maxKeys) {
+        this(
+            renderers,
+            new ScheduledThreadPoolExecutor(
+                Math.max(threads, 1),
+                new ThreadFactory() {
+                    private final AtomicInteger count = new AtomicInteger(0);
+
+                    public Thread newThread(Runnable r) {
+                        Thread thread = new Thread(r, "fragment-refresher-" + count.incrementAndGet());
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                }
+            ),
+            interval, minLookups, maxRefreshes, maxKeys
+        );
+    }
+
+    /**
+     * @param renderers The renderers to render fragments with
+     * @param executor The executor to look for, and render, fragments on
+     * @param interval How often, in ms, to look for fragments to refresh
+     * @param minLookups The min number of decayed lookups for a fragment to be kept warm
+     * @param maxRefreshes The max number of fragments to refresh per interval
+     * @param maxKeys The max number of keys to track lookups for
+     */
+    public FragmentRefresher(FragmentRenderers renderers, ScheduledExecutorService executor, long interval,
+                             int minLookups, int maxRefreshes, int maxKeys) {
+        this.renderers    = renderers;
+        this.executor     = executor;
+        this.interval     = interval;
+        this.minLookups   = minLookups;
+        this.maxRefreshes = maxRefreshes;
+
+        this.entries   = ConcurrentLinkedHashMap.create(EvictionPolicy.LRU, Math.max(maxKeys, 1), 16);
+        this.pending   = new ConcurrentHashSet<String>();
+
+        executor.scheduleWithFixedDelay(
+            new Runnable() {
+                public void run() {
+                    try {
+                        refresh();
+                    } catch (RuntimeException e) {
+                        log.error("Error looking for fragments to refresh", e);
+                    }
+                }
+            },
+            interval, interval, TimeUnit.MILLISECONDS
+        );
+    }
+
+    /**
+     * @return The renderers fragments are rendered with
+     */
+    public FragmentRenderers getRenderers() {
+        return renderers;
+    }
+
+    /**
+     * @param key The key of the fragment
+     * @return true if a renderer is registered for the key, or a pattern it matches
+     */
+    public boolean canRefresh(String key) {
+        return renderers.contains(key);
+    }
+
+    /**
+     * Counts a lookup of a fragment, remembering the cache, condition and
+     * timeout to refresh it with; does nothing if it can't be refreshed.
+     *
+     * @param cache The cache the fragment was looked up in
+     * @param key The key of the fragment
+     * @param condition The current condition
+     * @param timeout The timeout of the fragment
+     */
+    public void lookup(FragmentCache<?> cache, String key, String condition, long timeout) {
+        Entry entry = entries.get(key);
+        if (entry == null) {
+            if (!canRefresh(key))
+                return;
+
+            Entry created = new Entry(key);
+            entry = entries.putIfAbsent(key, created);
+            if (entry == null)
+                entry = created;
+        }
+
+        entry.cache     = cache;
+        entry.condition = condition;
+        entry.timeout   = timeout;
+        entry.lookups.incrementAndGet();
+    }
+
+    /**
+     * Schedules the hottest fragments that are missing or about to expire to
+     * be re-rendered; run every interval.
+     *
+     * @return The number of fragments scheduled
+     */
+    public int refresh() {
+        List<Entry> hot = new ArrayList<Entry>();
+        for (Entry entry : entries.values()) {
+            entry.score = entry.score / 2 + entry.lookups.getAndSet(0);
+            if (entry.score >= minLookups)
+                hot.add(entry);
+        }
+        Collections.sort(hot, HOTTEST_FIRST);
+
+        int scheduled = 0;
+        for (Entry entry : hot) {
+            if (scheduled >= maxRefreshes)
+                break;
+
+            FragmentCache<?> cache = entry.cache;
+            Fragment fragment   = cache.peek(entry.key);
+            if (fragment != null) {
+                long ttl = fragment.getTimeToLive();
+                if (ttl > Math.min(2 * interval, entry.timeout / 2))
+                    continue;
+            }
+
+            if (schedule(entry))
+                scheduled++;
+        }
+        return scheduled;
+    }
+
+    /**
+     * Stops refreshing fragments, abandoning any that are queued
+     */
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * @return The number of fragments re-rendered in the background
+     */
+    public long getRefreshes() {
+        return refreshes.get();
+    }
+
+    /**
+     * @return The number of background renders that threw
+     */
+    public long getFailures() {
+        return failures.get();
+    }
+
+    /**
+     * @return The number of keys lookups are being tracked for
+     */
+    public int getTrackedKeys() {
+        return entries.size();
+    }
+
+    private boolean schedule(final Entry entry) {
+        if (!pending.add(entry.key))
+            return false;           // already on it
+
+        try {
+            executor.execute(new Runnable() {
+                public void run() {
+                    try {
+                        render(entry);
+                    } finally {
+                        pending.remove(entry.key);
+                    }
+                }
+            });
+            return true;
+        } catch (RejectedExecutionException e) {
+            pending.remove(entry.key);
+            return false;
+        }
+    }
+
+    private void render(Entry entry) {
+        // The renderer may have been unregistered in the meantime
+        FragmentRenderers.Renderer renderer = renderers.get(entry.key);
+        if (renderer == null) {
+            entries.remove(entry.key);
+            return;
+        }
+
+        String condition = entry.condition;
+
+        Fragment fragment = getOrCreate(entry.cache, entry.key, condition, entry.timeout);
+
+        // A request may be rendering it already
+        if (!fragment.tryLockForUpdate())
+            return;
+
+        try {
+            long start = System.currentTimeMillis();
+
+            if (fragment.tryUpdateAndRelease(FragmentTemplate.plain(renderer.render(entry.key)), condition))
+                refreshes.incrementAndGet();
+
+            if (log.isTraceEnabled())
+                log.trace(entry.key + ": REFRESHED (" + (System.currentTimeMillis() - start) + "ms)");
+        } catch (Exception e) {
+            failures.incrementAndGet();
+            log.error(entry.key + ": ERROR refreshing", e);
+        } finally {
+            fragment.tryRelease();
+        }
+    }
+
+    private static <T extends Fragment> T getOrCreate(FragmentCache<T> cache, String key, String condition, long timeout) {
+        T fragment = cache.peek(key);
+        return fragment != null ? fragment : cache.putIfAbsent(key, cache.createFragment(condition, timeout));
+    }
+}
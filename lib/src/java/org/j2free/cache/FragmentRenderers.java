@@ -0,0 +1,198 @@
+/*
+ * FragmentRenderers.java
+ *
+ * Copyright (c) 2011 FooBrew, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.j2free.cache;
+
+import com.reardencommerce.kernel.collections.shared.evictable.ConcurrentLinkedHashMap;
+import com.reardencommerce.kernel.collections.shared.evictable.ConcurrentLinkedHashMap.EvictionPolicy;
+
+import java.util.List;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.regex.Pattern;
+
+import net.jcip.annotations.ThreadSafe;
+
+/**
+ * The renderers that produce the content of {@link Fragment}s outside of a
+ * request, the same content the JSP body would.  A fragment rendered by a
+ * JSP body can only be rendered by a request, so the
+ * {@link FragmentRevalidator} and the {@link FragmentRefresher} both look
+ * up the renderer for a key here, and one registration serves both.
+ *
+ * A renderer is registered for a fragment key, or for every key matching a
+ * pattern; a key's own renderer comes before any pattern, and patterns are
+ * tried in the order they were registered.  NUL chars are dropped from what
+ * they render, so that it is never taken for a {@link FragmentTemplate}.
+ *
+ * Every fragment a request looks up may be checked for a renderer, so the
+ * pattern each key resolves to, or that it resolves to none, is remembered
+ * for a bounded number of keys, until the patterns change.
+ *
+ * @author Ryan Wilson
+ */
+@ThreadSafe
+public class FragmentRenderers {
+
+    /**
+     * Renders the content of the fragments with keys matching a pattern
+     */
+    public static interface Renderer {
+
+        /**
+         * @param key The key of the fragment
+         * @return The content of the fragment
+         * @throws Exception
+         */
+        public String render(String key) throws Exception;
+    }
+
+    // Renders a single key, keeping the callable it was registered with
+    private static final class CallableRenderer implements Renderer {
+        private final Callable<String> callable;
+
+        private CallableRenderer(Callable<String> callable) {
+            this.callable = callable;
+        }
+
+        public String render(String key) throws Exception {
+            return callable.call();
+        }
+    }
+
+    // Remembered for keys that match no pattern
+    private static final Renderer NONE = new Renderer() {
+        public String render(String key) {
+            return null;
+        }
+    };
+
+    // The max number of keys to remember the pattern renderer of
+    private static final int MAX_RESOLVED = 10000;
+
+    private static final class PatternRenderer {
+        private final Pattern  pattern;
+        private final Renderer renderer;
+
+        private PatternRenderer(Pattern pattern, Renderer renderer) {
+            this.pattern  = pattern;
+            this.renderer = renderer;
+        }
+    }
+
+    private final ConcurrentMap<String, CallableRenderer> renderers;
+    private final List<PatternRenderer>                   patterns;
+
+    // The pattern renderer each key resolved to, replaced whenever the patterns
+    // change, so that a resolution against the old patterns is never remembered
+    private volatile ConcurrentMap<String, Renderer> resolved;
+
+    public FragmentRenderers() {
+        this.renderers = new ConcurrentHashMap<String, CallableRenderer>();
+        this.patterns  = new CopyOnWriteArrayList<PatternRenderer>();
+        this.resolved  = newResolved();
+    }
+
+    /**
+     * Registers the renderer for a fragment key
+     *
+     * @param key The key of the fragment
+     * @param renderer Produces the content of the fragment
+     */
+    public void register(String key, Callable<String> renderer) {
+        renderers.put(key, new CallableRenderer(renderer));
+    }
+
+    /**
+     * Registers the renderer for every fragment key matching a pattern, for
+     * keys without a renderer of their own.
+     *
+     * @param pattern Matched against the whole key
+     * @param renderer Produces the content of the fragments
+     */
+    public void register(Pattern pattern, Renderer renderer) {
+        patterns.add(new PatternRenderer(pattern, renderer));
+        resolved = newResolved();
+    }
+
+    /**
+     * @param key The key of the fragment
+     * @return The renderer that was registered for the key, or null
+     */
+    public Callable<String> unregister(String key) {
+        CallableRenderer removed = renderers.remove(key);
+        return removed == null ? null : removed.callable;
+    }
+
+    /**
+     * @param pattern A pattern that was registered
+     * @return true if a renderer was registered for the pattern
+     */
+    public boolean unregister(Pattern pattern) {
+        for (PatternRenderer registered : patterns) {
+            if (registered.pattern.pattern().equals(pattern.pattern())) {
+                boolean removed = patterns.remove(registered);
+                resolved = newResolved();
+                return removed;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @param key The key of the fragment
+     * @return true if a renderer is registered for the key, or a pattern it matches
+     */
+    public boolean contains(String key) {
+        return get(key) != null;
+    }
+
+    /**
+     * @param key The key of the fragment
+     * @return The renderer for the key, or for a pattern it matches, or null
+     *         if there is none
+     */
+    public Renderer get(String key) {
+        Renderer renderer = renderers.get(key);
+        if (renderer != null)
+            return renderer;
+
+        // Read before the patterns, which are changed before it is replaced
+        ConcurrentMap<String, Renderer> current = resolved;
+
+        renderer = current.get(key);
+        if (renderer == null) {
+            renderer = NONE;
+            for (PatternRenderer registered : patterns) {
+                if (registered.pattern.matcher(key).matches()) {
+                    renderer = registered.renderer;
+                    break;
+                }
+            }
+            current.put(key, renderer);
+        }
+
+        return renderer == NONE ? null : renderer;
+    }
+
+    private static ConcurrentMap<String, Renderer> newResolved() {
+        return ConcurrentLinkedHashMap.<String, Renderer>create(EvictionPolicy.SECOND_CHANCE, MAX_RESOLVED);
+    }
+}
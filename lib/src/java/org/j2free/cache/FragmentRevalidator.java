@@ -0,0 +1,265 @@
+/*
+ * FragmentRevalidator.java
+ *
+ * Copyright (c) 2011 FooBrew, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.j2free.cache;
+
+import java.lang.management.ManagementFactory;
+
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import net.jcip.annotations.GuardedBy;
+import net.jcip.annotations.ThreadSafe;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import org.j2free.util.concurrent.ConcurrentHashSet;
+
+/**
+ * Re-renders stale {@link Fragment}s in the background, so that requests
+ * can be served the stale content in the meantime instead of waiting
+ * (stale-while-revalidate).
+ *
+ * A fragment rendered by a JSP body can only be rendered by a request, so
+ * background revalidation requires a renderer to be registered for the
+ * fragment's key with the {@link FragmentRenderers} the revalidator is
+ * given.  Fragments without a renderer are rendered by the request that
+ * finds them stale, as usual.
+ *
+ * How many requests were served stale content, and how many fragments were
+ * re-rendered, may be published with JMX as
+ * <tt>org.j2free:type=FragmentCache,name="FragmentRevalidator"</tt>.
+ *
+ * @author Ryan Wilson
+ */
+@ThreadSafe
+public class FragmentRevalidator implements FragmentRevalidatorMBean {
+
+    private static final String DOMAIN = "org.j2free";
+
+    private final Log log = LogFactory.getLog(getClass());
+
+    private final ExecutorService executor;
+
+    private final FragmentRenderers renderers;
+
+    // Keys with a revalidation queued or in progress
+    private final Set<String> pending;
+
+    private final AtomicLong staleHits     = new AtomicLong(0);
+    private final AtomicLong revalidations = new AtomicLong(0);
+    private final AtomicLong failures      = new AtomicLong(0);
+    private final AtomicLong rejections    = new AtomicLong(0);
+
+    @GuardedBy("this")
+    private boolean jmxEnabled = false;
+
+    /**
+     * @param renderers The renderers to render fragments with
+     * @param threads The number of threads to render fragments on
+     * @param queueSize The max number of fragments waiting to be rendered,
+     *        beyond which stale fragments are rendered by the request that finds them
+     */
+    public FragmentRevalidator(FragmentRenderers renderers, int threads, int queueSize) {
+        this(
+            renderers,
+            new ThreadPoolExecutor(
+                threads, threads, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(Math.max(queueSize, 1)),
+                new ThreadFactory() {
+                    private final AtomicInteger count = new AtomicInteger(0);
+
+                    public Thread newThread(Runnable r) {
+                        Thread thread = new Thread(r, "fragment-revalidator-" + count.incrementAndGet());
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                }
+            )
+        );
+    }
+
+    /**
+     * @param renderers The renderers to render fragments with
+     * @param executor The executor to render fragments on
+     */
+    public FragmentRevalidator(FragmentRenderers renderers, ExecutorService executor) {
+        this.renderers = renderers;
+        this.executor  = executor;
+        this.pending   = new ConcurrentHashSet<String>();
+    }
+
+    /**
+     * @return The renderers fragments are rendered with
+     */
+    public FragmentRenderers getRenderers() {
+        return renderers;
+    }
+
+    /**
+     * @param key The key of the fragment
+     * @return true if a renderer is registered for the key, or a pattern it matches
+     */
+    public boolean canRevalidate(String key) {
+        return renderers.contains(key);
+    }
+
+    /**
+     * Schedules a stale fragment to be re-rendered, unless it already is.
+     *
+     * @param key The key of the fragment
+     * @param fragment The stale fragment
+     * @param condition The current condition
+     * @return true if the fragment will be re-rendered in the background and
+     *         the caller should serve the stale content, or false if there is
+     *         no renderer for the key, or the queue is full, and the caller
+     *         must render it
+     */
+    public boolean revalidate(final String key, final Fragment fragment, final String condition) {
+        final FragmentRenderers.Renderer renderer = renderers.get(key);
+        if (renderer == null)
+            return false;
+
+        if (!pending.add(key)) {
+            staleHits.incrementAndGet();
+            return true;            // already on it
+        }
+
+        try {
+            executor.execute(new Runnable() {
+                public void run() {
+                    try {
+                        render(key, fragment, condition, renderer);
+                    } finally {
+                        pending.remove(key);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // Too far behind, so rather than let the content grow ever staler,
+            // the caller renders it as if there were no renderer
+            pending.remove(key);
+            rejections.incrementAndGet();
+            return false;
+        }
+
+        staleHits.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * Stops rendering fragments, abandoning any that are queued, and
+     * unregisters from JMX
+     */
+    public void shutdown() {
+        executor.shutdownNow();
+        setJmxEnabled(false);
+    }
+
+    /**
+     * Enables or disables registration of the revalidator's counters with JMX.
+     * Only one revalidator may be registered at a time, so a replacement should
+     * be enabled once the revalidator it replaces has been shut down.
+     *
+     * @param enabled
+     */
+    public synchronized void setJmxEnabled(boolean enabled) {
+        if (enabled == jmxEnabled)
+            return;
+
+        jmxEnabled = enabled;
+
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(DOMAIN + ":type=FragmentCache,name=" + ObjectName.quote("FragmentRevalidator"));
+
+            if (enabled && !server.isRegistered(name))
+                server.registerMBean(this, name);
+            else if (!enabled && server.isRegistered(name))
+                server.unregisterMBean(name);
+        } catch (Exception e) {
+            log.warn("Unable to " + (enabled ? "register" : "unregister") + " fragment revalidator MBean", e);
+        }
+    }
+
+    /**
+     * @return The number of requests served stale content while a fragment was revalidated
+     */
+    public long getStaleHits() {
+        return staleHits.get();
+    }
+
+    /**
+     * @return The number of fragments re-rendered in the background
+     */
+    public long getRevalidations() {
+        return revalidations.get();
+    }
+
+    /**
+     * @return The number of background renders that threw
+     */
+    public long getFailures() {
+        return failures.get();
+    }
+
+    /**
+     * @return The number of revalidations left to the request because the queue was full
+     */
+    public long getRejections() {
+        return rejections.get();
+    }
+
+    /**
+     * @return The number of fragments queued or being re-rendered
+     */
+    public int getPending() {
+        return pending.size();
+    }
+
+    private void render(String key, Fragment fragment, String condition, FragmentRenderers.Renderer renderer) {
+        // Someone else may have refreshed it in the meantime
+        if (!fragment.tryLockForUpdate(condition))
+            return;
+
+        try {
+            long start = System.currentTimeMillis();
+
+            if (fragment.tryUpdateAndRelease(FragmentTemplate.plain(renderer.render(key)), condition))
+                revalidations.incrementAndGet();
+
+            if (log.isTraceEnabled())
+                log.trace(key + ": REVALIDATED (" + (System.currentTimeMillis() - start) + "ms)");
+        } catch (Exception e) {
+            failures.incrementAndGet();
+            log.error(key + ": ERROR revalidating, serving stale content", e);
+        } finally {
+            fragment.tryRelease();
+        }
+    }
+}
@@ -0,0 +1,51 @@
+/*
+ * FragmentRevalidatorMBean.java
+ *
+ * Copyright (c) 2011 FooBrew, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.j2free.cache;
+
+/**
+ * JMX management interface for {@link FragmentRevalidator}.
+ *
+ * @author Ryan Wilson
+ */
+public interface FragmentRevalidatorMBean {
+
+    /**
+     * @return The number of requests served stale content while a fragment was revalidated
+     */
+    public long getStaleHits();
+
+    /**
+     * @return The number of fragments re-rendered in the background
+     */
+    public long getRevalidations();
+
+    /**
+     * @return The number of background renders that threw
+     */
+    public long getFailures();
+
+    /**
+     * @return The number of revalidations left to the request because the queue was full
+     */
+    public long getRejections();
+
+    /**
+     * @return The number of fragments queued or being re-rendered
+     */
+    public int getPending();
+}
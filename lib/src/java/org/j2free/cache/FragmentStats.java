@@ -0,0 +1,215 @@
+/*
+ * FragmentStats.java
+ *
+ * Copyright (c) 2011 FooBrew, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.j2free.cache;
+
+import net.jcip.annotations.ThreadSafe;
+
+import org.j2free.util.concurrent.StripedCounter;
+
+/**
+ * How the {@link FragmentCache} is serving a single fragment key, or all
+ * the keys sharing a prefix, as recorded by a {@link FragmentCacheAnalyzer}.
+ *
+ * Stats for a key roll up into the stats for its prefix as they are recorded.
+ *
+ * @author Ryan Wilson
+ */
+@ThreadSafe
+public final class FragmentStats implements FragmentStatsMBean {
+
+    // Marks that no condition has been seen yet, as opposed to a null condition
+    private static final Object UNSEEN = new Object();
+
+    private final String name;
+
+    // The stats for the prefix of this key, or null if these are prefix stats
+    private final FragmentStats prefix;
+
+    private final StripedCounter lookups          = new StripedCounter();
+    private final StripedCounter hits             = new StripedCounter();
+    private final StripedCounter staleHits        = new StripedCounter();
+    private final StripedCounter misses           = new StripedCounter();
+    private final StripedCounter renderNanos      = new StripedCounter();
+    private final StripedCounter renderedChars    = new StripedCounter();
+    private final StripedCounter waitNanos        = new StripedCounter();
+    private final StripedCounter timeouts         = new StripedCounter();
+    private final StripedCounter conditionChanges = new StripedCounter();
+    private final StripedCounter lockAbandonments = new StripedCounter();
+
+    // The condition of the last lookup; racy, but a missed change only skews a count
+    private volatile Object lastCondition = UNSEEN;
+
+    FragmentStats(String name, FragmentStats prefix) {
+        this.name   = name;
+        this.prefix = prefix;
+    }
+
+    /**
+     * Records a lookup; use {@link FragmentCacheAnalyzer#lookup}, which finds the stats.
+     */
+    void lookup(String condition) {
+        lookups.increment();
+
+        Object last = lastCondition;
+        if (last != UNSEEN && (condition == null ? last != null : !condition.equals(last)))
+            conditionChanged();
+
+        if (last != condition)
+            lastCondition = condition;
+
+        if (prefix != null)
+            prefix.lookups.increment();
+    }
+
+    /**
+     * Records a request served cached content
+     *
+     * @param waitedNanos How long the request waited for the content
+     * @param stale true if the content was stale, and is being revalidated
+     * @param timedOut true if the request gave up waiting
+     */
+    public void hit(long waitedNanos, boolean stale, boolean timedOut) {
+        if (timedOut) {
+            timeouts.increment();
+        } else {
+            hits.increment();
+            if (stale)
+                staleHits.increment();
+        }
+        waitNanos.add(waitedNanos);
+
+        if (prefix != null)
+            prefix.hit(waitedNanos, stale, timedOut);
+    }
+
+    /**
+     * Records a request that rendered the fragment
+     *
+     * @param nanos How long the render took
+     * @param chars The length of the rendered content
+     */
+    public void rendered(long nanos, int chars) {
+        misses.increment();
+        renderNanos.add(nanos);
+        renderedChars.add(chars);
+
+        if (prefix != null)
+            prefix.rendered(nanos, chars);
+    }
+
+    /**
+     * Records that the fragment was replaced because its lock was abandoned
+     */
+    public void lockAbandoned() {
+        lockAbandonments.increment();
+
+        if (prefix != null)
+            prefix.lockAbandoned();
+    }
+
+    private void conditionChanged() {
+        conditionChanges.increment();
+
+        if (prefix != null)
+            prefix.conditionChanged();
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public long getLookups() {
+        return lookups.sum();
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    public long getStaleHits() {
+        return staleHits.sum();
+    }
+
+    public double getHitRatio() {
+        long h = hits.sum(), total = h + misses.sum();
+        return total == 0 ? 0 : (double) h / total;
+    }
+
+    public long getMeanRenderMicros() {
+        return mean(renderNanos.sum(), misses.sum()) / 1000;
+    }
+
+    public long getMeanWaitMicros() {
+        return mean(waitNanos.sum(), hits.sum() + timeouts.sum()) / 1000;
+    }
+
+    public long getTimeouts() {
+        return timeouts.sum();
+    }
+
+    public long getMeanSize() {
+        return mean(renderedChars.sum(), misses.sum());
+    }
+
+    public long getConditionChanges() {
+        return conditionChanges.sum();
+    }
+
+    public long getLockAbandonments() {
+        return lockAbandonments.sum();
+    }
+
+    public long getSavedMillis() {
+        return hits.sum() * mean(renderNanos.sum(), misses.sum()) / 1000000;
+    }
+
+    public long getRenderMillis() {
+        return renderNanos.sum() / 1000000;
+    }
+
+    public long getWaitMillis() {
+        return waitNanos.sum() / 1000000;
+    }
+
+    public void reset() {
+        lookups.reset();
+        hits.reset();
+        staleHits.reset();
+        misses.reset();
+        renderNanos.reset();
+        renderedChars.reset();
+        waitNanos.reset();
+        timeouts.reset();
+        conditionChanges.reset();
+        lockAbandonments.reset();
+    }
+
+    @Override
+    public String toString() {
+        return name + " [lookups=" + getLookups() + ", hits=" + getHits() + ", misses=" + getMisses()
+                + ", meanRender=" + getMeanRenderMicros() + "us]";
+    }
+
+    private static long mean(long total, long count) {
+        return count == 0 ? 0 : total / count;
+    }
+}
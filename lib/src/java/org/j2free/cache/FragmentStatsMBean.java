@@ -0,0 +1,112 @@
+/*
+ * FragmentStatsMBean.java
+ *
+ * Copyright (c) 2011 FooBrew, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.j2free.cache;
+
+/**
+ * JMX management interface for {@link FragmentStats}.  Times are reported
+ * in microseconds, except for {@link #getSavedMillis}.
+ *
+ * @author Ryan Wilson
+ */
+public interface FragmentStatsMBean {
+
+    /**
+     * @return The fragment key, or key prefix
+     */
+    public String getName();
+
+    /**
+     * @return The number of times the fragment was requested
+     */
+    public long getLookups();
+
+    /**
+     * @return The number of requests served cached content, including stale content
+     */
+    public long getHits();
+
+    /**
+     * @return The number of requests that rendered the fragment
+     */
+    public long getMisses();
+
+    /**
+     * @return The number of requests served stale content while the
+     *         fragment was re-rendered in the background
+     */
+    public long getStaleHits();
+
+    /**
+     * @return hits / (hits + misses), or 0 if there have been neither
+     */
+    public double getHitRatio();
+
+    /**
+     * @return The mean time to render the fragment, in microseconds
+     */
+    public long getMeanRenderMicros();
+
+    /**
+     * @return The mean time spent waiting for content, in microseconds;
+     *         long waits mean requests piling up behind a render
+     */
+    public long getMeanWaitMicros();
+
+    /**
+     * @return The total time spent rendering the fragment, in milliseconds
+     */
+    public long getRenderMillis();
+
+    /**
+     * @return The total time spent waiting for content, in milliseconds
+     */
+    public long getWaitMillis();
+
+    /**
+     * @return The number of requests that gave up waiting for content
+     */
+    public long getTimeouts();
+
+    /**
+     * @return The mean length of the rendered content, in chars
+     */
+    public long getMeanSize();
+
+    /**
+     * @return The number of times the fragment was requested with a
+     *         different condition than the previous request
+     */
+    public long getConditionChanges();
+
+    /**
+     * @return The number of times the fragment was replaced because the
+     *         thread rendering it never released its lock
+     */
+    public long getLockAbandonments();
+
+    /**
+     * @return An estimate of the render time saved by the cache, in
+     *         milliseconds: hits times the mean render time
+     */
+    public long getSavedMillis();
+
+    /**
+     * Sets all counts back to zero
+     */
+    public void reset();
+}
@@ -0,0 +1,384 @@
+/*
+ * FragmentTemplate.java
+ *
+ * Copyright (c) 2011 FooBrew, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.j2free.cache;
+
+import java.io.IOException;
+import java.io.Writer;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import java.util.concurrent.TimeUnit;
+
+import net.jcip.annotations.NotThreadSafe;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import org.j2free.util.HtmlCompactor;
+
+/**
+ * The content of a {@link Fragment} rendered around nested fragments from the
+ * same cache is stored as a template: the content rendered around the nested
+ * fragments, after a header listing where each nested fragment goes and its
+ * key, so that the nested fragments are stored once, and can be refreshed
+ * without re-rendering the fragments they are nested in.  Templates are
+ * captured by a {@link Capture}, and filled in as they are written out, by
+ * an {@link Assembler}.
+ *
+ * A template starts with a NUL char, followed by the number of holes, then
+ * the offset into the content and the key of each, each ended by a NUL:
+ * <tt>\0n\0offset\0key\0...content</tt>.  NUL never occurs in HTML, and is
+ * dropped from everything written to a capture, so content the capture
+ * didn't frame as a template is never taken for one, and passes through an
+ * assembler as is.  Templates should only be written out through one, and
+ * are never gzipped as they are stored.
+ *
+ * @author Ryan Wilson
+ */
+public final class FragmentTemplate {
+
+    /**
+     * Starts a template, and ends each field of its header
+     */
+    public static final char HOLE = '\u0000';
+
+    // How deep fragments may be nested in templates, guarding against cycles
+    private static final int MAX_DEPTH = 8;
+
+    // The longest header read before giving up on it, rather than hold back the page
+    private static final int MAX_HEADER = 64 * 1024;
+
+    private static final Log log = LogFactory.getLog(FragmentTemplate.class);
+
+    private FragmentTemplate() { }
+
+    /**
+     * @param content The content of a fragment
+     * @return true if the content is a template, to be written out through an {@link Assembler}
+     */
+    public static boolean isTemplate(String content) {
+        return content != null && content.length() > 0 && content.charAt(0) == HOLE;
+    }
+
+    /**
+     * @param content Content rendered outside of a {@link Capture}
+     * @return The content without NUL chars, so that it is never taken for a template
+     */
+    public static String plain(String content) {
+        return content == null || content.indexOf(HOLE) < 0 ? content : content.replace(String.valueOf(HOLE), "");
+    }
+
+    /**
+     * Compacts content written to it, as an {@link HtmlCompactor} does, into
+     * a buffer that can be reused, keeping track of the holes left in it for
+     * nested fragments.
+     */
+    @NotThreadSafe
+    public static final class Capture extends Writer {
+
+        private final HtmlCompactor body;
+
+        private final List<Integer> offsets = new ArrayList<Integer>();
+        private final List<String>  keys    = new ArrayList<String>();
+
+        /**
+         * @param capacity The initial capacity of the buffer
+         */
+        public Capture(int capacity) {
+            body = new HtmlCompactor(capacity);
+        }
+
+        /**
+         * Leaves a hole for a nested fragment where the content has been written up to
+         *
+         * @param key The key of the nested fragment
+         */
+        public void hole(String key) {
+            offsets.add(body.mark());
+            keys.add(plain(key));
+        }
+
+        @Override
+        public void write(int c) {
+            body.write(c);
+        }
+
+        @Override
+        public void write(char[] cbuf, int off, int len) {
+            body.write(cbuf, off, len);
+        }
+
+        @Override
+        public void write(String str, int off, int len) {
+            body.write(str, off, len);
+        }
+
+        @Override
+        public void flush() { }
+
+        @Override
+        public void close() { }
+
+        /**
+         * @return The capacity of the buffer
+         */
+        public int capacity() {
+            return body.capacity();
+        }
+
+        /**
+         * Empties the capture to be written to again, keeping the buffer
+         */
+        public void reset() {
+            body.reset();
+            offsets.clear();
+            keys.clear();
+        }
+
+        /**
+         * @return The content written, compacted, as a template if any holes
+         *         were left in it
+         */
+        @Override
+        public String toString() {
+            String content = body.toString();
+            if (keys.isEmpty())
+                return content;
+
+            StringBuilder template = new StringBuilder(content.length() + 32 * keys.size());
+            template.append(HOLE).append(keys.size()).append(HOLE);
+            for (int i = 0; i < keys.size(); i++)
+                template.append(offsets.get(i)).append(HOLE).append(keys.get(i)).append(HOLE);
+
+            return template.append(content).toString();
+        }
+    }
+
+    /**
+     * Writes content through to another writer, filling in each hole of a
+     * template with the content of the fragment currently cached under its
+     * key, itself filled in.  A hole whose fragment is missing or has expired
+     * is filled with whatever content the fragment has, and the template
+     * marked incomplete, so that the caller can have it re-rendered.
+     *
+     * Content that isn't a template is written through as is.
+     */
+    @NotThreadSafe
+    public static final class Assembler extends Writer {
+
+        private final Writer        out;
+        private final FragmentCache<?> cache;
+        private final int           depth;
+
+        // Whether anything has been written, i.e. whether the content is known to be a template
+        private boolean started;
+
+        // The header of the template being read, or null once read, or if the content isn't a template
+        private StringBuilder header;
+        private int           fields;
+        private int           count;
+
+        // The holes of the template, the next to fill, and the length of the content written
+        private int[]    offsets;
+        private String[] keys;
+        private int      next;
+        private int      position;
+
+        private boolean complete = true;
+
+        /**
+         * @param out Where to write the assembled content
+         * @param cache The cache to fill holes from
+         */
+        public Assembler(Writer out, FragmentCache<?> cache) {
+            this(out, cache, 0);
+        }
+
+        private Assembler(Writer out, FragmentCache<?> cache, int depth) {
+            this.out   = out;
+            this.cache = cache;
+            this.depth = depth;
+        }
+
+        /**
+         * @return true if every hole was filled with up-to-date content
+         */
+        public boolean isComplete() {
+            return complete && header == null && (keys == null || next == keys.length);
+        }
+
+        @Override
+        public void write(int c) throws IOException {
+            write(new char[] { (char) c }, 0, 1);
+        }
+
+        @Override
+        public void write(char[] cbuf, int off, int len) throws IOException {
+            int end = off + len;
+            while (off < end && consume(cbuf[off]))
+                off++;
+
+            // Content between holes, i.e. most of it, is written through in one go
+            while (off < end) {
+                int length = span(end - off);
+                out.write(cbuf, off, length);
+                off += length;
+                advance(length);
+            }
+        }
+
+        @Override
+        public void write(String str, int off, int len) throws IOException {
+            int end = off + len;
+            while (off < end && consume(str.charAt(off)))
+                off++;
+
+            while (off < end) {
+                int length = span(end - off);
+                out.write(str, off, length);
+                off += length;
+                advance(length);
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            out.flush();
+        }
+
+        // The writer written through isn't ours to close
+        @Override
+        public void close() { }
+
+        /**
+         * @return true if the char starts, or is part of, the header of a template
+         */
+        private boolean consume(char c) throws IOException {
+            if (!started) {
+                started = true;
+                if (c != HOLE)
+                    return false;
+
+                header = new StringBuilder();
+                return true;
+            }
+
+            if (header == null)
+                return false;
+
+            header.append(c);
+            if (header.length() > MAX_HEADER) {
+                writeHeader();
+                return true;
+            }
+
+            if (c != HOLE)
+                return true;
+
+            try {
+                if (++fields == 1) {
+                    count = Integer.parseInt(header.substring(0, header.length() - 1));
+                    if (count < 0)
+                        throw new NumberFormatException("Negative number of holes: " + count);
+                }
+
+                if (fields == 1 + 2 * count) {
+                    String[] split = header.toString().split(String.valueOf(HOLE), -1);
+                    offsets = new int[count];
+                    keys    = new String[count];
+                    for (int i = 0; i < count; i++) {
+                        offsets[i] = Integer.parseInt(split[1 + 2 * i]);
+                        keys[i]    = split[2 + 2 * i];
+                    }
+                    header = null;
+                    advance(0);
+                }
+            } catch (NumberFormatException e) {
+                writeHeader();
+            }
+            return true;
+        }
+
+        /**
+         * Writes out the header read so far as content, it not being one a
+         * capture wrote, and everything after it as is
+         */
+        private void writeHeader() throws IOException {
+            log.warn("Writing out malformed fragment template as is");
+            out.write(HOLE);
+            out.append(header);
+
+            header  = null;
+            offsets = null;
+            keys    = null;
+        }
+
+        /**
+         * @return How much of the content can be written before the next hole
+         */
+        private int span(int length) {
+            if (keys == null || next == keys.length)
+                return length;
+
+            return Math.min(length, offsets[next] - position);
+        }
+
+        /**
+         * Fills in the holes up to where the content has been written
+         */
+        private void advance(int length) throws IOException {
+            position += length;
+            while (keys != null && next < keys.length && offsets[next] <= position)
+                fill(keys[next++]);
+        }
+
+        private void fill(String nested) throws IOException {
+            if (depth >= MAX_DEPTH) {
+                log.warn(nested + ": nested too deep in fragment templates, leaving it out");
+                complete = false;
+                return;
+            }
+
+            Fragment fragment = cache.get(nested);
+            long     ttl      = fragment == null ? -1 : fragment.getTimeToLive();
+
+            if (ttl <= 0)
+                complete = false;
+
+            // Never rendered, or being rendered for the first time
+            if (ttl < 0)
+                return;
+
+            Assembler inner = new Assembler(out, cache, depth + 1);
+            try {
+                if (fragment instanceof StreamableFragment) {
+                    ((StreamableFragment) fragment).writeTo(inner, 0, TimeUnit.MILLISECONDS);
+                } else {
+                    String content = fragment.get(0, TimeUnit.MILLISECONDS);
+                    if (content != null)
+                        inner.write(content);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+
+            complete &= inner.isComplete();
+        }
+    }
+}
@@ -0,0 +1,45 @@
+/*
+ * GzippedFragment.java
+ *
+ * Copyright (c) 2011 FooBrew, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.j2free.cache;
+
+import java.util.concurrent.TimeUnit;
+
+import net.jcip.annotations.ThreadSafe;
+
+/**
+ * A {@link Fragment} that may keep a gzipped copy of its content, computed
+ * once per update, so that whole-page fragments can be sent to clients
+ * accepting gzip without deflating them on every request; see
+ * {@link org.j2free.util.ServletUtils#writeFragment}.
+ *
+ * @author Ryan Wilson
+ */
+@ThreadSafe
+public interface GzippedFragment extends Fragment {
+
+    /**
+     * Waits for the content as {@link Fragment#get} would.
+     *
+     * @param waitFor how long to wait
+     * @param unit the TimeUnit to wait for
+     * @return The content, UTF-8 encoded and gzipped, or null if the fragment
+     *         keeps no gzipped copy or was not initialized within <code>waitFor</code>
+     * @throws InterruptedException
+     */
+    public byte[] getGzipped(long waitFor, TimeUnit unit) throws InterruptedException;
+}
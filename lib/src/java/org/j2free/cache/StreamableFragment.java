@@ -0,0 +1,50 @@
+/*
+ * StreamableFragment.java
+ *
+ * Copyright (c) 2011 FooBrew, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.j2free.cache;
+
+import java.io.IOException;
+import java.io.Writer;
+
+import java.util.concurrent.TimeUnit;
+
+import net.jcip.annotations.ThreadSafe;
+
+/**
+ * A {@link Fragment} whose content can be written out without first
+ * being built into a <tt>String</tt>, e.g. because it isn't stored as
+ * one.  The FragmentCacheTag writes these straight to the page.
+ *
+ * @author Ryan Wilson
+ */
+@ThreadSafe
+public interface StreamableFragment extends Fragment {
+
+    /**
+     * Writes the content to the writer, waiting as {@link Fragment#get}
+     * would if the content has not yet been initialized.
+     *
+     * @param out Where to write the content
+     * @param waitFor how long to wait
+     * @param unit the TimeUnit to wait for
+     * @return true if the content was written, or false if it was not
+     *         initialized within <code>waitFor</code>
+     * @throws InterruptedException
+     * @throws IOException
+     */
+    public boolean writeTo(Writer out, long waitFor, TimeUnit unit) throws InterruptedException, IOException;
+}
@@ -0,0 +1,52 @@
+/*
+ * WeighedFragmentCache.java
+ *
+ * Copyright (c) 2011 FooBrew, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.j2free.cache;
+
+import net.jcip.annotations.ThreadSafe;
+
+/**
+ * A {@link FragmentCache} that knows roughly how many bytes its fragments
+ * take, and can be held to a budget of bytes that may change while it is in
+ * use, so that a {@link FragmentCacheManager} can share memory out between
+ * several caches.
+ *
+ * @param <T>
+ * @author Ryan Wilson
+ */
+@ThreadSafe
+public interface WeighedFragmentCache<T extends Fragment> extends FragmentCache<T> {
+
+    /**
+     * @return The approximate number of bytes the cached fragments take
+     */
+    public long getWeight();
+
+    /**
+     * @return The max number of bytes the cached fragments may take,
+     *         or 0 if there is no limit
+     */
+    public long getMaxWeight();
+
+    /**
+     * Changes the max number of bytes the cached fragments may take,
+     * evicting fragments right away if they take more.
+     *
+     * @param maxWeight The max number of bytes, greater than 0
+     */
+    public void setMaxWeight(long maxWeight);
+}
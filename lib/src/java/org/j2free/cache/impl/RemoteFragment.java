@@ -0,0 +1,382 @@
+/*
+ * RemoteFragment.java
+ *
+ * Copyright 2011 FooBrew, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.j2free.cache.impl;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+import net.jcip.annotations.GuardedBy;
+import net.jcip.annotations.ThreadSafe;
+
+import org.apache.commons.lang.StringUtils;
+
+import org.j2free.cache.Fragment;
+
+import org.j2free.util.ServletUtils;
+
+/**
+ * A fragment whose content is kept locally, and shared with other nodes
+ * through a remote store.
+ *
+ * Locking-for-update works as in {@link org.j2free.cache.impl.memory.MemoryFragment},
+ * but also takes a lock in the store, so that only one node renders a key
+ * at a time.  A thread waiting for content that another node is rendering
+ * polls the store for it.  Subclasses talk to the store by implementing
+ * {@link #load}, {@link #lock}, {@link #store} and {@link #unlock}.
+ *
+ * Until it is put in the cache, a fragment has no key and is local only.
+ *
+ * @author Ryan Wilson
+ */
+@ThreadSafe
+public abstract class RemoteFragment implements Fragment {
+
+    /**
+     * Max time in ms that a thread may hold the lock-for-update on a fragment
+     */
+    public static final int MAX_LOCK_HOLD = 90000;
+
+    // How often to check the store while waiting for content rendered on another node
+    private static final long POLL_INTERVAL = 50;
+
+    // Set when the fragment is put in the cache
+    private volatile String key;
+
+    @GuardedBy("this") private String content;
+    @GuardedBy("this") private String condition;
+
+    @GuardedBy("this") private long lockedTime;
+    @GuardedBy("this") private long updateTime;
+
+    // The token of the lock in the store held by the updating thread
+    @GuardedBy("this") private String lockToken;
+
+    private final long timeout;
+
+    private final ReentrantLock  updateLock;
+    private final CountDownLatch initialized;
+
+    /**
+     * @param condition An optional condition upon creation of the fragment
+     * @param timeout The timeout for this cached fragment
+     */
+    protected RemoteFragment(String condition, long timeout) {
+        this.timeout = timeout;
+
+        // Use null instead of blank string for condition
+        this.condition = StringUtils.isEmpty(condition) ? null : condition;
+
+        this.updateLock  = new ReentrantLock();
+        this.initialized = new CountDownLatch(1);
+
+        this.updateTime = System.currentTimeMillis();
+        this.lockedTime = -1;
+    }
+
+    /**
+     * Adopts the content stored under the key, if it is newer, e.g. with
+     * {@link #adopt(String, String, long)}
+     *
+     * @param key The key the fragment is cached under
+     * @return true if newer content was adopted
+     */
+    protected abstract boolean load(String key);
+
+    /**
+     * Having locked locally, takes the lock on the key in the store, unless
+     * another node holds it or, when not forced, has already stored content
+     * fresh enough for the current condition
+     *
+     * @param key The key the fragment is cached under
+     * @param curCondition The current condition
+     * @param force Lock it even if it is fresh
+     * @return A token to unlock the key with, or null if it wasn't locked
+     */
+    protected abstract String lock(String key, String curCondition, boolean force);
+
+    /**
+     * Shares freshly rendered content with the other nodes, and releases the
+     * lock in the store
+     *
+     * @param key The key the fragment is cached under
+     * @param token The token the key was locked with, or null
+     * @param content The rendered content
+     * @param condition The condition it was rendered under
+     * @param updateTime When it was rendered
+     */
+    protected abstract void store(String key, String token, String content, String condition, long updateTime);
+
+    /**
+     * Releases the lock on the key in the store, if it is still held with the token
+     *
+     * @param key The key the fragment is cached under
+     * @param token The token the key was locked with
+     */
+    protected abstract void unlock(String key, String token);
+
+    /**
+     * If the content has not yet been initialized, waits until it is
+     * initialized here or by another node, or <code>waitFor</code> has passed.
+     *
+     * @param waitFor how long to wait
+     * @param unit the TimeUnit to wait for
+     * @return the content
+     */
+    public String get(long waitFor, TimeUnit unit) throws InterruptedException {
+        long remaining = unit.toMillis(waitFor);
+        long deadline  = System.currentTimeMillis() + remaining;
+
+        while (!initialized.await(Math.min(remaining, POLL_INTERVAL), TimeUnit.MILLISECONDS)) {
+            // Unless it's being rendered here, it may be being rendered on another node
+            if (!updateLock.isLocked())
+                refresh();
+
+            remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0 && initialized.getCount() > 0)
+                return null;
+        }
+
+        synchronized (this) {
+            return content;
+        }
+    }
+
+    public synchronized long getStaleness(String curCondition) {
+        if (initialized.getCount() > 0)
+            return -1;
+
+        long expired = System.currentTimeMillis() - updateTime - timeout;
+        if (expired >= 0)
+            return Math.max(expired, 1);
+
+        return condition != null && !condition.equals(curCondition) ? 1 : 0;
+    }
+
+    public synchronized long getTimeToLive() {
+        if (initialized.getCount() > 0)
+            return -1;
+
+        return Math.max(updateTime + timeout - System.currentTimeMillis(), 0);
+    }
+
+    /**
+     * @return The timeout for this cached fragment, in ms
+     */
+    public long getTimeout() {
+        return timeout;
+    }
+
+    public synchronized boolean isLockAbandoned() {
+        return updateLock.isLocked() && (System.currentTimeMillis() - lockedTime ) >= MAX_LOCK_HOLD;
+    }
+
+    public boolean tryLockForUpdate(String curCondition) {
+
+        // If the caller Thread is already the owner, just return true
+        if (updateLock.isHeldByCurrentThread())
+            return true;
+
+        // If this fragment is currently locked for update by a different Thread
+        if (updateLock.isLocked())
+            return false;
+
+        // Do all the below in a synchronized block so that the condition cannot
+        // change between the check and the call to tryLock()
+        synchronized (this) {
+            if (!needsUpdate(curCondition) || !updateLock.tryLock())
+                return false;
+
+            lockedTime = System.currentTimeMillis();
+        }
+
+        return tryLockRemote(curCondition, false);
+    }
+
+    public boolean tryLockForUpdate() {
+
+        // If the caller Thread is already the owner, just return true
+        if (updateLock.isHeldByCurrentThread())
+            return true;
+
+        if (updateLock.isLocked())
+            return false;
+
+        synchronized (this) {
+            if (!updateLock.tryLock())
+                return false;
+
+            lockedTime = System.currentTimeMillis();
+        }
+
+        return tryLockRemote(null, true);
+    }
+
+    public boolean tryUpdateAndRelease(String newContent, String newCondition) {
+
+        // Make sure the caller owns the lock
+        if (!updateLock.isHeldByCurrentThread())
+            return false;
+
+        String token, storedContent, storedCondition;
+        long   storedTime;
+        synchronized (this) {
+            fill(ServletUtils.compressHTML(newContent), newCondition, System.currentTimeMillis());
+
+            token     = lockToken;
+            lockToken = null;
+
+            storedContent   = content;
+            storedCondition = condition;
+            storedTime      = updateTime;
+        }
+
+        // Share it with the other nodes, releasing the lock in the store
+        String current = key;
+        if (current != null)
+            store(current, token, storedContent, storedCondition, storedTime);
+
+        updateLock.unlock();
+        return true;
+    }
+
+    public void tryRelease() {
+
+        if (!updateLock.isHeldByCurrentThread())
+            return;
+
+        String token;
+        synchronized (this) {
+            token     = lockToken;
+            lockToken = null;
+        }
+
+        String current = key;
+        if (current != null && token != null)
+            unlock(current, token);
+
+        updateLock.unlock();
+    }
+
+    /**
+     * Binds the fragment to the key it is cached under
+     */
+    protected final void setKey(String key) {
+        this.key = key;
+    }
+
+    /**
+     * Gives a new fragment the content of this one, if it has any
+     *
+     * @param clone The new fragment
+     * @param newCondition The condition of the new fragment
+     */
+    protected final void copyTo(RemoteFragment clone, String newCondition) {
+        synchronized (this) {
+            if (initialized.getCount() == 0) {
+                synchronized (clone) {
+                    clone.fill(content, newCondition, updateTime);
+                }
+            }
+        }
+    }
+
+    /**
+     * Adopts the content of another fragment, e.g. one loaded from the store,
+     * if it is newer
+     *
+     * @param stored The other fragment
+     * @return true if newer content was adopted
+     */
+    protected final boolean adopt(RemoteFragment stored) {
+        String storedContent, storedCondition;
+        long   storedTime;
+        synchronized (stored) {
+            if (stored.initialized.getCount() > 0)
+                return false;
+
+            storedContent   = stored.content;
+            storedCondition = stored.condition;
+            storedTime      = stored.updateTime;
+        }
+        return adopt(storedContent, storedCondition, storedTime);
+    }
+
+    /**
+     * Adopts rendered content, if it is newer
+     *
+     * @return true if newer content was adopted
+     */
+    protected final synchronized boolean adopt(String newContent, String newCondition, long newUpdateTime) {
+        if (initialized.getCount() == 0 && newUpdateTime <= updateTime)
+            return false;
+
+        fill(newContent, newCondition, newUpdateTime);
+        return true;
+    }
+
+    /**
+     * Adopts the content in the store, if it is newer
+     *
+     * @return true if newer content was adopted
+     */
+    private boolean refresh() {
+        String current = key;
+        return current != null && load(current);
+    }
+
+    @GuardedBy("this")
+    private void fill(String newContent, String newCondition, long newUpdateTime) {
+        this.content    = newContent;
+        this.condition  = StringUtils.isEmpty(newCondition) ? null : newCondition;
+        this.updateTime = newUpdateTime;
+
+        // initialized guards content from being returned until it has been filled at least once
+        initialized.countDown();
+    }
+
+    private synchronized boolean needsUpdate(String curCondition) {
+        boolean condChanged = this.condition != null && !this.condition.equals(curCondition);
+
+        return initialized.getCount() > 0 ||
+               (System.currentTimeMillis() - updateTime) >= timeout ||
+               condChanged;
+    }
+
+    /**
+     * Having locked locally, takes the lock in the store too
+     *
+     * @return true if the lock was taken, otherwise releases the local lock and returns false
+     */
+    private boolean tryLockRemote(String curCondition, boolean force) {
+        String current = key;
+        if (current == null)
+            return true;
+
+        String token = lock(current, curCondition, force);
+        if (token == null) {
+            updateLock.unlock();
+            return false;
+        }
+
+        synchronized (this) {
+            lockToken = token;
+        }
+        return true;
+    }
+}
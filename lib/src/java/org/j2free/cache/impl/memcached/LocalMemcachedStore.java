@@ -0,0 +1,95 @@
+/*
+ * LocalMemcachedStore.java
+ *
+ * Copyright 2011 FooBrew, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.j2free.cache.impl.memcached;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import net.jcip.annotations.GuardedBy;
+import net.jcip.annotations.ThreadSafe;
+
+/**
+ * An in-process stand-in for memcached, for tests and single-node
+ * development.  Several {@link MemcachedFragmentCache}s sharing one
+ * instance behave like several nodes sharing one server.
+ *
+ * @author Ryan Wilson
+ */
+@ThreadSafe
+public class LocalMemcachedStore implements MemcachedStore {
+
+    private static final class Item {
+        private final String value;
+        private final long   cas;
+        private final long   expires;   // 0 for never
+
+        private Item(String value, long cas, long expires) {
+            this.value   = value;
+            this.cas     = cas;
+            this.expires = expires;
+        }
+    }
+
+    @GuardedBy("this")
+    private final Map<String, Item> items = new HashMap<String, Item>();
+
+    @GuardedBy("this")
+    private long casCounter = 0;
+
+    public synchronized Versioned gets(String key) {
+        Item item = live(key);
+        return item == null ? null : new Versioned(item.value, item.cas);
+    }
+
+    public synchronized boolean add(String key, String value, int exp) {
+        if (live(key) != null)
+            return false;
+
+        store(key, value, exp);
+        return true;
+    }
+
+    public synchronized boolean cas(String key, long cas, String value, int exp) {
+        Item item = live(key);
+        if (item == null || item.cas != cas)
+            return false;
+
+        store(key, value, exp);
+        return true;
+    }
+
+    public synchronized boolean delete(String key) {
+        return live(key) != null && items.remove(key) != null;
+    }
+
+    @GuardedBy("this")
+    private void store(String key, String value, int exp) {
+        long expires = exp <= 0 ? 0 : System.currentTimeMillis() + exp * 1000L;
+        items.put(key, new Item(value, ++casCounter, expires));
+    }
+
+    @GuardedBy("this")
+    private Item live(String key) {
+        Item item = items.get(key);
+        if (item != null && item.expires > 0 && item.expires <= System.currentTimeMillis()) {
+            items.remove(key);
+            return null;
+        }
+        return item;
+    }
+}
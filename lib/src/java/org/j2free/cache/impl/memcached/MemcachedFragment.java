@@ -0,0 +1,96 @@
+/*
+ * MemcachedFragment.java
+ *
+ * Copyright 2011 FooBrew, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.j2free.cache.impl.memcached;
+
+import net.jcip.annotations.ThreadSafe;
+
+import org.j2free.cache.impl.RemoteFragment;
+
+/**
+ * A fragment held in the L1 of a {@link MemcachedFragmentCache}, and
+ * shared with other nodes through memcached.
+ *
+ * The lock in memcached is a mark on the stored record, set with a CAS.
+ * If another node has already stored fresh content, the fragment adopts
+ * it instead of rendering.
+ *
+ * @author Ryan Wilson
+ */
+@ThreadSafe
+public class MemcachedFragment extends RemoteFragment {
+
+    private final MemcachedFragmentCache cache;
+
+    /**
+     * @param cache The cache the fragment belongs to
+     * @param condition An optional condition upon creation of the fragment
+     * @param timeout The timeout for this cached fragment
+     */
+    MemcachedFragment(MemcachedFragmentCache cache, String condition, long timeout) {
+        super(condition, timeout);
+        this.cache = cache;
+    }
+
+    /**
+     * @param newCondition A condition
+     * @param newTimeout A expiration
+     * @return A new <tt>MemcachedFragment</tt> with the content of the current
+     *         one, but using the specified newCondition and newTimeout
+     */
+    public MemcachedFragment clone(String newCondition, long newTimeout) {
+        MemcachedFragment clone = new MemcachedFragment(cache, newCondition, newTimeout);
+        copyTo(clone, newCondition);
+        return clone;
+    }
+
+    /**
+     * Binds the fragment to the key it is cached under
+     */
+    void bind(String key) {
+        setKey(key);
+    }
+
+    /**
+     * @param record A rendered record
+     * @return true if the record was newer, and its content adopted
+     */
+    boolean adopt(MemcachedRecord record) {
+        return adopt(record.content, record.condition, record.updateTime);
+    }
+
+    @Override
+    protected boolean load(String key) {
+        MemcachedRecord stored = cache.load(key);
+        return stored != null && adopt(stored);
+    }
+
+    @Override
+    protected String lock(String key, String curCondition, boolean force) {
+        return cache.tryLock(key, this, curCondition, force);
+    }
+
+    @Override
+    protected void store(String key, String token, String content, String condition, long updateTime) {
+        cache.store(key, token, new MemcachedRecord(null, -1, updateTime, getTimeout(), condition, content));
+    }
+
+    @Override
+    protected void unlock(String key, String token) {
+        cache.unlock(key, token);
+    }
+}
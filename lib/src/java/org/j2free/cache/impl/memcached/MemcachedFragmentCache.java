@@ -0,0 +1,520 @@
+/*
+ * MemcachedFragmentCache.java
+ *
+ * Copyright 2011 FooBrew, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.j2free.cache.impl.memcached;
+
+import com.reardencommerce.kernel.collections.shared.evictable.ConcurrentLinkedHashMap;
+import com.reardencommerce.kernel.collections.shared.evictable.ConcurrentLinkedHashMap.EvictionListener;
+import com.reardencommerce.kernel.collections.shared.evictable.ConcurrentLinkedHashMap.EvictionPolicy;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.jcip.annotations.ThreadSafe;
+
+import org.apache.commons.configuration.Configuration;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import org.j2free.cache.FragmentCache;
+import org.j2free.cache.FragmentCacheStatistics;
+import org.j2free.cache.FragmentIndex;
+
+/**
+ * Implements {@link FragmentCache} in two tiers: a bounded local map (L1)
+ * in front of memcached (L2), so that a fragment rendered by one node is
+ * served by all of them.  To use it, enable the spymemcached client and
+ * configure e.g.
+ *
+ * <pre>
+ *  spymemcached.enabled = true
+ *  spymemcached.addresses = cache1:11211 cache2:11211
+ *  fragment.cache.strategy.memcached.class = org.j2free.cache.impl.memcached.MemcachedFragmentCache
+ * </pre>
+ *
+ * Misses in L1 are filled from L2.  A fragment is stored in L2 together with
+ * the lock to render it, which a node takes with a CAS, so only one node
+ * renders a key at a time while the others serve what they have or wait
+ * for the result.  memcached can't notify other nodes of changes, so their
+ * L1 copies are refreshed from L2 when they expire; an evicted fragment may
+ * be served by other nodes until then.
+ *
+ * Fragments stay in memcached for stale-ttl ms after expiring, so that a
+ * stale copy can be served while one node renders the new one.  If memcached
+ * can't be reached, the cache degrades to a local one.
+ *
+ * memcached can't list or group its keys either, so {@link #evictByTag} and
+ * {@link #evictByPrefix} find the fragments to evict in an index of L1, and
+ * evict them from both tiers; like {@link #clear}, they leave fragments only
+ * other nodes hold to expire.
+ *
+ * @author Ryan Wilson
+ */
+@ThreadSafe
+public class MemcachedFragmentCache implements FragmentCache<MemcachedFragment> {
+
+    // Config Properties
+    private static final String PROP_L1_SIZE   = Properties.ENGINE_PREFIX + "memcached.l1.size";
+    private static final String PROP_NAMESPACE = Properties.ENGINE_PREFIX + "memcached.namespace";
+    private static final String PROP_STALE_TTL = Properties.ENGINE_PREFIX + "memcached.stale-ttl";
+    private static final String PROP_TIMEOUT   = Properties.ENGINE_PREFIX + "memcached.timeout";
+
+    private static final int    DEFAULT_L1_SIZE   = 1000;
+    private static final String DEFAULT_NAMESPACE = "j2free:fragment:";
+    private static final long   DEFAULT_STALE_TTL = 300000;
+    private static final long   DEFAULT_TIMEOUT   = 1000;
+
+    // memcached treats expirations beyond 30 days as timestamps
+    private static final int MAX_EXPIRATION = 60 * 60 * 24 * 30;
+
+    // memcached keys are at most 250 bytes, without spaces or control characters
+    private static final int MAX_KEY_LENGTH = 250;
+
+    private final Log log = LogFactory.getLog(getClass());
+
+    private final MemcachedStore store;
+
+    private final ConcurrentMap<String, MemcachedFragment> l1;
+
+    // The keys in L1 by tag and in order, for bulk eviction
+    private final FragmentIndex index;
+
+    private final String namespace;
+
+    // Distinguishes this node's locks
+    private final String nodeId;
+
+    private final long staleTtl;
+
+    private final AtomicLong lockCount     = new AtomicLong(0);
+    private final AtomicLong evictions     = new AtomicLong(0);
+    private final AtomicLong l1Hits        = new AtomicLong(0);
+    private final AtomicLong l2Hits        = new AtomicLong(0);
+    private final AtomicLong misses        = new AtomicLong(0);
+    private final AtomicLong casConflicts  = new AtomicLong(0);
+    private final AtomicLong errors        = new AtomicLong(0);
+
+    /**
+     *
+     * @param config
+     */
+    public MemcachedFragmentCache(Configuration config)
+    {
+        this(
+            new SpyMemcachedStore(config.getLong(PROP_TIMEOUT, DEFAULT_TIMEOUT)),
+            config.getInt(PROP_L1_SIZE, DEFAULT_L1_SIZE),
+            config.getString(PROP_NAMESPACE, DEFAULT_NAMESPACE),
+            config.getLong(PROP_STALE_TTL, DEFAULT_STALE_TTL)
+        );
+    }
+
+    /**
+     *
+     * @param store The L2
+     * @param l1Size The max number of fragments to keep locally
+     * @param namespace Prefixed to every key in memcached
+     * @param staleTtl How long in ms to keep fragments in memcached after they expire
+     */
+    public MemcachedFragmentCache(MemcachedStore store, int l1Size, String namespace, long staleTtl)
+    {
+        this.store     = store;
+        this.namespace = namespace;
+        this.staleTtl  = staleTtl;
+        this.nodeId    = UUID.randomUUID().toString();
+        this.index     = new FragmentIndex();
+
+        this.l1 = ConcurrentLinkedHashMap.create(
+                        EvictionPolicy.LRU,
+                        Math.max(l1Size, 1),
+                        16,
+                        new EvictionListener<String, MemcachedFragment>() {
+                            public void onEviction(String key, MemcachedFragment fragment) {
+                                index.remove(key, fragment);
+                                evictions.incrementAndGet();
+                            }
+                        }
+                    );
+    }
+
+    /**
+     * Clears L1; the memcached client belongs to the ConfigurationListener
+     */
+    public void destroy() {
+        l1.clear();
+        index.clear();
+    }
+
+    /**
+     * Evicts the fragments in L1 from both tiers.  memcached can't list its
+     * keys, so fragments only other nodes hold are left to expire.
+     *
+     * @return The number of fragments evicted
+     */
+    public int clear() {
+        int count = 0;
+        for (String key : new ArrayList<String>(l1.keySet())) {
+            if (evict(key) != null)
+                count++;
+        }
+        return count;
+    }
+
+    public boolean contains(String key) {
+        return l1.containsKey(key) || get(key) != null;
+    }
+
+    public MemcachedFragment createFragment(String condition, long timeout) {
+        return new MemcachedFragment(this, condition, timeout);
+    }
+
+    public MemcachedFragment createFragment(MemcachedFragment base, String condition, long timeout) {
+        return base.clone(condition, timeout);
+    }
+
+    /**
+     * @param key
+     * @return The fragment from L1, or else from memcached
+     */
+    public MemcachedFragment get(String key) {
+        return lookup(key, true);
+    }
+
+    /**
+     * Like {@link #get}, but not counted in the statistics
+     */
+    public MemcachedFragment peek(String key) {
+        return lookup(key, false);
+    }
+
+    public MemcachedFragment evict(String key) {
+        MemcachedFragment removed = l1.remove(key);
+        if (removed != null)
+            index.remove(key, removed);
+        remove(key);
+        return removed;
+    }
+
+    public boolean evict(String key, MemcachedFragment expected) {
+        if (!l1.remove(key, expected))
+            return false;
+
+        index.remove(key, expected);
+        remove(key);
+        return true;
+    }
+
+    /**
+     * Evicts the fragments in L1 with the tag from both tiers
+     */
+    public int evictByTag(String tag) {
+        return evictAll(index.keysTagged(tag));
+    }
+
+    /**
+     * Evicts the fragments in L1 with keys starting with the prefix from both tiers
+     */
+    public int evictByPrefix(String prefix) {
+        return evictAll(index.keysWithPrefix(prefix));
+    }
+
+    public void tag(String key, Collection<String> tags) {
+        index.tag(key, tags);
+    }
+
+    /**
+     * @return The keys of the fragments in L1
+     */
+    public Iterator<String> keyIterator() {
+        return Collections.unmodifiableSet(l1.keySet()).iterator();
+    }
+
+    public MemcachedFragment put(String key, MemcachedFragment fragment) {
+        fragment.bind(key);
+
+        MemcachedFragment previous = l1.put(key, fragment);
+        index.add(key, fragment);
+        return previous;
+    }
+
+    public MemcachedFragment putIfAbsent(String key, MemcachedFragment fragment) {
+        fragment.bind(key);
+        return cacheLocally(key, fragment);
+    }
+
+    public MemcachedFragment replace(String key, MemcachedFragment expected, MemcachedFragment replacement) {
+        replacement.bind(key);
+        if (!l1.replace(key, expected, replacement))
+            return l1.get(key);
+
+        index.add(key, replacement);
+        return replacement;
+    }
+
+    /**
+     * @return The number of fragments in L1
+     */
+    public int size() {
+        return l1.size();
+    }
+
+    public FragmentCacheStatistics getStatistics() {
+        return new MemcachedFragmentCacheStatistics(
+                    l1.size(),
+                    evictions.get(),
+                    l1Hits.get(),
+                    l2Hits.get(),
+                    misses.get(),
+                    casConflicts.get(),
+                    errors.get()
+                );
+    }
+
+    /**
+     * @param key
+     * @return The rendered record stored in memcached, or null if there is none
+     */
+    MemcachedRecord load(String key) {
+        try {
+            MemcachedStore.Versioned stored = store.gets(storeKey(key));
+            if (stored == null)
+                return null;
+
+            MemcachedRecord record = MemcachedRecord.decode(stored.getValue());
+            return record != null && record.isRendered() ? record : null;
+
+        } catch (IOException e) {
+            error("loading " + key, e);
+            return null;
+        }
+    }
+
+    /**
+     * Locks the fragment in memcached for update, by CAS'ing a lock into
+     * its record, unless another node holds the lock or, if not forced, the
+     * record is fresh enough that the fragment need not be rendered after all.
+     *
+     * @param key
+     * @param fragment The fragment, locked locally
+     * @param condition The current condition
+     * @param force Lock it even if it is fresh
+     * @return A token to unlock the key with, or null if it wasn't locked
+     */
+    String tryLock(String key, MemcachedFragment fragment, String condition, boolean force) {
+        String storeKey = storeKey(key);
+        String token    = nodeId + "-" + lockCount.incrementAndGet();
+        long   now      = System.currentTimeMillis();
+        int    exp      = expiration(fragment.getTimeout());
+
+        try {
+            MemcachedStore.Versioned stored = store.gets(storeKey);
+            if (stored == null) {
+                if (store.add(storeKey, MemcachedRecord.unrendered(fragment.getTimeout()).lock(token, now).encode(), exp))
+                    return token;
+
+                casConflicts.incrementAndGet();
+                return null;
+            }
+
+            MemcachedRecord record = MemcachedRecord.decode(stored.getValue());
+            if (record == null)
+                record = MemcachedRecord.unrendered(fragment.getTimeout());
+
+            // Another node may have rendered it already
+            if (!force && record.isRendered() && fragment.adopt(record) && fragment.getStaleness(condition) == 0)
+                return null;
+
+            if (record.isLocked(now) || !store.cas(storeKey, stored.getCas(), record.lock(token, now).encode(), exp)) {
+                casConflicts.incrementAndGet();
+                return null;
+            }
+
+            return token;
+
+        } catch (IOException e) {
+            // Better that every node render it than none
+            error("locking " + key, e);
+            return token;
+        }
+    }
+
+    /**
+     * Stores the rendered fragment in memcached, replacing our lock on it,
+     * unless the lock was abandoned and has since been taken by another node
+     *
+     * @param key
+     * @param token The token the fragment was locked with, or null
+     * @param rendered The fragment, unlocked
+     */
+    void store(String key, String token, MemcachedRecord rendered) {
+        String storeKey = storeKey(key);
+        int    exp      = expiration(rendered.timeout);
+
+        try {
+            MemcachedStore.Versioned stored = store.gets(storeKey);
+            if (stored == null) {
+                store.add(storeKey, rendered.encode(), exp);
+                return;
+            }
+
+            MemcachedRecord current = MemcachedRecord.decode(stored.getValue());
+            if (current != null && current.isLocked(System.currentTimeMillis()) && !current.isLockedBy(token)) {
+                log.debug(key + ": lock was taken over by another node, not storing");
+                return;
+            }
+
+            if (!store.cas(storeKey, stored.getCas(), rendered.encode(), exp))
+                casConflicts.incrementAndGet();
+
+        } catch (IOException e) {
+            error("storing " + key, e);
+        }
+    }
+
+    /**
+     * Releases our lock on the fragment in memcached, if we still hold it
+     */
+    void unlock(String key, String token) {
+        String storeKey = storeKey(key);
+        try {
+            MemcachedStore.Versioned stored = store.gets(storeKey);
+            if (stored == null)
+                return;
+
+            MemcachedRecord current = MemcachedRecord.decode(stored.getValue());
+            if (current == null || !current.isLockedBy(token))
+                return;
+
+            if (!store.cas(storeKey, stored.getCas(), current.unlock().encode(), expiration(current.timeout)))
+                casConflicts.incrementAndGet();
+
+        } catch (IOException e) {
+            error("unlocking " + key, e);
+        }
+    }
+
+    /**
+     * Puts the fragment in L1 unless there is one there already
+     *
+     * @return The fragment in L1
+     */
+    private MemcachedFragment cacheLocally(String key, MemcachedFragment fragment) {
+        MemcachedFragment cached = l1.putIfAbsent(key, fragment);
+        if (cached != null)
+            return cached;
+
+        index.add(key, fragment);
+        return fragment;
+    }
+
+    private int evictAll(Collection<String> keys) {
+        int count = 0;
+        for (String key : keys) {
+            if (evict(key) != null)
+                count++;
+        }
+        return count;
+    }
+
+    private void remove(String key) {
+        try {
+            store.delete(storeKey(key));
+        } catch (IOException e) {
+            error("evicting " + key, e);
+        }
+    }
+
+    private int expiration(long timeout) {
+        long seconds = (timeout + staleTtl + 999) / 1000;
+        return (int) Math.min(Math.max(seconds, 1), MAX_EXPIRATION);
+    }
+
+    /**
+     * @return The key to store the fragment under in memcached, hashed if
+     *         the fragment key can't be used as-is
+     */
+    private String storeKey(String key) {
+        String storeKey = namespace + key;
+        if (storeKey.length() <= MAX_KEY_LENGTH && isPrintableAscii(storeKey))
+            return storeKey;
+
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-1");
+
+            StringBuilder hashed = new StringBuilder(namespace).append('#');
+            for (byte b : digest.digest(key.getBytes("UTF-8")))
+                hashed.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+
+            return hashed.toString();
+
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-1 is unavailable", e);
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException("UTF-8 is unavailable", e);
+        }
+    }
+
+    private static boolean isPrintableAscii(String s) {
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c <= ' ' || c >= 127)
+                return false;
+        }
+        return true;
+    }
+
+    private void error(String action, IOException e) {
+        errors.incrementAndGet();
+        log.warn("Error " + action + " in memcached: " + e.getMessage());
+    }
+
+    private MemcachedFragment lookup(String key, boolean count) {
+        MemcachedFragment fragment = l1.get(key);
+        if (fragment != null) {
+            if (count)
+                l1Hits.incrementAndGet();
+            return fragment;
+        }
+
+        MemcachedRecord record = load(key);
+        if (record == null) {
+            if (count)
+                misses.incrementAndGet();
+            return null;
+        }
+
+        if (count)
+            l2Hits.incrementAndGet();
+
+        fragment = new MemcachedFragment(this, record.condition, record.timeout);
+        fragment.adopt(record);
+        fragment.bind(key);
+
+        return cacheLocally(key, fragment);
+    }
+}
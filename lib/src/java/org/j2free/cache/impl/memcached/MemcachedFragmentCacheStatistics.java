@@ -0,0 +1,124 @@
+/*
+ * MemcachedFragmentCacheStatistics.java
+ *
+ * Copyright 2011 FooBrew, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.j2free.cache.impl.memcached;
+
+import net.jcip.annotations.Immutable;
+import org.j2free.cache.FragmentCacheStatistics;
+
+/**
+ *
+ * @author Ryan Wilson
+ */
+@Immutable
+public class MemcachedFragmentCacheStatistics implements FragmentCacheStatistics {
+
+    private final int  size;
+    private final long timestamp;
+
+    private final long evictionCount;
+
+    private final long l1Hits;
+    private final long l2Hits;
+    private final long misses;
+    private final long casConflicts;
+    private final long errors;
+
+    /**
+     *
+     * @param size
+     * @param evictionCount
+     * @param l1Hits
+     * @param l2Hits
+     * @param misses
+     * @param casConflicts
+     * @param errors
+     */
+    public MemcachedFragmentCacheStatistics(int size, long evictionCount, long l1Hits, long l2Hits,
+                                            long misses, long casConflicts, long errors)
+    {
+        this.size          = size;
+        this.timestamp     = System.currentTimeMillis();
+        this.evictionCount = evictionCount;
+        this.l1Hits        = l1Hits;
+        this.l2Hits        = l2Hits;
+        this.misses        = misses;
+        this.casConflicts  = casConflicts;
+        this.errors        = errors;
+    }
+
+    /**
+     * @return The number of fragments in L1
+     */
+    public int getCacheSize()
+    {
+        return size;
+    }
+
+    public long getTimestamp()
+    {
+        return timestamp;
+    }
+
+    /**
+     * @return The number of fragments evicted from L1 to keep it within its size
+     */
+    public long getEvictionCount()
+    {
+        return evictionCount;
+    }
+
+    /**
+     * @return The number of lookups found in L1
+     */
+    public long getL1Hits()
+    {
+        return l1Hits;
+    }
+
+    /**
+     * @return The number of lookups found in memcached
+     */
+    public long getL2Hits()
+    {
+        return l2Hits;
+    }
+
+    /**
+     * @return The number of lookups found in neither
+     */
+    public long getMisses()
+    {
+        return misses;
+    }
+
+    /**
+     * @return The number of times another node changed or locked a fragment first
+     */
+    public long getCasConflicts()
+    {
+        return casConflicts;
+    }
+
+    /**
+     * @return The number of failed calls to memcached
+     */
+    public long getErrors()
+    {
+        return errors;
+    }
+}
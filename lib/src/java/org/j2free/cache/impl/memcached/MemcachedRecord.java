@@ -0,0 +1,120 @@
+/*
+ * MemcachedRecord.java
+ *
+ * Copyright 2011 FooBrew, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.j2free.cache.impl.memcached;
+
+import net.jcip.annotations.Immutable;
+
+/**
+ * A fragment as stored in memcached: its content, if it has been rendered,
+ * and who holds the lock to render it, if anyone.  Keeping both in one value
+ * lets a node take the lock with a single CAS while the others go on
+ * serving the previous content.
+ *
+ * @author Ryan Wilson
+ */
+@Immutable
+final class MemcachedRecord {
+
+    final String lockToken;     // null if unlocked
+    final long   lockedAt;
+    final long   updateTime;    // -1 if never rendered
+    final long   timeout;
+    final String condition;
+    final String content;
+
+    MemcachedRecord(String lockToken, long lockedAt, long updateTime, long timeout, String condition, String content) {
+        this.lockToken  = lockToken;
+        this.lockedAt   = lockedAt;
+        this.updateTime = updateTime;
+        this.timeout    = timeout;
+        this.condition  = condition;
+        this.content    = content;
+    }
+
+    /**
+     * @return A record of a fragment that has yet to be rendered
+     */
+    static MemcachedRecord unrendered(long timeout) {
+        return new MemcachedRecord(null, -1, -1, timeout, null, null);
+    }
+
+    boolean isRendered() {
+        return updateTime >= 0;
+    }
+
+    /**
+     * @return true if the record is locked and the lock has not been abandoned
+     */
+    boolean isLocked(long now) {
+        return lockToken != null && (now - lockedAt) < MemcachedFragment.MAX_LOCK_HOLD;
+    }
+
+    boolean isLockedBy(String token) {
+        return lockToken != null && lockToken.equals(token);
+    }
+
+    MemcachedRecord lock(String token, long now) {
+        return new MemcachedRecord(token, now, updateTime, timeout, condition, content);
+    }
+
+    MemcachedRecord unlock() {
+        return new MemcachedRecord(null, -1, updateTime, timeout, condition, content);
+    }
+
+    String encode() {
+        return (lockToken == null ? "" : lockToken) + ":" + lockedAt + ":" + updateTime + ":" + timeout + ":"
+                + (condition == null ? -1 : condition.length()) + ":"
+                + (condition == null ? "" : condition) + (content == null ? "" : content);
+    }
+
+    /**
+     * @param encoded A record written by {@link #encode}
+     * @return The record, or null if it is malformed
+     */
+    static MemcachedRecord decode(String encoded) {
+        try {
+            int[] colons = new int[5];
+            for (int i = 0, from = 0; i < colons.length; i++) {
+                colons[i] = encoded.indexOf(':', from);
+                if (colons[i] < 0)
+                    return null;
+                from = colons[i] + 1;
+            }
+
+            String token      = encoded.substring(0, colons[0]);
+            long   lockedAt   = Long.parseLong(encoded.substring(colons[0] + 1, colons[1]));
+            long   updateTime = Long.parseLong(encoded.substring(colons[1] + 1, colons[2]));
+            long   timeout    = Long.parseLong(encoded.substring(colons[2] + 1, colons[3]));
+            int    condLength = Integer.parseInt(encoded.substring(colons[3] + 1, colons[4]));
+
+            int contentStart = colons[4] + 1 + Math.max(condLength, 0);
+
+            return new MemcachedRecord(
+                        token.length() == 0 ? null : token,
+                        lockedAt,
+                        updateTime,
+                        timeout,
+                        condLength < 0 ? null : encoded.substring(colons[4] + 1, contentStart),
+                        updateTime < 0 ? null : encoded.substring(contentStart)
+                    );
+
+        } catch (RuntimeException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,110 @@
+/*
+ * MemcachedStore.java
+ *
+ * Copyright 2011 FooBrew, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.j2free.cache.impl.memcached;
+
+import java.io.IOException;
+
+import net.jcip.annotations.Immutable;
+import net.jcip.annotations.ThreadSafe;
+
+/**
+ * The memcached operations the {@link MemcachedFragmentCache} needs.
+ * {@link SpyMemcachedStore} performs them with spymemcached, and
+ * {@link LocalMemcachedStore} is an in-process stand-in for tests.
+ *
+ * Expirations are in seconds, as in memcached.
+ *
+ * @author Ryan Wilson
+ */
+@ThreadSafe
+public interface MemcachedStore {
+
+    /**
+     * A value, with the CAS id it was read at
+     */
+    @Immutable
+    public static final class Versioned {
+
+        private final String value;
+        private final long   cas;
+
+        /**
+         * @param value
+         * @param cas
+         */
+        public Versioned(String value, long cas) {
+            this.value = value;
+            this.cas   = cas;
+        }
+
+        /**
+         * @return The value
+         */
+        public String getValue() {
+            return value;
+        }
+
+        /**
+         * @return The CAS id
+         */
+        public long getCas() {
+            return cas;
+        }
+    }
+
+    /**
+     * gets
+     *
+     * @param key
+     * @return The value and its CAS id, or null if there is none
+     * @throws IOException
+     */
+    public Versioned gets(String key) throws IOException;
+
+    /**
+     * add
+     *
+     * @param key
+     * @param value
+     * @param exp
+     * @return true if stored, false if the key already existed
+     * @throws IOException
+     */
+    public boolean add(String key, String value, int exp) throws IOException;
+
+    /**
+     * cas
+     *
+     * @param key
+     * @param cas The CAS id the value was read at
+     * @param value
+     * @param exp
+     * @return true if stored, false if the value has changed or gone since it was read
+     * @throws IOException
+     */
+    public boolean cas(String key, long cas, String value, int exp) throws IOException;
+
+    /**
+     * delete
+     *
+     * @param key
+     * @return true if the key existed
+     * @throws IOException
+     */
+    public boolean delete(String key) throws IOException;
+}
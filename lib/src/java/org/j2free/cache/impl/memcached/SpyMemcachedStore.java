@@ -0,0 +1,174 @@
+/*
+ * SpyMemcachedStore.java
+ *
+ * Copyright 2011 FooBrew, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.j2free.cache.impl.memcached;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import net.jcip.annotations.ThreadSafe;
+
+import org.j2free.util.Global;
+
+import static org.j2free.util.Constants.CONTEXT_ATTR_SPYMEMCACHED;
+
+/**
+ * A {@link MemcachedStore} using a spymemcached <tt>MemcachedClient</tt>.
+ * As in the ConfigurationListener, the client is only reached through
+ * reflection, so that the spymemcached jar need only be included by apps
+ * that use it.
+ *
+ * By default, the client is the one the ConfigurationListener creates when
+ * spymemcached.enabled is set, looked up on each use since it is created
+ * after the fragment caches are.
+ *
+ * @author Ryan Wilson
+ */
+@ThreadSafe
+public class SpyMemcachedStore implements MemcachedStore {
+
+    private final Object client;
+
+    private final long timeout;
+
+    private final Method gets;
+    private final Method add;
+    private final Method cas;
+    private final Method delete;
+    private final Method getCas;
+    private final Method getValue;
+
+    // Whether cas takes an expiration; older clients' cas leaves the value without one
+    private final boolean casTakesExp;
+
+    /**
+     * Uses the client created by the ConfigurationListener
+     *
+     * @param timeout How long in ms to wait for an operation
+     */
+    public SpyMemcachedStore(long timeout) {
+        this(null, timeout);
+    }
+
+    /**
+     * @param client A net.spy.memcached.MemcachedClient
+     * @param timeout How long in ms to wait for an operation
+     * @throws IllegalStateException if spymemcached is not on the classpath
+     */
+    public SpyMemcachedStore(Object client, long timeout) {
+        this.client  = client;
+        this.timeout = timeout;
+
+        try {
+            Class<?> klass = Class.forName("net.spy.memcached.MemcachedClient");
+
+            gets   = klass.getMethod("gets", String.class);
+            add    = klass.getMethod("add", String.class, int.class, Object.class);
+            delete = klass.getMethod("delete", String.class);
+
+            Method withExp;
+            try {
+                withExp = klass.getMethod("cas", String.class, long.class, int.class, Object.class);
+            } catch (NoSuchMethodException e) {
+                withExp = null;
+            }
+
+            casTakesExp = withExp != null;
+            cas         = casTakesExp ? withExp : klass.getMethod("cas", String.class, long.class, Object.class);
+
+            klass    = Class.forName("net.spy.memcached.CASValue");
+            getCas   = klass.getMethod("getCas");
+            getValue = klass.getMethod("getValue");
+
+        } catch (Exception e) {
+            throw new IllegalStateException("spymemcached is required for the memcached fragment cache", e);
+        }
+    }
+
+    public Versioned gets(String key) throws IOException {
+        Object value = invoke(gets, key);
+        if (value == null)
+            return null;
+
+        try {
+            return new Versioned((String) getValue.invoke(value), (Long) getCas.invoke(value));
+        } catch (Exception e) {
+            throw new IOException("Unable to read CASValue: " + e);
+        }
+    }
+
+    public boolean add(String key, String value, int exp) throws IOException {
+        return await(invoke(add, key, exp, value));
+    }
+
+    public boolean cas(String key, long casId, String value, int exp) throws IOException {
+        Object response = casTakesExp
+                            ? invoke(cas, key, casId, exp, value)
+                            : invoke(cas, key, casId, value);
+
+        // A CASResponse
+        return "OK".equals(String.valueOf(response));
+    }
+
+    public boolean delete(String key) throws IOException {
+        return await(invoke(delete, key));
+    }
+
+    private Object client() throws IOException {
+        Object current = client != null ? client : Global.get(CONTEXT_ATTR_SPYMEMCACHED);
+        if (current == null)
+            throw new IOException("No spymemcached client has been configured");
+
+        return current;
+    }
+
+    private Object invoke(Method method, Object... args) throws IOException {
+        try {
+            return method.invoke(client(), args);
+        } catch (InvocationTargetException e) {
+            // e.g. an OperationTimeoutException
+            throw new IOException(method.getName() + " failed: " + e.getCause());
+        } catch (IllegalAccessException e) {
+            throw new IOException(method.getName() + " failed: " + e);
+        }
+    }
+
+    private boolean await(Object future) throws IOException {
+        @SuppressWarnings("unchecked")
+        Future<Boolean> result = (Future<Boolean>) future;
+        try {
+            return Boolean.TRUE.equals(result.get(timeout, TimeUnit.MILLISECONDS));
+        } catch (InterruptedException e) {
+            result.cancel(false);
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for memcached");
+        } catch (TimeoutException e) {
+            result.cancel(false);
+            throw new IOException("Timed out after " + timeout + "ms waiting for memcached");
+        } catch (ExecutionException e) {
+            throw new IOException("memcached operation failed: " + e.getCause());
+        }
+    }
+}
@@ -0,0 +1,132 @@
+/*
+ * ContentCodec.java
+ *
+ * Copyright 2011 FooBrew, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.j2free.cache.impl.memory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import java.nio.charset.Charset;
+
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.Inflater;
+
+import net.jcip.annotations.ThreadSafe;
+
+/**
+ * Compresses fragment content for {@link MemoryFragment}.  Content kept
+ * compressed is deflated at the fastest level, since it is inflated on
+ * every hit; gzipped copies are sent as-is, so they are compressed as
+ * tightly as possible, once.
+ *
+ * Deflaters and inflaters hold native memory, so each thread reuses its own.
+ *
+ * @author Ryan Wilson
+ */
+@ThreadSafe
+final class ContentCodec {
+
+    static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final int BUFFER_SIZE = 8192;
+
+    private static final ThreadLocal<Deflater> deflaters = new ThreadLocal<Deflater>() {
+        @Override
+        protected Deflater initialValue() {
+            return new Deflater(Deflater.BEST_SPEED);
+        }
+    };
+
+    private static final ThreadLocal<Inflater> inflaters = new ThreadLocal<Inflater>() {
+        @Override
+        protected Inflater initialValue() {
+            return new Inflater();
+        }
+    };
+
+    private ContentCodec() { }
+
+    /**
+     * @param data
+     * @return The data, deflated at the fastest level
+     */
+    static byte[] deflate(byte[] data) {
+        Deflater deflater = deflaters.get();
+        deflater.reset();
+        deflater.setInput(data);
+        deflater.finish();
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream(Math.max(data.length / 4, 64));
+        byte[] buffer = new byte[BUFFER_SIZE];
+        while (!deflater.finished()) {
+            int n = deflater.deflate(buffer);
+            out.write(buffer, 0, n);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * @param deflated Data from {@link #deflate}
+     * @param length The length of the original data
+     * @return The original data
+     */
+    static byte[] inflate(byte[] deflated, int length) {
+        Inflater inflater = inflaters.get();
+        inflater.reset();
+        inflater.setInput(deflated);
+
+        byte[] data = new byte[length];
+        try {
+            int read = 0;
+            while (read < length && !inflater.finished()) {
+                int n = inflater.inflate(data, read, length - read);
+                if (n == 0 && inflater.needsInput())
+                    break;
+                read += n;
+            }
+
+            if (read != length)
+                throw new IllegalStateException("Inflated " + read + " of " + length + " bytes");
+
+        } catch (DataFormatException e) {
+            throw new IllegalStateException("Corrupt fragment content", e);
+        }
+        return data;
+    }
+
+    /**
+     * @param data
+     * @return The data, gzipped at the best compression level
+     */
+    static byte[] gzip(byte[] data) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(Math.max(data.length / 4, 64));
+        try {
+            GZIPOutputStream gzip = new GZIPOutputStream(out, BUFFER_SIZE) {
+                {
+                    def.setLevel(Deflater.BEST_COMPRESSION);
+                }
+            };
+            gzip.write(data);
+            gzip.close();
+        } catch (IOException e) {
+            throw new IllegalStateException("ByteArrayOutputStream threw an IOException", e);
+        }
+        return out.toByteArray();
+    }
+}
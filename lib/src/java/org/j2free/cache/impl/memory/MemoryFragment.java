@@ -17,18 +17,20 @@
  */
 package org.j2free.cache.impl.memory;
 
+import java.util.Set;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.locks.ReentrantLock;
 
-import net.jcip.annotations.GuardedBy;
+import net.jcip.annotations.Immutable;
 import net.jcip.annotations.ThreadSafe;
 
 import org.apache.commons.lang.StringUtils;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
-import org.j2free.cache.Fragment;
+import org.j2free.cache.FragmentTemplate;
+import org.j2free.cache.GzippedFragment;
 
 import org.j2free.util.ServletUtils;
 
@@ -37,31 +39,77 @@ import org.j2free.util.ServletUtils;
  * is encapsulated.  MemoryFragment uses a one-time <code>CountDownLatch</code> to determine
  * whether it has been initialized yet.  It also uses a <code>ReentrantLock</code> to
  * lock-for-update, so that only a single thread may acquire the right to update this
- * MemoryFragment.  Access to the actual content of the frament is synchronized on the objects
- * internal monitor, as is the condition, and the locked and updated timestamps.
+ * MemoryFragment.
+ *
+ * The content of the fragment, its condition and the time it was updated are
+ * held together in an immutable {@link Version}, which the thread holding the
+ * lock-for-update replaces as a whole.  Reading the fragment is a single
+ * volatile read of the current version, so threads serving a hot fragment
+ * never contend with each other, only the thread updating it takes a lock.
+ *
+ * A MemoryFragment created by a cache configured to compress keeps its content
+ * deflated, trading a little CPU per hit for several times less memory, and may
+ * also keep a gzipped copy to send to clients as-is.
  *
  * @author Ryan Wilson
  * @version 1.0
  */
 @ThreadSafe
-public class MemoryFragment implements Fragment, Cloneable {
+public class MemoryFragment implements GzippedFragment, Cloneable {
 
     private final Log log = LogFactory.getLog(getClass());
 
     // Max time in ms that a thread may hold the lock-for-update on this MemoryFragment
     private static final int MAX_LOCK_HOLD = 90000;
 
-    @GuardedBy("this") private String content;
-    @GuardedBy("this") private String condition;
-    
-    @GuardedBy("this") private long   lockedTime;
-    @GuardedBy("this") private long   updateTime;
+    /**
+     * The state of the fragment as of an update; exactly one of content and
+     * deflated is set, unless the fragment has no content yet.
+     */
+    @Immutable
+    private static final class Version {
+        private final String content;
+        private final byte[] deflated;
+        private final int    encodedLength;     // of the UTF-8 encoding, if deflated
+        private final byte[] gzipped;
+        private final String condition;
+        private final long   updateTime;
+
+        private Version(String content, byte[] deflated, int encodedLength, byte[] gzipped,
+                        String condition, long updateTime) {
+            this.content       = content;
+            this.deflated      = deflated;
+            this.encodedLength = encodedLength;
+            this.gzipped       = gzipped;
+            this.condition     = StringUtils.isEmpty(condition) ? null : condition;
+            this.updateTime    = updateTime;
+        }
+
+        private boolean hasContent() {
+            return content != null || deflated != null;
+        }
+
+        private String getContent() {
+            return deflated == null ? content : new String(ContentCodec.inflate(deflated, encodedLength), ContentCodec.UTF_8);
+        }
+    }
+
+    private volatile Version version;
+
+    // When the lock-for-update was taken, or 0 while it is not held
+    private volatile long lockedTime;
 
     private final long   timeout;
 
+    private final boolean deflate;
+    private final boolean gzip;
+
     private final ReentrantLock  updateLock;
     private final CountDownLatch initialized;
 
+    // Where this fragment is in its cache's eviction policy, if the cache is bounded
+    volatile MemoryFragmentEvictor.Node node;
+
     /**
      * @param condition An optional condition upon creation of the MemoryFragment;
      *        if the condition supplied to tryAcquireLock does not match this
@@ -82,18 +130,29 @@ public class MemoryFragment implements Fragment, Cloneable {
      * @param timeout The timeout for this cached MemoryFragment
      */
     public MemoryFragment(String content, String condition, long timeout) {
+        this(content, condition, timeout, false, false);
+    }
+
+    /**
+     * @param condition An optional condition upon creation of the MemoryFragment
+     * @param timeout The timeout for this cached MemoryFragment
+     * @param deflate Whether to keep the content deflated
+     * @param gzip Whether to keep a gzipped copy of the content
+     */
+    MemoryFragment(String condition, long timeout, boolean deflate, boolean gzip) {
+        this(null, condition, timeout, deflate, gzip);
+    }
+
+    private MemoryFragment(String content, String condition, long timeout, boolean deflate, boolean gzip) {
 
-        this.content = content;
         this.timeout = timeout;
+        this.deflate = deflate;
+        this.gzip    = gzip;
 
-        // Use null instead of blank string for condition
-        this.condition = StringUtils.isEmpty(condition) ? null : condition;
-        
         this.updateLock  = new ReentrantLock();
         this.initialized = new CountDownLatch(1);
 
-        this.updateTime = System.currentTimeMillis();
-        this.lockedTime  = -1;
+        this.version = new Version(content, null, 0, null, condition, System.currentTimeMillis());
     }
 
     /**
@@ -103,7 +162,7 @@ public class MemoryFragment implements Fragment, Cloneable {
      */
     @Override
     public MemoryFragment clone() throws CloneNotSupportedException {
-        return new MemoryFragment(content, condition, timeout);
+        return clone(version.condition, timeout);
     }
 
     /**
@@ -114,7 +173,13 @@ public class MemoryFragment implements Fragment, Cloneable {
      *         newTimeout
      */
     public MemoryFragment clone(String newCondition, long newTimeout) {
-        return new MemoryFragment(content, newCondition, newTimeout);
+        MemoryFragment clone = new MemoryFragment(newCondition, newTimeout, deflate, gzip);
+
+        Version current = version;
+        clone.version = new Version(current.content, current.deflated, current.encodedLength, current.gzipped,
+                                    newCondition, clone.version.updateTime);
+
+        return clone;
     }
 
     /**
@@ -128,33 +193,148 @@ public class MemoryFragment implements Fragment, Cloneable {
      * @return the content
      */
     public String get(long waitFor, TimeUnit unit) throws InterruptedException {
-        if (initialized.await(waitFor, unit)) {
-            synchronized (this) {
-                return content;
-            }
-        } else {
+        Version current = version;
+        if (current.hasContent())
+            return current.getContent();
+
+        return initialized.await(waitFor, unit) ? version.getContent() : null;
+    }
+
+    public byte[] getGzipped(long waitFor, TimeUnit unit) throws InterruptedException {
+        Version current = version;
+        if (current.hasContent())
+            return current.gzipped;
+
+        return initialized.await(waitFor, unit) ? version.gzipped : null;
+    }
+    
+    /**
+     * @return Approximately how many bytes the content occupies, or 0 if it
+     *         has not been initialized
+     */
+    int weight() {
+        Version current = version;
+        int weight = current.deflated != null
+                   ? current.deflated.length
+                   : (current.content == null ? 0 : 2 * current.content.length());
+        return current.gzipped == null ? weight : weight + current.gzipped.length;
+    }
+
+    /**
+     * @param key The key the fragment is cached under
+     * @param tags The tags of the key
+     * @param now The time of the snapshot
+     * @return The fragment as it should be written to a snapshot, or null if
+     *         it has no content or has expired
+     */
+    MemoryFragmentSnapshot.Entry capture(String key, Set<String> tags, long now) {
+        Version current = version;
+        if (!current.hasContent())
+            return null;
+
+        long remaining = current.updateTime + timeout - now;
+        if (remaining <= 0)
             return null;
+
+        return new MemoryFragmentSnapshot.Entry(
+            key, current.condition, timeout, remaining, tags, current.content, current.deflated, current.encodedLength
+        );
+    }
+
+    /**
+     * Fills a fragment, not yet cached, with content read from a snapshot,
+     * encoding it as the cache this fragment belongs to is configured to.
+     *
+     * @param entry The fragment as it was written to the snapshot
+     */
+    void restore(MemoryFragmentSnapshot.Entry entry) {
+        byte[] encoded = null;
+        if (entry.deflated != null && (!deflate || gzip))
+            encoded = ContentCodec.inflate(entry.deflated, entry.length);
+        else if (entry.content != null && (deflate || gzip))
+            encoded = entry.content.getBytes(ContentCodec.UTF_8);
+
+        long updateTime = System.currentTimeMillis() - (timeout - entry.remaining);
+        byte[] gzipped  = gzip(encoded);
+
+        if (deflate) {
+            version = new Version(
+                null,
+                entry.deflated != null ? entry.deflated : ContentCodec.deflate(encoded),
+                entry.deflated != null ? entry.length : encoded.length,
+                gzipped,
+                entry.condition,
+                updateTime
+            );
+        } else {
+            version = new Version(
+                entry.content != null ? entry.content : new String(encoded, ContentCodec.UTF_8),
+                null,
+                0,
+                gzipped,
+                entry.condition,
+                updateTime
+            );
         }
+
+        initialized.countDown();
     }
-    
+
     /**
      * @return true if the MemoryFragment is expired, locked, and the lockWait has passed,
      *         otherwise false.
      */
-    public synchronized boolean isLockAbandoned() {
-        return updateLock.isLocked() && (System.currentTimeMillis() - lockedTime ) >= MAX_LOCK_HOLD;
+    public boolean isLockAbandoned() {
+        return isLockAbandoned(System.currentTimeMillis());
     }
 
     /**
-     * @return true if the MemoryFragment is expired, or is locked and the lockWait has
-     *         passed, otherwise false
+     * @param staleTtl How long in ms an expired fragment is kept to be served stale
+     * @return true if the MemoryFragment has been expired for longer than staleTtl,
+     *         or is locked and the lockWait has passed, otherwise false
      */
-    protected synchronized boolean isExpiredOrLockAbandoned() {
-        long    now    = System.currentTimeMillis();
-        boolean locked = updateLock.isLocked();
+    protected boolean isExpiredOrLockAbandoned(long staleTtl) {
+        long now = System.currentTimeMillis();
+
+        return updateLock.isLocked()
+             ? isLockAbandoned(now)
+             : (now - version.updateTime) - timeout >= staleTtl;    // not locked and past its grace
+    }
 
-        return (locked && (now - lockedTime ) >= MAX_LOCK_HOLD) ||   // lockAbandoned()
-               (!locked && (now - updateTime) >= timeout);           // not locked and expired
+    public long getStaleness(String curCondition) {
+        Version current = version;
+        if (!current.hasContent())
+            return -1;
+
+        long expired = System.currentTimeMillis() - current.updateTime - timeout;
+        if (expired >= 0)
+            return Math.max(expired, 1);
+
+        return current.condition != null && !current.condition.equals(curCondition) ? 1 : 0;
+    }
+
+    public long getTimeToLive() {
+        Version current = version;
+        if (!current.hasContent())
+            return -1;
+
+        return Math.max(current.updateTime + timeout - System.currentTimeMillis(), 0);
+    }
+
+    /**
+     * @param staleTtl How long in ms an expired fragment is kept to be served stale
+     * @return The time at which the MemoryFragment will have been expired for
+     *         staleTtl, or its lock abandoned if it is currently locked-for-update
+     */
+    protected long getDeadline(long staleTtl) {
+        long deadline;
+        if (updateLock.isLocked()) {
+            long locked = lockedTime;
+            deadline = (locked == 0 ? System.currentTimeMillis() : locked) + MAX_LOCK_HOLD;
+        } else {
+            deadline = version.updateTime + timeout + staleTtl;
+        }
+        return deadline < 0 ? Long.MAX_VALUE : deadline;       // overflowed by a huge timeout
     }
 
     /**
@@ -184,39 +364,36 @@ public class MemoryFragment implements Fragment, Cloneable {
             return false;
         }
 
-        boolean acuiredLock = false;
-
-        // Do all the below in a synchronized block so that the condition cannot
-        // change between the creation of condChanged and the call to tryLock()
-        synchronized (this) {
-            
-            // Check the conditions for update
-            boolean condChanged = this.condition != null && !this.condition.equals(curCondition);
-
-            long now = System.currentTimeMillis();
-
-            // If the content is null, the condition has changed, or the MemoryFragment is expired,
-            // try to acquire the lock
-            if (content == null || (now - updateTime) >= timeout || condChanged) {
-                acuiredLock = updateLock.tryLock();
-            }
-
-            // If we got it, update the lock time
-            if (acuiredLock) lockedTime = now;
-
-            if (log.isTraceEnabled()) {
-                log.trace(
-                    String.format(
-                        "tryAcquireForUpdate: success status [content==null: %b, condChanged: %b, expired: %b]",
-                        content == null,
-                        condChanged,
-                        (now - updateTime) >= timeout
-                    )
-                );
-            }            
+        long now = System.currentTimeMillis();
+
+        // If the content is null, the condition has changed, or the MemoryFragment is expired,
+        // try to acquire the lock
+        if (!needsUpdate(version, curCondition, now) || !updateLock.tryLock())
+            return false;
+
+        // Another thread may have updated the fragment between reading the version and
+        // taking the lock; since only the lock holder replaces the version, checking again
+        // now that we hold it is conclusive
+        Version current = version;
+        if (!needsUpdate(current, curCondition, now)) {
+            updateLock.unlock();
+            return false;
         }
-        
-        return acuiredLock;
+
+        lockedTime = now;
+
+        if (log.isTraceEnabled()) {
+            log.trace(
+                String.format(
+                    "tryAcquireForUpdate: success status [content==null: %b, condChanged: %b, expired: %b]",
+                    !current.hasContent(),
+                    current.condition != null && !current.condition.equals(curCondition),
+                    (now - current.updateTime) >= timeout
+                )
+            );
+        }
+
+        return true;
     }
 
     /**
@@ -245,16 +422,11 @@ public class MemoryFragment implements Fragment, Cloneable {
             return false;
         }
 
-        boolean acuiredLock = false;
-
-        synchronized (this) {
-            // Try to acquire the lock
-            acuiredLock = updateLock.tryLock();
-            if (acuiredLock) lockedTime = System.currentTimeMillis();
-            
-        }
+        if (!updateLock.tryLock())
+            return false;
 
-        return acuiredLock;
+        lockedTime = System.currentTimeMillis();
+        return true;
     }
 
     /**
@@ -271,20 +443,34 @@ public class MemoryFragment implements Fragment, Cloneable {
         if (!updateLock.isHeldByCurrentThread())
             return false;
 
-        // Update the fields
-        synchronized (this) {
-            this.content    = ServletUtils.compressHTML(newContent);
-            this.condition  = StringUtils.isEmpty(newCondition) ? null : newCondition;
-            this.updateTime = System.currentTimeMillis();
-        }
+        String compressed = ServletUtils.compressHTML(newContent);
+
+        byte[] encoded   = deflate || gzip ? compressed.getBytes(ContentCodec.UTF_8) : null;
+        byte[] newPacked = deflate ? ContentCodec.deflate(encoded) : null;
+        byte[] newGzip   = gzip(encoded);
+
+        // Publish the new version
+        version = new Version(
+            deflate ? null : compressed,
+            newPacked,
+            deflate ? encoded.length : 0,
+            newGzip,
+            newCondition,
+            System.currentTimeMillis()
+        );
 
         // Unlock the lock for update
-        updateLock.unlock();
+        release();
 
         // initialized guards content from being returned until this method has been
         // called at least once. So, count down the latch.
         initialized.countDown();
 
+        // The content has changed size, so let the cache know
+        MemoryFragmentEvictor.Node current = node;
+        if (current != null)
+            current.reweigh();
+
         return true;
     }
 
@@ -297,6 +483,31 @@ public class MemoryFragment implements Fragment, Cloneable {
         if (!updateLock.isHeldByCurrentThread())
             return;
 
+        release();
+    }
+
+    private boolean needsUpdate(Version current, String curCondition, long now) {
+        return !current.hasContent()
+            || (now - current.updateTime) >= timeout
+            || (current.condition != null && !current.condition.equals(curCondition));
+    }
+
+    private boolean isLockAbandoned(long now) {
+        // lockedTime is 0 between a thread taking the lock and stamping it, which is not abandonment
+        long locked = lockedTime;
+        return updateLock.isLocked() && locked != 0 && (now - locked) >= MAX_LOCK_HOLD;
+    }
+
+    private void release() {
+        lockedTime = 0;
         updateLock.unlock();
     }
+
+    // A template, starting with a NUL, has to be filled in before it is sent, so isn't gzipped
+    private byte[] gzip(byte[] encoded) {
+        if (!gzip || (encoded.length > 0 && encoded[0] == FragmentTemplate.HOLE))
+            return null;
+
+        return ContentCodec.gzip(encoded);
+    }
 }
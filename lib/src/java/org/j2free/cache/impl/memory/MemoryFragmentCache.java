@@ -17,7 +17,12 @@
  */
 package org.j2free.cache.impl.memory;
 
+import java.io.File;
+import java.io.IOException;
+
+import java.util.Collection;
 import java.util.Iterator;
+import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.Executors;
@@ -33,29 +38,75 @@ import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.j2free.cache.FragmentCache;
 import org.j2free.cache.FragmentCacheStatistics;
+import org.j2free.cache.FragmentIndex;
+import org.j2free.cache.WeighedFragmentCache;
 
 /**
  * Implements {@link FragmentCache} using an in-process Fragment storage
  * built on a {@link ConcurrentHashMap}.
  *
+ * The cache may be given a budget of bytes, in which case fragments are
+ * weighed by their key and content and evicted by a {@link MemoryFragmentEvictor}
+ * to stay within it, rather than only being removed once they expire.
+ * The budget can be changed while the cache is in use, e.g. by a
+ * {@link org.j2free.cache.FragmentCacheManager} sharing memory between caches.
+ *
+ * The cache may also be configured to keep fragments' content deflated,
+ * which typically takes several times less memory at the cost of inflating
+ * it on each hit, and to keep a gzipped copy of each fragment, for caches
+ * of whole pages sent with {@link org.j2free.util.ServletUtils#writeFragment}.
+ *
+ * Expired fragments are kept for stale-ttl ms before the cleaner evicts
+ * them, so that tags with revalidate="true" can serve them while they are
+ * re-rendered in the background.
+ *
+ * Finally, the cache may be given a snapshot file, to which its live
+ * fragments are written every snapshot-interval seconds and when it is
+ * destroyed.  On creation, the cache restores the fragments in the snapshot
+ * that have yet to expire, in the background, so that a restarted node
+ * doesn't have to render every fragment again at once; fragments rendered
+ * in the meantime are kept over the restored ones.
+ *
  * @author Ryan Wilson
  */
 @ThreadSafe
-public class MemoryFragmentCache implements FragmentCache<MemoryFragment> {
+public class MemoryFragmentCache implements WeighedFragmentCache<MemoryFragment> {
 
     // Config Properties
-    private static final String PROP_SIZE           = Properties.ENGINE_PREFIX + "memory.size";
-    private static final String PROP_LOAD_FACTOR    = Properties.ENGINE_PREFIX + "memory.load-factor";
-    private static final String PROP_CONCURRENCY    = Properties.ENGINE_PREFIX + "memory.concurrency";
-    private static final String PROP_CLEAN_INTERVAL = Properties.ENGINE_PREFIX + "memory.cleaner-interval";
-
-    private static final int   DEFAULT_SIZE        = 10000;
-    private static final float DEFAULT_LOAD_FACTOR = 0.75f;
-    private static final int   DEFAULT_CONCURRENCY = 16;
+    private static final String PROP_SIZE              = Properties.ENGINE_PREFIX + "memory.size";
+    private static final String PROP_LOAD_FACTOR       = Properties.ENGINE_PREFIX + "memory.load-factor";
+    private static final String PROP_CONCURRENCY       = Properties.ENGINE_PREFIX + "memory.concurrency";
+    private static final String PROP_CLEAN_INTERVAL    = Properties.ENGINE_PREFIX + "memory.cleaner-interval";
+    private static final String PROP_MAX_WEIGHT        = Properties.ENGINE_PREFIX + "memory.max-bytes";
+    private static final String PROP_COMPRESS          = Properties.ENGINE_PREFIX + "memory.compress";
+    private static final String PROP_GZIP              = Properties.ENGINE_PREFIX + "memory.gzip";
+    private static final String PROP_SNAPSHOT_FILE     = Properties.ENGINE_PREFIX + "memory.snapshot.file";
+    private static final String PROP_SNAPSHOT_INTERVAL = Properties.ENGINE_PREFIX + "memory.snapshot.interval";
+    private static final String PROP_STALE_TTL         = Properties.ENGINE_PREFIX + "memory.stale-ttl";
+
+    private static final int   DEFAULT_SIZE              = 10000;
+    private static final float DEFAULT_LOAD_FACTOR       = 0.75f;
+    private static final int   DEFAULT_CONCURRENCY       = 16;
+    private static final long  DEFAULT_MAX_WEIGHT        = 64 * 1024 * 1024;
+    private static final int   DEFAULT_SNAPSHOT_INTERVAL = 300;
+    private static final long  DEFAULT_STALE_TTL         = 300000;
 
     // The backing ConcurrentMap
     private final ConcurrentMap<String,MemoryFragment> map;
 
+    // The keys by tag and in order, for bulk eviction
+    private final FragmentIndex index;
+
+    // Keeps the cache within its budget of bytes, or null if it is unbounded
+    private volatile MemoryFragmentEvictor evictor;
+
+    // The expected number of fragments, to size an evictor created later
+    private final int initialSize;
+
+    // Whether fragments keep their content deflated, and a gzipped copy
+    private final boolean deflate;
+    private final boolean gzip;
+
     // The cleaner instance
     private MemoryFragmentCleaner cleaner;
 
@@ -63,7 +114,11 @@ public class MemoryFragmentCache implements FragmentCache<MemoryFragment> {
     private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
 
     // A ScheduledFuture representing the cleaner task
-    private volatile ScheduledFuture cleanerFuture = null;
+    private volatile ScheduledFuture<?> cleanerFuture = null;
+
+    // Where to snapshot the cache, if anywhere, and the task doing it
+    private volatile File            snapshotFile   = null;
+    private volatile ScheduledFuture<?> snapshotFuture = null;
 
     private final Log log = LogFactory.getLog(getClass());
 
@@ -76,14 +131,28 @@ public class MemoryFragmentCache implements FragmentCache<MemoryFragment> {
         this(
             config.getInt(PROP_SIZE, DEFAULT_SIZE),
             config.getFloat(PROP_LOAD_FACTOR, DEFAULT_LOAD_FACTOR),
-            config.getInt(PROP_CONCURRENCY, DEFAULT_CONCURRENCY)
+            config.getInt(PROP_CONCURRENCY, DEFAULT_CONCURRENCY),
+            config.getLong(PROP_MAX_WEIGHT, DEFAULT_MAX_WEIGHT),
+            config.getBoolean(PROP_COMPRESS, false),
+            config.getBoolean(PROP_GZIP, false)
         );
 
+        setStaleTtl(config.getLong(PROP_STALE_TTL, DEFAULT_STALE_TTL));
+
         scheduleCleaner(
                 config.getInt(PROP_CLEAN_INTERVAL),
                 TimeUnit.SECONDS,
                 false
             );
+
+        String snapshot = config.getString(PROP_SNAPSHOT_FILE, null);
+        if (snapshot != null && snapshot.length() > 0) {
+            scheduleSnapshots(
+                new File(snapshot),
+                config.getInt(PROP_SNAPSHOT_INTERVAL, DEFAULT_SNAPSHOT_INTERVAL),
+                TimeUnit.SECONDS
+            );
+        }
     }
 
     /**
@@ -92,8 +161,7 @@ public class MemoryFragmentCache implements FragmentCache<MemoryFragment> {
      */
     public MemoryFragmentCache(int initialSize)
     {
-        this.map     = new ConcurrentHashMap<String,MemoryFragment>(initialSize);
-        this.cleaner = new MemoryFragmentCleaner(this);
+        this(initialSize, DEFAULT_LOAD_FACTOR, DEFAULT_CONCURRENCY);
     }
 
     /**
@@ -105,11 +173,52 @@ public class MemoryFragmentCache implements FragmentCache<MemoryFragment> {
      * @param concurrencyLevel
      */
     public MemoryFragmentCache(int initialSize, float loadFactor, int concurrencyLevel) {
+        this(initialSize, loadFactor, concurrencyLevel, 0);
+    }
+
+    /**
+     * @param initialSize
+     * @param loadFactor
+     * @param concurrencyLevel
+     * @param maxBytes The approximate max number of bytes the cached fragments
+     *        may occupy, or 0 for no limit
+     */
+    public MemoryFragmentCache(int initialSize, float loadFactor, int concurrencyLevel, long maxBytes) {
+        this(initialSize, loadFactor, concurrencyLevel, maxBytes, false, false);
+    }
+
+    /**
+     * @param initialSize
+     * @param loadFactor
+     * @param concurrencyLevel
+     * @param maxBytes The approximate max number of bytes the cached fragments
+     *        may occupy, or 0 for no limit
+     * @param deflate Whether fragments keep their content deflated
+     * @param gzip Whether fragments keep a gzipped copy of their content
+     */
+    public MemoryFragmentCache(int initialSize, float loadFactor, int concurrencyLevel, long maxBytes,
+                               boolean deflate, boolean gzip) {
+        this.deflate     = deflate;
+        this.gzip        = gzip;
+        this.initialSize = initialSize;
         this.map     = new ConcurrentHashMap<String,MemoryFragment>(initialSize, loadFactor, concurrencyLevel);
+        this.index   = new FragmentIndex();
+        this.evictor = maxBytes > 0 ? new MemoryFragmentEvictor(map, index, maxBytes, initialSize) : null;
         this.cleaner = new MemoryFragmentCleaner(this);
     }
 
     public void destroy() {
+        if (snapshotFuture != null) {
+            snapshotFuture.cancel(false);
+
+            // Leave the freshest snapshot for the next start
+            try {
+                snapshot(snapshotFile);
+            } catch (IOException e) {
+                log.warn("Error writing fragment cache snapshot to " + snapshotFile, e);
+            }
+        }
+
         clear();
         if (cleanerFuture != null) {
             cleanerFuture.cancel(true);
@@ -119,6 +228,10 @@ public class MemoryFragmentCache implements FragmentCache<MemoryFragment> {
     public int clear() {
         int size = map.size();
         map.clear();
+        index.clear();
+        cleaner.clear();
+        if (evictor != null)
+            evictor.clear();
         return size;
     }
 
@@ -127,7 +240,7 @@ public class MemoryFragmentCache implements FragmentCache<MemoryFragment> {
     }
 
     public MemoryFragment createFragment(String condition, long timeout) {
-        return new MemoryFragment(condition, timeout);
+        return new MemoryFragment(condition, timeout, deflate, gzip);
     }
 
     public MemoryFragment createFragment(MemoryFragment base, String condition, long timeout) {
@@ -135,14 +248,44 @@ public class MemoryFragmentCache implements FragmentCache<MemoryFragment> {
     }
 
     public MemoryFragment evict(String key) {
-        return map.remove(key);
+        MemoryFragment removed = map.remove(key);
+        if (removed != null) {
+            index.remove(key, removed);
+            if (evictor != null)
+                evictor.onRemove(key, removed);
+        }
+        return removed;
     }
 
     public boolean evict(String key, MemoryFragment expected) {
-        return map.remove(key, expected);
+        if (!map.remove(key, expected))
+            return false;
+
+        index.remove(key, expected);
+        if (evictor != null)
+            evictor.onRemove(key, expected);
+        return true;
+    }
+
+    public int evictByTag(String tag) {
+        return evictAll(index.keysTagged(tag));
+    }
+
+    public int evictByPrefix(String prefix) {
+        return evictAll(index.keysWithPrefix(prefix));
+    }
+
+    public void tag(String key, Collection<String> tags) {
+        index.tag(key, tags);
     }
 
     public MemoryFragment get(String key) {
+        if (evictor != null)
+            evictor.onAccess(key);
+        return map.get(key);
+    }
+
+    public MemoryFragment peek(String key) {
         return map.get(key);
     }
 
@@ -151,26 +294,191 @@ public class MemoryFragmentCache implements FragmentCache<MemoryFragment> {
     }
 
     public MemoryFragment put(String key, MemoryFragment fragment) {
-        return map.put(key, fragment);
+        MemoryFragment previous = map.put(key, fragment);
+        index.add(key, fragment);
+        cleaner.schedule(key, fragment);
+        if (evictor != null)
+            evictor.onWrite(key, fragment);
+        return previous;
     }
 
     public MemoryFragment putIfAbsent(String key, MemoryFragment fragment) {
         MemoryFragment cached = map.putIfAbsent(key, fragment);
+        if (cached == null) {
+            index.add(key, fragment);
+            cleaner.schedule(key, fragment);
+            if (evictor != null)
+                evictor.onWrite(key, fragment);
+        }
         return cached == null ? fragment : cached;
     }
 
     public MemoryFragment replace(String key, MemoryFragment expected, MemoryFragment replacement) {
-        return map.replace(key, expected, replacement) ? replacement : map.get(key);
+        if (!map.replace(key, expected, replacement))
+            return map.get(key);
+
+        index.add(key, replacement);
+        cleaner.schedule(key, replacement);
+        if (evictor != null)
+            evictor.onWrite(key, replacement);
+        return replacement;
     }
 
     public int size() {
         return map.size();
     }
 
+    public long getWeight() {
+        MemoryFragmentEvictor evictor = this.evictor;
+        return evictor == null ? 0 : evictor.getWeight();
+    }
+
+    public long getMaxWeight() {
+        MemoryFragmentEvictor evictor = this.evictor;
+        return evictor == null ? 0 : evictor.getMaxWeight();
+    }
+
+    /**
+     * If the cache was created unbounded, this starts weighing its fragments.
+     *
+     * @param maxWeight The max number of bytes, greater than 0
+     */
+    public synchronized void setMaxWeight(long maxWeight) {
+        if (maxWeight <= 0)
+            throw new IllegalArgumentException("maxWeight must be greater than 0");
+
+        if (evictor != null) {
+            evictor.setMaxWeight(maxWeight);
+            return;
+        }
+
+        MemoryFragmentEvictor created = new MemoryFragmentEvictor(map, index, maxWeight, initialSize);
+        evictor = created;
+
+        // Fragments written before the evictor was seen; those written since are
+        // already known to it, and it ignores any that have since been replaced
+        for (Map.Entry<String,MemoryFragment> entry : map.entrySet())
+            created.onWrite(entry.getKey(), entry.getValue());
+    }
+
     public FragmentCacheStatistics getStatistics() {
-        return new MemoryFragmentCacheStatistics(map.size(), cleaner.getLastCleanCount(), cleaner.getLastCleanTimestamp());
+        MemoryFragmentEvictor evictor = this.evictor;
+        if (evictor == null)
+            return new MemoryFragmentCacheStatistics(map.size(), cleaner.getLastCleanCount(), cleaner.getLastCleanTimestamp());
+
+        return new MemoryFragmentCacheStatistics(
+                    map.size(),
+                    cleaner.getLastCleanCount(),
+                    cleaner.getLastCleanTimestamp(),
+                    evictor.getWeight(),
+                    evictor.getMaxWeight(),
+                    evictor.getEvictionCount(),
+                    evictor.getEvictedWeight()
+                );
     }
     
+    /**
+     * Writes the live fragments to a snapshot, replacing any previous one
+     *
+     * @param file The snapshot file
+     * @return The number of fragments written
+     * @throws IOException
+     */
+    public int snapshot(File file) throws IOException {
+        long start = System.currentTimeMillis();
+        int  count = MemoryFragmentSnapshot.write(file, map, index);
+
+        log.info("Wrote " + count + " fragments to " + file + " [" + (System.currentTimeMillis() - start) + "ms]");
+        return count;
+    }
+
+    /**
+     * Caches the fragments in a snapshot that have yet to expire, unless a
+     * fragment has been cached under the same key since
+     *
+     * @param file The snapshot file
+     * @return The number of fragments restored
+     * @throws IOException
+     */
+    public int restore(File file) throws IOException {
+        long start = System.currentTimeMillis();
+        int  count = 0;
+
+        for (MemoryFragmentSnapshot.Entry entry : MemoryFragmentSnapshot.read(file)) {
+            MemoryFragment fragment = createFragment(entry.condition, entry.timeout);
+            fragment.restore(entry);
+
+            if (putIfAbsent(entry.key, fragment) == fragment) {
+                if (!entry.tags.isEmpty())
+                    index.tag(entry.key, entry.tags);
+                count++;
+            }
+        }
+
+        log.info("Restored " + count + " fragments from " + file + " [" + (System.currentTimeMillis() - start) + "ms]");
+        return count;
+    }
+
+    /**
+     * Restores the cache from the snapshot file in the background, if there
+     * is one, then snapshots the cache to it every <tt>interval</tt>, and
+     * once more when the cache is destroyed.
+     *
+     * @param file The snapshot file
+     * @param interval The time interval
+     * @param unit The time unit the interval is in
+     */
+    public final void scheduleSnapshots(final File file, long interval, TimeUnit unit) {
+
+        if (snapshotFuture != null)
+            snapshotFuture.cancel(false);
+
+        snapshotFile = file;
+
+        if (file.exists()) {
+            executor.execute(new Runnable() {
+                public void run() {
+                    try {
+                        restore(file);
+                    } catch (IOException e) {
+                        log.warn("Error restoring fragment cache snapshot from " + file, e);
+                    }
+                }
+            });
+        }
+
+        log.info("Scheduling snapshots to " + file + " every " + interval + " " + unit.name());
+        snapshotFuture = executor.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                try {
+                    snapshot(file);
+                } catch (IOException e) {
+                    log.warn("Error writing fragment cache snapshot to " + file, e);
+                }
+            }
+        }, interval, interval, unit);
+    }
+
+    private int evictAll(Collection<String> keys) {
+        int count = 0;
+        for (String key : keys) {
+            if (evict(key) != null)
+                count++;
+        }
+        return count;
+    }
+
+    /**
+     * Sets how long expired fragments are kept to be served stale before the
+     * cleaner evicts them; 0, the default outside of a configuration, evicts
+     * them as soon as the cleaner finds them expired.
+     *
+     * @param staleTtl The grace in ms
+     */
+    public void setStaleTtl(long staleTtl) {
+        cleaner.setStaleTtl(staleTtl);
+    }
+
     /**
      * Modifies the schedule the {@FragmentCacheCleaner} runs on.
      * Non-blocking method, so two threads could theoretically schedule
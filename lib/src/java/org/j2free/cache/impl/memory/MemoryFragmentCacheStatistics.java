@@ -33,6 +33,11 @@ public class MemoryFragmentCacheStatistics implements FragmentCacheStatistics {
     private final int  lastCleanCount;
     private final long lastCleanTimestamp;
 
+    private final long weight;
+    private final long maxWeight;
+    private final long evictionCount;
+    private final long evictedWeight;
+
     /**
      * 
      * @param size
@@ -40,11 +45,31 @@ public class MemoryFragmentCacheStatistics implements FragmentCacheStatistics {
      * @param lastCleanTimestamp
      */
     public MemoryFragmentCacheStatistics(int size, int lastCleanCount, long lastCleanTimestamp)
+    {
+        this(size, lastCleanCount, lastCleanTimestamp, -1, -1, 0, 0);
+    }
+
+    /**
+     *
+     * @param size
+     * @param lastCleanCount
+     * @param lastCleanTimestamp
+     * @param weight The approximate number of bytes held, or -1 if unbounded
+     * @param maxWeight The max number of bytes, or -1 if unbounded
+     * @param evictionCount
+     * @param evictedWeight
+     */
+    public MemoryFragmentCacheStatistics(int size, int lastCleanCount, long lastCleanTimestamp,
+                                         long weight, long maxWeight, long evictionCount, long evictedWeight)
     {
         this.lastCleanCount = lastCleanCount;
         this.lastCleanTimestamp = lastCleanTimestamp;
         this.size = size;
         this.timestamp = System.currentTimeMillis();
+        this.weight = weight;
+        this.maxWeight = maxWeight;
+        this.evictionCount = evictionCount;
+        this.evictedWeight = evictedWeight;
     }
 
     /**
@@ -82,5 +107,42 @@ public class MemoryFragmentCacheStatistics implements FragmentCacheStatistics {
     {
         return lastCleanTimestamp;
     }
-    
+
+    /**
+     * 
+     * @return The approximate number of bytes held by the cache, or -1
+     *         if the cache is unbounded
+     */
+    public long getWeight()
+    {
+        return weight;
+    }
+
+    /**
+     * 
+     * @return The max number of bytes the cache may hold, or -1 if the
+     *         cache is unbounded
+     */
+    public long getMaxWeight()
+    {
+        return maxWeight;
+    }
+
+    /**
+     * 
+     * @return
+     */
+    public long getEvictionCount()
+    {
+        return evictionCount;
+    }
+
+    /**
+     * 
+     * @return The number of bytes evicted to keep the cache within its budget
+     */
+    public long getEvictedWeight()
+    {
+        return evictedWeight;
+    }
 }
@@ -18,9 +18,16 @@
 package org.j2free.cache.impl.memory;
 
 import org.j2free.cache.*;
-import java.util.Iterator;
+
+import java.lang.ref.WeakReference;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
 
 import net.jcip.annotations.GuardedBy;
+import net.jcip.annotations.Immutable;
 import net.jcip.annotations.ThreadSafe;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -28,17 +35,55 @@ import org.apache.commons.logging.LogFactory;
 /**
  * FragmentCache cleaner
  *
+ * Rather than checking every fragment in the cache on each run, the cleaner
+ * keeps fragments in expiry buckets, one per {@link #RESOLUTION} ms of
+ * deadline, so a run only looks at the buckets whose deadline has passed.
+ * A fragment whose deadline has moved since it was scheduled, e.g. because
+ * it was refreshed, is rescheduled for its new deadline; one that has been
+ * removed from the cache is simply dropped.
+ *
+ * Expired fragments may be kept for a stale TTL past their deadline, so that
+ * tags with revalidate="true" can keep serving them while they are re-rendered
+ * in the background, rather than only until the next run.  Buckets only hold fragments
+ * weakly, so that fragments evicted long before their deadline, e.g. to stay
+ * within the cache's budget of bytes, can be collected right away.
+ *
  * @author  Ryan Wilson
  */
 @ThreadSafe
 public class MemoryFragmentCleaner implements Runnable {
 
+    /**
+     * The width, in ms, of an expiry bucket
+     */
+    public static final long RESOLUTION = 1000;
+
     private final Log log = LogFactory.getLog(MemoryFragmentCleaner.class);
 
+    // A fragment scheduled to be checked for expiry
+    @Immutable
+    private static final class Entry {
+        private final String key;
+        private final WeakReference<MemoryFragment> fragment;
+
+        private Entry(String key, MemoryFragment fragment) {
+            this.key = key;
+            this.fragment = new WeakReference<MemoryFragment>(fragment);
+        }
+    }
+
     private final FragmentCache<MemoryFragment> cache;
 
+    // Maps the end of each bucket's time span to the fragments due in it
+    private final ConcurrentNavigableMap<Long, ConcurrentLinkedQueue<Entry>> buckets;
+
+    // How long in ms expired fragments are kept to be served stale
+    private volatile long staleTtl = 0;
+
     @GuardedBy("this") private long lastCleanTimestamp;
-    @GuardedBy("this") private int lastCleanCount;
+    @GuardedBy("this") private int  lastCleanCount;
+    @GuardedBy("this") private int  lastExaminedCount;
+    @GuardedBy("this") private long lastCleanDuration;
 
     /**
      * 
@@ -47,48 +92,106 @@ public class MemoryFragmentCleaner implements Runnable {
     public MemoryFragmentCleaner(FragmentCache<MemoryFragment> cache)
     {
         super();
-        this.cache = cache;
+        this.cache   = cache;
+        this.buckets = new ConcurrentSkipListMap<Long, ConcurrentLinkedQueue<Entry>>();
 
         this.lastCleanTimestamp = -1;
         this.lastCleanCount     = -1;
+        this.lastExaminedCount  = -1;
+        this.lastCleanDuration  = -1;
     }
 
     /**
-     * 
+     * Schedules a fragment that was just put in the cache to be checked
+     * once it is due to expire.
+     *
+     * @param key
+     * @param fragment
      */
-    public void run()
+    public void schedule(String key, MemoryFragment fragment)
     {
+        schedule(new Entry(key, fragment), fragment.getDeadline(staleTtl));
+    }
 
-        long start = System.currentTimeMillis();
+    /**
+     * Sets how long expired fragments are kept to be served stale before
+     * they are evicted.  Fragments already scheduled keep their deadline,
+     * but are rescheduled for the new one if they aren't due by then.
+     *
+     * @param staleTtl The grace in ms, or 0 to evict fragments once they expire
+     */
+    public void setStaleTtl(long staleTtl)
+    {
+        if (staleTtl < 0)
+            throw new IllegalArgumentException("staleTtl must not be negative: " + staleTtl);
+
+        this.staleTtl = staleTtl;
+    }
+
+    /**
+     * @return How long in ms expired fragments are kept to be served stale
+     */
+    public long getStaleTtl()
+    {
+        return staleTtl;
+    }
+
+    /**
+     * Forgets every scheduled fragment, e.g. when the cache is cleared
+     */
+    public void clear()
+    {
+        buckets.clear();
+    }
 
-        Iterator<String> iterator = cache.keyIterator();
+    /**
+     * Evicts the fragments in every bucket whose deadline has passed
+     */
+    public void run()
+    {
+        long start = System.currentTimeMillis();
 
-        int count = 0;
+        int count = 0, cleaned = 0;
+        long grace = staleTtl;
         
         synchronized (this) {
 
-            lastCleanCount = 0;
+            Map.Entry<Long, ConcurrentLinkedQueue<Entry>> bucket;
+            while ((bucket = buckets.firstEntry()) != null && bucket.getKey() <= start) {
 
-            String key;
-            MemoryFragment fragment;
-            while (iterator.hasNext()) {
+                buckets.remove(bucket.getKey(), bucket.getValue());
 
-                key      = iterator.next();
-                fragment = cache.get(key);
+                Entry entry;
+                while ((entry = bucket.getValue().poll()) != null) {
+                    count++;
 
-                // @TODO remove race-condition where fragment could be locked b/t calls to isExpiredOrLockAbandoned and evict
-                if (fragment != null && fragment.isExpiredOrLockAbandoned()) {
-                    if (cache.evict(key, fragment))
-                        lastCleanCount++;
-                }
+                    // Dropped from the cache since it was scheduled
+                    MemoryFragment fragment = entry.fragment.get();
+                    if (fragment == null || cache.peek(entry.key) != fragment)
+                        continue;
 
-                count++;
+                    // @TODO remove race-condition where fragment could be locked b/t calls to isExpiredOrLockAbandoned and evict
+                    if (fragment.isExpiredOrLockAbandoned(grace)) {
+                        if (cache.evict(entry.key, fragment))
+                            cleaned++;
+                    } else {
+                        // Refreshed or locked since it was scheduled
+                        schedule(entry, fragment.getDeadline(grace));
+                    }
+                }
             }
 
+            lastCleanCount     = cleaned;
+            lastExaminedCount  = count;
             lastCleanTimestamp = System.currentTimeMillis();
+            lastCleanDuration  = lastCleanTimestamp - start;
         }
         
-        log.info("FragmentCleaner complete [" + (System.currentTimeMillis() - start) + "ms, " + lastCleanCount + " of " + count + " cleaned]");
+        String message = "FragmentCleaner complete [" + (System.currentTimeMillis() - start) + "ms, " + cleaned + " of " + count + " due cleaned, " + cache.size() + " remain]";
+        if (cleaned > 0)
+            log.info(message);
+        else if (log.isDebugEnabled())
+            log.debug(message);
     }
 
     /**
@@ -108,4 +211,45 @@ public class MemoryFragmentCleaner implements Runnable {
     {
         return lastCleanCount;
     }
+
+    /**
+     * @return The number of fragments that were due to be checked on the last run
+     */
+    public synchronized int getLastExaminedCount()
+    {
+        return lastExaminedCount;
+    }
+
+    /**
+     * @return How long, in ms, the last run took
+     */
+    public synchronized long getLastCleanDuration()
+    {
+        return lastCleanDuration;
+    }
+
+    private void schedule(Entry entry, long deadline)
+    {
+        // Round up, so a fragment is never checked before it's due
+        long key = deadline >= Long.MAX_VALUE - RESOLUTION
+                        ? Long.MAX_VALUE
+                        : ((deadline / RESOLUTION) + 1) * RESOLUTION;
+
+        while (true) {
+            ConcurrentLinkedQueue<Entry> bucket = buckets.get(key);
+            if (bucket == null) {
+                bucket = new ConcurrentLinkedQueue<Entry>();
+                ConcurrentLinkedQueue<Entry> existing = buckets.putIfAbsent(key, bucket);
+                if (existing != null)
+                    bucket = existing;
+            }
+
+            bucket.add(entry);
+
+            // If a run took the bucket before we added to it, add it again in case
+            // the run missed it; seeing a fragment twice does no harm
+            if (buckets.get(key) == bucket)
+                return;
+        }
+    }
 }
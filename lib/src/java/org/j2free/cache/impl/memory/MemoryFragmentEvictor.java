@@ -0,0 +1,548 @@
+/*
+ * MemoryFragmentEvictor.java
+ *
+ * Copyright 2011 FooBrew, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.j2free.cache.impl.memory;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+import net.jcip.annotations.GuardedBy;
+import net.jcip.annotations.ThreadSafe;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import org.j2free.cache.FragmentIndex;
+
+import org.j2free.util.concurrent.FrequencySketch;
+import org.j2free.util.concurrent.StripedReadBuffer;
+
+/**
+ * Keeps the fragments in a {@link MemoryFragmentCache} within a budget of
+ * bytes, weighing each fragment by its key and content, evicting by
+ * W-TinyLFU:
+ *
+ *  - New fragments enter a small LRU window (1% of the budget), so bursts
+ *    of new keys get a chance to prove themselves.
+ *  - Fragments leaving the window are admitted to the main space only if
+ *    they have been requested more often, recently, than the fragment they
+ *    would displace, per a {@link FrequencySketch} of every request.
+ *  - The main space is a segmented LRU; fragments requested again while on
+ *    probation are promoted to the protected segment (80% of the main space).
+ *
+ * The policy's bookkeeping, including the sketch, is guarded by a single
+ * lock.  Writes wait for it, but reads never do: a read is only recorded in
+ * a {@link StripedReadBuffer}, which is replayed under the lock before each
+ * write, or by the read that fills it if the lock is free.  A read dropped
+ * because the buffer is full or contended only makes the policy's counts
+ * and LRU order slightly less precise.
+ * The policy runs after the backing map has been changed, so it tracks the
+ * map closely rather than exactly, and only ever evicts a fragment from the
+ * map if it is still the one the policy was told about.
+ *
+ * @author Ryan Wilson
+ */
+@ThreadSafe
+final class MemoryFragmentEvictor
+{
+    private static final Log log = LogFactory.getLog(MemoryFragmentEvictor.class);
+
+    // Approximate bytes used by a map entry, the fragment, and its locks
+    static final int ENTRY_OVERHEAD = 256;
+
+    private static final int WINDOW_PERCENT    = 1;
+    private static final int PROTECTED_PERCENT = 80;
+
+    /**
+     * Where a fragment is in the policy
+     */
+    final class Node
+    {
+        private final String key;
+
+        @GuardedBy("lock") private MemoryFragment fragment;
+        @GuardedBy("lock") private long weight;
+        @GuardedBy("lock") private Map<String, Node> segment;
+
+        private Node(String key, MemoryFragment fragment)
+        {
+            this.key = key;
+            this.fragment = fragment;
+        }
+
+        /**
+         * Re-weighs the fragment, after its content has changed
+         */
+        void reweigh()
+        {
+            onUpdate(this);
+        }
+    }
+
+    private final ConcurrentMap<String, MemoryFragment> map;
+    private final FragmentIndex index;
+
+    // The budget may be changed, e.g. by a FragmentCacheManager
+    private volatile long maxWeight;
+    @GuardedBy("lock") private long maxWindow;
+    @GuardedBy("lock") private long maxProtected;
+
+    @GuardedBy("lock") private final FrequencySketch<String> sketch;
+
+    // Requests yet to be replayed against the policy
+    private final StripedReadBuffer<String> reads = new StripedReadBuffer<String>();
+
+    @GuardedBy("lock") private final StripedReadBuffer.Consumer<String> replay;
+
+    private final ReentrantLock lock = new ReentrantLock();
+
+    @GuardedBy("lock") private final Map<String, Node> nodes;
+
+    // Access-ordered, least recently used first
+    @GuardedBy("lock") private final Map<String, Node> window;
+    @GuardedBy("lock") private final Map<String, Node> probation;
+    @GuardedBy("lock") private final Map<String, Node> protect;
+
+    @GuardedBy("lock") private long weight;
+    @GuardedBy("lock") private long windowWeight;
+    @GuardedBy("lock") private long protectedWeight;
+
+    @GuardedBy("lock") private long evictions;
+    @GuardedBy("lock") private long evictedWeight;
+
+    /**
+     * @param map The map backing the cache, to evict from
+     * @param index The index of the cache, to remove evicted fragments from
+     * @param maxWeight The max number of bytes the cache may hold
+     * @param expectedSize The expected number of fragments, to size the sketch
+     */
+    MemoryFragmentEvictor(ConcurrentMap<String, MemoryFragment> map, FragmentIndex index, long maxWeight, int expectedSize)
+    {
+        this.map          = map;
+        this.index        = index;
+        this.sketch       = new FrequencySketch<String>(expectedSize);
+
+        this.nodes     = new HashMap<String, Node>(expectedSize);
+        this.window    = new LinkedHashMap<String, Node>(16, 0.75f, true);
+        this.probation = new LinkedHashMap<String, Node>(16, 0.75f, true);
+        this.protect   = new LinkedHashMap<String, Node>(16, 0.75f, true);
+
+        this.replay = new StripedReadBuffer.Consumer<String>() {
+            public void accept(String key)
+            {
+                record(key);
+            }
+        };
+
+        lock.lock();
+        try
+        {
+            resize(maxWeight);
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Records a request for the key, whether or not the cache held it
+     */
+    void onAccess(String key)
+    {
+        if (reads.offer(key) && lock.tryLock())
+        {
+            try
+            {
+                drainReads();
+            }
+            finally
+            {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Replays the requests recorded since the last drain
+     */
+    @GuardedBy("lock")
+    private void drainReads()
+    {
+        reads.drain(replay);
+    }
+
+    @GuardedBy("lock")
+    private void record(String key)
+    {
+        sketch.increment(key);
+
+        Node node = nodes.get(key);
+        if (node == null)
+            return;
+
+        if (node.segment == probation)
+        {
+            // Requested again, so promote it
+            probation.remove(key);
+            move(node, protect);
+            protectedWeight += node.weight;
+
+            // Demote the protected segment's least recently used to make room
+            while (protectedWeight > maxProtected && !protect.isEmpty())
+            {
+                Node demoted = eldest(protect);
+                protect.remove(demoted.key);
+                protectedWeight -= demoted.weight;
+                move(demoted, probation);
+            }
+        }
+        else
+            node.segment.get(key);      // moves it to most recently used
+    }
+
+    /**
+     * The fragment was put in the map under the key
+     */
+    void onWrite(String key, MemoryFragment fragment)
+    {
+        lock.lock();
+        try
+        {
+            drainReads();
+
+            // It may have already been replaced or removed by another thread
+            if (map.get(key) != fragment)
+                return;
+
+            Node node = nodes.get(key);
+            if (node == null)
+            {
+                node = new Node(key, fragment);
+                nodes.put(key, node);
+                move(node, window);
+            }
+            else
+            {
+                node.fragment.node = null;
+                node.fragment = fragment;
+            }
+
+            fragment.node = node;
+            setWeight(node, weigh(key, fragment));
+            evict();
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * The fragment was removed from the map
+     */
+    void onRemove(String key, MemoryFragment fragment)
+    {
+        lock.lock();
+        try
+        {
+            Node node = nodes.get(key);
+            if (node != null && node.fragment == fragment)
+                unlink(node);
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Everything was removed from the map
+     */
+    void clear()
+    {
+        lock.lock();
+        try
+        {
+            drainReads();
+
+            for (Node node : nodes.values())
+                node.fragment.node = null;
+
+            nodes.clear();
+            window.clear();
+            probation.clear();
+            protect.clear();
+
+            weight = windowWeight = protectedWeight = 0;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Changes the budget, evicting right away if the cache is over the new one
+     *
+     * @param maxWeight The max number of bytes the cache may hold
+     */
+    void setMaxWeight(long maxWeight)
+    {
+        lock.lock();
+        try
+        {
+            drainReads();
+            resize(maxWeight);
+
+            // Fragments that fit the protected segment before may not now
+            while (protectedWeight > maxProtected && !protect.isEmpty())
+            {
+                Node demoted = eldest(protect);
+                protect.remove(demoted.key);
+                protectedWeight -= demoted.weight;
+                move(demoted, probation);
+            }
+
+            evict();
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return The max number of bytes the cache may hold
+     */
+    long getMaxWeight()
+    {
+        return maxWeight;
+    }
+
+    /**
+     * @return The approximate number of bytes the cache holds
+     */
+    long getWeight()
+    {
+        lock.lock();
+        try
+        {
+            return weight;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return The number of fragments evicted to stay within the budget
+     */
+    long getEvictionCount()
+    {
+        lock.lock();
+        try
+        {
+            return evictions;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return The number of bytes evicted to stay within the budget
+     */
+    long getEvictedWeight()
+    {
+        lock.lock();
+        try
+        {
+            return evictedWeight;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    @GuardedBy("lock")
+    private void resize(long maxWeight)
+    {
+        this.maxWeight    = maxWeight;
+        this.maxWindow    = Math.max(maxWeight * WINDOW_PERCENT / 100, 1);
+        this.maxProtected = (maxWeight - maxWindow) * PROTECTED_PERCENT / 100;
+    }
+
+    private void onUpdate(Node node)
+    {
+        lock.lock();
+        try
+        {
+            drainReads();
+
+            if (nodes.get(node.key) == node)
+            {
+                setWeight(node, weigh(node.key, node.fragment));
+                evict();
+            }
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Moves overflow from the window into the main space, then evicts
+     * until the cache is within its budget.
+     */
+    @GuardedBy("lock")
+    private void evict()
+    {
+        while (windowWeight > maxWindow && window.size() > 1)
+        {
+            Node candidate = eldest(window);
+            window.remove(candidate.key);
+            windowWeight -= candidate.weight;
+            move(candidate, probation);
+
+            admit(candidate);
+        }
+
+        // Fragments in the main space may have grown, or the window may hold it all
+        while (weight > maxWeight && !nodes.isEmpty())
+            evict(victim());
+    }
+
+    /**
+     * Makes room in the main space for a candidate from the window, or evicts
+     * the candidate if it has been requested less often than its victims.
+     */
+    @GuardedBy("lock")
+    private void admit(Node candidate)
+    {
+        if (candidate.weight > maxWeight - maxWindow)
+        {
+            evict(candidate);
+            return;
+        }
+
+        int frequency = sketch.frequency(candidate.key);
+        while (weight > maxWeight)
+        {
+            Node victim = victim(candidate);
+            if (victim == null || sketch.frequency(victim.key) >= frequency)
+            {
+                evict(candidate);
+                return;
+            }
+            evict(victim);
+        }
+    }
+
+    /**
+     * @return The next fragment to evict from the main space to make room for
+     *         the candidate, or null if the main space holds only the candidate
+     */
+    @GuardedBy("lock")
+    private Node victim(Node candidate)
+    {
+        Node victim = probation.isEmpty() ? null : eldest(probation);
+        if (victim == candidate)
+            victim = protect.isEmpty() ? null : eldest(protect);
+        return victim;
+    }
+
+    /**
+     * @return The next fragment to evict from the main space, or the window if it's empty
+     */
+    @GuardedBy("lock")
+    private Node victim()
+    {
+        if (!probation.isEmpty())
+            return eldest(probation);
+        if (!protect.isEmpty())
+            return eldest(protect);
+        return eldest(window);
+    }
+
+    @GuardedBy("lock")
+    private void evict(Node node)
+    {
+        long evicted = node.weight;
+
+        evictions++;
+        evictedWeight += evicted;
+
+        unlink(node);
+
+        if (map.remove(node.key, node.fragment))
+            index.remove(node.key, node.fragment);
+
+        if (log.isTraceEnabled())
+            log.trace("Evicted fragment [key=" + node.key + ", weight=" + evicted + "]");
+    }
+
+    @GuardedBy("lock")
+    private void unlink(Node node)
+    {
+        nodes.remove(node.key);
+        node.segment.remove(node.key);
+        node.fragment.node = null;
+
+        setWeight(node, 0);
+    }
+
+    @GuardedBy("lock")
+    private void setWeight(Node node, long newWeight)
+    {
+        long delta = newWeight - node.weight;
+        node.weight = newWeight;
+
+        weight += delta;
+        if (node.segment == window)
+            windowWeight += delta;
+        else if (node.segment == protect)
+            protectedWeight += delta;
+    }
+
+    @GuardedBy("lock")
+    private void move(Node node, Map<String, Node> segment)
+    {
+        node.segment = segment;
+        segment.put(node.key, node);
+    }
+
+    private static Node eldest(Map<String, Node> segment)
+    {
+        Iterator<Node> itr = segment.values().iterator();
+        return itr.next();
+    }
+
+    private static long weigh(String key, MemoryFragment fragment)
+    {
+        return ENTRY_OVERHEAD + 2L * key.length() + fragment.weight();
+    }
+}
@@ -0,0 +1,300 @@
+/*
+ * MemoryFragmentSnapshot.java
+ *
+ * Copyright 2011 FooBrew, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.j2free.cache.impl.memory;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import net.jcip.annotations.Immutable;
+import net.jcip.annotations.NotThreadSafe;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import org.j2free.cache.FragmentIndex;
+
+/**
+ * Writes the live fragments of a {@link MemoryFragmentCache} to a local file,
+ * and reads them back, so that a restarted node can come up with a warm cache.
+ *
+ * The file holds a header (magic, version, the time it was written) and
+ * then one record per fragment: key, condition, timeout, time left to live,
+ * tags, and content, as UTF-8 or, for caches keeping content deflated, as
+ * it was held.  Records are written through a buffer to a temporary file,
+ * which is forced to disk and renamed over the previous snapshot, so a
+ * crash mid-write leaves the previous snapshot intact.  Snapshots are read
+ * back by mapping the file.  A truncated or corrupt file yields the records
+ * before the damage.
+ *
+ * @author Ryan Wilson
+ */
+@NotThreadSafe
+final class MemoryFragmentSnapshot {
+
+    private static final Log log = LogFactory.getLog(MemoryFragmentSnapshot.class);
+
+    private static final int MAGIC   = 0x4a324653;  // "J2FS"
+    private static final int VERSION = 1;
+
+    private static final byte RECORD = 1;
+    private static final byte END    = 0;
+
+    private static final byte PLAIN    = 0;
+    private static final byte DEFLATED = 1;
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * A fragment as captured for a snapshot; exactly one of content and deflated is set
+     */
+    @Immutable
+    static final class Entry {
+        final String      key;
+        final String      condition;
+        final long        timeout;
+        final long        remaining;
+        final Set<String> tags;
+        final String      content;
+        final byte[]      deflated;
+        final int         length;       // of the UTF-8 encoding, if deflated
+
+        Entry(String key, String condition, long timeout, long remaining, Set<String> tags,
+              String content, byte[] deflated, int length) {
+            this.key       = key;
+            this.condition = condition;
+            this.timeout   = timeout;
+            this.remaining = remaining;
+            this.tags      = tags;
+            this.content   = content;
+            this.deflated  = deflated;
+            this.length    = length;
+        }
+    }
+
+    private MemoryFragmentSnapshot() { }
+
+    /**
+     * Writes the fragments that have content and have not expired
+     *
+     * @param file The snapshot to replace
+     * @param fragments The fragments of the cache
+     * @param index The index of the cache, for the fragments' tags
+     * @return The number of fragments written
+     * @throws IOException
+     */
+    static int write(File file, Map<String, MemoryFragment> fragments, FragmentIndex index) throws IOException {
+        File temp = new File(file.getPath() + ".tmp");
+
+        int count = 0;
+
+        FileOutputStream out = new FileOutputStream(temp);
+        try {
+            FileChannel channel = out.getChannel();
+            ByteBuffer  buffer  = ByteBuffer.allocate(BUFFER_SIZE);
+
+            long now = System.currentTimeMillis();
+
+            buffer.putInt(MAGIC);
+            buffer.putInt(VERSION);
+            buffer.putLong(now);
+
+            for (Map.Entry<String, MemoryFragment> cached : fragments.entrySet()) {
+                Entry entry = cached.getValue().capture(cached.getKey(), index.getTags(cached.getKey()), now);
+                if (entry == null)
+                    continue;
+
+                buffer = write(channel, buffer, entry);
+                count++;
+            }
+
+            buffer = ensure(channel, buffer, 1);
+            buffer.put(END);
+
+            flush(channel, buffer);
+            channel.force(false);
+        } finally {
+            out.close();
+        }
+
+        // File.renameTo won't replace an existing file on some platforms
+        if (!temp.renameTo(file) && !(file.delete() && temp.renameTo(file)))
+            throw new IOException("Unable to replace " + file + " with " + temp);
+
+        return count;
+    }
+
+    /**
+     * @param file A snapshot
+     * @return The fragments in the snapshot that have yet to expire, their
+     *         time left to live reduced by the time since it was written
+     * @throws IOException
+     */
+    static List<Entry> read(File file) throws IOException {
+        List<Entry> entries = new ArrayList<Entry>();
+
+        FileInputStream in = new FileInputStream(file);
+        try {
+            FileChannel      channel = in.getChannel();
+            MappedByteBuffer buffer  = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+
+            if (buffer.remaining() < 16 || buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+                log.warn("Ignoring " + file + ", it is not a fragment cache snapshot of a known version");
+                return entries;
+            }
+
+            long elapsed = Math.max(System.currentTimeMillis() - buffer.getLong(), 0);
+
+            try {
+                while (buffer.get() == RECORD) {
+                    String key       = getString(buffer);
+                    String condition = getString(buffer);
+                    long   timeout   = buffer.getLong();
+                    long   remaining = buffer.getLong() - elapsed;
+
+                    int tagCount = buffer.getInt();
+                    Set<String> tags = tagCount == 0 ? Collections.<String>emptySet() : new HashSet<String>();
+                    for (int i = 0; i < tagCount; i++)
+                        tags.add(getString(buffer));
+
+                    byte   encoding = buffer.get();
+                    int    length   = buffer.getInt();
+                    byte[] data     = getBytes(buffer, buffer.getInt());
+
+                    if (remaining <= 0)
+                        continue;
+
+                    entries.add(
+                        encoding == DEFLATED
+                            ? new Entry(key, condition, timeout, remaining, tags, null, data, length)
+                            : new Entry(key, condition, timeout, remaining, tags, new String(data, ContentCodec.UTF_8), null, 0)
+                    );
+                }
+            } catch (BufferUnderflowException e) {
+                log.warn(file + " is truncated, restoring the " + entries.size() + " fragments before the damage");
+            } catch (RuntimeException e) {
+                log.warn(file + " is corrupt, restoring the " + entries.size() + " fragments before the damage", e);
+            }
+        } finally {
+            in.close();
+        }
+
+        return entries;
+    }
+
+    private static ByteBuffer write(FileChannel channel, ByteBuffer buffer, Entry entry) throws IOException {
+        byte[] key       = entry.key.getBytes(ContentCodec.UTF_8);
+        byte[] condition = entry.condition == null ? null : entry.condition.getBytes(ContentCodec.UTF_8);
+        byte[] data      = entry.deflated != null ? entry.deflated : entry.content.getBytes(ContentCodec.UTF_8);
+
+        List<byte[]> tags = new ArrayList<byte[]>(entry.tags.size());
+        int tagBytes = 0;
+        for (String tag : entry.tags) {
+            byte[] encoded = tag.getBytes(ContentCodec.UTF_8);
+            tags.add(encoded);
+            tagBytes += 4 + encoded.length;
+        }
+
+        int headerSize = 1 + 4 + key.length + 4 + (condition == null ? 0 : condition.length) + 8 + 8
+                       + 4 + tagBytes + 1 + 4 + 4;
+
+        buffer = ensure(channel, buffer, headerSize);
+        buffer.put(RECORD);
+        putBytes(buffer, key);
+        putBytes(buffer, condition);
+        buffer.putLong(entry.timeout);
+        buffer.putLong(entry.remaining);
+        buffer.putInt(tags.size());
+        for (byte[] tag : tags)
+            putBytes(buffer, tag);
+        buffer.put(entry.deflated != null ? DEFLATED : PLAIN);
+        buffer.putInt(entry.length);
+        buffer.putInt(data.length);
+
+        // Large content goes straight to the channel, rather than through the buffer
+        if (data.length > buffer.remaining()) {
+            flush(channel, buffer);
+            writeFully(channel, ByteBuffer.wrap(data));
+        } else {
+            buffer.put(data);
+        }
+        return buffer;
+    }
+
+    /**
+     * @return A buffer with room for at least <tt>size</tt> more bytes
+     */
+    private static ByteBuffer ensure(FileChannel channel, ByteBuffer buffer, int size) throws IOException {
+        if (buffer.remaining() >= size)
+            return buffer;
+
+        flush(channel, buffer);
+        return buffer.capacity() >= size ? buffer : ByteBuffer.allocate(size);
+    }
+
+    private static void flush(FileChannel channel, ByteBuffer buffer) throws IOException {
+        buffer.flip();
+        writeFully(channel, buffer);
+        buffer.clear();
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining())
+            channel.write(buffer);
+    }
+
+    private static void putBytes(ByteBuffer buffer, byte[] bytes) {
+        if (bytes == null) {
+            buffer.putInt(-1);
+        } else {
+            buffer.putInt(bytes.length);
+            buffer.put(bytes);
+        }
+    }
+
+    private static String getString(ByteBuffer buffer) {
+        int length = buffer.getInt();
+        if (length < 0)
+            return null;
+
+        return new String(getBytes(buffer, length), ContentCodec.UTF_8);
+    }
+
+    private static byte[] getBytes(ByteBuffer buffer, int length) {
+        // Check first, so a corrupt length can't allocate a huge array
+        if (length < 0 || length > buffer.remaining())
+            throw new BufferUnderflowException();
+
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return bytes;
+    }
+}
@@ -0,0 +1,348 @@
+/*
+ * OffHeapFragment.java
+ *
+ * Copyright 2011 FooBrew, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.j2free.cache.impl.offheap;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+
+import net.jcip.annotations.GuardedBy;
+import net.jcip.annotations.ThreadSafe;
+
+import org.apache.commons.lang.StringUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import org.j2free.cache.StreamableFragment;
+
+import org.j2free.util.ServletUtils;
+
+/**
+ * A fragment whose content is stored as UTF-8 in chunks of off-heap memory
+ * from a {@link SlabAllocator}, so that only a small, fixed-size object
+ * per fragment lives on the heap.
+ *
+ * Locking-for-update works exactly as in
+ * {@link org.j2free.cache.impl.memory.MemoryFragment}.  The stored content
+ * is reference counted: readers take a reference while decoding it, and its
+ * chunks are only freed once it has been replaced or the fragment discarded,
+ * and every reader is done with it.  A discarded fragment keeps no copy of
+ * its content, so a reader that got it from the cache just before it was
+ * evicted misses, and may render it again.
+ *
+ * Content too large to ever fit in the allocator is kept on the heap.
+ *
+ * @author Ryan Wilson
+ */
+@ThreadSafe
+public class OffHeapFragment implements StreamableFragment {
+
+    private final Log log = LogFactory.getLog(getClass());
+
+    // Max time in ms that a thread may hold the lock-for-update on this fragment
+    private static final int MAX_LOCK_HOLD = 90000;
+
+    // Content stored in the allocator, and the references to it
+    private static final class Content {
+        private final int[] chunks;
+        private final int   length;
+
+        // One reference for the owning fragment, plus one per reader
+        private final AtomicInteger refs = new AtomicInteger(1);
+
+        private Content(int[] chunks, int length) {
+            this.chunks = chunks;
+            this.length = length;
+        }
+    }
+
+    private final SlabAllocator allocator;
+
+    @GuardedBy("this") private Content content;
+    @GuardedBy("this") private String  heapContent;
+    @GuardedBy("this") private boolean discarded;
+
+    @GuardedBy("this") private String condition;
+
+    @GuardedBy("this") private long lockedTime;
+    @GuardedBy("this") private long updateTime;
+
+    private final long timeout;
+
+    private final ReentrantLock  updateLock;
+    private final CountDownLatch initialized;
+
+    /**
+     * @param allocator Where to store the content
+     * @param condition An optional condition upon creation of the fragment
+     * @param timeout The timeout for this cached fragment
+     */
+    OffHeapFragment(SlabAllocator allocator, String condition, long timeout) {
+        this.allocator = allocator;
+        this.timeout   = timeout;
+
+        // Use null instead of blank string for condition
+        this.condition = StringUtils.isEmpty(condition) ? null : condition;
+
+        this.updateLock  = new ReentrantLock();
+        this.initialized = new CountDownLatch(1);
+
+        this.updateTime = System.currentTimeMillis();
+        this.lockedTime = -1;
+    }
+
+    /**
+     * @param newCondition A condition
+     * @param newTimeout A expiration
+     * @return A new <tt>OffHeapFragment</tt> sharing the content of the current
+     *         one, but using the specified newCondition and newTimeout
+     */
+    public OffHeapFragment clone(String newCondition, long newTimeout) {
+        OffHeapFragment clone = new OffHeapFragment(allocator, newCondition, newTimeout);
+
+        synchronized (this) {
+            if (hasContent()) {
+                if (content != null)
+                    content.refs.incrementAndGet();
+
+                synchronized (clone) {
+                    clone.content     = content;
+                    clone.heapContent = heapContent;
+                }
+                clone.initialized.countDown();
+            }
+        }
+
+        return clone;
+    }
+
+    public String get(long waitFor, TimeUnit unit) throws InterruptedException {
+        StringWriter out = new StringWriter();
+        try {
+            return writeTo(out, waitFor, unit) ? out.toString() : null;
+        } catch (IOException e) {
+            throw new IllegalStateException("StringWriter threw an IOException", e);
+        }
+    }
+
+    public boolean writeTo(Writer out, long waitFor, TimeUnit unit) throws InterruptedException, IOException {
+        if (!initialized.await(waitFor, unit))
+            return false;
+
+        Content current;
+        synchronized (this) {
+            if (content == null) {
+                // Discarded since it was filled
+                if (heapContent == null)
+                    return false;
+
+                out.write(heapContent);
+                return true;
+            }
+
+            // The fragment holds a reference until the content is replaced,
+            // which can't happen while we hold the monitor
+            current = content;
+            current.refs.incrementAndGet();
+        }
+
+        try {
+            allocator.writeTo(current.chunks, current.length, out);
+        } finally {
+            release(current);
+        }
+        return true;
+    }
+
+    public synchronized long getStaleness(String curCondition) {
+        if (!hasContent())
+            return -1;
+
+        long expired = System.currentTimeMillis() - updateTime - timeout;
+        if (expired >= 0)
+            return Math.max(expired, 1);
+
+        return condition != null && !condition.equals(curCondition) ? 1 : 0;
+    }
+
+    public synchronized long getTimeToLive() {
+        if (!hasContent())
+            return -1;
+
+        return Math.max(updateTime + timeout - System.currentTimeMillis(), 0);
+    }
+
+    public synchronized boolean isLockAbandoned() {
+        return updateLock.isLocked() && (System.currentTimeMillis() - lockedTime ) >= MAX_LOCK_HOLD;
+    }
+
+    /**
+     * @param staleTtl How long in ms an expired fragment is kept to be served stale
+     * @return true if the fragment has been expired for longer than staleTtl, or
+     *         is locked and the lockWait has passed, otherwise false
+     */
+    synchronized boolean isExpiredOrLockAbandoned(long staleTtl) {
+        long    now    = System.currentTimeMillis();
+        boolean locked = updateLock.isLocked();
+
+        return (locked && (now - lockedTime ) >= MAX_LOCK_HOLD) ||              // lockAbandoned()
+               (!locked && (now - updateTime) - timeout >= staleTtl);           // not locked and past its grace
+    }
+
+    public boolean tryLockForUpdate(String curCondition) {
+
+        // If the caller Thread is already the owner, just return true
+        if (updateLock.isHeldByCurrentThread())
+            return true;
+
+        // If this fragment is currently locked for update by a different Thread
+        if (updateLock.isLocked())
+            return false;
+
+        boolean acquiredLock = false;
+
+        // Do all the below in a synchronized block so that the condition cannot
+        // change between the creation of condChanged and the call to tryLock()
+        synchronized (this) {
+            boolean condChanged = this.condition != null && !this.condition.equals(curCondition);
+
+            long now = System.currentTimeMillis();
+
+            if (!hasContent() || (now - updateTime) >= timeout || condChanged)
+                acquiredLock = updateLock.tryLock();
+
+            if (acquiredLock)
+                lockedTime = now;
+        }
+
+        return acquiredLock;
+    }
+
+    public boolean tryLockForUpdate() {
+
+        // If the caller Thread is already the owner, just return true
+        if (updateLock.isHeldByCurrentThread())
+            return true;
+
+        if (updateLock.isLocked())
+            return false;
+
+        synchronized (this) {
+            boolean acquiredLock = updateLock.tryLock();
+            if (acquiredLock)
+                lockedTime = System.currentTimeMillis();
+            return acquiredLock;
+        }
+    }
+
+    public boolean tryUpdateAndRelease(String newContent, String newCondition) {
+
+        // Make sure the caller owns the lock
+        if (!updateLock.isHeldByCurrentThread())
+            return false;
+
+        String compressed = ServletUtils.compressHTML(newContent);
+        if (compressed == null)
+            compressed = "";
+
+        // Store the content before taking the monitor, since making room
+        // may evict other fragments
+        byte[] bytes  = compressed.getBytes(SlabAllocator.UTF_8);
+        int[]  chunks = allocator.store(bytes);
+
+        Content stored = chunks == null ? null : new Content(chunks, bytes.length);
+        if (stored == null)
+            log.warn("Fragment of " + bytes.length + " bytes does not fit off-heap, keeping it on the heap");
+
+        Content replaced;
+        synchronized (this) {
+            if (discarded && stored != null) {
+                // Evicted while updating; serve this content to waiting threads from the heap
+                replaced = stored;
+                stored   = null;
+            } else
+                replaced = content;
+
+            this.content     = stored;
+            this.heapContent = stored == null ? compressed : null;
+            this.condition   = StringUtils.isEmpty(newCondition) ? null : newCondition;
+            this.updateTime  = System.currentTimeMillis();
+        }
+
+        if (replaced != null)
+            release(replaced);
+
+        // Unlock the lock for update
+        updateLock.unlock();
+
+        // initialized guards content from being returned until this method has been
+        // called at least once. So, count down the latch.
+        initialized.countDown();
+
+        return true;
+    }
+
+    public void tryRelease() {
+        if (updateLock.isHeldByCurrentThread())
+            updateLock.unlock();
+    }
+
+    /**
+     * Frees the content once any readers are done with it; called when the
+     * fragment is removed from the cache.  Readers already decoding the
+     * content hold a reference to it, and finish; later ones miss.
+     */
+    void discard() {
+        Content discarding;
+        synchronized (this) {
+            if (discarded)
+                return;
+
+            discarded   = true;
+            discarding  = content;
+            content     = null;
+            heapContent = null;
+        }
+
+        if (discarding != null)
+            release(discarding);
+    }
+
+    /**
+     * @return The number of bytes stored off-heap for this fragment
+     */
+    synchronized int length() {
+        return content == null ? 0 : content.length;
+    }
+
+    // Whether the fragment has been filled, and not discarded since
+    @GuardedBy("this")
+    private boolean hasContent() {
+        return content != null || heapContent != null;
+    }
+
+    private void release(Content released) {
+        if (released.refs.decrementAndGet() == 0)
+            allocator.free(released.chunks);
+    }
+}
@@ -0,0 +1,354 @@
+/*
+ * OffHeapFragmentCache.java
+ *
+ * Copyright 2011 FooBrew, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.j2free.cache.impl.offheap;
+
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.jcip.annotations.GuardedBy;
+import net.jcip.annotations.ThreadSafe;
+
+import org.apache.commons.configuration.Configuration;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import org.j2free.cache.FragmentCache;
+import org.j2free.cache.FragmentCacheStatistics;
+import org.j2free.cache.FragmentIndex;
+
+/**
+ * Implements {@link FragmentCache} with only an index of fragments on the
+ * heap, and their content stored off-heap in direct memory, so that cached
+ * pages don't weigh on the old generation or on GC pause times.  To use it,
+ * configure e.g.
+ *
+ * <pre>
+ *  fragment.cache.strategy.offheap.class = org.j2free.cache.impl.offheap.OffHeapFragmentCache
+ *  fragment.cache.strategy.offheap.max-bytes = 268435456
+ * </pre>
+ *
+ * When the off-heap store is full, fragments are evicted to make room by
+ * sweeping around the backing map, so every fragment is equally likely to go.
+ * Expired fragments are swept out every cleaner-interval seconds, once they
+ * have been expired for stale-ttl ms, so that tags with revalidate="true"
+ * can serve them while they are re-rendered in the background.
+ *
+ * @author Ryan Wilson
+ */
+@ThreadSafe
+public class OffHeapFragmentCache implements FragmentCache<OffHeapFragment> {
+
+    // Config Properties
+    private static final String PROP_SIZE           = Properties.ENGINE_PREFIX + "offheap.size";
+    private static final String PROP_MAX_BYTES      = Properties.ENGINE_PREFIX + "offheap.max-bytes";
+    private static final String PROP_SLAB_SIZE      = Properties.ENGINE_PREFIX + "offheap.slab-size";
+    private static final String PROP_CHUNK_SIZE     = Properties.ENGINE_PREFIX + "offheap.chunk-size";
+    private static final String PROP_CLEAN_INTERVAL = Properties.ENGINE_PREFIX + "offheap.cleaner-interval";
+    private static final String PROP_STALE_TTL      = Properties.ENGINE_PREFIX + "offheap.stale-ttl";
+
+    private static final int  DEFAULT_SIZE           = 10000;
+    private static final long DEFAULT_MAX_BYTES      = 256L * 1024 * 1024;
+    private static final int  DEFAULT_SLAB_SIZE      = 4 * 1024 * 1024;
+    private static final int  DEFAULT_CHUNK_SIZE     = 1024;
+    private static final int  DEFAULT_CLEAN_INTERVAL = 60;
+    private static final long DEFAULT_STALE_TTL      = 300000;
+
+    private final Log log = LogFactory.getLog(getClass());
+
+    // The on-heap index
+    private final ConcurrentMap<String, OffHeapFragment> map;
+
+    // The keys by tag and in order, for bulk eviction
+    private final FragmentIndex index;
+
+    private final SlabAllocator allocator;
+
+    // Where evictAny left off
+    @GuardedBy("this")
+    private Iterator<Map.Entry<String, OffHeapFragment>> sweep;
+
+    // Fragments evicted to make room in the allocator
+    private final AtomicLong evictions = new AtomicLong(0);
+
+    // Fragments removed by the cleaner in its last run
+    private volatile int  lastCleanCount     = -1;
+    private volatile long lastCleanTimestamp = -1;
+
+    // How long in ms expired fragments are kept to be served stale
+    private volatile long staleTtl = 0;
+
+    // A single-threaded executor to run the cleaner task
+    private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
+
+    private volatile ScheduledFuture<?> cleanerFuture = null;
+
+    /**
+     *
+     * @param config
+     */
+    public OffHeapFragmentCache(Configuration config)
+    {
+        this(
+            config.getInt(PROP_SIZE, DEFAULT_SIZE),
+            config.getLong(PROP_MAX_BYTES, DEFAULT_MAX_BYTES),
+            config.getInt(PROP_SLAB_SIZE, DEFAULT_SLAB_SIZE),
+            config.getInt(PROP_CHUNK_SIZE, DEFAULT_CHUNK_SIZE)
+        );
+
+        setStaleTtl(config.getLong(PROP_STALE_TTL, DEFAULT_STALE_TTL));
+
+        scheduleCleaner(config.getInt(PROP_CLEAN_INTERVAL, DEFAULT_CLEAN_INTERVAL), TimeUnit.SECONDS);
+    }
+
+    /**
+     *
+     * @param initialSize The expected number of fragments
+     * @param maxBytes The max number of bytes of off-heap memory to use
+     * @param slabSize The number of bytes of off-heap memory to reserve at a time
+     * @param chunkSize The unit in which fragments are stored; a fragment
+     *        wastes half of this, on average
+     */
+    public OffHeapFragmentCache(int initialSize, long maxBytes, int slabSize, int chunkSize)
+    {
+        this.map       = new ConcurrentHashMap<String, OffHeapFragment>(initialSize);
+        this.index     = new FragmentIndex();
+        this.allocator = new SlabAllocator(maxBytes, slabSize, chunkSize);
+
+        allocator.setReclaimer(new SlabAllocator.Reclaimer() {
+            public boolean reclaim() {
+                return evictAny();
+            }
+        });
+    }
+
+    public void destroy() {
+        if (cleanerFuture != null)
+            cleanerFuture.cancel(true);
+        executor.shutdownNow();
+        clear();
+    }
+
+    public int clear() {
+        int count = 0;
+        for (Iterator<Map.Entry<String, OffHeapFragment>> itr = map.entrySet().iterator(); itr.hasNext(); ) {
+            Map.Entry<String, OffHeapFragment> entry = itr.next();
+            if (map.remove(entry.getKey(), entry.getValue())) {
+                index.remove(entry.getKey(), entry.getValue());
+                entry.getValue().discard();
+                count++;
+            }
+        }
+        return count;
+    }
+
+    public boolean contains(String key) {
+        return map.containsKey(key);
+    }
+
+    public OffHeapFragment createFragment(String condition, long timeout) {
+        return new OffHeapFragment(allocator, condition, timeout);
+    }
+
+    public OffHeapFragment createFragment(OffHeapFragment base, String condition, long timeout) {
+        return base.clone(condition, timeout);
+    }
+
+    public OffHeapFragment get(String key) {
+        return map.get(key);
+    }
+
+    public OffHeapFragment peek(String key) {
+        return map.get(key);
+    }
+
+    public OffHeapFragment evict(String key) {
+        OffHeapFragment removed = map.remove(key);
+        if (removed != null) {
+            index.remove(key, removed);
+            removed.discard();
+        }
+        return removed;
+    }
+
+    public boolean evict(String key, OffHeapFragment expected) {
+        if (!map.remove(key, expected))
+            return false;
+
+        index.remove(key, expected);
+        expected.discard();
+        return true;
+    }
+
+    public int evictByTag(String tag) {
+        return evictAll(index.keysTagged(tag));
+    }
+
+    public int evictByPrefix(String prefix) {
+        return evictAll(index.keysWithPrefix(prefix));
+    }
+
+    public void tag(String key, Collection<String> tags) {
+        index.tag(key, tags);
+    }
+
+    public Iterator<String> keyIterator() {
+        return map.keySet().iterator();
+    }
+
+    public OffHeapFragment put(String key, OffHeapFragment fragment) {
+        OffHeapFragment previous = map.put(key, fragment);
+        index.add(key, fragment);
+        if (previous != null && previous != fragment)
+            previous.discard();
+        return previous;
+    }
+
+    public OffHeapFragment putIfAbsent(String key, OffHeapFragment fragment) {
+        OffHeapFragment cached = map.putIfAbsent(key, fragment);
+        if (cached == null) {
+            index.add(key, fragment);
+            return fragment;
+        }
+
+        fragment.discard();
+        return cached;
+    }
+
+    public OffHeapFragment replace(String key, OffHeapFragment expected, OffHeapFragment replacement) {
+        if (!map.replace(key, expected, replacement)) {
+            replacement.discard();
+            return map.get(key);
+        }
+
+        index.add(key, replacement);
+        expected.discard();
+        return replacement;
+    }
+
+    public int size() {
+        return map.size();
+    }
+
+    public FragmentCacheStatistics getStatistics() {
+        return new OffHeapFragmentCacheStatistics(
+                    map.size(),
+                    lastCleanCount,
+                    lastCleanTimestamp,
+                    evictions.get(),
+                    allocator.getAllocatedBytes(),
+                    allocator.getReservedBytes(),
+                    allocator.getCapacity()
+                );
+    }
+
+    /**
+     * Sets how long expired fragments are kept to be served stale before the
+     * cleaner evicts them; 0, the default outside of a configuration, evicts
+     * them as soon as the cleaner finds them expired.
+     *
+     * @param staleTtl The grace in ms
+     */
+    public void setStaleTtl(long staleTtl) {
+        if (staleTtl < 0)
+            throw new IllegalArgumentException("staleTtl must not be negative: " + staleTtl);
+
+        this.staleTtl = staleTtl;
+    }
+
+    /**
+     * Modifies the schedule the cleaner runs on.
+     *
+     * @param interval The time interval
+     * @param unit The time unit the interval is in
+     */
+    public final void scheduleCleaner(long interval, TimeUnit unit) {
+        if (cleanerFuture != null)
+            cleanerFuture.cancel(false);
+
+        log.info("Scheduling cleaner task every " + interval + " " + unit.name());
+        cleanerFuture = executor.scheduleAtFixedRate(new Runnable() {
+            public void run() {
+                clean();
+            }
+        }, interval, interval, unit);
+    }
+
+    /**
+     * Evicts fragments expired for longer than the stale TTL, and fragments
+     * whose lock-for-update was abandoned
+     */
+    void clean() {
+        long start = System.currentTimeMillis();
+
+        int cleaned = 0, count = 0;
+        long grace = staleTtl;
+        for (Map.Entry<String, OffHeapFragment> entry : map.entrySet()) {
+            if (entry.getValue().isExpiredOrLockAbandoned(grace) && evict(entry.getKey(), entry.getValue()))
+                cleaned++;
+            count++;
+        }
+
+        lastCleanCount     = cleaned;
+        lastCleanTimestamp = System.currentTimeMillis();
+
+        log.info("OffHeapFragmentCache cleaner complete [" + (lastCleanTimestamp - start) + "ms, " + cleaned + " of " + count + " cleaned]");
+    }
+
+    private int evictAll(Collection<String> keys) {
+        int count = 0;
+        for (String key : keys) {
+            if (evict(key) != null)
+                count++;
+        }
+        return count;
+    }
+
+    /**
+     * Evicts a fragment holding off-heap content, to make room.  Victims are
+     * taken by sweeping around the map, so every fragment is equally likely
+     * to go.
+     *
+     * @return false if there are no such fragments
+     */
+    private synchronized boolean evictAny() {
+        for (int pass = 0; pass < 2; pass++) {
+            if (sweep == null || !sweep.hasNext())
+                sweep = map.entrySet().iterator();
+
+            while (sweep.hasNext()) {
+                Map.Entry<String, OffHeapFragment> entry = sweep.next();
+
+                OffHeapFragment fragment = entry.getValue();
+                if (fragment.length() > 0 && evict(entry.getKey(), fragment)) {
+                    evictions.incrementAndGet();
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,124 @@
+/*
+ * OffHeapFragmentCacheStatistics.java
+ *
+ * Copyright 2011 FooBrew, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.j2free.cache.impl.offheap;
+
+import net.jcip.annotations.Immutable;
+import org.j2free.cache.FragmentCacheStatistics;
+
+/**
+ *
+ * @author Ryan Wilson
+ */
+@Immutable
+public class OffHeapFragmentCacheStatistics implements FragmentCacheStatistics {
+
+    private final int  size;
+    private final long timestamp;
+
+    private final int  lastCleanCount;
+    private final long lastCleanTimestamp;
+
+    private final long evictionCount;
+
+    private final long allocatedBytes;
+    private final long reservedBytes;
+    private final long capacity;
+
+    /**
+     *
+     * @param size
+     * @param lastCleanCount
+     * @param lastCleanTimestamp
+     * @param evictionCount
+     * @param allocatedBytes
+     * @param reservedBytes
+     * @param capacity
+     */
+    public OffHeapFragmentCacheStatistics(int size, int lastCleanCount, long lastCleanTimestamp, long evictionCount,
+                                          long allocatedBytes, long reservedBytes, long capacity)
+    {
+        this.size               = size;
+        this.timestamp          = System.currentTimeMillis();
+        this.lastCleanCount     = lastCleanCount;
+        this.lastCleanTimestamp = lastCleanTimestamp;
+        this.evictionCount      = evictionCount;
+        this.allocatedBytes     = allocatedBytes;
+        this.reservedBytes      = reservedBytes;
+        this.capacity           = capacity;
+    }
+
+    public int getCacheSize()
+    {
+        return size;
+    }
+
+    public long getTimestamp()
+    {
+        return timestamp;
+    }
+
+    /**
+     * 
+     * @return
+     */
+    public int getLastCleanCount()
+    {
+        return lastCleanCount;
+    }
+
+    /**
+     * 
+     * @return
+     */
+    public long getLastCleanTimestamp()
+    {
+        return lastCleanTimestamp;
+    }
+
+    /**
+     * @return The number of fragments evicted to make room off-heap
+     */
+    public long getEvictionCount()
+    {
+        return evictionCount;
+    }
+
+    /**
+     * @return The number of off-heap bytes in use by fragments
+     */
+    public long getAllocatedBytes()
+    {
+        return allocatedBytes;
+    }
+
+    /**
+     * @return The number of off-heap bytes reserved so far
+     */
+    public long getReservedBytes()
+    {
+        return reservedBytes;
+    }
+
+    /**
+     * @return The max number of off-heap bytes that may be reserved
+     */
+    public long getCapacity()
+    {
+        return capacity;
+    }
+}
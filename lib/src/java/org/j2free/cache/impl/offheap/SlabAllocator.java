@@ -0,0 +1,277 @@
+/*
+ * SlabAllocator.java
+ *
+ * Copyright 2011 FooBrew, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.j2free.cache.impl.offheap;
+
+import java.io.IOException;
+import java.io.Writer;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+
+import net.jcip.annotations.GuardedBy;
+import net.jcip.annotations.ThreadSafe;
+
+/**
+ * Hands out fixed-size chunks of direct (off-heap) memory.  Memory is
+ * reserved from the OS a slab at a time, as needed, up to a maximum, and
+ * chunks are recycled through a free list rather than ever being returned,
+ * so the garbage collector never sees the bytes stored in them.
+ *
+ * Content is stored as UTF-8 across as many chunks as it needs, and read
+ * back by decoding a chunk at a time into a per-thread buffer, so reading
+ * never builds the whole content on the heap.  The writer may read other
+ * content in turn, e.g. to fill the holes of a
+ * {@link org.j2free.cache.FragmentTemplate}, with a buffer of its own.
+ *
+ * @author Ryan Wilson
+ */
+@ThreadSafe
+final class SlabAllocator {
+
+    static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    /**
+     * Makes room when the allocator is full
+     */
+    interface Reclaimer {
+        /**
+         * Frees some allocated chunks, e.g. by evicting a fragment
+         *
+         * @return false if there is nothing left to free
+         */
+        boolean reclaim();
+    }
+
+    // Per-thread buffers for decoding content
+    private final class Decoder {
+        private final CharsetDecoder decoder = UTF_8.newDecoder()
+                                                    .onMalformedInput(CodingErrorAction.REPLACE)
+                                                    .onUnmappableCharacter(CodingErrorAction.REPLACE);
+
+        // Room for a chunk, plus the partial character left over from the previous chunk
+        private final ByteBuffer bytes = ByteBuffer.allocate(chunkSize + 8);
+        private final CharBuffer chars = CharBuffer.allocate(chunkSize + 8);
+
+        // Whether this thread is reading with these buffers, and the buffers
+        // for reading from within the writer it's reading to
+        private boolean busy;
+        private Decoder nested;
+    }
+
+    private final int slabSize;
+    private final int chunkSize;
+    private final int chunksPerSlab;
+
+    private final ByteBuffer[] slabs;
+
+    private final ThreadLocal<Decoder> decoders = new ThreadLocal<Decoder>() {
+        @Override
+        protected Decoder initialValue() {
+            return new Decoder();
+        }
+    };
+
+    @GuardedBy("this") private int slabCount;
+
+    // A stack of free chunk ids
+    @GuardedBy("this") private int[] free;
+    @GuardedBy("this") private int   freeCount;
+
+    private volatile Reclaimer reclaimer;
+
+    /**
+     * @param maxBytes The max number of bytes to reserve
+     * @param slabSize The number of bytes to reserve at a time
+     * @param chunkSize The unit of allocation
+     */
+    SlabAllocator(long maxBytes, int slabSize, int chunkSize) {
+        if (chunkSize <= 0 || slabSize < chunkSize)
+            throw new IllegalArgumentException("Invalid slab or chunk size [slab=" + slabSize + ", chunk=" + chunkSize + "]");
+
+        this.chunkSize     = chunkSize;
+        this.chunksPerSlab = slabSize / chunkSize;
+        this.slabSize      = chunksPerSlab * chunkSize;
+
+        this.slabs = new ByteBuffer[(int) Math.max(maxBytes / this.slabSize, 1)];
+        this.free  = new int[0];
+    }
+
+    void setReclaimer(Reclaimer reclaimer) {
+        this.reclaimer = reclaimer;
+    }
+
+    /**
+     * Copies the content into newly allocated chunks, reclaiming space if
+     * the allocator is full.
+     *
+     * @return The chunks holding the content, or null if there wasn't room
+     *         for it even after reclaiming everything possible
+     */
+    int[] store(byte[] content) {
+        int needed = Math.max((content.length + chunkSize - 1) / chunkSize, 1);
+        if (needed > (long) slabs.length * chunksPerSlab)
+            return null;
+
+        int[] chunks = allocate(needed);
+        while (chunks == null) {
+            Reclaimer current = reclaimer;
+            if (current == null || !current.reclaim())
+                return null;
+
+            chunks = allocate(needed);
+        }
+
+        int offset = 0;
+        for (int chunk : chunks) {
+            int length = Math.min(chunkSize, content.length - offset);
+            if (length <= 0)
+                break;
+
+            ByteBuffer buffer = buffer(chunk);
+            buffer.put(content, offset, length);
+            offset += length;
+        }
+
+        return chunks;
+    }
+
+    /**
+     * Returns the chunks to the free list
+     */
+    synchronized void free(int[] chunks) {
+        for (int chunk : chunks)
+            free[freeCount++] = chunk;
+    }
+
+    /**
+     * Decodes content stored by {@link #store} to the writer
+     *
+     * @param chunks The chunks holding the content
+     * @param length The number of bytes of content
+     */
+    void writeTo(int[] chunks, int length, Writer out) throws IOException {
+        Decoder d = decoders.get();
+        while (d.busy) {
+            if (d.nested == null)
+                d.nested = new Decoder();
+            d = d.nested;
+        }
+
+        d.busy = true;
+        try {
+            decode(d, chunks, length, out);
+        } finally {
+            d.busy = false;
+        }
+    }
+
+    private void decode(Decoder d, int[] chunks, int length, Writer out) throws IOException {
+        d.decoder.reset();
+        d.bytes.clear();
+        d.chars.clear();
+
+        int remaining = length;
+        for (int i = 0; i < chunks.length && remaining > 0; i++) {
+            ByteBuffer buffer = buffer(chunks[i]);
+            buffer.limit(buffer.position() + Math.min(chunkSize, remaining));
+            remaining -= buffer.remaining();
+
+            d.bytes.put(buffer);
+            d.bytes.flip();
+
+            d.decoder.decode(d.bytes, d.chars, remaining == 0);
+            if (remaining == 0)
+                d.decoder.flush(d.chars);
+
+            d.chars.flip();
+            out.write(d.chars.array(), d.chars.arrayOffset(), d.chars.remaining());
+            d.chars.clear();
+
+            // Keep any partial character for the next chunk
+            d.bytes.compact();
+        }
+    }
+
+    /**
+     * @return The number of bytes reserved from the OS
+     */
+    synchronized long getReservedBytes() {
+        return (long) slabCount * slabSize;
+    }
+
+    /**
+     * @return The number of bytes in chunks that are in use
+     */
+    synchronized long getAllocatedBytes() {
+        return ((long) slabCount * chunksPerSlab - freeCount) * chunkSize;
+    }
+
+    /**
+     * @return The max number of bytes that may be reserved
+     */
+    long getCapacity() {
+        return (long) slabs.length * slabSize;
+    }
+
+    private synchronized int[] allocate(int needed) {
+        while (freeCount < needed && slabCount < slabs.length)
+            addSlab();
+
+        if (freeCount < needed)
+            return null;
+
+        int[] chunks = new int[needed];
+        for (int i = 0; i < needed; i++)
+            chunks[i] = free[--freeCount];
+
+        return chunks;
+    }
+
+    @GuardedBy("this")
+    private void addSlab() {
+        slabs[slabCount] = ByteBuffer.allocateDirect(slabSize);
+
+        int[] grown = new int[(slabCount + 1) * chunksPerSlab];
+        System.arraycopy(free, 0, grown, 0, freeCount);
+        free = grown;
+
+        // Push in reverse, so chunks are handed out in address order
+        int first = slabCount * chunksPerSlab;
+        for (int chunk = first + chunksPerSlab - 1; chunk >= first; chunk--)
+            free[freeCount++] = chunk;
+
+        slabCount++;
+    }
+
+    /**
+     * The slab holding a chunk is visible to any thread that was handed the
+     * chunk id safely, since the slab was added before the id was allocated.
+     *
+     * @return A view of the chunk, so that concurrent readers don't share a position
+     */
+    private ByteBuffer buffer(int chunk) {
+        ByteBuffer view = slabs[chunk / chunksPerSlab].duplicate();
+        int start = (chunk % chunksPerSlab) * chunkSize;
+        view.limit(start + chunkSize);
+        view.position(start);
+        return view;
+    }
+}
@@ -0,0 +1,213 @@
+/*
+ * LocalRedisClient.java
+ *
+ * Copyright 2011 FooBrew, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.j2free.cache.impl.redis;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import net.jcip.annotations.GuardedBy;
+import net.jcip.annotations.ThreadSafe;
+
+/**
+ * An in-process stand-in for a Redis server, for tests and single-node
+ * development.  Several {@link RedisFragmentCache}s sharing one instance
+ * behave like several nodes sharing one server, except that published
+ * messages are delivered synchronously, on the publishing thread.
+ *
+ * @author Ryan Wilson
+ */
+@ThreadSafe
+public class LocalRedisClient implements RedisClient {
+
+    private static final class Value {
+        private final Object data;      // a String, or a Map<String, Long> of members to when they expire
+        private final long   expires;   // -1 for never
+
+        private Value(Object data, long expires) {
+            this.data    = data;
+            this.expires = expires;
+        }
+    }
+
+    @GuardedBy("this")
+    private final Map<String, Value> data = new HashMap<String, Value>();
+
+    @GuardedBy("this")
+    private final Map<String, List<MessageListener>> listeners = new HashMap<String, List<MessageListener>>();
+
+    public synchronized String get(String key) {
+        Value value = live(key);
+        return value == null ? null : (String) value.data;
+    }
+
+    public synchronized void set(String key, String value, long ttl) {
+        data.put(key, new Value(value, System.currentTimeMillis() + ttl));
+    }
+
+    public synchronized boolean setIfAbsent(String key, String value, long ttl) {
+        if (live(key) != null)
+            return false;
+
+        set(key, value, ttl);
+        return true;
+    }
+
+    public synchronized boolean deleteIfEquals(String key, String expected) {
+        Value value = live(key);
+        if (value == null || !value.data.equals(expected))
+            return false;
+
+        data.remove(key);
+        return true;
+    }
+
+    public synchronized long delete(String... keys) {
+        long count = 0;
+        for (String key : keys) {
+            if (live(key) != null) {
+                data.remove(key);
+                count++;
+            }
+        }
+        return count;
+    }
+
+    public synchronized void addMember(String key, String member, long expires) {
+        Value value = live(key);
+        Map<String, Long> members = value == null ? new HashMap<String, Long>() : membersOf(value);
+        members.put(member, expires);
+
+        long now = System.currentTimeMillis(), last = -1;
+        for (Iterator<Long> it = members.values().iterator(); it.hasNext(); ) {
+            long memberExpires = it.next();
+            if (memberExpires <= now)
+                it.remove();
+            else
+                last = Math.max(last, memberExpires);
+        }
+
+        if (members.isEmpty())
+            data.remove(key);
+        else
+            data.put(key, new Value(members, last));
+    }
+
+    public synchronized void removeMember(String key, String member) {
+        Value value = live(key);
+        if (value != null) {
+            Map<String, Long> members = membersOf(value);
+            members.remove(member);
+            if (members.isEmpty())
+                data.remove(key);
+        }
+    }
+
+    public synchronized Set<String> members(String key) {
+        Value value = live(key);
+        if (value == null)
+            return Collections.<String>emptySet();
+
+        long now = System.currentTimeMillis();
+
+        Set<String> members = new HashSet<String>();
+        for (Map.Entry<String, Long> member : membersOf(value).entrySet()) {
+            if (member.getValue() > now)
+                members.add(member.getKey());
+        }
+        return members;
+    }
+
+    public synchronized long expires(String key, String member) {
+        Value value = live(key);
+        if (value == null)
+            return -1;
+
+        Long expires = membersOf(value).get(member);
+        return expires == null ? -1 : expires;
+    }
+
+    public void publish(String channel, String message) {
+        List<MessageListener> subscribed;
+        synchronized (this) {
+            subscribed = listeners.get(channel);
+            if (subscribed == null)
+                return;
+
+            subscribed = new ArrayList<MessageListener>(subscribed);
+        }
+
+        for (MessageListener listener : subscribed)
+            listener.onMessage(channel, message);
+    }
+
+    public synchronized void subscribe(String channel, MessageListener listener) {
+        List<MessageListener> subscribed = listeners.get(channel);
+        if (subscribed == null) {
+            subscribed = new ArrayList<MessageListener>();
+            listeners.put(channel, subscribed);
+        }
+        subscribed.add(listener);
+    }
+
+    /**
+     * DBSIZE
+     *
+     * @return The number of keys that haven't expired
+     */
+    public synchronized int size() {
+        for (Iterator<String> it = data.keySet().iterator(); it.hasNext(); ) {
+            Value value = data.get(it.next());
+            if (value.expires >= 0 && value.expires <= System.currentTimeMillis())
+                it.remove();
+        }
+        return data.size();
+    }
+
+    /**
+     * Does nothing, so that one instance can be shared by several caches
+     */
+    public void close() {
+    }
+
+    /**
+     * @return The value of the key, or null if there is none or it has expired
+     */
+    @GuardedBy("this")
+    private Value live(String key) {
+        Value value = data.get(key);
+        if (value != null && value.expires >= 0 && value.expires <= System.currentTimeMillis()) {
+            data.remove(key);
+            return null;
+        }
+        return value;
+    }
+
+    /**
+     * @return The members of a set, to when they expire
+     */
+    @SuppressWarnings("unchecked")
+    private static Map<String, Long> membersOf(Value value) {
+        return (Map<String, Long>) value.data;
+    }
+}
@@ -0,0 +1,171 @@
+/*
+ * RedisClient.java
+ *
+ * Copyright 2011 FooBrew, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.j2free.cache.impl.redis;
+
+import java.io.IOException;
+
+import java.util.Set;
+
+import net.jcip.annotations.ThreadSafe;
+
+/**
+ * The handful of Redis commands the {@link RedisFragmentCache} needs.
+ * {@link RespRedisClient} speaks them to a Redis server, and
+ * {@link LocalRedisClient} is an in-process stand-in for tests and
+ * single-node development.
+ *
+ * All times are in milliseconds.
+ *
+ * @author Ryan Wilson
+ */
+@ThreadSafe
+public interface RedisClient {
+
+    /**
+     * Receives messages published to a subscribed channel
+     */
+    public static interface MessageListener {
+
+        /**
+         * @param channel The channel the message was published to
+         * @param message The message
+         */
+        public void onMessage(String channel, String message);
+
+        /**
+         * Called when messages may have been missed, e.g. after the
+         * subscription was re-established following a lost connection.
+         */
+        public void onMessagesLost();
+    }
+
+    /**
+     * GET
+     *
+     * @param key
+     * @return The value, or null if there is none
+     * @throws IOException
+     */
+    public String get(String key) throws IOException;
+
+    /**
+     * SET key value PX ttl
+     *
+     * @param key
+     * @param value
+     * @param ttl How long until the key expires
+     * @throws IOException
+     */
+    public void set(String key, String value, long ttl) throws IOException;
+
+    /**
+     * SET key value NX PX ttl
+     *
+     * @param key
+     * @param value
+     * @param ttl How long until the key expires
+     * @return true if the key was set, false if it already existed
+     * @throws IOException
+     */
+    public boolean setIfAbsent(String key, String value, long ttl) throws IOException;
+
+    /**
+     * Atomically deletes the key if its value is the one expected
+     *
+     * @param key
+     * @param expected
+     * @return true if the key was deleted
+     * @throws IOException
+     */
+    public boolean deleteIfEquals(String key, String expected) throws IOException;
+
+    /**
+     * DEL
+     *
+     * @param keys
+     * @return The number of keys deleted
+     * @throws IOException
+     */
+    public long delete(String... keys) throws IOException;
+
+    /**
+     * Atomically adds a member to a sorted set scored by when each member
+     * expires, drops the members that have expired, and sets the set to
+     * expire along with the last of its members, i.e. ZADD key expires
+     * member, ZREMRANGEBYSCORE key -inf now, then PEXPIREAT key at the
+     * highest score left.
+     *
+     * @param key The key of the set
+     * @param member
+     * @param expires When the member expires, as a time in ms since the epoch
+     * @throws IOException
+     */
+    public void addMember(String key, String member, long expires) throws IOException;
+
+    /**
+     * ZREM
+     *
+     * @param key The key of the set
+     * @param member
+     * @throws IOException
+     */
+    public void removeMember(String key, String member) throws IOException;
+
+    /**
+     * ZRANGEBYSCORE key (now +inf
+     *
+     * @param key The key of the set
+     * @return The members of the set that haven't expired, empty if there is none
+     * @throws IOException
+     */
+    public Set<String> members(String key) throws IOException;
+
+    /**
+     * ZSCORE
+     *
+     * @param key The key of the set
+     * @param member
+     * @return When the member expires, or -1 if it isn't in the set
+     * @throws IOException
+     */
+    public long expires(String key, String member) throws IOException;
+
+    /**
+     * PUBLISH
+     *
+     * @param channel
+     * @param message
+     * @throws IOException
+     */
+    public void publish(String channel, String message) throws IOException;
+
+    /**
+     * Subscribes the listener to the channel until the client is closed;
+     * messages are delivered on a thread belonging to the client.
+     *
+     * @param channel
+     * @param listener
+     * @throws IOException
+     */
+    public void subscribe(String channel, MessageListener listener) throws IOException;
+
+    /**
+     * Closes any connections and ends any subscriptions
+     */
+    public void close();
+}
@@ -0,0 +1,38 @@
+/*
+ * RedisException.java
+ *
+ * Copyright 2011 FooBrew, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.j2free.cache.impl.redis;
+
+import java.io.IOException;
+
+/**
+ * An error reply from the Redis server.  The connection it came over
+ * is still usable.
+ *
+ * @author Ryan Wilson
+ */
+public class RedisException extends IOException {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * @param message The error reply
+     */
+    public RedisException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,128 @@
+/*
+ * RedisFragment.java
+ *
+ * Copyright 2011 FooBrew, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.j2free.cache.impl.redis;
+
+import net.jcip.annotations.ThreadSafe;
+
+import org.j2free.cache.impl.RemoteFragment;
+
+/**
+ * A fragment whose content is kept locally, as in the near-cache of a
+ * {@link RedisFragmentCache}, and shared with other nodes through Redis.
+ *
+ * The lock in Redis is a key set if absent.  Before rendering, the fragment
+ * checks whether another node has already stored fresh content and, if so,
+ * adopts it instead.
+ *
+ * @author Ryan Wilson
+ */
+@ThreadSafe
+public class RedisFragment extends RemoteFragment {
+
+    private final RedisFragmentCache cache;
+
+    /**
+     * @param cache The cache the fragment belongs to
+     * @param condition An optional condition upon creation of the fragment
+     * @param timeout The timeout for this cached fragment
+     */
+    RedisFragment(RedisFragmentCache cache, String condition, long timeout) {
+        super(condition, timeout);
+        this.cache = cache;
+    }
+
+    /**
+     * @param newCondition A condition
+     * @param newTimeout A expiration
+     * @return A new <tt>RedisFragment</tt> with the content of the current one,
+     *         but using the specified newCondition and newTimeout
+     */
+    public RedisFragment clone(String newCondition, long newTimeout) {
+        RedisFragment clone = new RedisFragment(cache, newCondition, newTimeout);
+        copyTo(clone, newCondition);
+        return clone;
+    }
+
+    /**
+     * Binds the fragment to the key it is cached under
+     */
+    void bind(String key) {
+        setKey(key);
+    }
+
+    @Override
+    protected boolean load(String key) {
+        RedisFragment stored = cache.load(key);
+        return stored != null && adopt(stored);
+    }
+
+    @Override
+    protected String lock(String key, String curCondition, boolean force) {
+        // Another node may have rendered it already
+        if (!force && load(key) && getStaleness(curCondition) == 0)
+            return null;
+
+        return cache.tryLock(key);
+    }
+
+    @Override
+    protected void store(String key, String token, String content, String condition, long updateTime) {
+        cache.store(key, encode(updateTime, getTimeout(), condition, content), getTimeout(), token);
+    }
+
+    @Override
+    protected void unlock(String key, String token) {
+        cache.unlock(key, token);
+    }
+
+    /**
+     * @return The record a fragment is stored in Redis as
+     */
+    static String encode(long updateTime, long timeout, String condition, String content) {
+        return updateTime + ":" + timeout + ":" + (condition == null ? -1 : condition.length()) + ":"
+                + (condition == null ? "" : condition) + (content == null ? "" : content);
+    }
+
+    /**
+     * @param cache The cache the fragment will belong to
+     * @param record A record written by {@link #encode}
+     * @return The fragment the record describes, or null if it is malformed
+     */
+    static RedisFragment decode(RedisFragmentCache cache, String record) {
+        try {
+            int first  = record.indexOf(':');
+            int second = record.indexOf(':', first + 1);
+            int third  = record.indexOf(':', second + 1);
+
+            long updateTime = Long.parseLong(record.substring(0, first));
+            long timeout    = Long.parseLong(record.substring(first + 1, second));
+            int  condLength = Integer.parseInt(record.substring(second + 1, third));
+
+            int contentStart = third + 1 + Math.max(condLength, 0);
+
+            String condition = condLength < 0 ? null : record.substring(third + 1, contentStart);
+
+            RedisFragment fragment = new RedisFragment(cache, condition, timeout);
+            fragment.adopt(record.substring(contentStart), condition, updateTime);
+            return fragment;
+
+        } catch (RuntimeException e) {
+            return null;
+        }
+    }
+}
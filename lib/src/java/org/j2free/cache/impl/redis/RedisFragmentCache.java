@@ -0,0 +1,546 @@
+/*
+ * RedisFragmentCache.java
+ *
+ * Copyright 2011 FooBrew, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.j2free.cache.impl.redis;
+
+import com.reardencommerce.kernel.collections.shared.evictable.ConcurrentLinkedHashMap;
+import com.reardencommerce.kernel.collections.shared.evictable.ConcurrentLinkedHashMap.EvictionListener;
+import com.reardencommerce.kernel.collections.shared.evictable.ConcurrentLinkedHashMap.EvictionPolicy;
+
+import java.io.IOException;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.jcip.annotations.ThreadSafe;
+
+import org.apache.commons.configuration.Configuration;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import org.j2free.cache.FragmentCache;
+import org.j2free.cache.FragmentCacheStatistics;
+
+/**
+ * Implements {@link FragmentCache} by storing fragments in Redis, so that a
+ * fragment rendered by one node is served by all of them.  To use it,
+ * configure e.g.
+ *
+ * <pre>
+ *  fragment.cache.strategy.redis.class = org.j2free.cache.impl.redis.RedisFragmentCache
+ *  fragment.cache.strategy.redis.host = redis.internal
+ * </pre>
+ *
+ * Fragments are served from a bounded, local near-cache, filled from Redis
+ * on a miss.  When a node updates or evicts a fragment it publishes the key,
+ * and the other nodes drop it from their near-caches.  A lock in Redis
+ * (SET NX PX, released only by its owner) ensures only one node renders a
+ * key at a time; the others serve what they have, or wait for the result.
+ *
+ * If Redis can't be reached, the cache degrades to a local one: misses are
+ * rendered locally and not shared.
+ *
+ * Fragments stay in Redis for stale-ttl ms after expiring, so that a stale
+ * copy can be served while one node renders the new one.
+ *
+ * Tags are kept in Redis, as a set of keys per tag and a set of tags per
+ * key, so {@link #evictByTag} finds every node's fragments with one read.
+ * Redis keeps no ordered index of keys, so {@link #evictByPrefix} reads
+ * the whole set of keys and filters it.
+ *
+ * The set of keys and the sets of tags are sorted sets, each member scored
+ * by when the fragment it stands for leaves Redis.  Members are dropped
+ * once they pass that time, and each set expires along with the last of
+ * its fragments, so that nothing is left behind by fragments no one evicts.
+ *
+ * @author Ryan Wilson
+ */
+@ThreadSafe
+public class RedisFragmentCache implements FragmentCache<RedisFragment> {
+
+    // Config Properties
+    private static final String PROP_HOST      = Properties.ENGINE_PREFIX + "redis.host";
+    private static final String PROP_PORT      = Properties.ENGINE_PREFIX + "redis.port";
+    private static final String PROP_PASSWORD  = Properties.ENGINE_PREFIX + "redis.password";
+    private static final String PROP_DATABASE  = Properties.ENGINE_PREFIX + "redis.database";
+    private static final String PROP_TIMEOUT   = Properties.ENGINE_PREFIX + "redis.timeout";
+    private static final String PROP_POOL_SIZE = Properties.ENGINE_PREFIX + "redis.pool-size";
+    private static final String PROP_NEAR_SIZE = Properties.ENGINE_PREFIX + "redis.near-cache.size";
+    private static final String PROP_NAMESPACE = Properties.ENGINE_PREFIX + "redis.namespace";
+    private static final String PROP_STALE_TTL = Properties.ENGINE_PREFIX + "redis.stale-ttl";
+
+    private static final String DEFAULT_HOST      = "localhost";
+    private static final int    DEFAULT_PORT      = 6379;
+    private static final int    DEFAULT_TIMEOUT   = 2000;
+    private static final int    DEFAULT_POOL_SIZE = 16;
+    private static final int    DEFAULT_NEAR_SIZE = 1000;
+    private static final String DEFAULT_NAMESPACE = "j2free:fragment:";
+    private static final long   DEFAULT_STALE_TTL = 300000;
+
+    // The key in an invalidation message meaning every key
+    private static final String ALL_KEYS = "*";
+
+    private final Log log = LogFactory.getLog(getClass());
+
+    private final RedisClient client;
+
+    private final ConcurrentMap<String, RedisFragment> near;
+
+    // Redis keys
+    private final String contentPrefix;
+    private final String lockPrefix;
+    private final String keySet;
+    private final String tagPrefix;
+    private final String keyTagsPrefix;
+    private final String channel;
+
+    // Distinguishes this node's messages and locks
+    private final String nodeId;
+
+    private final long staleTtl;
+
+    private final AtomicLong lockCount     = new AtomicLong(0);
+    private final AtomicLong evictions     = new AtomicLong(0);
+    private final AtomicLong nearHits      = new AtomicLong(0);
+    private final AtomicLong remoteHits    = new AtomicLong(0);
+    private final AtomicLong misses        = new AtomicLong(0);
+    private final AtomicLong invalidations = new AtomicLong(0);
+    private final AtomicLong errors        = new AtomicLong(0);
+
+    /**
+     *
+     * @param config
+     */
+    public RedisFragmentCache(Configuration config)
+    {
+        this(
+            new RespRedisClient(
+                config.getString(PROP_HOST, DEFAULT_HOST),
+                config.getInt(PROP_PORT, DEFAULT_PORT),
+                config.getString(PROP_PASSWORD, null),
+                config.getInt(PROP_DATABASE, 0),
+                config.getInt(PROP_TIMEOUT, DEFAULT_TIMEOUT),
+                config.getInt(PROP_POOL_SIZE, DEFAULT_POOL_SIZE)
+            ),
+            config.getInt(PROP_NEAR_SIZE, DEFAULT_NEAR_SIZE),
+            config.getString(PROP_NAMESPACE, DEFAULT_NAMESPACE),
+            config.getLong(PROP_STALE_TTL, DEFAULT_STALE_TTL)
+        );
+    }
+
+    /**
+     *
+     * @param client The client to Redis, closed when the cache is destroyed
+     * @param nearSize The max number of fragments to keep locally
+     * @param namespace Prefixed to every key in Redis
+     * @param staleTtl How long in ms to keep fragments in Redis after they expire
+     */
+    public RedisFragmentCache(RedisClient client, int nearSize, String namespace, long staleTtl)
+    {
+        this.client   = client;
+        this.staleTtl = staleTtl;
+        this.nodeId   = UUID.randomUUID().toString();
+
+        this.contentPrefix = namespace + "f:";
+        this.lockPrefix    = namespace + "l:";
+        this.keySet        = namespace + "keys";
+        this.tagPrefix     = namespace + "t:";
+        this.keyTagsPrefix = namespace + "g:";
+        this.channel       = namespace + "invalidate";
+
+        this.near = ConcurrentLinkedHashMap.create(
+                        EvictionPolicy.LRU,
+                        Math.max(nearSize, 1),
+                        16,
+                        new EvictionListener<String, RedisFragment>() {
+                            public void onEviction(String key, RedisFragment fragment) {
+                                evictions.incrementAndGet();
+                            }
+                        }
+                    );
+
+        try {
+            client.subscribe(channel, new RedisClient.MessageListener() {
+                public void onMessage(String channel, String message) {
+                    invalidate(message);
+                }
+
+                public void onMessagesLost() {
+                    // Anything could have changed in the meantime
+                    near.clear();
+                }
+            });
+        } catch (IOException e) {
+            log.error("Unable to subscribe to " + channel + ", updates from other nodes will go unnoticed until fragments expire", e);
+        }
+    }
+
+    public void destroy() {
+        near.clear();
+        client.close();
+    }
+
+    /**
+     * Evicts every fragment from Redis, and from every node's near-cache
+     *
+     * @return The number of fragments evicted from Redis
+     */
+    public int clear() {
+        near.clear();
+
+        int count = 0;
+        try {
+            Set<String> keys = client.members(keySet);
+
+            // The sets of tags of each key go too; the sets of keys of each
+            // tag can't be listed, and are left to expire
+            String[] redisKeys = new String[keys.size() * 2 + 1];
+            int i = 0;
+            for (String key : keys) {
+                redisKeys[i++] = contentPrefix + key;
+                redisKeys[i++] = keyTagsPrefix + key;
+            }
+            redisKeys[i] = keySet;
+
+            count = (int) client.delete(redisKeys) - (keys.isEmpty() ? 0 : 1);
+
+            client.publish(channel, nodeId + " " + ALL_KEYS);
+        } catch (IOException e) {
+            error("clearing", e);
+        }
+
+        return Math.max(count, 0);
+    }
+
+    public boolean contains(String key) {
+        return near.containsKey(key) || get(key) != null;
+    }
+
+    public RedisFragment createFragment(String condition, long timeout) {
+        return new RedisFragment(this, condition, timeout);
+    }
+
+    public RedisFragment createFragment(RedisFragment base, String condition, long timeout) {
+        return base.clone(condition, timeout);
+    }
+
+    /**
+     * @param key
+     * @return The fragment from the near-cache, or else from Redis
+     */
+    public RedisFragment get(String key) {
+        return lookup(key, true);
+    }
+
+    /**
+     * Like {@link #get}, but not counted in the statistics
+     */
+    public RedisFragment peek(String key) {
+        return lookup(key, false);
+    }
+
+    /**
+     * Evicts the fragment from Redis, and from every node's near-cache
+     */
+    public RedisFragment evict(String key) {
+        RedisFragment removed = near.remove(key);
+        remove(key);
+        return removed;
+    }
+
+    /**
+     * Evicts the fragments with the tag from Redis, and from every node's near-cache
+     */
+    public int evictByTag(String tag) {
+        try {
+            int count = evictAll(client.members(tagPrefix + tag));
+            client.delete(tagPrefix + tag);
+            return count;
+        } catch (IOException e) {
+            error("listing keys tagged " + tag, e);
+            return 0;
+        }
+    }
+
+    /**
+     * Evicts the fragments with keys starting with the prefix from Redis, and
+     * from every node's near-cache
+     */
+    public int evictByPrefix(String prefix) {
+        try {
+            ArrayList<String> matches = new ArrayList<String>();
+            for (String key : client.members(keySet)) {
+                if (key.startsWith(prefix))
+                    matches.add(key);
+            }
+            return evictAll(matches);
+        } catch (IOException e) {
+            error("listing keys", e);
+            return 0;
+        }
+    }
+
+    /**
+     * Tags the key in Redis, for every node
+     */
+    public void tag(String key, Collection<String> tags) {
+        try {
+            // The tags last as long as the fragment stored for the key, if any
+            long expires = client.expires(keySet, key);
+            if (expires < 0)
+                return;
+
+            for (String tag : client.members(keyTagsPrefix + key)) {
+                if (!tags.contains(tag)) {
+                    client.removeMember(tagPrefix + tag, key);
+                    client.removeMember(keyTagsPrefix + key, tag);
+                }
+            }
+
+            // Even unchanged tags, so that they last as long as the new fragment
+            for (String tag : tags) {
+                client.addMember(tagPrefix + tag, key, expires);
+                client.addMember(keyTagsPrefix + key, tag, expires);
+            }
+        } catch (IOException e) {
+            error("tagging " + key, e);
+        }
+    }
+
+    /**
+     * Evicts the fragment from Redis, and from every node's near-cache,
+     * if this node has the expected one
+     */
+    public boolean evict(String key, RedisFragment expected) {
+        if (!near.remove(key, expected))
+            return false;
+
+        remove(key);
+        return true;
+    }
+
+    /**
+     * @return The keys of the fragments in Redis, which may include some that
+     *         have since expired, or those in the near-cache if Redis can't be
+     *         reached
+     */
+    public Iterator<String> keyIterator() {
+        Set<String> keys;
+        try {
+            keys = client.members(keySet);
+        } catch (IOException e) {
+            error("listing keys", e);
+            keys = new HashSet<String>(near.keySet());
+        }
+        return Collections.unmodifiableSet(keys).iterator();
+    }
+
+    public RedisFragment put(String key, RedisFragment fragment) {
+        fragment.bind(key);
+        return near.put(key, fragment);
+    }
+
+    public RedisFragment putIfAbsent(String key, RedisFragment fragment) {
+        fragment.bind(key);
+
+        RedisFragment cached = near.putIfAbsent(key, fragment);
+        return cached == null ? fragment : cached;
+    }
+
+    public RedisFragment replace(String key, RedisFragment expected, RedisFragment replacement) {
+        replacement.bind(key);
+        return near.replace(key, expected, replacement) ? replacement : near.get(key);
+    }
+
+    /**
+     * @return The number of fragments in the near-cache
+     */
+    public int size() {
+        return near.size();
+    }
+
+    public FragmentCacheStatistics getStatistics() {
+        return new RedisFragmentCacheStatistics(
+                    near.size(),
+                    evictions.get(),
+                    nearHits.get(),
+                    remoteHits.get(),
+                    misses.get(),
+                    invalidations.get(),
+                    errors.get()
+                );
+    }
+
+    /**
+     * @param key
+     * @return A new fragment holding the content stored in Redis, or null if there is none
+     */
+    RedisFragment load(String key) {
+        String record;
+        try {
+            record = client.get(contentPrefix + key);
+        } catch (IOException e) {
+            error("loading " + key, e);
+            return null;
+        }
+
+        if (record == null)
+            return null;
+
+        RedisFragment fragment = RedisFragment.decode(this, record);
+        if (fragment == null)
+            log.warn("Ignoring malformed fragment stored for " + key);
+
+        return fragment;
+    }
+
+    /**
+     * Stores a fragment in Redis, tells the other nodes, and releases the lock on it
+     *
+     * @param key
+     * @param record The fragment, as encoded by {@link RedisFragment#encode}
+     * @param timeout The timeout of the fragment
+     * @param token The token the fragment was locked with, or null
+     */
+    void store(String key, String record, long timeout, String token) {
+        try {
+            long ttl = timeout + staleTtl;
+            client.set(contentPrefix + key, record, ttl);
+            client.addMember(keySet, key, System.currentTimeMillis() + ttl);
+            client.publish(channel, nodeId + " " + key);
+        } catch (IOException e) {
+            error("storing " + key, e);
+        } finally {
+            if (token != null)
+                unlock(key, token);
+        }
+    }
+
+    /**
+     * @param key
+     * @return A token to unlock the key with, or null if another node holds the lock
+     */
+    String tryLock(String key) {
+        String token = nodeId + ":" + lockCount.incrementAndGet();
+        try {
+            return client.setIfAbsent(lockPrefix + key, token, RedisFragment.MAX_LOCK_HOLD) ? token : null;
+        } catch (IOException e) {
+            // Better that every node render it than none
+            error("locking " + key, e);
+            return token;
+        }
+    }
+
+    /**
+     * Releases the lock on the key, if it is still held with the token
+     */
+    void unlock(String key, String token) {
+        try {
+            client.deleteIfEquals(lockPrefix + key, token);
+        } catch (IOException e) {
+            error("unlocking " + key, e);
+        }
+    }
+
+    /**
+     * Handles an invalidation published by a node
+     */
+    private void invalidate(String message) {
+        int split = message.indexOf(' ');
+        if (split < 0 || message.substring(0, split).equals(nodeId))
+            return;
+
+        invalidations.incrementAndGet();
+
+        String key = message.substring(split + 1);
+        if (ALL_KEYS.equals(key))
+            near.clear();
+        else
+            near.remove(key);
+    }
+
+    /**
+     * Removes the fragment and its tags from Redis, and tells the other nodes
+     *
+     * @return true if there was a fragment in Redis
+     */
+    private boolean remove(String key) {
+        boolean removed = false;
+        try {
+            removed = client.delete(contentPrefix + key) > 0;
+            client.removeMember(keySet, key);
+
+            Set<String> tags = client.members(keyTagsPrefix + key);
+            if (!tags.isEmpty()) {
+                for (String tag : tags)
+                    client.removeMember(tagPrefix + tag, key);
+                client.delete(keyTagsPrefix + key);
+            }
+
+            client.publish(channel, nodeId + " " + key);
+        } catch (IOException e) {
+            error("evicting " + key, e);
+        }
+        return removed;
+    }
+
+    private int evictAll(Collection<String> keys) {
+        int count = 0;
+        for (String key : keys) {
+            near.remove(key);
+            if (remove(key))
+                count++;
+        }
+        return count;
+    }
+
+    private void error(String action, IOException e) {
+        errors.incrementAndGet();
+        log.warn("Error " + action + " in Redis: " + e.getMessage());
+    }
+
+    private RedisFragment lookup(String key, boolean count) {
+        RedisFragment fragment = near.get(key);
+        if (fragment != null) {
+            if (count)
+                nearHits.incrementAndGet();
+            return fragment;
+        }
+
+        fragment = load(key);
+        if (fragment == null) {
+            if (count)
+                misses.incrementAndGet();
+            return null;
+        }
+
+        if (count)
+            remoteHits.incrementAndGet();
+        fragment.bind(key);
+
+        RedisFragment cached = near.putIfAbsent(key, fragment);
+        return cached == null ? fragment : cached;
+    }
+}
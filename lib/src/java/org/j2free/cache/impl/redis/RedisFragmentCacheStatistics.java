@@ -0,0 +1,124 @@
+/*
+ * RedisFragmentCacheStatistics.java
+ *
+ * Copyright 2011 FooBrew, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.j2free.cache.impl.redis;
+
+import net.jcip.annotations.Immutable;
+import org.j2free.cache.FragmentCacheStatistics;
+
+/**
+ *
+ * @author Ryan Wilson
+ */
+@Immutable
+public class RedisFragmentCacheStatistics implements FragmentCacheStatistics {
+
+    private final int  size;
+    private final long timestamp;
+
+    private final long evictionCount;
+
+    private final long nearHits;
+    private final long remoteHits;
+    private final long misses;
+    private final long invalidations;
+    private final long errors;
+
+    /**
+     *
+     * @param size
+     * @param evictionCount
+     * @param nearHits
+     * @param remoteHits
+     * @param misses
+     * @param invalidations
+     * @param errors
+     */
+    public RedisFragmentCacheStatistics(int size, long evictionCount, long nearHits, long remoteHits,
+                                        long misses, long invalidations, long errors)
+    {
+        this.size          = size;
+        this.timestamp     = System.currentTimeMillis();
+        this.evictionCount = evictionCount;
+        this.nearHits      = nearHits;
+        this.remoteHits    = remoteHits;
+        this.misses        = misses;
+        this.invalidations = invalidations;
+        this.errors        = errors;
+    }
+
+    /**
+     * @return The number of fragments in the near-cache
+     */
+    public int getCacheSize()
+    {
+        return size;
+    }
+
+    public long getTimestamp()
+    {
+        return timestamp;
+    }
+
+    /**
+     * @return The number of fragments evicted from the near-cache to keep it within its size
+     */
+    public long getEvictionCount()
+    {
+        return evictionCount;
+    }
+
+    /**
+     * @return The number of lookups found in the near-cache
+     */
+    public long getNearHits()
+    {
+        return nearHits;
+    }
+
+    /**
+     * @return The number of lookups found in Redis
+     */
+    public long getRemoteHits()
+    {
+        return remoteHits;
+    }
+
+    /**
+     * @return The number of lookups found in neither
+     */
+    public long getMisses()
+    {
+        return misses;
+    }
+
+    /**
+     * @return The number of invalidations received from other nodes
+     */
+    public long getInvalidations()
+    {
+        return invalidations;
+    }
+
+    /**
+     * @return The number of failed calls to Redis
+     */
+    public long getErrors()
+    {
+        return errors;
+    }
+}
@@ -0,0 +1,443 @@
+/*
+ * RespRedisClient.java
+ *
+ * Copyright 2011 FooBrew, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.j2free.cache.impl.redis;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+
+import java.net.InetSocketAddress;
+import java.net.Socket;
+
+import java.nio.charset.Charset;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import net.jcip.annotations.ThreadSafe;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * A minimal {@link RedisClient} speaking the Redis protocol (RESP) over a
+ * small pool of blocking sockets.  Each subscription gets its own
+ * connection and daemon thread, which reconnects if the connection is lost.
+ *
+ * @author Ryan Wilson
+ */
+@ThreadSafe
+public class RespRedisClient implements RedisClient {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final byte[] CRLF = { '\r', '\n' };
+
+    // Deletes a key only if it still holds the expected value, i.e. releases a lock only if we own it
+    private static final String DELETE_IF_EQUALS =
+        "if redis.call('get', KEYS[1]) == ARGV[1] then return redis.call('del', KEYS[1]) else return 0 end";
+
+    // Adds a member scored by its expiry, drops the expired ones, and expires the set with the last of them
+    private static final String ADD_MEMBER =
+        "redis.call('zadd', KEYS[1], ARGV[1], ARGV[2]) " +
+        "redis.call('zremrangebyscore', KEYS[1], '-inf', ARGV[3]) " +
+        "local last = redis.call('zrange', KEYS[1], -1, -1, 'WITHSCORES') " +
+        "if last[2] then redis.call('pexpireat', KEYS[1], last[2]) end " +
+        "return 0";
+
+    // How long to wait before re-subscribing after losing a subscription
+    private static final long RECONNECT_DELAY = 1000;
+
+    private final Log log = LogFactory.getLog(getClass());
+
+    private final String host;
+    private final int    port;
+    private final String password;
+    private final int    database;
+    private final int    timeout;
+
+    private final Semaphore permits;
+
+    private final ConcurrentLinkedQueue<Connection> idle;
+
+    private final List<Subscriber> subscribers;
+
+    private volatile boolean closed;
+
+    /**
+     * @param host
+     * @param port
+     * @param password The password to AUTH with, or null
+     * @param database The database to SELECT
+     * @param timeout The connect and read timeout in ms, also the max time to
+     *        wait for a connection from the pool
+     * @param poolSize The max number of connections, not counting subscriptions
+     */
+    public RespRedisClient(String host, int port, String password, int database, int timeout, int poolSize) {
+        this.host     = host;
+        this.port     = port;
+        this.password = password;
+        this.database = database;
+        this.timeout  = timeout;
+
+        this.permits     = new Semaphore(Math.max(poolSize, 1));
+        this.idle        = new ConcurrentLinkedQueue<Connection>();
+        this.subscribers = new CopyOnWriteArrayList<Subscriber>();
+        this.closed      = false;
+    }
+
+    public String get(String key) throws IOException {
+        return string(call("GET", key));
+    }
+
+    public void set(String key, String value, long ttl) throws IOException {
+        call("SET", key, value, "PX", Long.toString(ttl));
+    }
+
+    public boolean setIfAbsent(String key, String value, long ttl) throws IOException {
+        // Replies nil if the key exists
+        return call("SET", key, value, "NX", "PX", Long.toString(ttl)) != null;
+    }
+
+    public boolean deleteIfEquals(String key, String expected) throws IOException {
+        return ((Long) call("EVAL", DELETE_IF_EQUALS, "1", key, expected)) > 0;
+    }
+
+    public long delete(String... keys) throws IOException {
+        if (keys.length == 0)
+            return 0;
+
+        String[] args = new String[keys.length + 1];
+        args[0] = "DEL";
+        System.arraycopy(keys, 0, args, 1, keys.length);
+
+        return (Long) call(args);
+    }
+
+    public void addMember(String key, String member, long expires) throws IOException {
+        call("EVAL", ADD_MEMBER, "1", key, Long.toString(expires), member, Long.toString(System.currentTimeMillis()));
+    }
+
+    public void removeMember(String key, String member) throws IOException {
+        call("ZREM", key, member);
+    }
+
+    public Set<String> members(String key) throws IOException {
+        List<?> reply = (List<?>) call("ZRANGEBYSCORE", key, "(" + System.currentTimeMillis(), "+inf");
+
+        Set<String> members = new HashSet<String>(reply.size());
+        for (Object member : reply)
+            members.add(string(member));
+
+        return members;
+    }
+
+    public long expires(String key, String member) throws IOException {
+        String score = string(call("ZSCORE", key, member));
+        return score == null ? -1 : (long) Double.parseDouble(score);
+    }
+
+    public void publish(String channel, String message) throws IOException {
+        call("PUBLISH", channel, message);
+    }
+
+    public void subscribe(String channel, MessageListener listener) throws IOException {
+        if (closed)
+            throw new IOException("Client is closed");
+
+        Subscriber subscriber = new Subscriber(channel, listener);
+        subscribers.add(subscriber);
+
+        Thread thread = new Thread(subscriber, "redis-subscriber-" + channel);
+        thread.setDaemon(true);
+        subscriber.thread = thread;
+        thread.start();
+    }
+
+    public void close() {
+        closed = true;
+
+        for (Subscriber subscriber : subscribers)
+            subscriber.close();
+        subscribers.clear();
+
+        Connection conn;
+        while ((conn = idle.poll()) != null)
+            conn.close();
+    }
+
+    /**
+     * Sends a command over a pooled connection and reads the reply
+     */
+    private Object call(String... args) throws IOException {
+        if (closed)
+            throw new IOException("Client is closed");
+
+        try {
+            if (!permits.tryAcquire(timeout, TimeUnit.MILLISECONDS))
+                throw new IOException("Timed out waiting for a connection to " + host + ":" + port);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for a connection to " + host + ":" + port);
+        }
+
+        Connection conn    = null;
+        boolean    healthy = false;
+        try {
+            conn = idle.poll();
+            if (conn == null)
+                conn = new Connection(timeout);
+
+            Object reply = conn.call(args);
+            healthy = true;
+            return reply;
+        } catch (RedisException e) {
+            // The whole reply was read, so the connection can be reused
+            healthy = true;
+            throw e;
+        } finally {
+            if (conn != null) {
+                if (healthy && !closed)
+                    idle.offer(conn);
+                else
+                    conn.close();
+            }
+            permits.release();
+        }
+    }
+
+    private static String string(Object reply) {
+        return reply == null ? null : new String((byte[]) reply, UTF_8);
+    }
+
+    /**
+     * A socket to the server, used by one thread at a time
+     */
+    private final class Connection {
+
+        private final Socket       socket;
+        private final InputStream  in;
+        private final OutputStream out;
+
+        /**
+         * @param readTimeout The read timeout in ms, or 0 to block indefinitely
+         */
+        private Connection(int readTimeout) throws IOException {
+            socket = new Socket();
+            try {
+                socket.connect(new InetSocketAddress(host, port), timeout);
+                socket.setSoTimeout(readTimeout);
+                socket.setTcpNoDelay(true);
+
+                in  = new BufferedInputStream(socket.getInputStream());
+                out = new BufferedOutputStream(socket.getOutputStream());
+
+                if (password != null)
+                    call("AUTH", password);
+
+                if (database != 0)
+                    call("SELECT", Integer.toString(database));
+            } catch (IOException e) {
+                close();
+                throw e;
+            }
+        }
+
+        private Object call(String... args) throws IOException {
+            out.write('*');
+            out.write(Integer.toString(args.length).getBytes(UTF_8));
+            out.write(CRLF);
+
+            for (String arg : args) {
+                byte[] bytes = arg.getBytes(UTF_8);
+                out.write('$');
+                out.write(Integer.toString(bytes.length).getBytes(UTF_8));
+                out.write(CRLF);
+                out.write(bytes);
+                out.write(CRLF);
+            }
+            out.flush();
+
+            return read();
+        }
+
+        /**
+         * @return A String for a status reply, Long for an integer, byte[] for
+         *         a bulk string, List for an array, or null for nil
+         * @throws RedisException if the reply is an error
+         */
+        private Object read() throws IOException {
+            int    type = in.read();
+            String line = readLine();
+
+            switch (type) {
+                case '+':
+                    return line;
+                case '-':
+                    throw new RedisException(line);
+                case ':':
+                    return Long.valueOf(line);
+                case '$': {
+                    int length = Integer.parseInt(line);
+                    if (length < 0)
+                        return null;
+
+                    byte[] data = new byte[length];
+                    for (int read = 0; read < length; ) {
+                        int n = in.read(data, read, length - read);
+                        if (n < 0)
+                            throw new EOFException("Connection to " + host + ":" + port + " closed");
+                        read += n;
+                    }
+                    readLine();
+                    return data;
+                }
+                case '*': {
+                    int count = Integer.parseInt(line);
+                    if (count < 0)
+                        return null;
+
+                    List<Object> items = new ArrayList<Object>(count);
+                    for (int i = 0; i < count; i++) {
+                        try {
+                            items.add(read());
+                        } catch (RedisException e) {
+                            // Keep reading so the connection stays in sync
+                            items.add(e);
+                        }
+                    }
+                    return items;
+                }
+                default:
+                    throw new IOException("Unexpected reply type from " + host + ":" + port + ": " + type);
+            }
+        }
+
+        private String readLine() throws IOException {
+            StringBuilder line = new StringBuilder();
+
+            int c;
+            while ((c = in.read()) != '\r') {
+                if (c < 0)
+                    throw new EOFException("Connection to " + host + ":" + port + " closed");
+                line.append((char) c);
+            }
+
+            if (in.read() != '\n')
+                throw new IOException("Malformed reply from " + host + ":" + port);
+
+            return line.toString();
+        }
+
+        private void close() {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // Nothing to be done
+            }
+        }
+    }
+
+    /**
+     * Holds a subscription open, re-subscribing whenever it is lost
+     */
+    private final class Subscriber implements Runnable {
+
+        private final String          channel;
+        private final MessageListener listener;
+
+        private volatile Thread     thread;
+        private volatile Connection current;
+
+        private Subscriber(String channel, MessageListener listener) {
+            this.channel  = channel;
+            this.listener = listener;
+        }
+
+        public void run() {
+            boolean lost = false;
+
+            while (!closed) {
+                Connection conn = null;
+                try {
+                    conn    = new Connection(0);
+                    current = conn;
+
+                    conn.call("SUBSCRIBE", channel);
+
+                    if (lost) {
+                        log.info("Re-subscribed to " + channel);
+                        listener.onMessagesLost();
+                        lost = false;
+                    }
+
+                    while (!closed) {
+                        Object reply = conn.read();
+                        if (!(reply instanceof List))
+                            continue;
+
+                        List<?> parts = (List<?>) reply;
+                        if (parts.size() == 3 && "message".equals(string(parts.get(0)))) {
+                            try {
+                                listener.onMessage(string(parts.get(1)), string(parts.get(2)));
+                            } catch (RuntimeException e) {
+                                log.error("Error handling message on " + channel, e);
+                            }
+                        }
+                    }
+                } catch (IOException e) {
+                    if (closed)
+                        break;
+
+                    if (!lost)
+                        log.warn("Lost subscription to " + channel + ", retrying every " + RECONNECT_DELAY + "ms", e);
+                    lost = true;
+
+                    try {
+                        Thread.sleep(RECONNECT_DELAY);
+                    } catch (InterruptedException ie) {
+                        break;
+                    }
+                } finally {
+                    if (conn != null)
+                        conn.close();
+                }
+            }
+        }
+
+        private void close() {
+            Connection conn = current;
+            if (conn != null)
+                conn.close();
+
+            Thread t = thread;
+            if (t != null)
+                t.interrupt();
+        }
+    }
+}
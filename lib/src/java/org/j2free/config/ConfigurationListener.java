@@ -56,6 +56,11 @@ import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
 import org.j2free.cache.FragmentCache;
+import org.j2free.cache.FragmentCacheAnalyzer;
+import org.j2free.cache.FragmentCacheManager;
+import org.j2free.cache.FragmentRefresher;
+import org.j2free.cache.FragmentRevalidator;
+import org.j2free.cache.WeighedFragmentCache;
 import org.j2free.email.EmailService.ContentType;
 import org.j2free.email.SimpleEmailService;
 import org.j2free.email.Template;
@@ -220,8 +225,70 @@ public class ConfigurationListener implements ServletContextListener
                     FragmentCacheTag.setWarningComputeDuration(temp * 1000);
                 }
 
+                // Background re-rendering of stale fragments, for stale-while-revalidate
+                FragmentRevalidator revalidator = new FragmentRevalidator(
+                                                    FragmentCacheTag.getRenderers(),
+                                                    config.getInt(FragmentCache.Properties.REVALIDATE_THREADS, 2),
+                                                    config.getInt(FragmentCache.Properties.REVALIDATE_QUEUE, 100)
+                                                );
+                FragmentCacheTag.setRevalidator(revalidator);
+
+                // Only once the one it replaced has unregistered
+                revalidator.setJmxEnabled(config.getBoolean(FragmentCache.Properties.REVALIDATE_JMX, true));
+
+                // Background re-rendering of the most requested fragments before they expire
+                if (config.getBoolean(FragmentCache.Properties.REFRESH_ENABLED, false))
+                {
+                    FragmentCacheTag.setRefresher(
+                        new FragmentRefresher(
+                            FragmentCacheTag.getRenderers(),
+                            config.getInt(FragmentCache.Properties.REFRESH_THREADS, 2),
+                            config.getLong(FragmentCache.Properties.REFRESH_INTERVAL, 5) * 1000,
+                            config.getInt(FragmentCache.Properties.REFRESH_MIN_LOOKUPS, 10),
+                            config.getInt(FragmentCache.Properties.REFRESH_MAX, 50),
+                            config.getInt(FragmentCache.Properties.REFRESH_MAX_KEYS, 10000)
+                        )
+                    );
+                }
+                else
+                {
+                    FragmentCacheTag.setRefresher(null);
+                }
+
+                // Live profiling of how each fragment is served
+                if (config.getBoolean(FragmentCache.Properties.ANALYZER_ENABLED, false))
+                {
+                    FragmentCacheAnalyzer analyzer = new FragmentCacheAnalyzer(
+                                                        config.getInt(FragmentCache.Properties.ANALYZER_MAX_KEYS, 10000),
+                                                        config.getString(FragmentCache.Properties.ANALYZER_DELIMITERS, FragmentCacheAnalyzer.DEFAULT_DELIMITERS)
+                                                    );
+                    analyzer.setJmxEnabled(config.getBoolean(FragmentCache.Properties.ANALYZER_JMX, true));
+
+                    FragmentCacheTag.setAnalyzer(analyzer);
+                    Global.put(CONTEXT_ATTR_FRAGMENT_ANALYZER, analyzer);
+                }
+                else
+                {
+                    FragmentCacheTag.setAnalyzer(null);
+                    Global.remove(CONTEXT_ATTR_FRAGMENT_ANALYZER);
+                }
+
                 // Get the fragment cache names
                 String[] cacheNames = config.getStringArray(FragmentCache.Properties.ENGINE_NAMES);
+
+                // Sharing a budget of bytes out between the strategies, by quota and priority
+                FragmentCacheManager manager = null;
+
+                long partitionBytes = config.getLong(FragmentCache.Properties.PARTITION_MAX_BYTES, 0);
+                if (partitionBytes > 0 && cacheNames.length > 0)
+                {
+                    manager = new FragmentCacheManager(
+                                partitionBytes,
+                                config.getLong(FragmentCache.Properties.PARTITION_INTERVAL, 10) * 1000
+                            );
+                }
+                FragmentCacheTag.setManager(manager);
+
                 for (String cacheName : cacheNames)
                 {
                     String cacheClassName = config.getString(
@@ -257,6 +324,28 @@ public class ConfigurationListener implements ServletContextListener
                         // if a strategy-name is not specified
                         log.info("Registering FragmentCache strategy: [name=" + cacheName + ", class=" + cacheClass.getName() + "]");
                         FragmentCacheTag.registerStrategy(cacheName, cache);
+
+                        if (manager == null)
+                            continue;
+
+                        if (cache instanceof WeighedFragmentCache)
+                        {
+                            long quota = config.getLong(
+                                            String.format(FragmentCache.Properties.PARTITION_QUOTA_TEMPLATE, cacheName),
+                                            partitionBytes / cacheNames.length
+                                        );
+                            int priority = config.getInt(
+                                            String.format(FragmentCache.Properties.PARTITION_PRIORITY_TEMPLATE, cacheName),
+                                            0
+                                        );
+
+                            log.info("Managing FragmentCache strategy: [name=" + cacheName + ", quota=" + quota + ", priority=" + priority + "]");
+                            manager.addPartition(cacheName, (WeighedFragmentCache)cache, quota, priority);
+                        }
+                        else
+                        {
+                            log.warn("FragmentCache strategy " + cacheName + " can't be weighed, leaving it out of " + FragmentCache.Properties.PARTITION_MAX_BYTES);
+                        }
                     }
                     catch (Exception e)
                     {
@@ -270,6 +359,7 @@ public class ConfigurationListener implements ServletContextListener
                 // Have to call this here, because reconfiguration could turn
                 // the cache off after it was previously enabled.
                 FragmentCacheTag.disable();
+                Global.remove(CONTEXT_ATTR_FRAGMENT_ANALYZER);
             }
 
             // For Task execution
@@ -567,7 +657,7 @@ public class ConfigurationListener implements ServletContextListener
                         Class klass   = Class.forName("net.spy.memcached.MemcachedClient");
                         Method method = klass.getMethod("shutdown");
 
-                        method.invoke(null, client); // and shut it down
+                        method.invoke(client); // and shut it down
 
                         log.info("Spymemcached client shutdown");
                     }
@@ -0,0 +1,535 @@
+/*
+ * AnnotationIndex.java
+ *
+ * Copyright 2011 FooBrew, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.j2free.invoker;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+
+import java.net.URISyntaxException;
+import java.net.URL;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import java.util.zip.CRC32;
+
+import net.jcip.annotations.NotThreadSafe;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import org.scannotation.AnnotationDB;
+
+/**
+ * Finds the classes annotated with a set of class-level annotations across
+ * a set of classpath archives (jars and class directories), remembering the
+ * result for each archive by its checksum so that only archives that have
+ * changed since the last startup need to be scanned again.
+ *
+ * The index is a small text file, one line per archive and annotation:
+ * <pre>
+ *   archive-name  checksum  annotation  class,class,...
+ * </pre>
+ * separated by tabs.  An index may be generated at build time by running
+ * {@link #main} and packaged in the WAR, and is (re)written after every
+ * scan to a file in the context's temp dir.  Archives are matched by name
+ * and checksum, not location, so a build-time index remains valid when
+ * the WAR is deployed.
+ *
+ * Archives that aren't in the index are scanned in parallel, one
+ * {@link AnnotationDB} per archive.
+ *
+ * @author Ryan Wilson
+ */
+@NotThreadSafe
+final class AnnotationIndex
+{
+    private static final Log log = LogFactory.getLog(AnnotationIndex.class);
+
+    private static final String SEPARATOR = "\t";
+    private static final String HEADER    = "# J2Free annotation index: archive, checksum, annotation, classes";
+
+    private final String[] annotations;
+
+    private final File        cacheFile;        // may be null
+    private final InputStream seed;             // may be null
+    private final int         threads;
+
+    // Archive key -> annotation -> classes, as read from the seed and cache
+    private final Map<String, Map<String, Set<String>>> known = new HashMap<String, Map<String, Set<String>>>();
+
+    /**
+     * @param cacheFile Where to read and write the index, or null to not persist it
+     * @param seed An index generated at build time, or null; closed by {@link #scan}
+     * @param threads The max number of archives to scan at once
+     * @param annotations The class names of the annotations to index
+     */
+    AnnotationIndex(File cacheFile, InputStream seed, int threads, String... annotations)
+    {
+        this.cacheFile   = cacheFile;
+        this.seed        = seed;
+        this.threads     = Math.max(threads, 1);
+        this.annotations = annotations;
+    }
+
+    /**
+     * @param urls The classpath archives to search
+     * @return A map of annotation class names to the names of classes annotated with them
+     * @throws IOException if an archive could not be scanned
+     */
+    Map<String, Set<String>> scan(URL[] urls) throws IOException
+    {
+        final long start = System.nanoTime();
+
+        if (seed != null)
+        {
+            try
+            {
+                read(seed);
+            }
+            finally
+            {
+                seed.close();
+            }
+        }
+
+        if (cacheFile != null && cacheFile.isFile())
+        {
+            try
+            {
+                read(new FileInputStream(cacheFile));
+            }
+            catch (IOException e)
+            {
+                log.warn("Ignoring unreadable annotation index " + cacheFile, e);
+            }
+        }
+
+        // Archive key -> annotation -> classes, for every archive we can checksum
+        Map<String, Map<String, Set<String>>> current = new TreeMap<String, Map<String, Set<String>>>();
+
+        Map<String, Set<String>> index = new HashMap<String, Set<String>>();
+        for (String annotation : annotations)
+            index.put(annotation, new HashSet<String>());
+
+        // Archives not in the index, and their keys (null if they can't be checksummed)
+        List<URL>    changed = new ArrayList<URL>();
+        List<String> keys    = new ArrayList<String>();
+
+        for (URL url : urls)
+        {
+            String key = keyOf(url);
+            Map<String, Set<String>> found = key == null ? null : known.get(key);
+
+            if (found == null)
+            {
+                changed.add(url);
+                keys.add(key);
+            }
+            else
+            {
+                current.put(key, found);
+                merge(index, found);
+            }
+        }
+
+        if (!changed.isEmpty())
+        {
+            List<Map<String, Set<String>>> scanned = scanAll(changed);
+            for (int i = 0; i < scanned.size(); i++)
+            {
+                if (keys.get(i) != null)
+                    current.put(keys.get(i), scanned.get(i));
+
+                merge(index, scanned.get(i));
+            }
+        }
+
+        if (cacheFile != null && !changed.isEmpty())
+        {
+            try
+            {
+                write(cacheFile, current);
+            }
+            catch (IOException e)
+            {
+                log.warn("Unable to write annotation index " + cacheFile, e);
+            }
+        }
+
+        log.info(
+            String.format(
+                "Indexed annotations in %dms [archives=%d, cached=%d, scanned=%d]",
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start),
+                urls.length, urls.length - changed.size(), changed.size()
+            )
+        );
+
+        return index;
+    }
+
+    /**
+     * Scans the archives in parallel
+     *
+     * @return The annotations found in each archive, in the same order as the archives
+     */
+    private List<Map<String, Set<String>>> scanAll(List<URL> urls) throws IOException
+    {
+        List<Map<String, Set<String>>> results = new ArrayList<Map<String, Set<String>>>(urls.size());
+
+        if (urls.size() == 1)
+        {
+            results.add(scanArchive(urls.get(0)));
+            return results;
+        }
+
+        ExecutorService pool = Executors.newFixedThreadPool(Math.min(threads, urls.size()));
+        try
+        {
+            List<Future<Map<String, Set<String>>>> futures = new ArrayList<Future<Map<String, Set<String>>>>(urls.size());
+            for (final URL url : urls)
+            {
+                futures.add(
+                    pool.submit(new Callable<Map<String, Set<String>>>() {
+                        public Map<String, Set<String>> call() throws IOException
+                        {
+                            return scanArchive(url);
+                        }
+                    })
+                );
+            }
+
+            for (Future<Map<String, Set<String>>> future : futures)
+                results.add(future.get());
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while scanning for annotations");
+        }
+        catch (ExecutionException e)
+        {
+            if (e.getCause() instanceof IOException)
+                throw (IOException) e.getCause();
+
+            IOException ioe = new IOException("Error scanning for annotations");
+            ioe.initCause(e.getCause());
+            throw ioe;
+        }
+        finally
+        {
+            pool.shutdownNow();
+        }
+
+        return results;
+    }
+
+    /**
+     * @return annotation -> classes, for the annotations of interest
+     */
+    private Map<String, Set<String>> scanArchive(URL url) throws IOException
+    {
+        long start = System.nanoTime();
+
+        AnnotationDB annoDB = new AnnotationDB();
+        annoDB.setScanClassAnnotations(true);
+        annoDB.setScanFieldAnnotations(false);
+        annoDB.setScanMethodAnnotations(false);
+        annoDB.setScanParameterAnnotations(false);
+        annoDB.scanArchives(url);
+
+        Map<String, Set<String>> found = new TreeMap<String, Set<String>>();
+
+        Map<String, Set<String>> annotationIndex = annoDB.getAnnotationIndex();
+        if (annotationIndex != null)
+        {
+            for (String annotation : annotations)
+            {
+                Set<String> classes = annotationIndex.get(annotation);
+                if (classes != null && !classes.isEmpty())
+                    found.put(annotation, new TreeSet<String>(classes));
+            }
+        }
+
+        if (log.isDebugEnabled())
+            log.debug("Scanned " + url + " in " + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + "ms");
+
+        return found;
+    }
+
+    private static void merge(Map<String, Set<String>> index, Map<String, Set<String>> found)
+    {
+        for (Map.Entry<String, Set<String>> entry : found.entrySet())
+        {
+            Set<String> classes = index.get(entry.getKey());
+            if (classes != null)
+                classes.addAll(entry.getValue());
+        }
+    }
+
+    /**
+     * Reads an index, adding its entries to those already known
+     */
+    private void read(InputStream in) throws IOException
+    {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(in, "UTF-8"));
+        try
+        {
+            String line;
+            while ((line = reader.readLine()) != null)
+            {
+                if (line.length() == 0 || line.startsWith("#"))
+                    continue;
+
+                String[] fields = line.split(SEPARATOR, -1);
+                if (fields.length < 2)
+                    continue;
+
+                String key = fields[0] + SEPARATOR + fields[1];
+
+                Map<String, Set<String>> found = known.get(key);
+                if (found == null)
+                {
+                    found = new TreeMap<String, Set<String>>();
+                    known.put(key, found);
+                }
+
+                if (fields.length >= 4 && fields[2].length() > 0)
+                    found.put(fields[2], new TreeSet<String>(Arrays.asList(fields[3].split(","))));
+            }
+        }
+        finally
+        {
+            reader.close();
+        }
+    }
+
+    /**
+     * Writes the index to a temp file, then moves it into place, so a
+     * concurrent reader never sees a partial index.
+     */
+    private static void write(File file, Map<String, Map<String, Set<String>>> entries) throws IOException
+    {
+        File parent = file.getAbsoluteFile().getParentFile();
+        if (parent != null && !parent.isDirectory())
+            parent.mkdirs();
+
+        File temp = new File(file.getPath() + ".tmp");
+
+        Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(temp), "UTF-8"));
+        try
+        {
+            writer.write(HEADER);
+            writer.write('\n');
+
+            for (Map.Entry<String, Map<String, Set<String>>> entry : entries.entrySet())
+            {
+                if (entry.getValue().isEmpty())
+                {
+                    // Remember archives without annotations, so they aren't scanned again
+                    writer.write(entry.getKey());
+                    writer.write('\n');
+                    continue;
+                }
+
+                for (Map.Entry<String, Set<String>> found : entry.getValue().entrySet())
+                {
+                    writer.write(entry.getKey());
+                    writer.write(SEPARATOR);
+                    writer.write(found.getKey());
+                    writer.write(SEPARATOR);
+
+                    boolean first = true;
+                    for (String klass : found.getValue())
+                    {
+                        if (!first)
+                            writer.write(',');
+
+                        writer.write(klass);
+                        first = false;
+                    }
+                    writer.write('\n');
+                }
+            }
+        }
+        finally
+        {
+            writer.close();
+        }
+
+        if (!temp.renameTo(file))
+        {
+            file.delete();
+            if (!temp.renameTo(file))
+                throw new IOException("Unable to move " + temp + " to " + file);
+        }
+    }
+
+    /**
+     * @return The name and checksum of the archive, or null if it isn't a
+     *         local file or directory that can be checksummed
+     */
+    static String keyOf(URL url)
+    {
+        if (!"file".equals(url.getProtocol()))
+            return null;
+
+        File file;
+        try
+        {
+            file = new File(url.toURI());
+        }
+        catch (URISyntaxException e)
+        {
+            file = new File(url.getPath());
+        }
+        catch (IllegalArgumentException e)
+        {
+            return null;
+        }
+
+        try
+        {
+            if (file.isFile())
+                return file.getName() + SEPARATOR + Long.toHexString(checksumFile(file));
+            else if (file.isDirectory())
+                return file.getName() + "/" + SEPARATOR + Long.toHexString(checksumDirectory(file));
+        }
+        catch (IOException e)
+        {
+            log.warn("Unable to checksum " + file + ", it will be scanned", e);
+        }
+
+        return null;
+    }
+
+    /**
+     * CRC32 of the contents of the file
+     */
+    private static long checksumFile(File file) throws IOException
+    {
+        CRC32 crc = new CRC32();
+        byte[] buffer = new byte[64 * 1024];
+
+        InputStream in = new FileInputStream(file);
+        try
+        {
+            int read;
+            while ((read = in.read(buffer)) != -1)
+                crc.update(buffer, 0, read);
+        }
+        finally
+        {
+            in.close();
+        }
+
+        return crc.getValue();
+    }
+
+    /**
+     * CRC32 of the relative path, size and content CRC of every class file
+     * under the directory.  Modification times are left out, since unpacking
+     * a WAR resets them, and would keep a build-time index from ever matching
+     * an exploded <tt>WEB-INF/classes</tt>.
+     */
+    private static long checksumDirectory(File root) throws IOException
+    {
+        List<String> paths = new ArrayList<String>();
+        listClasses(root, "", paths);
+
+        Collections.sort(paths);
+
+        CRC32 crc = new CRC32();
+        for (String path : paths)
+        {
+            File file = new File(root, path);
+            String entry = path + ":" + file.length() + ":" + Long.toHexString(checksumFile(file)) + "\n";
+            crc.update(entry.getBytes("UTF-8"));
+        }
+
+        return crc.getValue();
+    }
+
+    private static void listClasses(File dir, String prefix, List<String> paths)
+    {
+        File[] files = dir.listFiles();
+        if (files == null)
+            return;
+
+        for (File file : files)
+        {
+            if (file.isDirectory())
+                listClasses(file, prefix + file.getName() + "/", paths);
+            else if (file.getName().endsWith(".class"))
+                paths.add(prefix + file.getName());
+        }
+    }
+
+    /**
+     * Generates an index at build time, to be packaged in the WAR as
+     * <tt>WEB-INF/j2free-annotations.idx</tt>.
+     *
+     * @param args The index file to write, followed by the jars and class
+     *        directories to index
+     * @throws Exception
+     */
+    public static void main(String[] args) throws Exception
+    {
+        if (args.length < 2)
+        {
+            System.err.println("Usage: AnnotationIndex <index-file> <jar-or-dir>...");
+            System.exit(1);
+        }
+
+        URL[] urls = new URL[args.length - 1];
+        for (int i = 1; i < args.length; i++)
+            urls[i - 1] = new File(args[i]).toURI().toURL();
+
+        File index = new File(args[0]);
+        index.delete();
+
+        new AnnotationIndex(
+                index, null, Runtime.getRuntime().availableProcessors(),
+                org.j2free.annotations.ServletConfig.class.getName(),
+                org.j2free.annotations.FilterConfig.class.getName()
+            ).scan(urls);
+    }
+}
@@ -0,0 +1,353 @@
+/*
+ * AsyncDispatcher.java
+ *
+ * Copyright 2011 FooBrew, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.j2free.invoker;
+
+import java.lang.reflect.Method;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import net.jcip.annotations.GuardedBy;
+import net.jcip.annotations.ThreadSafe;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import org.j2free.util.UncaughtServletExceptionHandler;
+
+/**
+ * Services {@link org.j2free.annotations.ServletConfig#async} servlets off
+ * of the container's request thread.  The request is put into asynchronous
+ * mode, and the {@link ServiceChain} is run on a bounded executor.  If it
+ * runs past its timeout, the client gets a 503, and the worker is
+ * interrupted and fenced off from the response by a {@link FencedResponse}.
+ * The 503 is sent right away, unless the worker is in the middle of writing,
+ * in which case it's sent once the write returns, and not at all if the
+ * response has been committed by then.  The request is only completed, and
+ * the mapping's permit released, once the worker exits, since until then it
+ * may still be using the request.
+ *
+ * J2Free builds against the Servlet 2.4 API, so Servlet 3's
+ * <tt>startAsync</tt> and <tt>AsyncContext</tt> are looked up reflectively.
+ * On containers that don't support them, or when the filter isn't marked
+ * as async-supported in web.xml, {@link #dispatch} returns false and the
+ * request should be serviced synchronously.
+ *
+ * @author Ryan Wilson
+ */
+@ThreadSafe
+final class AsyncDispatcher
+{
+    private static final Log log = LogFactory.getLog(AsyncDispatcher.class);
+
+    // Servlet 3 methods, or null if the container doesn't provide them
+    private static final Method START_ASYNC;
+    private static final Method IS_ASYNC_SUPPORTED;
+    private static final Method SET_TIMEOUT;
+    private static final Method COMPLETE;
+
+    static
+    {
+        Method startAsync = null, isAsyncSupported = null, setTimeout = null, complete = null;
+        try
+        {
+            Class<?> asyncContext = Class.forName("javax.servlet.AsyncContext");
+
+            startAsync       = ServletRequest.class.getMethod("startAsync", ServletRequest.class, ServletResponse.class);
+            isAsyncSupported = ServletRequest.class.getMethod("isAsyncSupported");
+            setTimeout       = asyncContext.getMethod("setTimeout", long.class);
+            complete         = asyncContext.getMethod("complete");
+        }
+        catch (Exception e)
+        {
+            startAsync = null;
+        }
+
+        START_ASYNC        = startAsync;
+        IS_ASYNC_SUPPORTED = isAsyncSupported;
+        SET_TIMEOUT        = setTimeout;
+        COMPLETE           = complete;
+    }
+
+    private final ExecutorService          executor;
+    private final ScheduledExecutorService timer;
+    private final long                     defaultTimeout;
+
+    private final AtomicBoolean warned = new AtomicBoolean(false);
+
+    /**
+     * @param executor The bounded executor to service requests on
+     * @param timer Schedules timeouts
+     * @param defaultTimeout Milliseconds a request may run, unless
+     *        overridden by {@link org.j2free.annotations.ServletConfig#asyncTimeout};
+     *        0 for none
+     */
+    AsyncDispatcher(ExecutorService executor, ScheduledExecutorService timer, long defaultTimeout)
+    {
+        this.executor       = executor;
+        this.timer          = timer;
+        this.defaultTimeout = defaultTimeout;
+    }
+
+    /**
+     * Starts servicing the chain asynchronously.  If this returns true, the
+     * dispatcher takes responsibility for the request, including releasing
+     * the mapping's concurrency permit, and the calling thread must not touch
+     * the request or response again.
+     *
+     * @return true if the chain was dispatched, or false if the request
+     *         can't be made asynchronous and should be serviced synchronously
+     */
+    boolean dispatch(final HttpServletRequest req, final HttpServletResponse resp, final ServiceChain chain,
+                     final ServletMapping mapping, final UncaughtServletExceptionHandler handler)
+    {
+        final Object asyncContext = startAsync(req, resp);
+        if (asyncContext == null)
+            return false;
+
+        final Worker worker = new Worker(req, new FencedResponse(resp), chain, mapping, handler, asyncContext);
+        try
+        {
+            executor.execute(worker);
+        }
+        catch (RejectedExecutionException e)
+        {
+            // The executor and its queue are full
+            mapping.getMetrics().rejected();
+
+            sendUnavailable(resp);
+            finish(asyncContext, mapping);
+            return true;
+        }
+
+        final long millis = mapping.config.asyncTimeout() < 0 ? defaultTimeout : mapping.config.asyncTimeout();
+        if (millis > 0)
+        {
+            try
+            {
+                worker.timeout = timer.schedule(new Runnable() {
+                    public void run()
+                    {
+                        worker.timeOut(millis);
+                    }
+                }, millis, TimeUnit.MILLISECONDS);
+
+                // The worker may have finished before the timeout was set
+                if (worker.done.get())
+                    worker.timeout.cancel(false);
+            }
+            catch (RejectedExecutionException e)
+            {
+                // Shutting down; let the request run to completion
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Services a request on the executor.  The request is only completed, and
+     * the mapping's permit only released, once the worker exits, since until
+     * then it may still touch the request; a timeout answers the client and
+     * fences the worker off from the response instead.
+     */
+    private final class Worker implements Runnable
+    {
+        private final HttpServletRequest              req;
+        private final FencedResponse                  resp;
+        private final ServiceChain                    chain;
+        private final ServletMapping                  mapping;
+        private final UncaughtServletExceptionHandler handler;
+        private final Object                          asyncContext;
+
+        // Set once the request finishes or times out, whichever happens first
+        private final AtomicBoolean done = new AtomicBoolean(false);
+
+        private volatile Future<?> timeout;
+
+        // The thread servicing the request, to interrupt on timeout
+        @GuardedBy("this") private Thread runner;
+
+        private Worker(HttpServletRequest req, FencedResponse resp, ServiceChain chain,
+                       ServletMapping mapping, UncaughtServletExceptionHandler handler, Object asyncContext)
+        {
+            this.req          = req;
+            this.resp         = resp;
+            this.chain        = chain;
+            this.mapping      = mapping;
+            this.handler      = handler;
+            this.asyncContext = asyncContext;
+        }
+
+        public void run()
+        {
+            synchronized (this)
+            {
+                runner = Thread.currentThread();
+            }
+
+            try
+            {
+                // Timed out while queued, so the client has already been answered
+                if (!done.get())
+                    chain.service(req, resp);
+            }
+            catch (Exception e)
+            {
+                if (resp.isFenced())
+                {
+                    // Timed out, the response was already taken care of
+                    if (log.isDebugEnabled())
+                        log.debug("Error servicing " + mapping.getName() + " after timeout", e);
+                }
+                else
+                    handle(req, resp, e, handler);
+            }
+            finally
+            {
+                synchronized (this)
+                {
+                    runner = null;
+                    Thread.interrupted();       // a timeout's interrupt is not the next task's
+                }
+
+                if (done.compareAndSet(false, true))
+                {
+                    Future<?> pending = timeout;
+                    if (pending != null)
+                        pending.cancel(false);
+                }
+
+                finish(asyncContext, mapping);
+            }
+        }
+
+        private void timeOut(long millis)
+        {
+            if (!done.compareAndSet(false, true))
+                return;
+
+            log.warn("Timed out servicing " + mapping.getName() + " after " + millis + "ms");
+            mapping.getMetrics().timedOut();
+
+            resp.fence(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+
+            // Blocking servlet I/O ignores this, but the worker can't touch the response anymore
+            synchronized (this)
+            {
+                if (runner != null)
+                    runner.interrupt();
+            }
+        }
+    }
+
+    /**
+     * @return The AsyncContext, or null if the request can't be made asynchronous
+     */
+    private Object startAsync(ServletRequest req, ServletResponse resp)
+    {
+        if (START_ASYNC == null)
+        {
+            warnOnce("Servlet 3 asynchronous requests are not available, servicing async servlets synchronously");
+            return null;
+        }
+
+        try
+        {
+            if (!((Boolean) IS_ASYNC_SUPPORTED.invoke(req)).booleanValue())
+            {
+                warnOnce("InvokerFilter is not <async-supported> in web.xml, servicing async servlets synchronously");
+                return null;
+            }
+
+            Object asyncContext = START_ASYNC.invoke(req, req, resp);
+            SET_TIMEOUT.invoke(asyncContext, 0L);       // timeouts are enforced here, not by the container
+            return asyncContext;
+        }
+        catch (Exception e)
+        {
+            log.warn("Unable to start asynchronous request, servicing synchronously", e);
+            return null;
+        }
+    }
+
+    private void finish(Object asyncContext, ServletMapping mapping)
+    {
+        try
+        {
+            COMPLETE.invoke(asyncContext);
+        }
+        catch (Exception e)
+        {
+            log.warn("Error completing asynchronous request to " + mapping.getName(), e);
+        }
+        finally
+        {
+            mapping.releasePermit();
+        }
+    }
+
+    private void handle(ServletRequest req, ServletResponse resp, Exception e, UncaughtServletExceptionHandler handler)
+    {
+        try
+        {
+            if (handler != null)
+            {
+                handler.handleException(req, resp, e);
+                return;
+            }
+
+            log.error("Error servicing asynchronous request", e);
+            if (!resp.isCommitted())
+                ((HttpServletResponse) resp).sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+        }
+        catch (Exception ex)
+        {
+            log.error("Error handling exception from asynchronous request", ex);
+        }
+    }
+
+    private void sendUnavailable(HttpServletResponse resp)
+    {
+        try
+        {
+            if (!resp.isCommitted())
+                resp.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+        }
+        catch (Exception e)
+        {
+            log.debug("Unable to send 503", e);
+        }
+    }
+
+    private void warnOnce(String message)
+    {
+        if (warned.compareAndSet(false, true))
+            log.warn(message);
+    }
+}
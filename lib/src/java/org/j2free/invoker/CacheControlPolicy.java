@@ -0,0 +1,230 @@
+/*
+ * CacheControlPolicy.java
+ *
+ * Copyright 2011 FooBrew, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.j2free.invoker;
+
+import com.reardencommerce.kernel.collections.shared.evictable.ConcurrentLinkedHashMap;
+import com.reardencommerce.kernel.collections.shared.evictable.ConcurrentLinkedHashMap.EvictionPolicy;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.servlet.http.HttpServletResponse;
+
+import net.jcip.annotations.Immutable;
+import net.jcip.annotations.ThreadSafe;
+
+/**
+ * Decides the caching headers sent with a request, by the extension of
+ * the path requested.  Rules are compiled into a map keyed by extension
+ * when the configuration is published, and the rule for each distinct path
+ * is remembered in a bounded LRU map, so deciding the headers for a path
+ * seen before is a single lookup.
+ *
+ * Servlets may override the rule for the paths they serve with
+ * {@link org.j2free.annotations.ServletConfig#cacheControl}.
+ *
+ * @author Ryan Wilson
+ */
+@ThreadSafe
+final class CacheControlPolicy
+{
+    static final String HEADER_PRAGMA        = "Pragma";
+    static final String HEADER_CACHE_CONTROL = "Cache-Control";
+    static final String HEADER_EXPIRES       = "Expires";
+
+    private static final String PRAGMA_CACHE = "cache";
+
+    // Cache-Control values to disable a rule, e.g. one of the defaults
+    private static final String NONE = "none";
+
+    private static final Pattern MAX_AGE = Pattern.compile("max-age\\s*=\\s*(\\d+)");
+
+    /**
+     * The headers to send with a path
+     */
+    @Immutable
+    static final class Rule
+    {
+        final String cacheControl;
+        final String pragma;
+
+        // Seconds, or -1 if the rule doesn't specify a max-age
+        final long maxAge;
+
+        Rule(String cacheControl, String pragma)
+        {
+            this.cacheControl = cacheControl;
+            this.pragma       = pragma;
+
+            Matcher matcher = cacheControl == null ? null : MAX_AGE.matcher(cacheControl);
+            this.maxAge = matcher != null && matcher.find() ? Long.parseLong(matcher.group(1)) : -1;
+        }
+    }
+
+    /**
+     * Sends no caching headers
+     */
+    static final Rule NO_RULE = new Rule(null, null);
+
+    /**
+     * Sent with every request in development
+     */
+    static final Rule NO_STORE = new Rule("no-store", "no-cache");
+
+    /**
+     * The rules used unless configured otherwise; images for 6 hours,
+     * scripts, stylesheets and flash for a year.
+     */
+    static final Map<String, String> DEFAULT_RULES;
+
+    static
+    {
+        Map<String, String> rules = new LinkedHashMap<String, String>();
+        for (String ext : new String[] { "jpg", "gif", "png", "jpeg" })
+            rules.put(ext, "max-age=21600");
+        for (String ext : new String[] { "swf", "js", "css", "flv" })
+            rules.put(ext, "max-age=31536000");
+
+        DEFAULT_RULES = rules;
+    }
+
+    /**
+     * Paths containing any of these are sent no caching headers, unless configured otherwise
+     */
+    static final Collection<String> DEFAULT_EXCLUDES = Arrays.asList("captcha.jpg");
+
+    /**
+     * The default rules, used before the filter is configured
+     */
+    static final CacheControlPolicy DEFAULT = new CacheControlPolicy(DEFAULT_RULES, DEFAULT_EXCLUDES, false, 1000);
+
+    // Maps lower-case extensions to their rule
+    private final Map<String, Rule> rules;
+
+    // Substrings of paths that must never be cached
+    private final String[] excludes;
+
+    private final boolean expires;
+
+    // Maps paths to their resolved rule
+    private final ConcurrentLinkedHashMap<String, Rule> paths;
+
+    /**
+     * @param rules Maps extensions to the Cache-Control value to send with
+     *        paths ending in them; a value of <tt>none</tt> sends nothing
+     * @param excludes Paths containing any of these are sent no caching headers
+     * @param expires Whether an Expires header should accompany rules with a max-age,
+     *        for HTTP/1.0 caches
+     * @param maxPaths The maximum number of paths to remember resolved rules for
+     */
+    CacheControlPolicy(Map<String, String> rules, Collection<String> excludes, boolean expires, int maxPaths)
+    {
+        this.rules = new HashMap<String, Rule>();
+        for (Map.Entry<String, String> rule : rules.entrySet())
+        {
+            String value = rule.getValue() == null ? "" : rule.getValue().trim();
+            if (value.length() > 0 && !value.equalsIgnoreCase(NONE))
+                this.rules.put(rule.getKey().toLowerCase(), compile(value));
+        }
+
+        this.excludes = excludes.toArray(new String[excludes.size()]);
+        this.expires  = expires;
+        this.paths    = ConcurrentLinkedHashMap.create(EvictionPolicy.LRU, Math.max(maxPaths, 1), 50);
+    }
+
+    /**
+     * @param path a lower-case path
+     * @return The rule for the path, never null
+     */
+    Rule resolve(String path)
+    {
+        Rule rule = paths.get(path);
+        if (rule == null)
+        {
+            rule = lookup(path);
+
+            // Another thread may have resolved the same path, but the result
+            // would be identical, so there's no harm in overwriting it
+            paths.put(path, rule);
+        }
+        return rule;
+    }
+
+    /**
+     * Sets the caching headers for the path on the response
+     *
+     * @param path a lower-case path
+     * @param resp The response to set the headers on
+     */
+    void apply(String path, HttpServletResponse resp)
+    {
+        apply(resolve(path), resp);
+    }
+
+    /**
+     * Sets the caching headers of a rule on the response
+     */
+    void apply(Rule rule, HttpServletResponse resp)
+    {
+        if (rule.cacheControl == null)
+            return;
+
+        resp.setHeader(HEADER_PRAGMA, rule.pragma);
+        resp.setHeader(HEADER_CACHE_CONTROL, rule.cacheControl);
+
+        if (expires && rule.maxAge >= 0)
+            resp.setDateHeader(HEADER_EXPIRES, System.currentTimeMillis() + rule.maxAge * 1000);
+    }
+
+    /**
+     * @param cacheControl A Cache-Control value, e.g. from a servlet's config
+     * @return The equivalent rule, or {@link #NO_RULE} if the value is empty
+     */
+    static Rule compile(String cacheControl)
+    {
+        if (cacheControl == null || cacheControl.length() == 0)
+            return NO_RULE;
+
+        String lower = cacheControl.toLowerCase();
+        boolean uncacheable = lower.contains("no-cache") || lower.contains("no-store");
+
+        return new Rule(cacheControl, uncacheable ? "no-cache" : PRAGMA_CACHE);
+    }
+
+    private Rule lookup(String path)
+    {
+        for (String exclude : excludes)
+        {
+            if (path.contains(exclude))
+                return NO_RULE;
+        }
+
+        int dot = path.lastIndexOf('.');
+        if (dot == -1 || dot < path.lastIndexOf('/'))
+            return NO_RULE;
+
+        Rule rule = rules.get(path.substring(dot + 1));
+        return rule == null ? NO_RULE : rule;
+    }
+}
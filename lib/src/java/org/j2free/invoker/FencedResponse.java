@@ -0,0 +1,685 @@
+/*
+ * FencedResponse.java
+ *
+ * Copyright 2011 FooBrew, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.j2free.invoker;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.Writer;
+
+import java.util.Locale;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+
+import net.jcip.annotations.GuardedBy;
+import net.jcip.annotations.ThreadSafe;
+
+/**
+ * The response an {@link AsyncDispatcher} worker services a request with,
+ * which can be fenced off once the request times out: from then on,
+ * everything the worker writes or sets is dropped, so that a worker that
+ * can't be stopped never touches the response again, nor writes at the same
+ * time as the thread answering for it.
+ *
+ * Every change to the response, including writes to its writer and stream,
+ * passes through under a lock, which {@link #fence} only takes if the
+ * worker isn't in the middle of one; if it is, the worker answers for it as
+ * it lets go of the lock.
+ *
+ * @author Ryan Wilson
+ */
+@ThreadSafe
+final class FencedResponse extends HttpServletResponseWrapper
+{
+    private final ReentrantLock lock = new ReentrantLock();
+
+    // Checked under the lock, but set without it
+    private volatile boolean fenced = false;
+
+    // The status to answer with once fenced, or 0 once answered
+    private final AtomicInteger pending = new AtomicInteger(0);
+
+    @GuardedBy("lock") private PrintWriter         writer;
+    @GuardedBy("lock") private ServletOutputStream stream;
+
+    FencedResponse(HttpServletResponse response)
+    {
+        super(response);
+    }
+
+    /**
+     * Drops everything written or set from now on, and answers the request
+     * with the status and no content, unless the response has already been
+     * committed.  If the worker is in the middle of writing, the request is
+     * answered once it's done, rather than wait on it here.
+     *
+     * @param status The status to answer with
+     * @return true if the request was answered with the status right away
+     */
+    boolean fence(int status)
+    {
+        pending.set(status);
+        fenced = true;
+
+        // A worker blocked writing to a slow client would hold up the caller,
+        // so it answers as it lets go of the lock instead
+        if (!lock.tryLock())
+            return false;
+
+        try
+        {
+            return answer();
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return true if the response has been fenced off
+     */
+    boolean isFenced()
+    {
+        return fenced;
+    }
+
+    // Takes the lock if the response isn't fenced off; the caller must then call exit()
+    private boolean enter()
+    {
+        lock.lock();
+        if (fenced)
+        {
+            exit();
+            return false;
+        }
+        return true;
+    }
+
+    // Lets go of the lock, answering for a fence() that couldn't take it
+    private void exit()
+    {
+        lock.unlock();
+
+        if (fenced && pending.get() != 0 && lock.tryLock())
+        {
+            try
+            {
+                answer();
+            }
+            finally
+            {
+                lock.unlock();
+            }
+        }
+    }
+
+    // Answers with the pending status, unless it has been already, or the response is committed
+    @GuardedBy("lock")
+    private boolean answer()
+    {
+        int status = pending.getAndSet(0);
+        if (status == 0)
+            return false;
+
+        try
+        {
+            HttpServletResponse response = (HttpServletResponse) getResponse();
+            if (response.isCommitted())
+                return false;
+
+            response.reset();
+            response.setStatus(status);
+            response.setContentLength(0);
+            response.flushBuffer();
+            return true;
+        }
+        catch (IOException e)
+        {
+            return false;
+        }
+    }
+
+    @Override
+    public PrintWriter getWriter() throws IOException
+    {
+        lock.lock();
+        try
+        {
+            if (writer == null)
+                writer = new PrintWriter(new FencedWriter(fenced ? null : super.getWriter()));
+            return writer;
+        }
+        finally
+        {
+            exit();
+        }
+    }
+
+    @Override
+    public ServletOutputStream getOutputStream() throws IOException
+    {
+        lock.lock();
+        try
+        {
+            if (stream == null)
+                stream = new FencedOutputStream(fenced ? null : super.getOutputStream());
+            return stream;
+        }
+        finally
+        {
+            exit();
+        }
+    }
+
+    @Override
+    public boolean isCommitted()
+    {
+        if (!enter())
+            return true;
+
+        try
+        {
+            return super.isCommitted();
+        }
+        finally
+        {
+            exit();
+        }
+    }
+
+    @Override
+    public void flushBuffer() throws IOException
+    {
+        if (!enter())
+            return;
+
+        try
+        {
+            super.flushBuffer();
+        }
+        finally
+        {
+            exit();
+        }
+    }
+
+    @Override
+    public void reset()
+    {
+        if (!enter())
+            return;
+
+        try
+        {
+            super.reset();
+        }
+        finally
+        {
+            exit();
+        }
+    }
+
+    @Override
+    public void resetBuffer()
+    {
+        if (!enter())
+            return;
+
+        try
+        {
+            super.resetBuffer();
+        }
+        finally
+        {
+            exit();
+        }
+    }
+
+    @Override
+    public void setBufferSize(int size)
+    {
+        if (!enter())
+            return;
+
+        try
+        {
+            super.setBufferSize(size);
+        }
+        finally
+        {
+            exit();
+        }
+    }
+
+    @Override
+    public void setCharacterEncoding(String charset)
+    {
+        if (!enter())
+            return;
+
+        try
+        {
+            super.setCharacterEncoding(charset);
+        }
+        finally
+        {
+            exit();
+        }
+    }
+
+    @Override
+    public void setContentLength(int len)
+    {
+        if (!enter())
+            return;
+
+        try
+        {
+            super.setContentLength(len);
+        }
+        finally
+        {
+            exit();
+        }
+    }
+
+    @Override
+    public void setContentType(String type)
+    {
+        if (!enter())
+            return;
+
+        try
+        {
+            super.setContentType(type);
+        }
+        finally
+        {
+            exit();
+        }
+    }
+
+    @Override
+    public void setLocale(Locale loc)
+    {
+        if (!enter())
+            return;
+
+        try
+        {
+            super.setLocale(loc);
+        }
+        finally
+        {
+            exit();
+        }
+    }
+
+    @Override
+    public void addCookie(Cookie cookie)
+    {
+        if (!enter())
+            return;
+
+        try
+        {
+            super.addCookie(cookie);
+        }
+        finally
+        {
+            exit();
+        }
+    }
+
+    @Override
+    public void sendError(int sc, String msg) throws IOException
+    {
+        if (!enter())
+            return;
+
+        try
+        {
+            super.sendError(sc, msg);
+        }
+        finally
+        {
+            exit();
+        }
+    }
+
+    @Override
+    public void sendError(int sc) throws IOException
+    {
+        if (!enter())
+            return;
+
+        try
+        {
+            super.sendError(sc);
+        }
+        finally
+        {
+            exit();
+        }
+    }
+
+    @Override
+    public void sendRedirect(String location) throws IOException
+    {
+        if (!enter())
+            return;
+
+        try
+        {
+            super.sendRedirect(location);
+        }
+        finally
+        {
+            exit();
+        }
+    }
+
+    @Override
+    public void setDateHeader(String name, long date)
+    {
+        if (!enter())
+            return;
+
+        try
+        {
+            super.setDateHeader(name, date);
+        }
+        finally
+        {
+            exit();
+        }
+    }
+
+    @Override
+    public void addDateHeader(String name, long date)
+    {
+        if (!enter())
+            return;
+
+        try
+        {
+            super.addDateHeader(name, date);
+        }
+        finally
+        {
+            exit();
+        }
+    }
+
+    @Override
+    public void setHeader(String name, String value)
+    {
+        if (!enter())
+            return;
+
+        try
+        {
+            super.setHeader(name, value);
+        }
+        finally
+        {
+            exit();
+        }
+    }
+
+    @Override
+    public void addHeader(String name, String value)
+    {
+        if (!enter())
+            return;
+
+        try
+        {
+            super.addHeader(name, value);
+        }
+        finally
+        {
+            exit();
+        }
+    }
+
+    @Override
+    public void setIntHeader(String name, int value)
+    {
+        if (!enter())
+            return;
+
+        try
+        {
+            super.setIntHeader(name, value);
+        }
+        finally
+        {
+            exit();
+        }
+    }
+
+    @Override
+    public void addIntHeader(String name, int value)
+    {
+        if (!enter())
+            return;
+
+        try
+        {
+            super.addIntHeader(name, value);
+        }
+        finally
+        {
+            exit();
+        }
+    }
+
+    @Override
+    public void setStatus(int sc)
+    {
+        if (!enter())
+            return;
+
+        try
+        {
+            super.setStatus(sc);
+        }
+        finally
+        {
+            exit();
+        }
+    }
+
+    @Override
+    @SuppressWarnings("deprecation")
+    public void setStatus(int sc, String sm)
+    {
+        if (!enter())
+            return;
+
+        try
+        {
+            super.setStatus(sc, sm);
+        }
+        finally
+        {
+            exit();
+        }
+    }
+
+    /**
+     * Writes through to the response's writer until the response is fenced off
+     */
+    private final class FencedWriter extends Writer
+    {
+        private final Writer out;
+
+        private FencedWriter(Writer out)
+        {
+            this.out = out;
+        }
+
+        @Override
+        public void write(char[] cbuf, int off, int len) throws IOException
+        {
+            if (!enter())
+                return;
+
+            try
+            {
+                out.write(cbuf, off, len);
+            }
+            finally
+            {
+                exit();
+            }
+        }
+
+        @Override
+        public void write(String str, int off, int len) throws IOException
+        {
+            if (!enter())
+                return;
+
+            try
+            {
+                out.write(str, off, len);
+            }
+            finally
+            {
+                exit();
+            }
+        }
+
+        @Override
+        public void flush() throws IOException
+        {
+            if (!enter())
+                return;
+
+            try
+            {
+                out.flush();
+            }
+            finally
+            {
+                exit();
+            }
+        }
+
+        @Override
+        public void close() throws IOException
+        {
+            if (!enter())
+                return;
+
+            try
+            {
+                out.close();
+            }
+            finally
+            {
+                exit();
+            }
+        }
+    }
+
+    /**
+     * Writes through to the response's stream until the response is fenced off
+     */
+    private final class FencedOutputStream extends ServletOutputStream
+    {
+        private final ServletOutputStream out;
+
+        private FencedOutputStream(ServletOutputStream out)
+        {
+            this.out = out;
+        }
+
+        @Override
+        public void write(int b) throws IOException
+        {
+            if (!enter())
+                return;
+
+            try
+            {
+                out.write(b);
+            }
+            finally
+            {
+                exit();
+            }
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException
+        {
+            if (!enter())
+                return;
+
+            try
+            {
+                out.write(b, off, len);
+            }
+            finally
+            {
+                exit();
+            }
+        }
+
+        @Override
+        public void flush() throws IOException
+        {
+            if (!enter())
+                return;
+
+            try
+            {
+                out.flush();
+            }
+            finally
+            {
+                exit();
+            }
+        }
+
+        @Override
+        public void close() throws IOException
+        {
+            if (!enter())
+                return;
+
+            try
+            {
+                out.close();
+            }
+            finally
+            {
+                exit();
+            }
+        }
+    }
+}
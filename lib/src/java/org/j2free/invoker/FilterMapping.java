@@ -18,6 +18,9 @@
 package org.j2free.invoker;
 
 import java.io.IOException;
+
+import java.util.regex.Pattern;
+
 import javax.servlet.Filter;
 
 import javax.servlet.FilterChain;
@@ -37,29 +40,35 @@ final class FilterMapping implements Servicable, Comparable<FilterMapping>
     protected final String match;
     protected final String exclude;
     
-    private final boolean useExclude;
+    private final Pattern matchPattern;
+    private final Pattern excludePattern;   // null if there is no exclude
     
     private final boolean reqCont;
+
+    private final RouteMetrics metrics;
     
     private final int depth;
     private final int priority;
 
-    protected FilterMapping(Filter filter, FilterConfig config)
+    protected FilterMapping(Filter filter, FilterConfig config, RouteMetrics metrics)
     {
-        this(filter, config.match(), config.exclude(), config.requireController(), config.priority());
+        this(filter, config.match(), config.exclude(), config.requireController(), config.priority(), metrics);
     }
 
-    protected FilterMapping(Filter filter, String match, String exclude, boolean requireController, int priority)
+    protected FilterMapping(Filter filter, String match, String exclude, boolean requireController, int priority, RouteMetrics metrics)
     {
         this.filter = filter;
 
         this.match = match.trim();
         this.exclude = exclude.trim();
-        this.useExclude = this.exclude != null && !"".equals(exclude);
+
+        this.matchPattern   = Pattern.compile(this.match);
+        this.excludePattern = "".equals(this.exclude) ? null : Pattern.compile(this.exclude);
         
         this.reqCont = requireController;
         this.depth = this.match.split("/").length;
         this.priority = priority;
+        this.metrics = metrics;
     }
 
     /**
@@ -86,10 +95,10 @@ final class FilterMapping implements Servicable, Comparable<FilterMapping>
      */
     public boolean appliesTo(String uri)
     {
-        if (useExclude && uri.matches(exclude))
+        if (excludePattern != null && excludePattern.matcher(uri).matches())
             return false;
         else
-            return uri.matches(this.match);
+            return matchPattern.matcher(uri).matches();
     }
 
     /**
@@ -110,6 +119,14 @@ final class FilterMapping implements Servicable, Comparable<FilterMapping>
         return filter.getClass().getName();
     }
 
+    /**
+     * @return The metrics recorded for the filter
+     */
+    public RouteMetrics getMetrics()
+    {
+        return metrics;
+    }
+
     /**
      * Implementation of Filter servicing
      * @see {@link Servicable}.service
@@ -0,0 +1,99 @@
+/*
+ * FilterResolver.java
+ *
+ * Copyright 2011 FooBrew, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.j2free.invoker;
+
+import com.reardencommerce.kernel.collections.shared.evictable.ConcurrentLinkedHashMap;
+import com.reardencommerce.kernel.collections.shared.evictable.ConcurrentLinkedHashMap.EvictionPolicy;
+
+import java.util.ArrayList;
+import java.util.Collection;
+
+import net.jcip.annotations.ThreadSafe;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Resolves the ordered set of filters that apply to a path.  The
+ * result for each distinct path is computed once, by running every
+ * {@link FilterMapping}'s precompiled patterns against it, and then
+ * kept in a bounded LRU map so that servicing a request only has to
+ * walk a prebuilt array.
+ *
+ * @author Ryan Wilson
+ */
+@ThreadSafe
+final class FilterResolver
+{
+    private static final FilterMapping[] NONE = new FilterMapping[0];
+
+    /**
+     * Resolves no filters for any path.
+     */
+    static final FilterResolver EMPTY = new FilterResolver(new ArrayList<FilterMapping>(0), 1);
+
+    private final Log log = LogFactory.getLog(getClass());
+
+    // All of the filters, in the order they should be serviced
+    private final FilterMapping[] filters;
+
+    // Maps paths to the filters that apply to them
+    private final ConcurrentLinkedHashMap<String, FilterMapping[]> chains;
+
+    /**
+     * @param filters All of the filters, in the order they should be serviced
+     * @param maxPaths The maximum number of paths to remember resolved chains for
+     */
+    FilterResolver(Collection<FilterMapping> filters, int maxPaths)
+    {
+        this.filters = filters.toArray(new FilterMapping[filters.size()]);
+        this.chains  = ConcurrentLinkedHashMap.create(EvictionPolicy.LRU, Math.max(maxPaths, 1), 50);
+    }
+
+    /**
+     * @param path a lower-case path
+     * @return The filters that apply to the path, in the order they should
+     *         be serviced.  The returned array is shared and MUST NOT be modified.
+     */
+    FilterMapping[] resolve(String path)
+    {
+        if (filters.length == 0)
+            return NONE;
+
+        FilterMapping[] chain = chains.get(path);
+        if (chain == null)
+        {
+            ArrayList<FilterMapping> applicable = new ArrayList<FilterMapping>(filters.length);
+            for (FilterMapping filter : filters)
+            {
+                if (filter.appliesTo(path))
+                    applicable.add(filter);
+                else if (log.isTraceEnabled())
+                    log.trace("Skipping filter [name=" + filter.getName() + ", path=" + path + "]");
+            }
+
+            chain = applicable.isEmpty() ? NONE : applicable.toArray(new FilterMapping[applicable.size()]);
+
+            // Another thread may have resolved the same chain, but the result
+            // would be identical, so there's no harm in overwriting it
+            chains.put(path, chain);
+        }
+
+        return chain;
+    }
+}
@@ -17,27 +17,29 @@
  */
 package org.j2free.invoker;
 
-import com.reardencommerce.kernel.collections.shared.evictable.ConcurrentLinkedHashMap;
-import com.reardencommerce.kernel.collections.shared.evictable.ConcurrentLinkedHashMap.EvictionPolicy;
-
+import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
 
 import java.net.URL;
 
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.TreeSet;
 
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentMap;
-import java.util.concurrent.ConcurrentSkipListSet;
-
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReadWriteLock;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import javax.servlet.Filter;
 import javax.servlet.FilterChain;
@@ -52,6 +54,7 @@ import javax.servlet.http.HttpServletResponse;
 import net.jcip.annotations.GuardedBy;
 
 import org.apache.commons.configuration.Configuration;
+import org.apache.commons.lang.StringUtils;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
@@ -59,6 +62,8 @@ import org.j2free.annotations.ServletConfig;
 import org.j2free.annotations.FilterConfig;
 import org.j2free.annotations.ServletConfig.SSLOption;
 import org.j2free.servlet.EntityAdminServlet;
+import org.j2free.servlet.FragmentCacheAnalyzerServlet;
+import org.j2free.servlet.InvokerMetricsServlet;
 import org.j2free.servlet.LogoutServlet;
 import org.j2free.servlet.ProxyServlet;
 import org.j2free.servlet.StaticJspServlet;
@@ -70,16 +75,16 @@ import static org.j2free.util.ServletUtils.*;
 import static org.j2free.util.Constants.*;
 import org.j2free.util.Global;
 
-import org.scannotation.AnnotationDB;
 import org.scannotation.ClasspathUrlFinder;
 import org.scannotation.WarUrlFinder;
 
 /**
  * InvokerFilter will try to use the fastest method to resolve
  * a URL to a Servlet, which in most cases will be O(1).  "Most"
- * means either a Servlet that was mapped with a non-regex,
- * non-wildcard URL, or a Servlet that was mapped with a regex or
- * wildcard URL and was accessed somewhat recently.
+ * means a Servlet that was mapped with a non-regex, non-wildcard
+ * URL.  Wildcard mappings (*.ext and /some/path/*) are compiled
+ * into a {@link RoutingTable} when the mappings are loaded, and
+ * resolve in time proportional to the number of path segments.
  *
  * InvokerFilter will, however, attempt to contain its memory
  * usage, preferring to resolve infrequently access URLs only
@@ -114,70 +119,163 @@ public final class InvokerFilter implements Filter
          *
          */
         public static final String DEFAULT_SSL_OPT  = "filter.invoker.default-ssl-option";
+        /**
+         * Whether paths resolved via a wildcard or regex mapping should
+         * be remembered for direct lookup (off by default, since the
+         * compiled routing table already resolves wildcards quickly).
+         */
+        public static final String PARTIALS_CACHE   = "filter.invoker.partials-cache.enabled";
+        /**
+         * The max number of distinct paths to remember resolved filter chains for
+         */
+        public static final String FILTER_CHAINS    = "filter.invoker.filter-chain-cache.size";
+        /**
+         * The max number of paths known to be static to remember
+         */
+        public static final String STATIC_PATHS     = "filter.invoker.static-path-cache.size";
+        /**
+         * Whether per-servlet and per-filter metrics should be registered with JMX
+         */
+        public static final String METRICS_JMX      = "filter.invoker.metrics.jmx.enabled";
+        /**
+         * The number of threads servicing async servlets
+         */
+        public static final String ASYNC_THREADS    = "filter.invoker.async.threads";
+        /**
+         * The number of async requests that may wait for a thread before
+         * further requests are rejected with a 503
+         */
+        public static final String ASYNC_QUEUE      = "filter.invoker.async.queue-size";
+        /**
+         * The default number of milliseconds an async request may run
+         */
+        public static final String ASYNC_TIMEOUT    = "filter.invoker.async.timeout";
+        /**
+         * Whether the results of scanning for annotated classes should be
+         * remembered, per archive, between restarts
+         */
+        public static final String ANNOTATION_INDEX = "filter.invoker.annotation-index.enabled";
+        /**
+         * The max number of archives to scan for annotated classes at once
+         */
+        public static final String ANNOTATION_SCAN_THREADS = "filter.invoker.annotation-scan.threads";
+        /**
+         * Prefix of the Cache-Control rules by extension, e.g.
+         * <tt>filter.invoker.cache-control.ext.png = public, max-age=86400</tt>;
+         * a value of <tt>none</tt> disables one of the default rules
+         */
+        public static final String CACHE_CONTROL_EXT     = "filter.invoker.cache-control.ext";
+        /**
+         * Paths containing any of these are sent no caching headers
+         */
+        public static final String CACHE_CONTROL_EXCLUDE = "filter.invoker.cache-control.exclude";
+        /**
+         * Whether an Expires header should accompany rules with a max-age
+         */
+        public static final String CACHE_CONTROL_EXPIRES = "filter.invoker.cache-control.expires.enabled";
+        /**
+         * The max number of paths to remember caching headers for
+         */
+        public static final String CACHE_CONTROL_PATHS   = "filter.invoker.cache-control.cache.size";
     }
 
-    // Paths to set different cache settings
-    private static final String SHORT_CACHE_REGEX           = ".*?\\.(jpg|gif|png|jpeg)";
-    private static final String LONG_CACHE_REGEX            = ".*?\\.(swf|js|css|flv)";
-    private static final String CAPTCHA_PATH                = "captcha.jpg";
-
-    private static final String SHORT_CACHE_VAL             = "max-age=21600";      // 6 hours
-    private static final String LONG_CACHE_VAL              = "max-age=31536000";
-
-    private static final String HEADER_PRAGMA               = "Pragma";
-    private static final String HEADER_CACHE_CONTROL        = "Cache-Control";
+    // A build-time annotation index, packaged in the WAR
+    private static final String ANNOTATION_INDEX_RESOURCE   = "/WEB-INF/j2free-annotations.idx";
 
-    private static final String PRAGMA_VAL                  = "cache";
+    // The annotation index written to the context's temp dir
+    private static final String ANNOTATION_INDEX_FILE       = "j2free-annotations.idx";
 
-    @GuardedBy("lock") 
+    // The configuration below is only staged by the synchronized (re)configuration
+    // methods; requests only ever see it once it has been published as part of an
+    // immutable InvokerState.
+    @GuardedBy("this")
     private boolean benchmark = false;
 
-    @GuardedBy("lock") 
+    @GuardedBy("this")
     private int sslRedirectPort = -1;
     
-    @GuardedBy("lock")
+    @GuardedBy("this")
     private int nonSslRedirectPort = -1;
 
-    @GuardedBy("lock")
+    @GuardedBy("this")
     private int maxServletUses = 1000;
     
-    @GuardedBy("lock")
+    @GuardedBy("this")
     private String bypassPath = EMPTY;
 
-    @GuardedBy("lock")
+    @GuardedBy("this")
     private SSLOption defaultSSLOption = SSLOption.UNSPECIFIED;
 
-    @GuardedBy("lock")
+    @GuardedBy("this")
+    private boolean partialsEnabled = false;
+
+    @GuardedBy("this")
+    private int maxFilterChains = 10000;
+
+    @GuardedBy("this")
+    private int maxStaticPaths = 10000;
+
+    @GuardedBy("this")
+    private CacheControlPolicy cacheControl = CacheControlPolicy.DEFAULT;
+
+    @GuardedBy("this")
+    private int asyncThreads = 50;
+
+    @GuardedBy("this")
+    private int asyncQueueSize = 100;
+
+    @GuardedBy("this")
+    private long asyncTimeout = 30000;
+
+    @GuardedBy("this")
+    private boolean annotationIndexEnabled = true;
+
+    @GuardedBy("this")
+    private int annotationScanThreads = Runtime.getRuntime().availableProcessors();
+
+    @GuardedBy("this")
     private RequestExaminer requestExaminer = new RequestExaminerImpl();
 
     // For error handling, a handler and redirect location
+    @GuardedBy("this")
     private UncaughtServletExceptionHandler uncaughtExceptionHandler = null;
 
     // Maps URLs to classes
-    private final ConcurrentMap<String, Class<? extends HttpServlet>> urlMap
-            = new ConcurrentHashMap(500, 0.8f, 50);
-
-    // Maps the whole URL of resolved partial URLs to classes
-    private final ConcurrentLinkedHashMap<String, Class<? extends HttpServlet>> partialsMap
-            = ConcurrentLinkedHashMap.create(EvictionPolicy.LRU, 10000, 50);
+    @GuardedBy("this")
+    private final Map<String, Class<? extends HttpServlet>> urlMap = new HashMap<String, Class<? extends HttpServlet>>();
 
     // A map of regex's to test mapping against
-    private final ConcurrentMap<String, Class<? extends HttpServlet>> regexMap
-            = new ConcurrentHashMap();
+    @GuardedBy("this")
+    private final Map<String, Class<? extends HttpServlet>> regexMap = new LinkedHashMap<String, Class<? extends HttpServlet>>();
 
     // A map of HttpServlet classes to mapping for that class
-    private final ConcurrentHashMap<Class<? extends HttpServlet>, ServletMapping> servletMap
-            = new ConcurrentHashMap();
+    @GuardedBy("this")
+    private final Map<Class<? extends HttpServlet>, ServletMapping> servletMap
+            = new HashMap<Class<? extends HttpServlet>, ServletMapping>();
 
     // Class for resolving filters at various paths and depths
-    private final ConcurrentSkipListSet<FilterMapping> filters = new ConcurrentSkipListSet();
+    @GuardedBy("this")
+    private final TreeSet<FilterMapping> filters = new TreeSet<FilterMapping>();
+
+    // The routing state currently in use by requests, replaced wholesale on (re)configuration
+    private volatile InvokerState state = InvokerState.EMPTY;
+
+    // Request counts and latencies for every servlet and filter
+    private final InvokerMetrics metrics = new InvokerMetrics();
+
+    // Constructs and initializes replacements for servlet instances that reached their max uses
+    @GuardedBy("this")
+    private ExecutorService warmer = null;
+
+    // Services async servlets off of the container's threads
+    @GuardedBy("this")
+    private ExecutorService asyncExecutor = null;
+
+    @GuardedBy("this")
+    private ScheduledExecutorService asyncTimer = null;
 
-    // Used to queue requests during (re)configuration.  Fairness is enabled,
-    // otherwise writes could wait indefinitely because of the high contention
-    // on this filter.
-    private final ReadWriteLock lock  = new ReentrantReadWriteLock(true);
-    private final Lock          read  = lock.readLock();
-    private final Lock          write = lock.writeLock();
+    @GuardedBy("this")
+    private AsyncDispatcher async = null;
 
     private final Log log = LogFactory.getLog(getClass());
 
@@ -207,268 +305,197 @@ public final class InvokerFilter implements Filter
                                    .substring( httpReq.getContextPath().length() )  // chop the context-path
                                    .toLowerCase();                                  // all comparisons in lower-case
 
+        // Read the current configuration once, so this request sees it consistently
+        final InvokerState state = this.state;
+
         // Benchmark vars
         final long start   = System.currentTimeMillis();  // start time
 
         long resolve = 0,                           // time after figuring out what to do
              process = 0,                           // time after processing
-             finish  = 0;                           // finish time
+             finish  = 0,                           // finish time
+             regex   = 0;                           // nanoseconds spent matching regex mappings
 
         // Set cache-control based on content
-        if (Constants.RUN_MODE.compareTo(RunMode.PRODUCTION) == -1) // dev mode
-        {
-            httpResp.setHeader(HEADER_PRAGMA, "no-cache");
-            httpResp.setHeader(HEADER_CACHE_CONTROL, "no-store");
-        } 
-        else if (path.matches(SHORT_CACHE_REGEX) && !path.contains(CAPTCHA_PATH))
-        {
-            httpResp.setHeader(HEADER_PRAGMA, PRAGMA_VAL);
-            httpResp.setHeader(HEADER_CACHE_CONTROL, SHORT_CACHE_VAL);
-        } 
-        else if (path.matches(LONG_CACHE_REGEX))
-        {
-            httpResp.setHeader(HEADER_PRAGMA, PRAGMA_VAL);
-            httpResp.setHeader(HEADER_CACHE_CONTROL, LONG_CACHE_VAL);
-        }
+        final boolean devMode = Constants.RUN_MODE.compareTo(RunMode.PRODUCTION) == -1;
+        if (devMode)
+            state.cacheControl.apply(CacheControlPolicy.NO_STORE, httpResp);
+        else
+            state.cacheControl.apply(path, httpResp);
 
-        try
+        if (log.isTraceEnabled())
+            log.trace("InvokerFilter for path: " + path);
+
+        // Try to get an explicit mapping from the whole URL to a class
+        Class<? extends HttpServlet> klass = state.urlMap.get(path);
+
+        // Check whether the path was discovered earlier to be static
+        if (klass == null && state.staticPaths.contains(path)) klass = StaticResource.class;
+
+        // Try to a fast lookup using the whole URL for a previously resolved partial URL.
+        if (klass == null && state.partialsEnabled) klass = state.partialsMap.get(path);
+
+        /**
+         * If we don't already have an exact match for this path,
+         * try to break it down.
+         *
+         * Certain extensions are known to be mapped in web.xml,
+         * known to never be dynamic resources (e.g. .swf), or
+         * were discovered earlier to be static content, so don't
+         * process those.
+         */
+        if (klass == null && !state.bypassPath.matcher(path).matches())
         {
-            // This will block requests during configuration
-            read.lock();
+            // (1) Look for *.ext wildcard matches
+            klass = state.routes.extension(path);
 
-            if (log.isTraceEnabled())
-                log.trace("InvokerFilter for path: " + path);
-
-            // Try to get an explicit mapping from the whole URL to a class
-            Class<? extends HttpServlet> klass = urlMap.get(path);
-
-            // Try to a fast lookup using the whole URL for a previously resolved partial URL.
-            if (klass == null) klass = partialsMap.get(path);
-
-            /**
-             * If we don't already have an exact match for this path,
-             * try to break it down.
-             *
-             * Certain extensions are known to be mapped in web.xml,
-             * known to never be dynamic resources (e.g. .swf), or
-             * were discovered earlier to be static content, so don't
-             * process those.
-             */
-            if (klass == null && !path.matches(bypassPath))
+            // (2) Check the regex mappings against the path, all at once
+            if (klass == null)
             {
-                // (1) Look for *.ext wildcard matches
-                String partial;
-
-                int index = path.lastIndexOf(".");          // If the path contains a "." then check for the *.ext patterns
-                if (index != -1)
+                if (state.benchmark)
                 {
-                    partial = "*" + path.substring(index); // gives us the *.<THE_EXTENSION>
-                    klass = urlMap.get(partial);
+                    regex = System.nanoTime();
+                    klass = state.routes.regex(path);
+                    regex = System.nanoTime() - regex;
                 }
+                else
+                    klass = state.routes.regex(path);
+            }
 
-                // (2) Check any regex mapping against the path
-                if (klass == null)
+            // (3) Check for possible /something/* patterns, most specific first
+            if (klass == null)
+                klass = state.routes.wildcard(path);
+
+            // (4) If we found a class in any way, register it with the currentPath for faster future lookups
+            //     UNLESS the config for that klass prohibits it (e.g. a servlet mapped to /user/* in an app
+            //     with millions of users could increase the size of urlMap well beyond what is optimal, so
+            //     if a servlet knows that is a possibility, it can specify to not save direct mapping when
+            //     the servlet was found via a partial mapping)
+            if (klass != null)
+            {
+                if (log.isTraceEnabled()) log.trace("Matched path " + path + " to " + klass.getName());
+                
+                // Make sure the ServletConfig supports direct lookups before storing the resolved path
+                if (state.partialsEnabled && state.servletMap.get(klass).config.preferDirectLookups())
                 {
-                    // @TODO this iteration could be coslty... perhaps it would be more efficient to have
-                    //       constructed one long regex of all the possible regex mapping with
-                    String regex;
-                    Iterator<String> itr = regexMap.keySet().iterator();
-                    while (itr.hasNext())
-                    {
-                        regex = itr.next();
-                        if (path.matches(regex))
-                        {
-                            // Sweet, we have a match, but make sure we actually get the klass
-                            // since it could have been altered since we got the iterator (though, unlikely)
-                            klass = regexMap.get(regex);
-                            if (klass != null)
-                            {
-                                // Even better, we got the klass, so move on
-                                break;
-                            }
-                        }
-                    }
+                    state.partialsMap.putIfAbsent(path, klass);
                 }
+            }
+        }
 
-                // (3) Check for possible /something/* patterns
-                if (klass == null)
-                {
-                    // start with the full path
-                    partial = path; 
-
-                    // Start with most specific and move down to just /*
-                    while ((index = partial.lastIndexOf("/")) > 0)
-                    {
-                        // Chop off everything past the last "/" and add the "*"
-                        partial = partial.substring(0, index + 1) + "*"; // if we had /first/second, we'd get /first/*
-
-                        if (log.isTraceEnabled()) log.trace("Trying wildcard partial resource: " + partial);
+        // If we didn't find it, then just pass it on
+        if (klass == null)
+        {
+            if (log.isTraceEnabled()) log.trace("Dynamic resource not found for path: " + path);
 
-                        klass = urlMap.get(partial);
+            // Save this path in the staticPaths so we don't have to look it up next time,
+            // unless it's a one-off that would displace more popular static paths
+            state.staticPaths.add(path);
 
-                        // if we found a match, or if we made it to the simplest form and didn't find anything, get out
-                        if (klass != null || partial.equals("/*"))
-                            break;
+            resolve = System.currentTimeMillis();
+            chain.doFilter(req, resp);
+            process  = System.currentTimeMillis();
+        } 
+        else if (klass == StaticResource.class)
+        {
+            // If it's known to be static, then pass it on
+            if (log.isTraceEnabled())
+                log.trace("Processing known static path: " + path);
 
-                        // Otherwise, let's try the next chunk, so chop the ending "/*" off
-                        partial = partial.substring(0, index); // If we had /first/second to start, we'd get /first
+            resolve = System.currentTimeMillis();
+            chain.doFilter(req, resp);
+            process  = System.currentTimeMillis();
+        }
+        else
+        {
+            ServletMapping mapping = state.servletMap.get(klass);
 
-                        if (log.isTraceEnabled()) log.trace("Next partial: " + partial);
-                    }
-                }
+            // The servlet may override the caching headers for the paths it serves
+            if (mapping.cacheControl != null && !devMode)
+                state.cacheControl.apply(mapping.cacheControl, httpResp);
 
-                // (4) If we found a class in any way, register it with the currentPath for faster future lookups
-                //     UNLESS the config for that klass prohibits it (e.g. a servlet mapped to /user/* in an app
-                //     with millions of users could increase the size of urlMap well beyond what is optimal, so
-                //     if a servlet knows that is a possibility, it can specify to not save direct mapping when
-                //     the servlet was found via a partial mapping)
-                if (klass != null)
-                {
-                    if (log.isTraceEnabled()) log.trace("Matched path " + path + " to " + klass.getName());
-                    
-                    // Make sure the ServletConfig supports direct lookups before storing the resolved path
-                    if (servletMap.get(klass).config.preferDirectLookups())
-                    {
-                        partialsMap.putIfAbsent(path, klass);
-                    }
-                }
-            }
+            // If the klass requires SSL, make sure we're on an SSL connection
+            boolean isSsl = state.requestExaminer.isSSL(httpReq);
 
-            // If we didn't find it, then just pass it on
-            if (klass == null)
+            SSLOption sslOpt = mapping.config.ssl();
+            if (sslOpt == SSLOption.UNSPECIFIED)
+                sslOpt = state.defaultSSLOption;
+            
+            if (sslOpt == SSLOption.REQUIRE && !isSsl)
             {
-                if (log.isTraceEnabled()) log.trace("Dynamic resource not found for path: " + path);
-
-                // Save this path in the staticSet so we don't have to look it up next time
-                urlMap.putIfAbsent(path, StaticResource.class);
-
-                resolve = System.currentTimeMillis();
-                chain.doFilter(req, resp);
-                process  = System.currentTimeMillis();
+                if (log.isDebugEnabled()) log.debug("Redirecting over SSL: " + path + " [url=" + httpReq.getRequestURL() + "]");
+                redirectOverSSL(httpReq, httpResp, state.sslRedirectPort);
+                return;
             } 
-            else if (klass == StaticResource.class)
+            else if (sslOpt == SSLOption.DENY && isSsl)
             {
-                // If it's known to be static, then pass it on
-                if (log.isTraceEnabled())
-                    log.trace("Processing known static path: " + path);
+                if (log.isDebugEnabled()) log.debug("Redirecting off SSL: " + path + " [url=" + httpReq.getRequestURL() + "]");
+                redirectOverNonSSL(httpReq, httpResp, state.nonSslRedirectPort);
+                return;
+            }
 
-                resolve = System.currentTimeMillis();
-                chain.doFilter(req, resp);
-                process  = System.currentTimeMillis();
+            // Shed load if the servlet is already servicing as many requests as it allows
+            if (!mapping.tryAcquirePermit())
+            {
+                if (log.isDebugEnabled()) log.debug("Rejecting request over concurrency limit: " + path);
+                httpResp.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+                return;
             }
-            else
+
+            boolean dispatched = false;
+            try
             {
-                ServletMapping mapping = servletMap.get(klass);
+                if (log.isTraceEnabled()) log.trace("Dynamic resource found, servicing with " + klass.getName());
 
-                // If the klass requires SSL, make sure we're on an SSL connection
-                boolean isSsl = requestExaminer.isSSL(httpReq);
+                // Get the time after finding the resource
+                resolve = System.currentTimeMillis();
 
-                SSLOption sslOpt = mapping.config.ssl();
-                if (sslOpt == SSLOption.UNSPECIFIED)
-                    sslOpt = defaultSSLOption;
+                // Service the end-point on the chain
+                if (log.isTraceEnabled())
+                    log.trace("ServiceChain [path=" + path +", endPoint=" + mapping.getName() + "]");
                 
-                if (sslOpt == SSLOption.REQUIRE && !isSsl)
-                {
-                    if (log.isDebugEnabled()) log.debug("Redirecting over SSL: " + path + " [url=" + httpReq.getRequestURL() + "]");
-                    redirectOverSSL(httpReq, httpResp, sslRedirectPort);
-                    return;
-                } 
-                else if (sslOpt == SSLOption.DENY && isSsl)
-                {
-                    if (log.isDebugEnabled()) log.debug("Redirecting off SSL: " + path + " [url=" + httpReq.getRequestURL() + "]");
-                    redirectOverNonSSL(httpReq, httpResp, nonSslRedirectPort);
-                    return;
-                }
+                ServiceChain serviceChain = new ServiceChain(state.filterChains.resolve(path), path, mapping);
 
-                try
-                {
-                    if (log.isTraceEnabled()) log.trace("Dynamic resource found, servicing with " + klass.getName());
-
-                    // Get the time after finding the resource
-                    resolve = System.currentTimeMillis();
-
-                    // Service the end-point on the chain
-                    if (log.isTraceEnabled())
-                        log.trace("ServiceChain [path=" + path +", endPoint=" + mapping.getName() + "]");
-                    
-                    new ServiceChain(filters.iterator(), path, mapping).service(httpReq, httpResp);
+                // Async servlets are serviced on the dispatcher's threads, which then
+                // own the request; if it can't be made async, service it here
+                if (mapping.config.async() && state.async != null)
+                    dispatched = state.async.dispatch(httpReq, httpResp, serviceChain, mapping, state.uncaughtExceptionHandler);
 
-                    // Get the time after running
-                    process = System.currentTimeMillis();
-
-                    if (httpReq.getParameter("benchmark") != null)
-                        log.info(klass.getName() + " execution time: " + (process - start));
-                } 
-                catch (Exception e)
-                {
-                    process = System.currentTimeMillis();
-
-                    if (uncaughtExceptionHandler != null)
-                        uncaughtExceptionHandler.handleException(req, resp, e);
-                    else
-                        throw new ServletException(e);
-                } 
-                finally
-                {
-                    // maxUses values less than 0 indicate the value is not set and the default should be used
-                    // maxUses == 0 indicates the servlet should NOT be reloaded
-                    int maxUses = mapping.config.maxUses() < 0 ? maxServletUses : mapping.config.maxUses();
-                    if (maxUses > 0)
-                    {
-                        long instanceUses = mapping.incrementUses(); // only increment if servlet reloading is enabled
-                        if (instanceUses >= maxUses)
-                        {
-                            try
-                            {
-                                HttpServlet newInstance = klass.newInstance();          // Create a new instance
-                                newInstance.init(mapping.servlet.getServletConfig());   // Copy over the javax.servlet.ServletConfig
+                if (!dispatched)
+                    serviceChain.service(httpReq, httpResp);
 
-                                ServletMapping newMapping = new ServletMapping(newInstance, mapping.config);  // new instance but old config
+                // Get the time after running
+                process = System.currentTimeMillis();
 
-                                if (log.isTraceEnabled())
-                                {
-                                    if (servletMap.replace(klass, mapping, newMapping))
-                                        log.trace("Successfully replaced old " + klass.getSimpleName() + " with a new instance");
-                                    else
-                                        log.trace("Failed to replace old " + klass.getSimpleName() + " with a new instance");
-                                }
-                                else
-                                {
-                                    // if we're not tracing, don't bother checking the result, because
-                                    // either (a) it succeeded and the new servlet is in place, or
-                                    // (b) it failed meaning another thread beat us to it.
-                                    servletMap.replace(klass, mapping, newMapping);
-                                }
+                if (httpReq.getParameter("benchmark") != null)
+                    log.info(klass.getName() + " execution time: " + (process - start));
+            } 
+            catch (Exception e)
+            {
+                process = System.currentTimeMillis();
 
-                                // In either case, the old serlvet is no longer in use, but DON'T
-                                // destroy it yet, since it may be in the process of serving other
-                                // requests. By removing the mapping to it, it should be garbage
-                                // collected.
-                            }
-                            catch (Exception e)
-                            {
-                                log.error("Error replacing " + klass.getSimpleName() + " instance after " + instanceUses + " uses!", e);
-                            }
-                        }
-                    }
-                }
+                if (state.uncaughtExceptionHandler != null)
+                    state.uncaughtExceptionHandler.handleException(req, resp, e);
+                else
+                    throw new ServletException(e);
             }
-
-            finish = System.currentTimeMillis();
-
-            if (benchmark)
+            finally
             {
-                log.info(
-                    String.format(
-                        "[path=%s, find=%d, run=%d, finish=%d]",
-                        path, (resolve - start), (process - resolve), (finish - process)
-                    )
-                );
+                if (!dispatched)
+                    mapping.releasePermit();
             }
-        } 
-        finally
+        }
+
+        finish = System.currentTimeMillis();
+
+        if (state.benchmark)
         {
-            read.unlock(); // Make sure to release the read lock
+            log.info(
+                String.format(
+                    "[path=%s, find=%d, regex=%dus, run=%d, finish=%d]",
+                    path, (resolve - start), TimeUnit.NANOSECONDS.toMicros(regex), (process - resolve), (finish - process)
+                )
+            );
         }
     }
 
@@ -476,159 +503,225 @@ public final class InvokerFilter implements Filter
      *
      * @param fc
      */
-    public void init(javax.servlet.FilterConfig fc)
+    public synchronized void init(javax.servlet.FilterConfig fc)
     {
-        try
-        {
-            write.lock();
+        Configuration config = (Configuration)Global.get(CONTEXT_ATTR_CONFIG);
+        if (config != null) configure(config);
 
-            Configuration config = (Configuration)Global.get(CONTEXT_ATTR_CONFIG);
-            if (config != null) configure(config);
+        // Use a custom exception handler, if there is one
+        UncaughtServletExceptionHandler ueh =
+                (UncaughtServletExceptionHandler) Global.get(CONTEXT_ATTR_UNCAUGHT_EXCEPTION_HANDLER);
+        if (ueh != null) uncaughtExceptionHandler = ueh;
 
-            // Use a custom exception handler, if there is one
-            UncaughtServletExceptionHandler ueh =
-                    (UncaughtServletExceptionHandler) Global.get(CONTEXT_ATTR_UNCAUGHT_EXCEPTION_HANDLER);
-            if (ueh != null) uncaughtExceptionHandler = ueh;
+        // Use a custom request examiner, if there is one
+        RequestExaminer reqex = (RequestExaminer) Global.get(CONTEXT_ATTR_REQUEST_EXAMINER);
+        if (reqex != null) requestExaminer = reqex;
 
-            // Use a custom request examiner, if there is one
-            RequestExaminer reqex = (RequestExaminer) Global.get(CONTEXT_ATTR_REQUEST_EXAMINER);
-            if (reqex != null) requestExaminer = reqex;
+        // Make the metrics available to the InvokerMetricsServlet
+        Global.put(CONTEXT_ATTR_INVOKER_METRICS, metrics);
+        metrics.setContext(fc.getServletContext());
+        metrics.setJmxEnabled(config == null || config.getBoolean(Property.METRICS_JMX, true));
 
-            ServletContext context = fc.getServletContext();
-            load(context);
+        warmer = Executors.newSingleThreadExecutor();
 
-            // StaticJspServlet
-            if (config.getBoolean(PROP_STATICJSP_ON, false))
-            {
-                String staticJspDir  = config == null ? DEFAULT_STATICJSP_DIR : config.getString(PROP_STATICJSP_DIR,DEFAULT_STATICJSP_DIR);
-                String staticJspPath = config == null ? DEFAULT_STATICJSP_PATH : config.getString(PROP_STATICJSP_PATH,DEFAULT_STATICJSP_PATH);
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(
+                                            asyncThreads, asyncThreads, 60, TimeUnit.SECONDS,
+                                            new LinkedBlockingQueue<Runnable>(asyncQueueSize)
+                                        );
+        executor.allowCoreThreadTimeOut(true);
+
+        asyncExecutor = executor;
+        asyncTimer    = Executors.newSingleThreadScheduledExecutor();
+        async         = new AsyncDispatcher(asyncExecutor, asyncTimer, asyncTimeout);
 
-                StaticJspServlet.directory.set(staticJspDir);
+        ServletContext context = fc.getServletContext();
+        load(context);
 
-                Set<String> staticJsps = context.getResourcePaths(staticJspDir);
-                if (staticJsps != null && !staticJsps.isEmpty())
+        // StaticJspServlet
+        if (config.getBoolean(PROP_STATICJSP_ON, false))
+        {
+            String staticJspDir  = config == null ? DEFAULT_STATICJSP_DIR : config.getString(PROP_STATICJSP_DIR,DEFAULT_STATICJSP_DIR);
+            String staticJspPath = config == null ? DEFAULT_STATICJSP_PATH : config.getString(PROP_STATICJSP_PATH,DEFAULT_STATICJSP_PATH);
+
+            StaticJspServlet.directory.set(staticJspDir);
+
+            Set<String> staticJsps = context.getResourcePaths(staticJspDir);
+            if (staticJsps != null && !staticJsps.isEmpty())
+            {
+                for (String jsp : staticJsps)
                 {
-                    for (String jsp : staticJsps)
+                    if (jsp.endsWith(".jsp"))
                     {
-                        if (jsp.endsWith(".jsp"))
-                        {
-                            jsp = staticJspPath + jsp.replace(staticJspDir, EMPTY).replaceAll("\\.jsp$", EMPTY);
-                            addServletMapping(jsp, StaticJspServlet.class);
-                        }
+                        jsp = staticJspPath + jsp.replace(staticJspDir, EMPTY).replaceAll("\\.jsp$", EMPTY);
+                        addServletMapping(jsp, StaticJspServlet.class);
                     }
                 }
             }
+        }
 
-            // LogoutServlet
-            if (config.getBoolean(PROP_SERVLET_LOGOUT_ON, false))
-                addServletMapping(config, PROP_SERVLET_LOGOUT_PATH, DEFAULT_LOGOUT_PATH, LogoutServlet.class);
+        // LogoutServlet
+        if (config.getBoolean(PROP_SERVLET_LOGOUT_ON, false))
+            addServletMapping(config, PROP_SERVLET_LOGOUT_PATH, DEFAULT_LOGOUT_PATH, LogoutServlet.class);
 
-            // ProxyServlet
-            if (config.getBoolean(PROP_SERVLET_PROXY_ON, false))
-                addServletMapping(config, PROP_SERVLET_PROXY_PATH, DEFAULT_PROXY_PATH, ProxyServlet.class);
+        // ProxyServlet
+        if (config.getBoolean(PROP_SERVLET_PROXY_ON, false))
+            addServletMapping(config, PROP_SERVLET_PROXY_PATH, DEFAULT_PROXY_PATH, ProxyServlet.class);
 
-            // Admin Servlet
-            if (config.getBoolean(PROP_SERVLET_ADMIN_ON, false))
-                addServletMapping(config, PROP_SERVLET_ADMIN_PATH, DEFAULT_ADMIN_PATH, EntityAdminServlet.class);
-        }
-        finally
-        {
-            write.unlock();
-        }
+        // Admin Servlet
+        if (config.getBoolean(PROP_SERVLET_ADMIN_ON, false))
+            addServletMapping(config, PROP_SERVLET_ADMIN_PATH, DEFAULT_ADMIN_PATH, EntityAdminServlet.class);
+
+        // Metrics Servlet
+        if (config.getBoolean(PROP_SERVLET_METRICS_ON, false))
+            addServletMapping(config, PROP_SERVLET_METRICS_PATH, DEFAULT_METRICS_PATH, InvokerMetricsServlet.class);
+
+        // Fragment cache analyzer Servlet
+        if (config.getBoolean(PROP_SERVLET_FRAGMENTS_ON, false))
+            addServletMapping(config, PROP_SERVLET_FRAGMENTS_PATH, DEFAULT_FRAGMENTS_PATH, FragmentCacheAnalyzerServlet.class);
+
+        publish();
     }
 
     /**
      * Release resources when destroyed
      */
-    public void destroy()
+    public synchronized void destroy()
     {
-        try
-        {
-            write.lock();
+        // Stop routing requests before tearing anything down
+        state = InvokerState.EMPTY;
 
-            // Destroy the servlets used in the mapping
-            for (ServletMapping mapping : servletMap.values())
-                mapping.servlet.destroy();
+        // Retire the servlets used in the mapping; each is destroyed once
+        // any requests it is still serving complete
+        for (ServletMapping mapping : servletMap.values())
+            mapping.destroy();
 
-            for (FilterMapping mapping : filters)
-                mapping.filter.destroy();
-
-            urlMap.clear();
-            partialsMap.clear();
-            regexMap.clear();
-            servletMap.clear();
-            filters.clear();
+        if (warmer != null)
+        {
+            warmer.shutdownNow();
+            warmer = null;
         }
-        finally
+
+        if (asyncExecutor != null)
         {
-            write.unlock(); // ALWAYS unlock
+            asyncExecutor.shutdownNow();
+            asyncTimer.shutdownNow();
+
+            asyncExecutor = null;
+            asyncTimer    = null;
+            async         = null;
         }
+
+        for (FilterMapping mapping : filters)
+            mapping.filter.destroy();
+
+        urlMap.clear();
+        regexMap.clear();
+        servletMap.clear();
+        filters.clear();
+
+        Global.remove(CONTEXT_ATTR_INVOKER_METRICS, metrics);
+        metrics.clear();
     }
 
     /**
-     * Configures the InvokerFilter, locking to prevent request processing
-     * while configuration is set.
+     * Stages the settings of the InvokerFilter; they take effect for
+     * requests the next time the configuration is published.
      */
-    private void configure(Configuration config)
+    private synchronized void configure(Configuration config)
     {
-        try
+        // In case the user has let us know about paths that are guaranteed static
+        bypassPath = config.getString(Property.BYPASS_PATH, EMPTY);
+
+        // Can enable benchmarking globally
+        benchmark = config.getBoolean(Property.BENCHMARK_REQS, false);
+
+        // Set the SSL redirect port
+        int val = config.getInt(Constants.PROP_LOCALPORT_SSL, -1);
+        if (val > 0)
+            sslRedirectPort = val;
+
+        // Set the SSL redirect port
+        val = config.getInt(Constants.PROP_LOCALPORT, -1);
+        if (val > 0)
+            nonSslRedirectPort = val;
+
+        // Set the reload threshold for servlets
+        maxServletUses = config.getInt(Property.MAX_SERVLET_USES, 1000);
+
+        // How many resolved filter chains to keep around
+        maxFilterChains = config.getInt(Property.FILTER_CHAINS, 10000);
+
+        // How many paths known to be static to keep around
+        maxStaticPaths = config.getInt(Property.STATIC_PATHS, 10000);
+
+        // Sizing of the executor for async servlets
+        asyncThreads   = Math.max(config.getInt(Property.ASYNC_THREADS, 50), 1);
+        asyncQueueSize = Math.max(config.getInt(Property.ASYNC_QUEUE, 100), 1);
+        asyncTimeout   = config.getLong(Property.ASYNC_TIMEOUT, 30000);
+
+        // Caching headers for static content
+        Map<String, String> cacheRules = new HashMap<String, String>(CacheControlPolicy.DEFAULT_RULES);
+
+        Iterator exts = config.getKeys(Property.CACHE_CONTROL_EXT);
+        while (exts.hasNext())
         {
-            write.lock();
+            String key = (String) exts.next();
 
-            // In case the user has let us know about paths that are guaranteed static
-            bypassPath = config.getString(Property.BYPASS_PATH, EMPTY);
+            // Values with commas, e.g. "public, max-age=3600", are split into lists
+            cacheRules.put(
+                key.substring(Property.CACHE_CONTROL_EXT.length() + 1),
+                StringUtils.join(config.getStringArray(key), ", ")
+            );
+        }
 
-            // Can enable benchmarking globally
-            benchmark = config.getBoolean(Property.BENCHMARK_REQS, false);
+        List<String> cacheExcludes = config.containsKey(Property.CACHE_CONTROL_EXCLUDE)
+                                        ? Arrays.asList(config.getStringArray(Property.CACHE_CONTROL_EXCLUDE))
+                                        : new ArrayList<String>(CacheControlPolicy.DEFAULT_EXCLUDES);
 
-            // Set the SSL redirect port
-            int val = config.getInt(Constants.PROP_LOCALPORT_SSL, -1);
-            if (val > 0)
-                sslRedirectPort = val;
+        cacheControl = new CacheControlPolicy(
+                            cacheRules,
+                            cacheExcludes,
+                            config.getBoolean(Property.CACHE_CONTROL_EXPIRES, false),
+                            config.getInt(Property.CACHE_CONTROL_PATHS, 10000)
+                        );
 
-            // Set the SSL redirect port
-            val = config.getInt(Constants.PROP_LOCALPORT, -1);
-            if (val > 0)
-                nonSslRedirectPort = val;
+        // Remembering annotation scans between restarts
+        annotationIndexEnabled = config.getBoolean(Property.ANNOTATION_INDEX, true);
+        annotationScanThreads  = config.getInt(Property.ANNOTATION_SCAN_THREADS, Runtime.getRuntime().availableProcessors());
 
-            // Set the reload threshold for servlets
-            maxServletUses = config.getInt(Property.MAX_SERVLET_USES, 1000);
+        // Memoizing wildcard / regex resolutions is optional
+        partialsEnabled = config.getBoolean(Property.PARTIALS_CACHE, false);
 
-            // The default SSL option
-            String defSSLStr = config.getString(Property.DEFAULT_SSL_OPT, null);
-            if (defSSLStr != null)
+        // The default SSL option
+        String defSSLStr = config.getString(Property.DEFAULT_SSL_OPT, null);
+        if (defSSLStr != null)
+        {
+            try
             {
-                try
-                {
-                    defaultSSLOption = SSLOption.valueOf(defSSLStr);
-                }
-                catch (Exception e)
-                {
-                    log.error("Error setting default SSLOption for value: " + defSSLStr);
-                }
+                defaultSSLOption = SSLOption.valueOf(defSSLStr);
+            }
+            catch (Exception e)
+            {
+                log.error("Error setting default SSLOption for value: " + defSSLStr);
             }
-        }
-        finally
-        {
-            write.unlock(); // ALWAYS unlock
         }
     }
 
     /**
-     * Locks to prevent request processing while mapping is added.
-     *
      * Finds all classes annotated with ServletConfig and maps the class to
      * the url specified in the annotation.  Wildcard mapping are allowed in
      * the form of *.extension or /some/path/*
      *
+     * Requests continue to be served by the current configuration until the
+     * new mappings are published, once loading is complete.
+     *
      * @param context an active ServletContext
      */
-    public void load(final ServletContext context)
+    public synchronized void load(final ServletContext context)
     {
+        final long start = System.currentTimeMillis();
         try
         {
-            write.lock();
-
             LinkedList<URL> urlList = new LinkedList<URL>();
             urlList.addAll(Arrays.asList(ClasspathUrlFinder.findResourceBases(EMPTY)));
             urlList.addAll(Arrays.asList(WarUrlFinder.findWebInfLibClasspaths(context)));
@@ -636,14 +729,24 @@ public final class InvokerFilter implements Filter
             URL[] urls = new URL[urlList.size()];
             urls = urlList.toArray(urls);
 
-            AnnotationDB annoDB = new AnnotationDB();
-            annoDB.setScanClassAnnotations(true);
-            annoDB.setScanFieldAnnotations(false);
-            annoDB.setScanMethodAnnotations(false);
-            annoDB.setScanParameterAnnotations(false);
-            annoDB.scanArchives(urls);
+            // Only archives that changed since the index was written are actually scanned
+            File indexFile = null;
+            InputStream indexSeed = null;
+            if (annotationIndexEnabled)
+            {
+                Object tempDir = context.getAttribute("javax.servlet.context.tempdir");
+                if (tempDir instanceof File)
+                    indexFile = new File((File) tempDir, ANNOTATION_INDEX_FILE);
+
+                indexSeed = context.getResourceAsStream(ANNOTATION_INDEX_RESOURCE);
+            }
+
+            Map<String, Set<String>> annotationIndex =
+                    new AnnotationIndex(
+                            indexFile, indexSeed, annotationScanThreads,
+                            ServletConfig.class.getName(), FilterConfig.class.getName()
+                        ).scan(urls);
 
-            HashMap<String, Set<String>> annotationIndex = (HashMap<String, Set<String>>) annoDB.getAnnotationIndex();
             if (annotationIndex != null && !annotationIndex.isEmpty())
             {
                 //-----------------------------------------------------------
@@ -673,8 +776,10 @@ public final class InvokerFilter implements Filter
 
                                         url = url.toLowerCase(); // all comparisons are lower-case
 
-                                        if (urlMap.putIfAbsent(url, klass) == null)
+                                        if (!urlMap.containsKey(url))
                                         {
+                                            urlMap.put(url, klass);
+
                                             if (log.isDebugEnabled())
                                                 log.debug("Mapping servlet " + klass.getName() + " to path " + url);
                                         } 
@@ -689,7 +794,8 @@ public final class InvokerFilter implements Filter
                                 // If the config specifies a regex mapping...
                                 if (!empty(config.regex()))
                                 {
-                                    regexMap.putIfAbsent(config.regex(), klass);
+                                    if (!regexMap.containsKey(config.regex()))
+                                        regexMap.put(config.regex(), klass);
                                     if (log.isDebugEnabled())
                                         log.debug("Mapping servlet " + klass.getName() + " to regex path " + config.regex());
                                 }
@@ -698,8 +804,15 @@ public final class InvokerFilter implements Filter
                                 HttpServlet servlet = klass.newInstance();
                                 servlet.init(new ServletConfigImpl(klass.getName(), context));
 
+                                // maxUses values less than 0 indicate the value is not set and the default should be used
+                                // maxUses == 0 indicates the servlet should NOT be reloaded
+                                int maxUses = config.maxUses() < 0 ? maxServletUses : config.maxUses();
+
                                 // Store a reference
-                                servletMap.put(klass, new ServletMapping(servlet, config));
+                                servletMap.put(
+                                        klass,
+                                        new ServletMapping(klass, servlet, config, metrics.servlet(klass.getName()), maxUses, warmer)
+                                    );
                             }
 
                         } 
@@ -733,7 +846,7 @@ public final class InvokerFilter implements Filter
                                     log.debug("Mapping filter " + klass.getName() + " to path " + config.match());
                                     
                                 // Store a reference
-                                filters.add( new FilterMapping(filter, config) );
+                                filters.add( new FilterMapping(filter, config, metrics.filter(klass.getName())) );
                             }
                         }
                         catch (Exception e)
@@ -743,49 +856,76 @@ public final class InvokerFilter implements Filter
                     }
                 }
             }
+
+            publish();
+
+            log.info(
+                String.format(
+                    "Loaded InvokerFilter mappings in %dms [servlets=%d, filters=%d]",
+                    (System.currentTimeMillis() - start), servletMap.size(), filters.size()
+                )
+            );
         } 
         catch (IOException e)
         {
             log.error("Error loading urlMappings", e);
         }
-        finally
-        {
-            write.unlock(); // ALWAYS Release the configure lock
-        }
     }
 
     /**
-     * Locks to prevent request processing while mapping is added.
+     * Maps a registered servlet to a path, publishing the new mapping to
+     * requests immediately.
      *
      * @param path The path to map a Servlet to
      * @param klass The Servlet to map
      * @return null if the servlet was mapped to the path, or a class if another servlet was already mapped to that path
      */
-    public Class<? extends HttpServlet> addServletMapping(String path, Class<? extends HttpServlet> klass)
+    public synchronized Class<? extends HttpServlet> addServletMapping(String path, Class<? extends HttpServlet> klass)
     {
-        try
-        {
-            write.lock();
+        if (servletMap.get(klass) == null)
+            throw new IllegalStateException("Illegal attempt to create a mapping to an unregistered servlet!");
 
-            if (servletMap.get(klass) == null)
-                throw new IllegalStateException("Illegal attempt to create a mapping to an unregistered servlet!");
+        if (log.isDebugEnabled())
+            log.debug("Mapping servlet " + klass.getName() + " to path " + path);
 
-            if (log.isDebugEnabled())
-                log.debug("Mapping servlet " + klass.getName() + " to path " + path);
+        // Leave the asterisk, we'll add it when matching...
+        //if (path.matches("(^\\*[^*]*?)|([^*]*?/\\*$)"))
+        //    path = path.replace("*", EMPTY);
 
-            // Leave the asterisk, we'll add it when matching...
-            //if (path.matches("(^\\*[^*]*?)|([^*]*?/\\*$)"))
-            //    path = path.replace("*", EMPTY);
+        path = path.toLowerCase();
 
-            path = path.toLowerCase();
-            return urlMap.putIfAbsent(path, klass);
-        } 
-        finally
+        Class<? extends HttpServlet> existing = urlMap.get(path);
+        if (existing == null)
         {
-            write.unlock(); // ALWAYS unlock
+            urlMap.put(path, klass);
+            publish();
         }
+
+        return existing;
     }
 
+    /**
+     * Compiles the staged settings, mappings and filters into a new
+     * {@link InvokerState} and swaps it in.  Requests already in progress
+     * finish with the snapshot they started with.
+     */
+    @GuardedBy("this")
+    private void publish()
+    {
+        RoutingTable routes = new RoutingTable(
+                                    new HashMap<String, Class<? extends HttpServlet>>(urlMap),
+                                    new LinkedHashMap<String, Class<? extends HttpServlet>>(regexMap)
+                                );
+
+        state = new InvokerState(
+                        benchmark, partialsEnabled, sslRedirectPort, nonSslRedirectPort,
+                        bypassPath, defaultSSLOption, requestExaminer, uncaughtExceptionHandler,
+                        urlMap, routes, servletMap, new FilterResolver(filters, maxFilterChains),
+                        maxStaticPaths, metrics.getStaticPaths(), cacheControl, async
+                    );
+
+        metrics.getStaticPaths().setCache(state.staticPaths);
+    }
 
     /**
      * Internal method for adding a servlet config
@@ -0,0 +1,274 @@
+/*
+ * InvokerMetrics.java
+ *
+ * Copyright 2011 FooBrew, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.j2free.invoker;
+
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Method;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.servlet.ServletContext;
+
+import net.jcip.annotations.ThreadSafe;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * The {@link RouteMetrics} for every servlet and filter serviced by an
+ * {@link InvokerFilter}, keyed by class name, so that metrics survive a
+ * servlet instance being recycled, and the {@link StaticPathMetrics} of the
+ * filter.
+ *
+ * When JMX is enabled, each <tt>RouteMetrics</tt> is registered with the
+ * platform MBeanServer as
+ * <tt>org.j2free:type=InvokerFilter,context=&lt;webapp&gt;,kind=servlet|filter,name=&lt;class&gt;</tt>,
+ * and the static path metrics as <tt>kind=staticPaths,name=StaticPathCache</tt>;
+ * the context keeping apart the metrics of webapps sharing a JVM: the
+ * context path where the container provides it (Servlet 2.5 and up), or
+ * else the webapp's display name.
+ *
+ * @author Ryan Wilson
+ */
+@ThreadSafe
+public final class InvokerMetrics
+{
+    private static final String DOMAIN = "org.j2free";
+
+    private static final String STATIC_PATHS_KIND = "staticPaths";
+    private static final String STATIC_PATHS_NAME = "StaticPathCache";
+
+    private final Log log = LogFactory.getLog(getClass());
+
+    private final ConcurrentHashMap<String, RouteMetrics> servlets = new ConcurrentHashMap<String, RouteMetrics>();
+    private final ConcurrentHashMap<String, RouteMetrics> filters  = new ConcurrentHashMap<String, RouteMetrics>();
+
+    private final StaticPathMetrics staticPaths = new StaticPathMetrics();
+
+    private volatile boolean jmxEnabled = false;
+
+    // Identifies the webapp in the names of its MBeans
+    private volatile String context = "/";
+
+    /**
+     * Sets the webapp the metrics are registered with JMX for, re-registering
+     * any existing metrics as needed.
+     */
+    synchronized void setContext(ServletContext servletContext)
+    {
+        String key = contextOf(servletContext);
+        if (key.equals(context))
+            return;
+
+        if (jmxEnabled)
+            unregisterAll();
+
+        context = key;
+
+        if (jmxEnabled)
+            registerAll();
+    }
+
+    /**
+     * Enables or disables registration with JMX, registering or
+     * unregistering any existing metrics as needed.
+     */
+    synchronized void setJmxEnabled(boolean enabled)
+    {
+        if (enabled == jmxEnabled)
+            return;
+
+        jmxEnabled = enabled;
+
+        if (enabled)
+            registerAll();
+        else
+            unregisterAll();
+    }
+
+    /**
+     * @return The metrics for the servlet, created if necessary
+     */
+    RouteMetrics servlet(String name)
+    {
+        return get(servlets, name, RouteMetrics.SERVLET);
+    }
+
+    /**
+     * @return The metrics for the filter, created if necessary
+     */
+    RouteMetrics filter(String name)
+    {
+        return get(filters, name, RouteMetrics.FILTER);
+    }
+
+    /**
+     * @return The metrics for every servlet that has been mapped
+     */
+    public Collection<RouteMetrics> getServlets()
+    {
+        return Collections.unmodifiableCollection(servlets.values());
+    }
+
+    /**
+     * @return The metrics for every filter that has been mapped
+     */
+    public Collection<RouteMetrics> getFilters()
+    {
+        return Collections.unmodifiableCollection(filters.values());
+    }
+
+    /**
+     * @return The metrics of the cache of paths known to be static
+     */
+    public StaticPathMetrics getStaticPaths()
+    {
+        return staticPaths;
+    }
+
+    /**
+     * Unregisters and forgets all metrics, and disables registration with
+     * JMX until it is enabled again
+     */
+    synchronized void clear()
+    {
+        if (jmxEnabled)
+            unregisterAll();
+
+        jmxEnabled = false;
+        servlets.clear();
+        filters.clear();
+    }
+
+    private RouteMetrics get(ConcurrentHashMap<String, RouteMetrics> map, String name, String kind)
+    {
+        RouteMetrics metrics = map.get(name);
+        if (metrics == null)
+        {
+            RouteMetrics created = new RouteMetrics(name, kind);
+
+            metrics = map.putIfAbsent(name, created);
+            if (metrics == null)
+            {
+                metrics = created;
+                if (jmxEnabled)
+                    register(metrics);
+            }
+        }
+        return metrics;
+    }
+
+    private Collection<RouteMetrics> all()
+    {
+        ArrayList<RouteMetrics> all = new ArrayList<RouteMetrics>(servlets.size() + filters.size());
+        all.addAll(servlets.values());
+        all.addAll(filters.values());
+        return all;
+    }
+
+    private void registerAll()
+    {
+        for (RouteMetrics metrics : all())
+            register(metrics);
+
+        register(staticPaths, STATIC_PATHS_KIND, STATIC_PATHS_NAME);
+    }
+
+    private void unregisterAll()
+    {
+        for (RouteMetrics metrics : all())
+            unregister(metrics);
+
+        unregister(STATIC_PATHS_KIND, STATIC_PATHS_NAME);
+    }
+
+    private void register(RouteMetrics metrics)
+    {
+        register(metrics, metrics.getKind(), metrics.getName());
+    }
+
+    private void unregister(RouteMetrics metrics)
+    {
+        unregister(metrics.getKind(), metrics.getName());
+    }
+
+    private void register(Object mbean, String kind, String name)
+    {
+        try
+        {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName objectName = nameOf(kind, name);
+
+            if (!server.isRegistered(objectName))
+                server.registerMBean(mbean, objectName);
+        }
+        catch (Exception e)
+        {
+            log.warn("Unable to register metrics MBean for " + name, e);
+        }
+    }
+
+    private void unregister(String kind, String name)
+    {
+        try
+        {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName objectName = nameOf(kind, name);
+
+            if (server.isRegistered(objectName))
+                server.unregisterMBean(objectName);
+        }
+        catch (Exception e)
+        {
+            log.warn("Unable to unregister metrics MBean for " + name, e);
+        }
+    }
+
+    private ObjectName nameOf(String kind, String name) throws Exception
+    {
+        return new ObjectName(
+                    DOMAIN + ":type=InvokerFilter,context=" + ObjectName.quote(context)
+                           + ",kind=" + kind + ",name=" + ObjectName.quote(name)
+                );
+    }
+
+    // J2Free builds against the Servlet 2.4 API, so getContextPath is looked up reflectively
+    private static String contextOf(ServletContext servletContext)
+    {
+        try
+        {
+            Method getContextPath = ServletContext.class.getMethod("getContextPath");
+            String path = (String) getContextPath.invoke(servletContext);
+            if (path != null)
+                return path.length() == 0 ? "/" : path;
+        }
+        catch (Exception e)
+        {
+            // Not a Servlet 2.5 container
+        }
+
+        String name = servletContext.getServletContextName();
+        return name != null ? name : "context@" + Integer.toHexString(System.identityHashCode(servletContext));
+    }
+}
@@ -0,0 +1,148 @@
+/*
+ * InvokerState.java
+ *
+ * Copyright 2011 FooBrew, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.j2free.invoker;
+
+import com.reardencommerce.kernel.collections.shared.evictable.ConcurrentLinkedHashMap;
+import com.reardencommerce.kernel.collections.shared.evictable.ConcurrentLinkedHashMap.EvictionPolicy;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import java.util.concurrent.ConcurrentMap;
+
+import java.util.regex.Pattern;
+
+import javax.servlet.http.HttpServlet;
+
+import net.jcip.annotations.Immutable;
+
+import org.j2free.annotations.ServletConfig.SSLOption;
+import org.j2free.util.UncaughtServletExceptionHandler;
+
+/**
+ * A snapshot of everything the {@link InvokerFilter} needs to route a
+ * request: its settings, the compiled mappings, the registered servlets
+ * and the filters.
+ *
+ * Request threads read the current snapshot through a single volatile
+ * reference and never lock.  (Re)configuration builds a new snapshot
+ * and swaps it in, so a request always sees one consistent configuration
+ * from start to finish.
+ *
+ * The snapshot's configuration is immutable.  The only mutable pieces
+ * are caches of lookups made against that configuration (paths known to
+ * be static, and memoized partial resolutions), which are discarded along
+ * with the snapshot.  Servlet instances are recycled inside their
+ * {@link ServletMapping}, so <tt>servletMap</tt> never changes.
+ *
+ * @author Ryan Wilson
+ */
+@Immutable
+final class InvokerState
+{
+    // Settings
+    final boolean   benchmark;
+    final boolean   partialsEnabled;
+
+    final int       sslRedirectPort;
+    final int       nonSslRedirectPort;
+
+    final Pattern   bypassPath;
+    final SSLOption defaultSSLOption;
+
+    final RequestExaminer                 requestExaminer;
+    final UncaughtServletExceptionHandler uncaughtExceptionHandler;
+
+    // Explicit mappings from URLs to classes
+    final Map<String, Class<? extends HttpServlet>> urlMap;
+
+    // Compiled *.ext, /some/path/* and regex mappings
+    final RoutingTable routes;
+
+    // A map of HttpServlet classes to the mapping for that class
+    final Map<Class<? extends HttpServlet>, ServletMapping> servletMap;
+
+    // Resolves, and remembers, which filters apply to a path
+    final FilterResolver filterChains;
+
+    // Decides the caching headers sent with each path
+    final CacheControlPolicy cacheControl;
+
+    // Services async servlets, or null if the filter isn't initialized
+    final AsyncDispatcher async;
+
+    // A bounded set of paths that resolved to no servlet
+    final StaticPathCache staticPaths;
+
+    // Maps the whole URL of resolved partial URLs to classes, if enabled
+    final ConcurrentMap<String, Class<? extends HttpServlet>> partialsMap;
+
+    /**
+     * An empty configuration, used before the filter is initialized and
+     * after it is destroyed.
+     */
+    static final InvokerState EMPTY = new InvokerState(
+                                            false, false, -1, -1, "", SSLOption.UNSPECIFIED,
+                                            new RequestExaminerImpl(), null,
+                                            new HashMap<String, Class<? extends HttpServlet>>(0),
+                                            RoutingTable.EMPTY,
+                                            new HashMap<Class<? extends HttpServlet>, ServletMapping>(0),
+                                            FilterResolver.EMPTY,
+                                            1, new StaticPathMetrics(), CacheControlPolicy.DEFAULT, null
+                                        );
+
+    InvokerState(boolean benchmark,
+                 boolean partialsEnabled,
+                 int sslRedirectPort,
+                 int nonSslRedirectPort,
+                 String bypassPath,
+                 SSLOption defaultSSLOption,
+                 RequestExaminer requestExaminer,
+                 UncaughtServletExceptionHandler uncaughtExceptionHandler,
+                 Map<String, Class<? extends HttpServlet>> urlMap,
+                 RoutingTable routes,
+                 Map<Class<? extends HttpServlet>, ServletMapping> servletMap,
+                 FilterResolver filterChains,
+                 int maxStaticPaths,
+                 StaticPathMetrics staticPathMetrics,
+                 CacheControlPolicy cacheControl,
+                 AsyncDispatcher async)
+    {
+        this.benchmark                = benchmark;
+        this.partialsEnabled          = partialsEnabled;
+        this.sslRedirectPort          = sslRedirectPort;
+        this.nonSslRedirectPort       = nonSslRedirectPort;
+        this.bypassPath               = Pattern.compile(bypassPath);
+        this.defaultSSLOption         = defaultSSLOption;
+        this.requestExaminer          = requestExaminer;
+        this.uncaughtExceptionHandler = uncaughtExceptionHandler;
+
+        this.urlMap       = Collections.unmodifiableMap(new HashMap<String, Class<? extends HttpServlet>>(urlMap));
+        this.routes       = routes;
+        this.servletMap   = Collections.unmodifiableMap(new HashMap<Class<? extends HttpServlet>, ServletMapping>(servletMap));
+        this.filterChains = filterChains;
+        this.cacheControl = cacheControl;
+        this.async        = async;
+
+        this.staticPaths = new StaticPathCache(maxStaticPaths, staticPathMetrics);
+        this.partialsMap = partialsEnabled
+                            ? ConcurrentLinkedHashMap.<String, Class<? extends HttpServlet>>create(EvictionPolicy.LRU, 10000, 50)
+                            : null;
+    }
+}
@@ -0,0 +1,188 @@
+/*
+ * RegexMatcher.java
+ *
+ * Copyright 2011 FooBrew, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.j2free.invoker;
+
+import java.util.ArrayList;
+import java.util.Map;
+
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+import javax.servlet.http.HttpServlet;
+
+import net.jcip.annotations.ThreadSafe;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Matches a path against every {@link org.j2free.annotations.ServletConfig}
+ * regex at once.  All of the regexes are compiled into a single alternation,
+ * <tt>(regex0)|(regex1)|...</tt>, and the capture group that participated
+ * in the match identifies the servlet.  Since each regex may contain groups
+ * of its own, the index of the wrapping group for each alternative is
+ * computed when the matcher is built.
+ *
+ * Regexes that use back-references cannot be renumbered safely, so those
+ * (rare) regexes are kept as individually precompiled patterns and tried
+ * after the combined pattern.
+ *
+ * Like {@link String#matches}, a regex must match the entire path.
+ *
+ * @author Ryan Wilson
+ */
+@ThreadSafe
+final class RegexMatcher
+{
+    private static final Log log = LogFactory.getLog(RegexMatcher.class);
+
+    // Catches \1 through \9 and \k<name>, which would break when renumbered
+    private static final Pattern BACK_REFERENCE = Pattern.compile("\\\\(?:[1-9]|k<)");
+
+    private final Pattern combined;                         // null if there was nothing to combine
+    private final int[] groups;                             // groups[i] is the wrapping group of alternative i
+    private final Class<? extends HttpServlet>[] targets;   // targets[i] is mapped to alternative i
+
+    private final Pattern[] fallbacks;
+    private final Class<? extends HttpServlet>[] fallbackTargets;
+
+    // Matchers are not thread-safe, but are reusable, so keep one per thread
+    private final ThreadLocal<Matcher> matchers = new ThreadLocal<Matcher>() {
+        @Override
+        protected Matcher initialValue()
+        {
+            return combined.matcher("");
+        }
+    };
+
+    /**
+     * @param regexes regexes mapped to the servlet that should handle paths matching them
+     */
+    RegexMatcher(Map<String, Class<? extends HttpServlet>> regexes)
+    {
+        StringBuilder alternation = new StringBuilder();
+
+        ArrayList<Integer> groupList = new ArrayList<Integer>();
+        ArrayList<Pattern> patternList = new ArrayList<Pattern>();
+        ArrayList<Class<? extends HttpServlet>> targetList = new ArrayList<Class<? extends HttpServlet>>();
+
+        ArrayList<Pattern> fallbackList = new ArrayList<Pattern>();
+        ArrayList<Class<? extends HttpServlet>> fallbackTargetList = new ArrayList<Class<? extends HttpServlet>>();
+
+        int nextGroup = 1;
+        for (Map.Entry<String, Class<? extends HttpServlet>> entry : regexes.entrySet())
+        {
+            String regex = entry.getKey();
+
+            Pattern pattern;
+            try
+            {
+                pattern = Pattern.compile(regex);
+            }
+            catch (PatternSyntaxException e)
+            {
+                log.error("Ignoring invalid regex mapping for " + entry.getValue().getName() + ": " + regex, e);
+                continue;
+            }
+
+            if (BACK_REFERENCE.matcher(regex).find())
+            {
+                fallbackList.add(pattern);
+                fallbackTargetList.add(entry.getValue());
+                continue;
+            }
+
+            if (alternation.length() > 0)
+                alternation.append('|');
+
+            alternation.append('(').append(regex).append(')');
+
+            groupList.add(nextGroup);
+            patternList.add(pattern);
+            targetList.add(entry.getValue());
+
+            // the wrapping group, plus any groups inside the regex itself
+            nextGroup += 1 + pattern.matcher("").groupCount();
+        }
+
+        Pattern temp = null;
+        if (alternation.length() > 0)
+        {
+            try
+            {
+                temp = Pattern.compile(alternation.toString());
+            }
+            catch (PatternSyntaxException e)
+            {
+                // e.g. duplicate named groups across regexes; match individually instead
+                log.warn("Unable to combine regex mappings, matching them individually", e);
+
+                fallbackList.addAll(0, patternList);
+                fallbackTargetList.addAll(0, targetList);
+
+                groupList.clear();
+                targetList.clear();
+            }
+        }
+
+        this.combined = temp;
+
+        this.groups = new int[groupList.size()];
+        for (int i = 0; i < groups.length; i++)
+            groups[i] = groupList.get(i);
+
+        @SuppressWarnings("unchecked")
+        Class<? extends HttpServlet>[] targetArray = (Class<? extends HttpServlet>[]) new Class<?>[targetList.size()];
+        this.targets = targetList.toArray(targetArray);
+
+        @SuppressWarnings("unchecked")
+        Class<? extends HttpServlet>[] fallbackTargetArray = (Class<? extends HttpServlet>[]) new Class<?>[fallbackTargetList.size()];
+        this.fallbacks       = fallbackList.toArray(new Pattern[fallbackList.size()]);
+        this.fallbackTargets = fallbackTargetList.toArray(fallbackTargetArray);
+    }
+
+    /**
+     * @param path a lower-case path
+     * @return The servlet mapped to a regex matching the entire path,
+     *         or null if none match.
+     */
+    Class<? extends HttpServlet> match(String path)
+    {
+        if (combined != null)
+        {
+            Matcher matcher = matchers.get().reset(path);
+            if (matcher.matches())
+            {
+                for (int i = 0; i < groups.length; i++)
+                {
+                    if (matcher.start(groups[i]) != -1)
+                        return targets[i];
+                }
+            }
+        }
+
+        for (int i = 0; i < fallbacks.length; i++)
+        {
+            if (fallbacks[i].matcher(path).matches())
+                return fallbackTargets[i];
+        }
+
+        return null;
+    }
+}
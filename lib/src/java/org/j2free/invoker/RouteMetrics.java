@@ -0,0 +1,195 @@
+/*
+ * RouteMetrics.java
+ *
+ * Copyright 2011 FooBrew, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.j2free.invoker;
+
+import java.util.concurrent.TimeUnit;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.jcip.annotations.ThreadSafe;
+
+import org.j2free.util.concurrent.LatencyHistogram;
+
+/**
+ * Request count, error count, in-flight gauge and latency histogram for
+ * one servlet or filter serviced by the {@link InvokerFilter}.
+ *
+ * The latency recorded for a filter is the time spent in the filter
+ * itself, excluding the rest of the chain it invoked, so a slow servlet
+ * doesn't make every filter in front of it look slow too.
+ *
+ * @author Ryan Wilson
+ */
+@ThreadSafe
+public final class RouteMetrics implements RouteMetricsMBean
+{
+    /**
+     * Kind of a servlet's metrics
+     */
+    public static final String SERVLET = "servlet";
+
+    /**
+     * Kind of a filter's metrics
+     */
+    public static final String FILTER  = "filter";
+
+    private final String name;
+    private final String kind;
+
+    private final AtomicLong    requests = new AtomicLong(),
+                                errors   = new AtomicLong(),
+                                recycles = new AtomicLong(),
+                                rejected = new AtomicLong(),
+                                timeouts = new AtomicLong();
+    private final AtomicInteger inFlight = new AtomicInteger();
+
+    private final LatencyHistogram latencies = new LatencyHistogram();
+
+    RouteMetrics(String name, String kind)
+    {
+        this.name = name;
+        this.kind = kind;
+    }
+
+    /**
+     * Marks the start of a request
+     */
+    void begin()
+    {
+        requests.incrementAndGet();
+        inFlight.incrementAndGet();
+    }
+
+    /**
+     * Marks the end of a request started with {@link #begin}
+     *
+     * @param nanos the latency to record
+     * @param error whether the request threw an exception
+     */
+    void end(long nanos, boolean error)
+    {
+        inFlight.decrementAndGet();
+        latencies.record(nanos);
+
+        if (error)
+            errors.incrementAndGet();
+    }
+
+    /**
+     * Marks the replacement of a servlet instance
+     */
+    void recycled()
+    {
+        recycles.incrementAndGet();
+    }
+
+    /**
+     * Marks a request rejected for lack of capacity
+     */
+    void rejected()
+    {
+        rejected.incrementAndGet();
+    }
+
+    /**
+     * Marks an asynchronous request that timed out
+     */
+    void timedOut()
+    {
+        timeouts.incrementAndGet();
+    }
+
+    /**
+     * @return The underlying histogram, with latencies in nanoseconds
+     */
+    public LatencyHistogram getLatencies()
+    {
+        return latencies;
+    }
+
+    public String getName()
+    {
+        return name;
+    }
+
+    public String getKind()
+    {
+        return kind;
+    }
+
+    public long getRequests()
+    {
+        return requests.get();
+    }
+
+    public long getErrors()
+    {
+        return errors.get();
+    }
+
+    public int getInFlight()
+    {
+        return inFlight.get();
+    }
+
+    public long getRecycles()
+    {
+        return recycles.get();
+    }
+
+    public long getRejected()
+    {
+        return rejected.get();
+    }
+
+    public long getTimeouts()
+    {
+        return timeouts.get();
+    }
+
+    public long getMeanMicros()
+    {
+        return TimeUnit.NANOSECONDS.toMicros(latencies.getMean());
+    }
+
+    public long getMaxMicros()
+    {
+        return TimeUnit.NANOSECONDS.toMicros(latencies.getMax());
+    }
+
+    public long getP50Micros()
+    {
+        return TimeUnit.NANOSECONDS.toMicros(latencies.getValueAtPercentile(50));
+    }
+
+    public long getP90Micros()
+    {
+        return TimeUnit.NANOSECONDS.toMicros(latencies.getValueAtPercentile(90));
+    }
+
+    public long getP99Micros()
+    {
+        return TimeUnit.NANOSECONDS.toMicros(latencies.getValueAtPercentile(99));
+    }
+
+    public long getP999Micros()
+    {
+        return TimeUnit.NANOSECONDS.toMicros(latencies.getValueAtPercentile(99.9));
+    }
+}
@@ -0,0 +1,99 @@
+/*
+ * RouteMetricsMBean.java
+ *
+ * Copyright 2011 FooBrew, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.j2free.invoker;
+
+/**
+ * JMX management interface for {@link RouteMetrics}.  Latencies are
+ * reported in microseconds.
+ *
+ * @author Ryan Wilson
+ */
+public interface RouteMetricsMBean
+{
+    /**
+     * @return The class name of the servlet or filter
+     */
+    public String getName();
+
+    /**
+     * @return "servlet" or "filter"
+     */
+    public String getKind();
+
+    /**
+     * @return The number of requests serviced, including those in-flight
+     */
+    public long getRequests();
+
+    /**
+     * @return The number of requests that threw an exception
+     */
+    public long getErrors();
+
+    /**
+     * @return The number of requests currently being serviced
+     */
+    public int getInFlight();
+
+    /**
+     * @return The number of times a servlet instance has been replaced
+     *         after reaching its max uses
+     */
+    public long getRecycles();
+
+    /**
+     * @return The number of requests rejected with a 503 because the
+     *         servlet or the async executor was at capacity
+     */
+    public long getRejected();
+
+    /**
+     * @return The number of asynchronous requests that timed out
+     */
+    public long getTimeouts();
+
+    /**
+     * @return The mean latency, in microseconds
+     */
+    public long getMeanMicros();
+
+    /**
+     * @return The maximum latency, in microseconds
+     */
+    public long getMaxMicros();
+
+    /**
+     * @return The median latency, in microseconds
+     */
+    public long getP50Micros();
+
+    /**
+     * @return The 90th percentile latency, in microseconds
+     */
+    public long getP90Micros();
+
+    /**
+     * @return The 99th percentile latency, in microseconds
+     */
+    public long getP99Micros();
+
+    /**
+     * @return The 99.9th percentile latency, in microseconds
+     */
+    public long getP999Micros();
+}
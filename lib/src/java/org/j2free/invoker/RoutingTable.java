@@ -0,0 +1,279 @@
+/*
+ * RoutingTable.java
+ *
+ * Copyright 2011 FooBrew, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.j2free.invoker;
+
+import java.util.Map;
+import java.util.TreeMap;
+
+import javax.servlet.http.HttpServlet;
+
+import net.jcip.annotations.Immutable;
+
+/**
+ * A compiled, read-only view of the wildcard and regex mappings known to the
+ * {@link InvokerFilter}.  Mappings of the form <tt>/some/path/*</tt> are
+ * stored in a trie keyed by path segment, and mappings of the form
+ * <tt>*.ext</tt> are stored in a sorted extension index.  Regex mappings
+ * are combined into a single {@link RegexMatcher}.
+ *
+ * Lookups walk the requested path in place, comparing regions of the
+ * path against the compiled segments, so resolving a path costs
+ * O(segments) and does not allocate.
+ *
+ * A <tt>RoutingTable</tt> is built once per (re)load of the mappings and
+ * is never modified afterwards, so it may be shared freely between threads.
+ *
+ * @author Ryan Wilson
+ */
+@Immutable
+final class RoutingTable
+{
+    private static final String WILDCARD           = "*";
+    private static final String WILDCARD_SUFFIX    = "/*";
+
+    private static final Node[]   NO_CHILDREN = new Node[0];
+    private static final String[] NO_KEYS     = new String[0];
+
+    /**
+     * An empty table, resolving nothing.
+     */
+    static final RoutingTable EMPTY = new RoutingTable(
+                                            new TreeMap<String, Class<? extends HttpServlet>>(),
+                                            new TreeMap<String, Class<? extends HttpServlet>>()
+                                        );
+
+    // A single node in the segment trie
+    private static final class Node
+    {
+        private final String[] segments;        // sorted
+        private final Node[]   children;        // children[i] is reached via segments[i]
+
+        private final Class<? extends HttpServlet> wildcard;
+
+        private Node(String[] segments, Node[] children, Class<? extends HttpServlet> wildcard)
+        {
+            this.segments = segments;
+            this.children = children;
+            this.wildcard = wildcard;
+        }
+
+        private Node child(String path, int start, int end)
+        {
+            int index = search(segments, path, start, end);
+            return index < 0 ? null : children[index];
+        }
+    }
+
+    // Mutable node used only while compiling the trie
+    private static final class Builder
+    {
+        private final TreeMap<String, Builder> children = new TreeMap<String, Builder>();
+        private Class<? extends HttpServlet> wildcard;
+
+        private Builder child(String segment)
+        {
+            Builder child = children.get(segment);
+            if (child == null)
+            {
+                child = new Builder();
+                children.put(segment, child);
+            }
+            return child;
+        }
+
+        private Node compile()
+        {
+            if (children.isEmpty())
+                return new Node(NO_KEYS, NO_CHILDREN, wildcard);
+
+            String[] segments = new String[children.size()];
+            Node[]   nodes    = new Node[children.size()];
+
+            int i = 0;
+            for (Map.Entry<String, Builder> entry : children.entrySet())
+            {
+                segments[i] = entry.getKey();
+                nodes[i]    = entry.getValue().compile();
+                i++;
+            }
+
+            return new Node(segments, nodes, wildcard);
+        }
+    }
+
+    private final Node root;
+
+    private final String[] extensions;                      // sorted, each including the leading "."
+    private final Class<? extends HttpServlet>[] targets;   // targets[i] is mapped to extensions[i]
+
+    private final RegexMatcher regexes;
+
+    /**
+     * Compiles the wildcard mappings in the argument map.  Keys that
+     * are neither <tt>*.ext</tt> nor <tt>/some/path/*</tt> patterns are
+     * ignored, since those are resolved by exact lookup.
+     *
+     * @param mappings URL patterns mapped to the servlet that should
+     *        handle them, all in lower-case
+     * @param regexMappings regexes mapped to the servlet that should
+     *        handle paths matching them
+     */
+    RoutingTable(Map<String, Class<? extends HttpServlet>> mappings, Map<String, Class<? extends HttpServlet>> regexMappings)
+    {
+        Builder trie = new Builder();
+        TreeMap<String, Class<? extends HttpServlet>> exts = new TreeMap<String, Class<? extends HttpServlet>>();
+
+        for (Map.Entry<String, Class<? extends HttpServlet>> entry : mappings.entrySet())
+        {
+            String url = entry.getKey();
+
+            if (url.startsWith(WILDCARD) && url.indexOf('.') == 1)
+            {
+                // *.ext, keep the "." so we can compare directly against lastIndexOf(".")
+                exts.put(url.substring(1), entry.getValue());
+            }
+            else if (url.startsWith("/") && url.endsWith(WILDCARD_SUFFIX) && url.length() > WILDCARD_SUFFIX.length())
+            {
+                // /a/b/* becomes root -> a -> b with a wildcard at b.  A bare /* is
+                // left out, since wildcard resolution has only ever considered
+                // patterns below the root; it still resolves by exact lookup.
+                Builder node = trie;
+                for (String segment : url.substring(1, url.length() - WILDCARD_SUFFIX.length()).split("/", -1))
+                    node = node.child(segment);
+
+                node.wildcard = entry.getValue();
+            }
+        }
+
+        this.root = trie.compile();
+
+        @SuppressWarnings("unchecked")
+        Class<? extends HttpServlet>[] targetArray = (Class<? extends HttpServlet>[]) new Class<?>[exts.size()];
+        this.extensions = exts.keySet().toArray(new String[exts.size()]);
+        this.targets    = exts.values().toArray(targetArray);
+
+        this.regexes = new RegexMatcher(regexMappings);
+    }
+
+    /**
+     * @param path a lower-case path
+     * @return The servlet mapped to <tt>*.ext</tt>, where <tt>.ext</tt> is
+     *         everything from the last "." in the path, or null if there
+     *         is no such mapping.
+     */
+    Class<? extends HttpServlet> extension(String path)
+    {
+        if (extensions.length == 0)
+            return null;
+
+        int index = path.lastIndexOf('.');
+        if (index == -1)
+            return null;
+
+        index = search(extensions, path, index, path.length());
+        return index < 0 ? null : targets[index];
+    }
+
+    /**
+     * @param path a lower-case path
+     * @return The servlet mapped to a regex matching the entire path,
+     *         or null if none match.
+     */
+    Class<? extends HttpServlet> regex(String path)
+    {
+        return regexes.match(path);
+    }
+
+    /**
+     * Walks the path one segment at a time, remembering the deepest
+     * <tt>/some/path/*</tt> mapping seen, so that for <tt>/a/b/c</tt> a
+     * mapping to <tt>/a/b/*</tt> is preferred over <tt>/a/*</tt>.
+     *
+     * @param path a lower-case path
+     * @return The servlet mapped to the most specific wildcard pattern
+     *         covering the path, or null if there is none
+     */
+    Class<? extends HttpServlet> wildcard(String path)
+    {
+        Class<? extends HttpServlet> match = null;
+
+        Node node  = root;
+        int  start = 1, end;                                // skip the leading "/"
+
+        // Only segments followed by a "/" are directories that a wildcard can cover
+        while (node != null && (end = path.indexOf('/', start)) != -1)
+        {
+            node = node.child(path, start, end);
+
+            if (node != null && node.wildcard != null)
+                match = node.wildcard;
+
+            start = end + 1;
+        }
+
+        return match;
+    }
+
+    /**
+     * Binary search of sorted keys against <tt>path[start, end)</tt>
+     *
+     * @return the index of the matching key, or -1 if there is no match
+     */
+    private static int search(String[] keys, String path, int start, int end)
+    {
+        int low  = 0,
+            high = keys.length - 1;
+
+        while (low <= high)
+        {
+            int mid = (low + high) >>> 1;
+            int cmp = compare(keys[mid], path, start, end);
+
+            if (cmp < 0)
+                low = mid + 1;
+            else if (cmp > 0)
+                high = mid - 1;
+            else
+                return mid;
+        }
+
+        return -1;
+    }
+
+    /**
+     * Lexicographic comparison consistent with {@link String#compareTo},
+     * of <tt>key</tt> against <tt>path[start, end)</tt>.
+     */
+    private static int compare(String key, String path, int start, int end)
+    {
+        int keyLength    = key.length(),
+            regionLength = end - start,
+            limit        = Math.min(keyLength, regionLength);
+
+        for (int i = 0; i < limit; i++)
+        {
+            char a = key.charAt(i),
+                 b = path.charAt(start + i);
+
+            if (a != b)
+                return a - b;
+        }
+
+        return keyLength - regionLength;
+    }
+}
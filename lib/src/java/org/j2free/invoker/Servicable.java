@@ -46,6 +46,11 @@ interface Servicable {
      */
     public String getName();
 
+    /**
+     * @return The metrics recorded for this <tt>Servicable</tt>
+     */
+    public RouteMetrics getMetrics();
+
     /**
      * Business implementation of this <tt>Servicable</tt>
      *
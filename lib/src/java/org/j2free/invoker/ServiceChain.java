@@ -19,8 +19,6 @@ package org.j2free.invoker;
 
 import java.io.IOException;
 
-
-import java.util.Iterator;
 import javax.servlet.ServletException;
 import javax.servlet.ServletRequest;
 import javax.servlet.ServletResponse;
@@ -37,15 +35,35 @@ final class ServiceChain
 {
     private final Log log = LogFactory.getLog(getClass());
 
-    private final Iterator<FilterMapping> filters;
+    private final FilterMapping[] filters;
     private final String path;
     private final ServletMapping endPoint;
 
-    public ServiceChain(Iterator<FilterMapping> filters, String path, ServletMapping endPoint)
+    // The index of the next filter to service
+    private int next;
+
+    // The total time spent in the links after the one currently being serviced,
+    // so that each filter's metrics only include the time spent in the filter
+    private long downstream;
+
+    // Whether a link has already thrown, so an exception is only counted
+    // against the link it came from and not every filter it passes through
+    private boolean failed;
+
+    /**
+     * @param filters The filters that apply to the path, in the order they
+     *        should be serviced; see {@link FilterResolver}
+     * @param path The path being serviced
+     * @param endPoint The servlet at the end of the chain
+     */
+    public ServiceChain(FilterMapping[] filters, String path, ServletMapping endPoint)
     {
-        this.filters = filters;
+        this.filters  = filters;
         this.path     = path;
         this.endPoint = endPoint;
+        this.next     = 0;
+        this.downstream = 0;
+        this.failed     = false;
     }
 
     /**
@@ -54,7 +72,6 @@ final class ServiceChain
      *
      * @param request a Servlet request
      * @param response a Servlet response
-     * @param mapping The last FilterMaping to be processes, may be null to start
      *
      * @throws IOException
      * @throws ServletException
@@ -62,24 +79,18 @@ final class ServiceChain
     protected void service(ServletRequest request, ServletResponse response)
         throws IOException, ServletException
     {
-        // Try to get the next filter on the current depth (we're overwriting
-        // the param, since we only need it in the call to mappings.ceiting(mapping).
-        FilterMapping next = filters.hasNext() ? filters.next() : null;
+        // Set the link to be either the next filter or the endPoint,
+        // if there were no more filters remaining, since the two are
+        // polymorphically referencable as a Servicable.  The filters
+        // have already been narrowed to those that apply to the path.
+        final Servicable link = next < filters.length ? filters[next++] : endPoint;
 
-        // If we found one, skip past any that don't apply to this path
-        while (next != null && !next.appliesTo(path))
-        {
-            if (log.isTraceEnabled()) {
-                log.trace("Skipping filter [name=" + next.getName() + ", path=" + path + "]");
-            }
-            next = filters.hasNext() ? filters.next() : null;
-        }
+        final RouteMetrics metrics = link.getMetrics();
+        final long begin = System.nanoTime();
 
-        // Set the link to be either the found filter or the endPoint,
-        // if there were no more filters remaining, since the two are
-        // polymorphically referencable as a Servicable.
-        final Servicable link = next == null ? endPoint : next;
+        metrics.begin();
 
+        boolean error   = false;                                // Holds whether the link threw an exception
         boolean release = false;                                // Holds whether we need to release the Controller here
         try
         {
@@ -121,16 +132,24 @@ final class ServiceChain
             }
 
             if (log.isTraceEnabled())
-                log.trace("Servicing link [name=" + link.getName() +"]");
+                log.trace("Servicing link [name=" + link.getName() + ", path=" + path + "]");
 
             link.service(request, response, this);
         } 
         catch (Exception e)
         {
+            error  = !failed;
+            failed = true;
             throw new ServletException("Error servicing chain", e); // Wrap any exceptions as ServletException
         } 
         finally
         {
+            // Links are serviced recursively, so by now any links after this
+            // one have finished and left their total time in downstream
+            final long elapsed = System.nanoTime() - begin;
+            metrics.end(elapsed - downstream, error);
+            downstream = elapsed;
+
             // If this Servicable has the responsibility to release a Controller
             // Don't need to check requiresController() again, since release can ONLY
             // be true if requiresController() was true.
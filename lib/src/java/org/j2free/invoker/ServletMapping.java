@@ -19,38 +19,113 @@ package org.j2free.invoker;
 
 import java.io.IOException;
 
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 
 import javax.servlet.ServletException;
 import javax.servlet.ServletRequest;
 import javax.servlet.ServletResponse;
 import javax.servlet.http.HttpServlet;
 
+import net.jcip.annotations.ThreadSafe;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
 import org.j2free.annotations.ServletConfig;
 import org.j2free.jpa.Controller;
 
 /**
+ * Maps a servlet class to its config, and manages the lifecycle of the
+ * instance serving requests for it.
+ *
+ * If the servlet may only serve a limited number of requests per instance
+ * (see {@link ServletConfig#maxUses}), the request that reaches the limit
+ * schedules a replacement to be constructed and initialized on the warming
+ * executor, and the current instance keeps serving requests until the
+ * replacement is swapped in.  A retired instance is reference counted and
+ * <tt>destroy()</tt>ed once the requests it was serving have drained, so
+ * no request pays for constructing a servlet and no servlet is left
+ * undestroyed.
  *
  * @author Ryan Wilson
  */
+@ThreadSafe
 final class ServletMapping implements Servicable
 {
-    protected final HttpServlet servlet;
-    protected final ServletConfig config;
-    
-    private final AtomicLong uses;
+    private static final Log log = LogFactory.getLog(ServletMapping.class);
 
-    protected ServletMapping(HttpServlet servlet, ServletConfig config)
+    // A single instance of the servlet, and the requests it is serving
+    private static final class Instance
     {
-        this.servlet = servlet;
-        this.config = config;
-        
-        this.uses = new AtomicLong(0);
+        private final HttpServlet servlet;
+        private final AtomicLong uses;
+
+        // One reference for being the current instance, plus one per request in-flight
+        private final AtomicInteger refs;
+
+        private Instance(HttpServlet servlet)
+        {
+            this.servlet = servlet;
+            this.uses = new AtomicLong(0);
+            this.refs = new AtomicInteger(1);
+        }
     }
 
-    public long incrementUses()
+    protected final Class<? extends HttpServlet> klass;
+    protected final ServletConfig config;
+
+    private final javax.servlet.ServletConfig servletConfig;
+
+    private final RouteMetrics metrics;
+
+    // Overrides the caching headers for the servlet's paths, or null to use the policy's
+    protected final CacheControlPolicy.Rule cacheControl;
+
+    // 0 if instances should never be recycled
+    private final long maxUses;
+
+    private final Executor warmer;
+
+    // Limits concurrent requests, or null if there is no limit
+    private final Semaphore permits;
+
+    private final AtomicReference<Instance> current;
+    private final AtomicBoolean warming;
+
+    // Set under the lock on this, so that a replacement is never swapped in once destroyed
+    private volatile boolean destroyed;
+
+    /**
+     * @param klass The servlet class
+     * @param servlet An initialized instance of the servlet
+     * @param config The servlet's annotated config
+     * @param metrics The metrics to record requests in
+     * @param maxUses How many requests an instance may serve before it is
+     *        replaced, or 0 if it should never be replaced
+     * @param warmer Where to construct and initialize replacement instances
+     */
+    protected ServletMapping(Class<? extends HttpServlet> klass, HttpServlet servlet, ServletConfig config,
+                             RouteMetrics metrics, long maxUses, Executor warmer)
     {
-        return uses.incrementAndGet();
+        this.klass = klass;
+        this.config = config;
+        this.servletConfig = servlet.getServletConfig();
+        this.metrics = metrics;
+        this.cacheControl = config.cacheControl().length() > 0 ? CacheControlPolicy.compile(config.cacheControl()) : null;
+        this.maxUses = Math.max(maxUses, 0);
+        this.warmer = warmer;
+        this.permits = config.maxConcurrent() > 0 ? new Semaphore(config.maxConcurrent()) : null;
+
+        this.current = new AtomicReference<Instance>(new Instance(servlet));
+        this.warming = new AtomicBoolean(false);
+        this.destroyed = false;
     }
 
     /**
@@ -68,16 +143,179 @@ final class ServletMapping implements Servicable
      */
     public String getName()
     {
-        return servlet.getClass().getName();
+        return klass.getName();
+    }
+
+    /**
+     * @return The metrics recorded for the servlet, shared by every
+     *         instance of it
+     */
+    public RouteMetrics getMetrics()
+    {
+        return metrics;
+    }
+
+    /**
+     * Reserves a slot for a request, if the servlet limits its concurrent
+     * requests.  Every successful call must be matched by a call to
+     * {@link #releasePermit}.
+     *
+     * @return false if the servlet is already servicing as many requests
+     *         as it allows
+     */
+    protected boolean tryAcquirePermit()
+    {
+        if (permits == null || permits.tryAcquire())
+            return true;
+
+        metrics.rejected();
+        return false;
+    }
+
+    /**
+     * Releases a slot reserved by {@link #tryAcquirePermit}
+     */
+    protected void releasePermit()
+    {
+        if (permits != null)
+            permits.release();
     }
 
     /**
      * Implementation of HttpServlet servicing.
      * @see {@link Servicable}.service
      */
-    public void service(ServletRequest req, ServletResponse resp, ServiceChain chain) 
+    public void service(ServletRequest req, ServletResponse resp, ServiceChain chain)
             throws IOException, ServletException
     {
-        servlet.service(req, resp);
+        Instance instance = acquire();
+        try
+        {
+            instance.servlet.service(req, resp);
+        }
+        finally
+        {
+            release(instance);
+        }
+    }
+
+    /**
+     * Retires the current instance, which will be destroyed once any
+     * requests it is serving complete.  No replacement will be made.
+     */
+    protected void destroy()
+    {
+        Instance instance;
+        synchronized (this)
+        {
+            if (destroyed)
+                return;
+
+            destroyed = true;
+            instance = current.get();
+        }
+        release(instance);
+    }
+
+    /**
+     * Takes a reference to the current instance, scheduling its
+     * replacement if it has reached its max uses.
+     */
+    private Instance acquire()
+    {
+        while (true)
+        {
+            Instance instance = current.get();
+
+            // An instance with no references has been destroyed, so it must
+            // have been replaced already; try again with the new one
+            int refs = instance.refs.get();
+            if (refs > 0 && instance.refs.compareAndSet(refs, refs + 1))
+            {
+                if (maxUses > 0 && instance.uses.incrementAndGet() >= maxUses)
+                    recycle(instance);
+
+                return instance;
+            }
+
+            // The current instance was destroyed without a replacement
+            if (destroyed && current.get() == instance)
+                throw new IllegalStateException(klass.getName() + " has been destroyed");
+        }
+    }
+
+    /**
+     * Releases a reference to the instance, destroying it if it was the
+     * last one.
+     */
+    private void release(Instance instance)
+    {
+        if (instance.refs.decrementAndGet() == 0)
+        {
+            try
+            {
+                instance.servlet.destroy();
+            }
+            catch (Exception e)
+            {
+                log.error("Error destroying retired " + klass.getSimpleName() + " instance", e);
+            }
+        }
+    }
+
+    /**
+     * Schedules the construction of a replacement for the instance,
+     * unless one is already under way.
+     */
+    private void recycle(final Instance expired)
+    {
+        if (destroyed || !warming.compareAndSet(false, true))
+            return;
+
+        try
+        {
+            warmer.execute(new Runnable() {
+                public void run()
+                {
+                    try
+                    {
+                        HttpServlet servlet = klass.newInstance();      // Create a new instance
+                        servlet.init(servletConfig);                    // Copy over the javax.servlet.ServletConfig
+
+                        Instance fresh = new Instance(servlet);
+
+                        boolean swapped;
+                        synchronized (ServletMapping.this)
+                        {
+                            swapped = !destroyed && current.compareAndSet(expired, fresh);
+                        }
+
+                        if (swapped)
+                        {
+                            metrics.recycled();
+                            release(expired);                           // Drop its reference as the current instance
+
+                            if (log.isTraceEnabled())
+                                log.trace("Replaced " + klass.getSimpleName() + " instance after " + expired.uses.get() + " uses");
+                        }
+                        else
+                            release(fresh);                             // Never used, so destroy it now
+                    }
+                    catch (Exception e)
+                    {
+                        log.error("Error replacing " + klass.getSimpleName() + " instance after " + expired.uses.get() + " uses!", e);
+                    }
+                    finally
+                    {
+                        warming.set(false);
+                    }
+                }
+            });
+        }
+        catch (RejectedExecutionException e)
+        {
+            // The warmer is shutting down; keep using the current instance
+            warming.set(false);
+        }
     }
 }
@@ -0,0 +1,176 @@
+/*
+ * StaticPathCache.java
+ *
+ * Copyright 2011 FooBrew, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.j2free.invoker;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import net.jcip.annotations.ThreadSafe;
+
+import org.j2free.util.concurrent.FrequencySketch;
+
+/**
+ * A bounded set of paths known to resolve to no servlet, so that requests
+ * for popular static content can skip resolution entirely.
+ *
+ * Paths are evicted in FIFO order, but only to make room for a path that
+ * has been requested more often recently than the path it would replace,
+ * as estimated by a {@link FrequencySketch} of the requests for static
+ * paths (TinyLFU admission).  A victim that survives is given a second
+ * chance at the back of the queue.  This keeps memory flat when a crawler requests
+ * thousands of distinct, never-repeated URLs: those paths are seen once,
+ * so they can't displace static paths that are requested repeatedly.
+ *
+ * Every request the filter can't resolve from its explicit mappings checks
+ * the cache first, so {@link #contains} only counts hits; the misses that
+ * count are the requests found to be static, in {@link #add}.
+ *
+ * The bound is approximate; concurrent additions may briefly overshoot
+ * it by about the number of threads adding at once.
+ *
+ * @author Ryan Wilson
+ */
+@ThreadSafe
+final class StaticPathCache
+{
+    private final int maxSize;
+
+    private final ConcurrentHashMap<String, Boolean> paths;
+    private final ConcurrentLinkedQueue<String>      queue;         // paths in insertion order
+    private final AtomicInteger                      size;
+
+    private final FrequencySketch<String> sketch;
+
+    private final StaticPathMetrics metrics;
+
+    /**
+     * @param maxSize the maximum number of paths to remember
+     */
+    StaticPathCache(int maxSize)
+    {
+        this(maxSize, new StaticPathMetrics());
+    }
+
+    /**
+     * @param maxSize the maximum number of paths to remember
+     * @param metrics where to count hits, misses, evictions and rejections
+     */
+    StaticPathCache(int maxSize, StaticPathMetrics metrics)
+    {
+        this.maxSize = Math.max(maxSize, 1);
+
+        this.paths  = new ConcurrentHashMap<String, Boolean>(Math.min(this.maxSize, 500), 0.8f, 50);
+        this.queue  = new ConcurrentLinkedQueue<String>();
+        this.size   = new AtomicInteger();
+        this.sketch = new FrequencySketch<String>(this.maxSize);
+
+        this.metrics = metrics;
+    }
+
+    /**
+     * Checks for the path, recording the request only if it is found, so
+     * that requests for dynamic paths never touch the sketch or counters.
+     *
+     * @param path a lower-case path
+     * @return true if the path is known to be static
+     */
+    boolean contains(String path)
+    {
+        if (!paths.containsKey(path))
+            return false;
+
+        sketch.increment(path);
+        metrics.hit();
+        return true;
+    }
+
+    /**
+     * Records a request for a path that resolved to no servlet, and
+     * remembers it if there is room for it or it is more popular than the
+     * oldest path.
+     *
+     * @param path a lower-case path
+     */
+    void add(String path)
+    {
+        sketch.increment(path);
+
+        if (paths.containsKey(path))
+            return;
+
+        metrics.miss();
+
+        if (size.get() >= maxSize)
+        {
+            String victim = queue.poll();
+            if (victim != null)
+            {
+                if (sketch.frequency(path) <= sketch.frequency(victim))
+                {
+                    queue.offer(victim);
+                    metrics.rejected();
+                    return;
+                }
+
+                if (paths.remove(victim) != null)
+                {
+                    size.decrementAndGet();
+                    metrics.evicted();
+                }
+            }
+        }
+
+        if (paths.putIfAbsent(path, Boolean.TRUE) == null)
+        {
+            queue.offer(path);
+            size.incrementAndGet();
+        }
+    }
+
+    /**
+     * @return the number of paths currently remembered
+     */
+    int size()
+    {
+        return size.get();
+    }
+
+    /**
+     * @return the maximum number of paths to remember
+     */
+    int getMaxSize()
+    {
+        return maxSize;
+    }
+
+    /**
+     * @return the metrics the cache counts into
+     */
+    StaticPathMetrics getMetrics()
+    {
+        return metrics;
+    }
+
+    @Override
+    public String toString()
+    {
+        return String.format("[size=%d, max=%d]", size.get(), maxSize);
+    }
+}
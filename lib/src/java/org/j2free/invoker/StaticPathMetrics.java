@@ -0,0 +1,111 @@
+/*
+ * StaticPathMetrics.java
+ *
+ * Copyright 2011 FooBrew, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.j2free.invoker;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.jcip.annotations.ThreadSafe;
+
+/**
+ * Hit, miss, eviction and rejection counts of the {@link StaticPathCache}
+ * of an {@link InvokerFilter}.  Every configuration the filter publishes
+ * starts a new cache, but counts into the same metrics, so they cover the
+ * life of the filter.
+ *
+ * @author Ryan Wilson
+ */
+@ThreadSafe
+public final class StaticPathMetrics implements StaticPathMetricsMBean
+{
+    private final AtomicLong hits       = new AtomicLong(),
+                             misses     = new AtomicLong(),
+                             evictions  = new AtomicLong(),
+                             rejections = new AtomicLong();
+
+    // The cache of the current configuration
+    private volatile StaticPathCache cache;
+
+    /**
+     * Reports the size of the cache from now on
+     */
+    void setCache(StaticPathCache cache)
+    {
+        this.cache = cache;
+    }
+
+    void hit()
+    {
+        hits.incrementAndGet();
+    }
+
+    void miss()
+    {
+        misses.incrementAndGet();
+    }
+
+    void evicted()
+    {
+        evictions.incrementAndGet();
+    }
+
+    void rejected()
+    {
+        rejections.incrementAndGet();
+    }
+
+    public int getSize()
+    {
+        StaticPathCache current = cache;
+        return current == null ? 0 : current.size();
+    }
+
+    public int getMaxSize()
+    {
+        StaticPathCache current = cache;
+        return current == null ? 0 : current.getMaxSize();
+    }
+
+    public long getHits()
+    {
+        return hits.get();
+    }
+
+    public long getMisses()
+    {
+        return misses.get();
+    }
+
+    public long getEvictions()
+    {
+        return evictions.get();
+    }
+
+    public long getRejections()
+    {
+        return rejections.get();
+    }
+
+    @Override
+    public String toString()
+    {
+        return String.format(
+                    "[size=%d, max=%d, hits=%d, misses=%d, evictions=%d, rejections=%d]",
+                    getSize(), getMaxSize(), hits.get(), misses.get(), evictions.get(), rejections.get()
+                );
+    }
+}
@@ -0,0 +1,58 @@
+/*
+ * StaticPathMetricsMBean.java
+ *
+ * Copyright 2011 FooBrew, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.j2free.invoker;
+
+/**
+ * JMX management interface for {@link StaticPathMetrics}.
+ *
+ * @author Ryan Wilson
+ */
+public interface StaticPathMetricsMBean
+{
+    /**
+     * @return The number of paths currently remembered as static
+     */
+    public int getSize();
+
+    /**
+     * @return The max number of paths remembered as static
+     */
+    public int getMaxSize();
+
+    /**
+     * @return The number of requests for paths remembered as static
+     */
+    public long getHits();
+
+    /**
+     * @return The number of requests for paths that resolved to no servlet,
+     *         but weren't remembered as static yet
+     */
+    public long getMisses();
+
+    /**
+     * @return The number of paths evicted to make room for more popular ones
+     */
+    public long getEvictions();
+
+    /**
+     * @return The number of paths not remembered because the cache was
+     *         full of more popular paths
+     */
+    public long getRejections();
+}
@@ -18,6 +18,10 @@
 package org.j2free.jsp.tags;
 
 import java.io.IOException;
+import java.io.Reader;
+
+import java.util.ArrayList;
+import java.util.List;
 
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
@@ -29,6 +33,7 @@ import java.util.concurrent.atomic.AtomicReference;
 import javax.servlet.jsp.JspException;
 import javax.servlet.jsp.tagext.BodyContent;
 import javax.servlet.jsp.tagext.BodyTagSupport;
+import javax.servlet.jsp.tagext.TryCatchFinally;
 
 import org.apache.commons.lang.StringUtils;
 import org.apache.commons.logging.Log;
@@ -36,21 +41,53 @@ import org.apache.commons.logging.LogFactory;
 
 import org.j2free.cache.Fragment;
 import org.j2free.cache.FragmentCache;
+import org.j2free.cache.FragmentCacheAnalyzer;
+import org.j2free.cache.FragmentCacheManager;
+import org.j2free.cache.FragmentRefresher;
+import org.j2free.cache.FragmentRenderers;
+import org.j2free.cache.FragmentRevalidator;
+import org.j2free.cache.FragmentStats;
+import org.j2free.cache.FragmentTemplate;
+import org.j2free.cache.StreamableFragment;
 
 import static org.j2free.util.ServletUtils.*;
 
 /**
  *  Implementation of a fragment cache as a custom tag.  This fragment cache
  *  guarantees that only a single thread may trigger an update
+ *
+ *  The thread rendering a fragment streams the buffered body to the page,
+ *  while compacting a copy for the cache in a single pass, into a buffer the
+ *  tag handler reuses, rather than copying the body into a String first.
+ *
+ *  A tag nested in one rendering a fragment from the same cache leaves a hole
+ *  for its key in the enclosing fragment's content, rather than a copy of its
+ *  own, so the enclosing fragment is stored as a {@link FragmentTemplate},
+ *  filled in with the current content of the nested fragments each time it
+ *  is served.  Nested fragments can then be refreshed without re-rendering
+ *  the fragments they are nested in.  If a nested fragment has expired or
+ *  been evicted when the template is served, the template is served with
+ *  whatever content the nested fragment has, and evicted, so that the next
+ *  request renders it along with the nested fragment.
  * 
  * @author  Ryan Wilson
  */
-public class FragmentCacheTag extends BodyTagSupport
+public class FragmentCacheTag extends BodyTagSupport implements TryCatchFinally
 {
     private final Log log = LogFactory.getLog(getClass());
 
     private final String ATTRIBUTE_FORCE_REFRESH = "nocache";
 
+    private static final String TIMEOUT_MESSAGE = "Sorry, our cache did not respond in time.  Try refreshing the page.";
+
+    // The initial capacity of the buffer a rendered fragment is compacted into,
+    // and the largest a tag handler keeps for its next render
+    private static final int CAPTURE_CAPACITY     = 4096;
+    private static final int MAX_CAPTURE_RETAINED = 64 * 1024;
+
+    // The size of the chunks the body is streamed in
+    private static final int TRANSFER_SIZE = 1024;
+
     /***********************************************************************
      * Static Implementation
      */
@@ -114,6 +151,123 @@ public class FragmentCacheTag extends BodyTagSupport
         for (FragmentCache fc : caches.values())
             fc.destroy();
         caches.clear();
+        setRevalidator(null);
+        setRefresher(null);
+        setAnalyzer(null);
+        setManager(null);
+    }
+
+    /**
+     * Renders fragments outside of a request, for the revalidator and the refresher
+     */
+    private static final FragmentRenderers renderers = new FragmentRenderers();
+
+    /**
+     * @return The {@link FragmentRenderers} shared by the revalidator and the
+     *         refresher, with which renderers for fragments may be registered
+     */
+    public static FragmentRenderers getRenderers() {
+        return renderers;
+    }
+
+    /**
+     * Re-renders stale fragments in the background, for tags with revalidate="true"
+     */
+    private static final AtomicReference<FragmentRevalidator> revalidator
+            = new AtomicReference<FragmentRevalidator>(null);
+
+    /**
+     * Sets the {@link FragmentRevalidator} used by tags with revalidate="true",
+     * shutting down the previous one.
+     *
+     * @param newRevalidator
+     */
+    public static void setRevalidator(FragmentRevalidator newRevalidator) {
+        FragmentRevalidator old = revalidator.getAndSet(newRevalidator);
+        if (old != null && old != newRevalidator)
+            old.shutdown();
+    }
+
+    /**
+     * @return The {@link FragmentRevalidator}, or null if there isn't one
+     */
+    public static FragmentRevalidator getRevalidator() {
+        return revalidator.get();
+    }
+
+    /**
+     * Keeps the most requested fragments warm, if set
+     */
+    private static final AtomicReference<FragmentRefresher> refresher
+            = new AtomicReference<FragmentRefresher>(null);
+
+    /**
+     * Sets the {@link FragmentRefresher} the lookups of fragments are reported
+     * to, shutting down the previous one.
+     *
+     * @param newRefresher The refresher, or null to stop refreshing fragments
+     */
+    public static void setRefresher(FragmentRefresher newRefresher) {
+        FragmentRefresher old = refresher.getAndSet(newRefresher);
+        if (old != null && old != newRefresher)
+            old.shutdown();
+    }
+
+    /**
+     * @return The {@link FragmentRefresher}, or null if there isn't one
+     */
+    public static FragmentRefresher getRefresher() {
+        return refresher.get();
+    }
+
+    /**
+     * Shares memory out between the strategies, if set
+     */
+    private static final AtomicReference<FragmentCacheManager> manager
+            = new AtomicReference<FragmentCacheManager>(null);
+
+    /**
+     * Sets the {@link FragmentCacheManager} sharing memory out between the
+     * strategies, shutting down the previous one.
+     *
+     * @param newManager The manager, or null to leave each strategy to itself
+     */
+    public static void setManager(FragmentCacheManager newManager) {
+        FragmentCacheManager old = manager.getAndSet(newManager);
+        if (old != null && old != newManager)
+            old.shutdown();
+    }
+
+    /**
+     * @return The {@link FragmentCacheManager}, or null if there isn't one
+     */
+    public static FragmentCacheManager getManager() {
+        return manager.get();
+    }
+
+    /**
+     * Profiles the cache, if set
+     */
+    private static final AtomicReference<FragmentCacheAnalyzer> analyzer
+            = new AtomicReference<FragmentCacheAnalyzer>(null);
+
+    /**
+     * Sets the {@link FragmentCacheAnalyzer} recording how each fragment is
+     * served, clearing the previous one.
+     *
+     * @param newAnalyzer The analyzer, or null to stop profiling
+     */
+    public static void setAnalyzer(FragmentCacheAnalyzer newAnalyzer) {
+        FragmentCacheAnalyzer old = analyzer.getAndSet(newAnalyzer);
+        if (old != null && old != newAnalyzer)
+            old.clear();
+    }
+
+    /**
+     * @return The {@link FragmentCacheAnalyzer}, or null if the cache isn't being profiled
+     */
+    public static FragmentCacheAnalyzer getAnalyzer() {
+        return analyzer.get();
     }
 
     /**
@@ -150,25 +304,27 @@ public class FragmentCacheTag extends BodyTagSupport
     }
 
     /**
-     * Holds a reference to any Fragment a Thread has locked for update so that
-     * it can be released in the event of a processing error resulting in doEndTag
-     * not being called.
+     * Holds a reference to the innermost tag a Thread is evaluating the body of
+     * to update its Fragment, each linked to the one enclosing it, so that tags
+     * nested in it can leave holes for themselves, and the Fragments locked for
+     * update can be released in the event of a processing error resulting in
+     * doEndTag not being called.
      */
-    private static ThreadLocal<Fragment> threadLocal = new ThreadLocal<Fragment>();
+    private static ThreadLocal<FragmentCacheTag> threadLocal = new ThreadLocal<FragmentCacheTag>();
 
     /**
      *
      */
     public static void releaseFragment()
     {
-        Fragment fragment = threadLocal.get();
-        if (fragment != null)
-        {
-            try {
-                fragment.tryRelease();
-            } finally {
-                threadLocal.remove();
+        try {
+            for (FragmentCacheTag tag = threadLocal.get(); tag != null; tag = tag.parent)
+            {
+                if (tag.fragment != null)
+                    tag.fragment.tryRelease();
             }
+        } finally {
+            threadLocal.remove();
         }
     }
 
@@ -200,9 +356,34 @@ public class FragmentCacheTag extends BodyTagSupport
 
     // The time the page entered the tag
     private long start;
+    private long startNanos;
+
+    // Where to record how the fragment was served, if the cache is being profiled
+    private FragmentStats stats;
 
     // The time unit of the expiration
     private String unit;
+
+    // If true, stale content is served while the fragment is re-rendered in the background
+    private boolean revalidate;
+
+    // How stale content may be and still be served while revalidating, or -1 for no limit
+    private long maxStale;
+
+    // Comma-separated tags to evict the fragment by
+    private String tags;
+
+    // Captures the body while it is streamed to the page, kept between renders
+    private FragmentTemplate.Capture capture;
+    private char[]                   transfer;
+
+    // Whether the body is being evaluated to update the fragment
+    private boolean capturing;
+
+    // The enclosing tag rendering its fragment, if any, and whether this one left
+    // a hole for itself in it
+    private FragmentCacheTag parent;
+    private boolean nested;
     
     /**
      * 
@@ -210,7 +391,9 @@ public class FragmentCacheTag extends BodyTagSupport
     public FragmentCacheTag()
     {
         super();
-        disable = false;
+        disable    = false;
+        revalidate = false;
+        maxStale   = -1;
     }
     
     /**
@@ -268,7 +451,35 @@ public class FragmentCacheTag extends BodyTagSupport
     }
 
     /**
-     *  To evaluate the BODY and have control passed to doAfterBody, return EVAL_BODY_BUFFERED
+     * 
+     * @param revalidate
+     */
+    public void setRevalidate(boolean revalidate)
+    {
+        this.revalidate = revalidate;
+    }
+
+    /**
+     * 
+     * @param maxStale
+     */
+    public void setMaxStale(long maxStale)
+    {
+        this.maxStale = maxStale;
+    }
+
+    /**
+     * 
+     * @param tags
+     */
+    public void setTags(String tags)
+    {
+        this.tags = tags;
+    }
+
+    /**
+     *  To evaluate the BODY and have control passed to doAfterBody, return EVAL_BODY_BUFFERED;
+     *  doAfterBody then streams the BodyContent to the page, capturing it for the cache
      *  To use the cached content, writed the fragment content to the page, then return SKIP_BODY
      *
      *  Rules:
@@ -290,7 +501,9 @@ public class FragmentCacheTag extends BodyTagSupport
     @Override
     public int doStartTag() throws JspException
     {
-        start = System.currentTimeMillis();
+        start      = System.currentTimeMillis();
+        startNanos = System.nanoTime();
+        stats      = null;
 
         // If the cache isn't enabled, make sure disable is set
         disable |= !enabled.get();
@@ -299,7 +512,7 @@ public class FragmentCacheTag extends BodyTagSupport
         if (disable)
         {
             if (log.isTraceEnabled()) log.trace(key + ": DISABLED");
-            return EVAL_BODY_BUFFERED;
+            return EVAL_BODY_INCLUDE;
         }
 
         if (log.isTraceEnabled()) log.trace(key + ": START");
@@ -313,6 +526,8 @@ public class FragmentCacheTag extends BodyTagSupport
                 if (timeUnit != TimeUnit.MILLISECONDS) {
                     log.trace(key + ": Converting " + timeout + " " + timeUnit.name() + " to ms");
                     timeout = TimeUnit.MILLISECONDS.convert(timeout, timeUnit);
+                    if (maxStale > 0)
+                        maxStale = TimeUnit.MILLISECONDS.convert(maxStale, timeUnit);
                 }
             } catch (Exception e) {
                 log.warn(key + ": Unable to interpret timeout unit, assuming MILLISECONDS");
@@ -332,9 +547,32 @@ public class FragmentCacheTag extends BodyTagSupport
 
         if (cache == null) {
             log.error(key + ": NO CACHE");
-            return EVAL_BODY_BUFFERED;
+            return EVAL_BODY_INCLUDE;
+        }
+
+        // Inside a fragment being rendered from the same cache, leave a hole in its
+        // template for this one, rather than a copy of this one's content.  Only if this
+        // one writes straight into its body, though, not through a buffer in between
+        parent = threadLocal.get();
+        nested = parent != null && parent.cache == cache && pageContext.getOut() == parent.getBodyContent();
+        if (nested)
+        {
+            try {
+                parent.flushBody(true);
+            } catch (IOException e) {
+                throw new JspException(key + ": ERROR WRITING", e);
+            }
+            parent.capture.hole(key);
         }
 
+        FragmentCacheAnalyzer profiler = analyzer.get();
+        if (profiler != null)
+            stats = profiler.lookup(key, condition);
+
+        FragmentRefresher warmer = refresher.get();
+        if (warmer != null)
+            warmer.lookup(cache, key, condition, timeout);
+
         // See if there is a cached Fragment already
         fragment = cache.get(key);
 
@@ -358,6 +596,9 @@ public class FragmentCacheTag extends BodyTagSupport
             // able to unlock the fragment.  So, remove the old fragment, then create a new one starting with the old content
 
             log.warn(key + ": DIRTY, replacing");
+            if (stats != null)
+                stats.lockAbandoned();
+
             fragment = cache.replace(key, fragment, cache.createFragment(fragment, condition, timeout));
         } 
         else if (log.isTraceEnabled())
@@ -366,8 +607,26 @@ public class FragmentCacheTag extends BodyTagSupport
         final boolean forceRefresh = pageContext.getAttribute(ATTRIBUTE_FORCE_REFRESH) != null ||
                                      pageContext.getRequest().getAttribute(ATTRIBUTE_FORCE_REFRESH) != null;
 
+        // In stale-while-revalidate mode, serve stale content while it is re-rendered
+        // in the background, provided it isn't too stale and we know how to render it
+        boolean serveStale = false;
+        if (revalidate && !forceRefresh) {
+            FragmentRevalidator current = revalidator.get();
+            long staleness = fragment.getStaleness(condition);
+            if (current != null && staleness > 0) {
+                if (maxStale > 0 && staleness > maxStale) {
+                    if (log.isDebugEnabled()) log.debug(key + ": TOO STALE to serve (" + staleness + "ms)");
+                } else {
+                    serveStale = current.revalidate(key, fragment, condition);
+                    if (serveStale && log.isTraceEnabled()) log.trace(key + ": STALE, revalidating in the background");
+                }
+            }
+        }
+
         final boolean updateFragment;
-        if (forceRefresh) {
+        if (serveStale) {
+            updateFragment = false;
+        } else if (forceRefresh) {
             // If the force-refresh attribute is set, then try to acquire the lock regardless of condition of expiration.  
             // Doing so will only return false if another thread is already refreshing it which is fine.
             if (log.isTraceEnabled()) log.trace(key + ": TRY FORCE lock-for-update");
@@ -384,14 +643,54 @@ public class FragmentCacheTag extends BodyTagSupport
         // If we got the update flag, go ahead and do it
         if (updateFragment) {
             if (log.isTraceEnabled()) log.trace(key + ": ACQUIRED, evaluating body...");
-            threadLocal.set(fragment); // so we can release the fragment in the event of a processing error!
+            threadLocal.set(this); // so we can release the fragment in the event of a processing error!
+
+            // Buffer the body, to be streamed to the page and compacted for the cache
+            if (capture == null) {
+                capture  = new FragmentTemplate.Capture(CAPTURE_CAPACITY);
+                transfer = new char[TRANSFER_SIZE];
+            } else {
+                capture.reset();
+            }
+
+            capturing = true;
             return EVAL_BODY_BUFFERED;
         }
 
+        // The content may be a template, whose holes the Assembler fills with the current
+        // content of the nested fragments as it is written to the page
+        FragmentTemplate.Assembler out = new FragmentTemplate.Assembler(pageContext.getOut(), cache);
+
+        // Fragments that can write their content straight to the page do, rather than
+        // building it into a String first
+        if (fragment instanceof StreamableFragment)
+        {
+            final long waitStart = System.nanoTime();
+            boolean written = false;
+            try {
+                if (log.isTraceEnabled()) log.trace(key + ": WRITE OUTPUT");
+                written = ((StreamableFragment) fragment).writeTo(out, REQUEST_TIMEOUT.get(), TimeUnit.SECONDS);
+                if (!written)
+                    pageContext.getOut().write(TIMEOUT_MESSAGE);
+            } catch (InterruptedException e) {
+                log.warn(key + ": INTERRUPTED while waiting for content");
+            } catch (IOException e) {
+                log.error(key + ": ERROR WRITING", e);
+            }
+
+            if (stats != null)
+                stats.hit(System.nanoTime() - waitStart, serveStale, !written);
+
+            evictIfIncomplete(out);
+            logDuration("FETCH");
+            return SKIP_BODY;
+        }
+
         // Try to get the content, cached.get() will block if
         // the content of the fragment is not yet set, so catch an
         // InterruptedException.
         String response = null;
+        final long waitStart = System.nanoTime();
         try {
             // if trace is on, we do a little more benchmarking, so we have
             // a distinct branch here to save a branch at the second log call
@@ -408,18 +707,21 @@ public class FragmentCacheTag extends BodyTagSupport
             log.warn(key + ": INTERRUPTED while waiting for content");
         }
 
-        // response will be null if the call to get timed out
-        if (response == null)
-            response = "Sorry, our cache did not respond in time.  Try refreshing the page.";
+        if (stats != null)
+            stats.hit(System.nanoTime() - waitStart, serveStale, response == null);
 
-        // Write the response to the page
+        // Write the response to the page; response will be null if the call to get timed out
         try {
             if (log.isTraceEnabled()) log.trace(key + ": WRITE OUTPUT");
-            pageContext.getOut().write(response);
+            if (response == null)
+                pageContext.getOut().write(TIMEOUT_MESSAGE);
+            else
+                out.write(response);
         } catch (IOException e) {
             log.error(key + ": ERROR WRITING", e);
         }
-        
+
+        evictIfIncomplete(out);
         logDuration("FETCH");
         return SKIP_BODY;
     }
@@ -433,37 +735,85 @@ public class FragmentCacheTag extends BodyTagSupport
     @Override
     public int doAfterBody() throws JspException
     {
-        // Get the BodyContent, the result of the processing of the body of the tag
-        BodyContent body = getBodyContent();
-        String content   = body.getString();
-
-        // Make sure we had a cache
-        if (fragment != null)
+        // Make sure we were capturing the body, i.e. had a cache and the lock-for-update
+        if (capturing)
         {
-            // Update the Fragment, doing this before writing to the page will release waiting threads sooner.
-            if (!disable)
-            {
-                if (fragment.tryUpdateAndRelease(content, condition))
-                    log.trace(key + ": UPDATE and RELEASED");
-                else if (log.isTraceEnabled())
-                    log.warn(key + ": UPDATE FAILED [cache.contains(\"" + key + "\")=" + cache.contains(key) + "]");
+            capturing = false;
+
+            try {
+                if (log.isTraceEnabled()) log.trace(key + ": WRITE OUTPUT");
+                flushBody(true);
+            } catch (IOException e) {
+                // Don't cache what may be only part of the body
+                log.error(key + ": ERROR WRITING", e);
+                fragment.tryRelease();
+                return SKIP_BODY;
+            }
+
+            String content = capture.toString();
+
+            // Don't keep a huge buffer around for the next render
+            if (capture.capacity() > MAX_CAPTURE_RETAINED) {
+                capture  = null;
+                transfer = null;
+            }
+
+            if (stats != null)
+                stats.rendered(System.nanoTime() - startNanos, content.length());
+
+            if (fragment.tryUpdateAndRelease(content, condition)) {
+                log.trace(key + ": UPDATE and RELEASED");
+                if (tags != null)
+                    cache.tag(key, splitTags(tags));
             }
             else if (log.isTraceEnabled())
-                log.trace(key + ": DISABLED, not caching");
-        }
-        
-        // Attempt to write the body to the page
-        try {
-            if (log.isTraceEnabled()) log.trace(key + ": WRITE OUTPUT");
-            body.getEnclosingWriter().write(content);
-        } catch (IOException e) {
-            log.error(key, e);
+                log.warn(key + ": UPDATE FAILED [cache.contains(\"" + key + "\")=" + cache.contains(key) + "]");
         }
+        else if (disable && log.isTraceEnabled())
+            log.trace(key + ": DISABLED, not caching");
 
         logDuration("COMPUTE");
         return SKIP_BODY;
     }
 
+    /**
+     * @param t
+     * @throws Throwable
+     */
+    public void doCatch(Throwable t) throws Throwable
+    {
+        throw t;
+    }
+
+    /**
+     * Hands the page back to the enclosing tag, passing what this one wrote
+     * into its body on to the page without capturing it
+     */
+    public void doFinally()
+    {
+        capturing = false;
+
+        if (threadLocal.get() == this)
+        {
+            if (parent == null)
+                threadLocal.remove();
+            else
+                threadLocal.set(parent);
+        }
+
+        if (nested)
+        {
+            try {
+                parent.flushBody(false);
+            } catch (IOException e) {
+                log.error(key + ": ERROR WRITING", e);
+            }
+        }
+
+        parent = null;
+        nested = false;
+    }
+
     /**
      *
      * @return
@@ -473,10 +823,8 @@ public class FragmentCacheTag extends BodyTagSupport
     public int doEndTag() throws JspException
     {
         if (fragment != null)        // Don't try to release a fragment we didn't have
-        {
             fragment.tryRelease();
-            threadLocal.remove();
-        }
+
         return EVAL_PAGE;
     }
 
@@ -488,11 +836,67 @@ public class FragmentCacheTag extends BodyTagSupport
     {
         super.release();
         
-        disable  = false;   // Clear out instance props
-        cache    = null;
-        fragment = null;
+        disable    = false;   // Clear out instance props
+        revalidate = false;
+        maxStale   = -1;
+        cache      = null;
+        fragment   = null;
+        stats      = null;
+        capture    = null;
+        transfer   = null;
+        capturing  = false;
+        parent     = null;
+        nested     = false;
         
-        key = strategy = condition = unit = null;
+        key = strategy = condition = unit = tags = null;
+    }
+
+    /**
+     * @param tags A comma-separated list of tags
+     * @return The tags, trimmed, without empty ones
+     */
+    private static List<String> splitTags(String tags)
+    {
+        List<String> split = new ArrayList<String>();
+        for (String tag : tags.split(","))
+        {
+            tag = tag.trim();
+            if (tag.length() > 0)
+                split.add(tag);
+        }
+        return split;
+    }
+
+    /**
+     * Writes what the body holds so far to the enclosing writer, and empties it
+     *
+     * @param captured Whether to compact a copy into the capture too
+     */
+    private void flushBody(boolean captured) throws IOException
+    {
+        BodyContent body = getBodyContent();
+        if (captured)
+        {
+            Reader reader = body.getReader();
+            for (int read; (read = reader.read(transfer)) > 0; )
+                capture.write(transfer, 0, read);
+        }
+        body.writeOut(getPreviousOut());
+        body.clearBody();
+    }
+
+    /**
+     * Evicts the fragment if it is a template that was served with nested
+     * fragments that are missing or have expired, so the next request renders
+     * it, and them, again
+     */
+    private void evictIfIncomplete(FragmentTemplate.Assembler out)
+    {
+        if (out.isComplete())
+            return;
+
+        if (log.isDebugEnabled()) log.debug(key + ": NESTED FRAGMENTS STALE, evicting");
+        cache.evict(key, fragment);
     }
 
     /**
@@ -0,0 +1,152 @@
+/*
+ * FragmentCacheAnalyzerServlet.java
+ *
+ * Copyright 2011 FooBrew, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.j2free.servlet;
+
+import java.io.*;
+
+import java.util.List;
+
+import javax.servlet.*;
+import javax.servlet.http.*;
+
+import org.j2free.annotations.ServletConfig;
+
+import org.j2free.cache.FragmentCacheAnalyzer;
+import org.j2free.cache.FragmentCacheAnalyzer.Ranking;
+import org.j2free.cache.FragmentRevalidator;
+import org.j2free.cache.FragmentStats;
+
+import org.j2free.jsp.tags.FragmentCacheTag;
+
+import org.j2free.util.Global;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import static org.j2free.util.Constants.*;
+
+/**
+ * Dumps the stats recorded by the {@link FragmentCacheAnalyzer}, for the
+ * top fragment keys and key prefixes, as JSON.  Times are in microseconds,
+ * except for <tt>saved</tt>, <tt>renderTotal</tt> and <tt>waitTotal</tt>,
+ * which are in milliseconds.  If stale fragments are revalidated in the
+ * background, the {@link FragmentRevalidator}'s counters are included too.
+ *
+ * Parameters:
+ * <ul>
+ *   <li><tt>rank</tt>: the order to report in, one of {@link Ranking}; by default SAVED</li>
+ *   <li><tt>limit</tt>: the max number of keys and of prefixes to report; by default 50</li>
+ * </ul>
+ *
+ * Enable with <tt>servlet.fragments.enabled</tt>; mapped to
+ * <tt>servlet.fragments.path</tt>, by default <tt>/j2free/fragments</tt>.
+ *
+ * @author Ryan Wilson
+ */
+@ServletConfig(
+    requireController = false
+)
+public class FragmentCacheAnalyzerServlet extends HttpServlet {
+
+    private static final long serialVersionUID = 1L;
+
+    private static final int DEFAULT_LIMIT = 50;
+
+    /**
+     *
+     * @param request
+     * @param response
+     * @throws ServletException
+     * @throws IOException
+     */
+    @Override
+    protected void doGet(HttpServletRequest request, HttpServletResponse response)
+            throws ServletException, IOException {
+
+        FragmentCacheAnalyzer analyzer = (FragmentCacheAnalyzer) Global.get(CONTEXT_ATTR_FRAGMENT_ANALYZER);
+        if (analyzer == null) {
+            response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+            return;
+        }
+
+        Ranking ranking = Ranking.SAVED;
+        int     limit   = DEFAULT_LIMIT;
+        try {
+            String param = request.getParameter("rank");
+            if (param != null)
+                ranking = Ranking.valueOf(param.toUpperCase());
+
+            param = request.getParameter("limit");
+            if (param != null)
+                limit = Integer.parseInt(param);
+
+        } catch (IllegalArgumentException e) {
+            response.sendError(HttpServletResponse.SC_BAD_REQUEST, e.getMessage());
+            return;
+        }
+
+        try {
+            JSONObject json = new JSONObject();
+            json.put("rank", ranking.name());
+            json.put("prefixes", toJSON(analyzer.getPrefixes(ranking, limit)));
+            json.put("keys", toJSON(analyzer.getKeys(ranking, limit)));
+
+            FragmentRevalidator revalidator = FragmentCacheTag.getRevalidator();
+            if (revalidator != null) {
+                JSONObject counts = new JSONObject();
+                counts.put("staleHits", revalidator.getStaleHits());
+                counts.put("revalidations", revalidator.getRevalidations());
+                counts.put("failures", revalidator.getFailures());
+                counts.put("rejections", revalidator.getRejections());
+                counts.put("pending", revalidator.getPending());
+                json.put("revalidator", counts);
+            }
+
+            response.setContentType("application/json");
+            response.setHeader("Cache-Control", "no-store");
+            response.getWriter().write(json.toString());
+        } catch (JSONException e) {
+            throw new ServletException("Error serializing fragment cache stats", e);
+        }
+    }
+
+    private JSONArray toJSON(List<FragmentStats> ranked) throws JSONException {
+        JSONArray array = new JSONArray();
+        for (FragmentStats stats : ranked) {
+            JSONObject json = new JSONObject();
+            json.put("name", stats.getName());
+            json.put("lookups", stats.getLookups());
+            json.put("hits", stats.getHits());
+            json.put("misses", stats.getMisses());
+            json.put("staleHits", stats.getStaleHits());
+            json.put("hitRatio", stats.getHitRatio());
+            json.put("meanRender", stats.getMeanRenderMicros());
+            json.put("renderTotal", stats.getRenderMillis());
+            json.put("meanWait", stats.getMeanWaitMicros());
+            json.put("waitTotal", stats.getWaitMillis());
+            json.put("timeouts", stats.getTimeouts());
+            json.put("meanSize", stats.getMeanSize());
+            json.put("conditionChanges", stats.getConditionChanges());
+            json.put("lockAbandonments", stats.getLockAbandonments());
+            json.put("saved", stats.getSavedMillis());
+            array.put(json);
+        }
+        return array;
+    }
+}
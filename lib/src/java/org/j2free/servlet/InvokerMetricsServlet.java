@@ -0,0 +1,135 @@
+/*
+ * InvokerMetricsServlet.java
+ *
+ * Copyright 2011 FooBrew, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.j2free.servlet;
+
+import java.io.*;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+
+import javax.servlet.*;
+import javax.servlet.http.*;
+
+import org.j2free.annotations.ServletConfig;
+
+import org.j2free.invoker.InvokerMetrics;
+import org.j2free.invoker.RouteMetrics;
+import org.j2free.invoker.StaticPathMetrics;
+
+import org.j2free.util.Global;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import static org.j2free.util.Constants.*;
+
+/**
+ * Dumps the request counts, error counts, in-flight requests and latency
+ * percentiles (in microseconds) of every servlet and filter serviced by
+ * the InvokerFilter, as JSON, slowest (by 99th percentile) first, along
+ * with the hits and misses of its cache of static paths.
+ *
+ * Enable with <tt>servlet.metrics.enabled</tt>; mapped to
+ * <tt>servlet.metrics.path</tt>, by default <tt>/j2free/metrics</tt>.
+ *
+ * @author Ryan Wilson
+ */
+@ServletConfig(
+    requireController = false
+)
+public class InvokerMetricsServlet extends HttpServlet {
+
+    private static final long serialVersionUID = 1L;
+
+    private static final Comparator<RouteMetrics> SLOWEST_FIRST = new Comparator<RouteMetrics>() {
+        public int compare(RouteMetrics a, RouteMetrics b) {
+            long x = a.getP99Micros(), y = b.getP99Micros();
+            return x < y ? 1 : (x > y ? -1 : a.getName().compareTo(b.getName()));
+        }
+    };
+
+    /**
+     *
+     * @param request
+     * @param response
+     * @throws ServletException
+     * @throws IOException
+     */
+    @Override
+    protected void doGet(HttpServletRequest request, HttpServletResponse response)
+            throws ServletException, IOException {
+
+        InvokerMetrics metrics = (InvokerMetrics) Global.get(CONTEXT_ATTR_INVOKER_METRICS);
+        if (metrics == null) {
+            response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+            return;
+        }
+
+        try {
+            JSONObject json = new JSONObject();
+            json.put("servlets", toJSON(metrics.getServlets()));
+            json.put("filters", toJSON(metrics.getFilters()));
+            json.put("staticPaths", toJSON(metrics.getStaticPaths()));
+
+            response.setContentType("application/json");
+            response.setHeader("Cache-Control", "no-store");
+            response.getWriter().write(json.toString());
+        } catch (JSONException e) {
+            throw new ServletException("Error serializing invoker metrics", e);
+        }
+    }
+
+    private JSONArray toJSON(Collection<RouteMetrics> routes) throws JSONException {
+        ArrayList<RouteMetrics> sorted = new ArrayList<RouteMetrics>(routes);
+        Collections.sort(sorted, SLOWEST_FIRST);
+
+        JSONArray array = new JSONArray();
+        for (RouteMetrics route : sorted) {
+            JSONObject json = new JSONObject();
+            json.put("name", route.getName());
+            json.put("requests", route.getRequests());
+            json.put("errors", route.getErrors());
+            json.put("inFlight", route.getInFlight());
+            json.put("recycles", route.getRecycles());
+            json.put("rejected", route.getRejected());
+            json.put("timeouts", route.getTimeouts());
+            json.put("mean", route.getMeanMicros());
+            json.put("p50", route.getP50Micros());
+            json.put("p90", route.getP90Micros());
+            json.put("p99", route.getP99Micros());
+            json.put("p999", route.getP999Micros());
+            json.put("max", route.getMaxMicros());
+            array.put(json);
+        }
+        return array;
+    }
+
+    private JSONObject toJSON(StaticPathMetrics staticPaths) throws JSONException {
+        JSONObject json = new JSONObject();
+        json.put("size", staticPaths.getSize());
+        json.put("maxSize", staticPaths.getMaxSize());
+        json.put("hits", staticPaths.getHits());
+        json.put("misses", staticPaths.getMisses());
+        json.put("evictions", staticPaths.getEvictions());
+        json.put("rejections", staticPaths.getRejections());
+        return json;
+    }
+}
@@ -98,6 +98,14 @@ public class Constants {
      *
      */
     public static final String CONTEXT_ATTR_UNCAUGHT_EXCEPTION_HANDLER = "uncaught-exception-handler";
+    /**
+     *
+     */
+    public static final String CONTEXT_ATTR_INVOKER_METRICS = "j2free-invoker-metrics";
+    /**
+     *
+     */
+    public static final String CONTEXT_ATTR_FRAGMENT_ANALYZER = "j2free-fragment-analyzer";
 
     // Useful constants
     /**
@@ -320,6 +328,24 @@ public class Constants {
      */
     public static final String PROP_SERVLET_ADMIN_PATH        = "servlet.admin.path";
 
+    /**
+     *
+     */
+    public static final String PROP_SERVLET_METRICS_ON        = "servlet.metrics.enabled";
+    /**
+     *
+     */
+    public static final String PROP_SERVLET_METRICS_PATH      = "servlet.metrics.path";
+
+    /**
+     *
+     */
+    public static final String PROP_SERVLET_FRAGMENTS_ON      = "servlet.fragments.enabled";
+    /**
+     *
+     */
+    public static final String PROP_SERVLET_FRAGMENTS_PATH    = "servlet.fragments.path";
+
     // Default config file location
     /**
      *
@@ -387,6 +413,14 @@ public class Constants {
      *
      */
     public static final String DEFAULT_ADMIN_PATH             = "/j2free,/j2free/*";
+    /**
+     *
+     */
+    public static final String DEFAULT_METRICS_PATH           = "/j2free/metrics";
+    /**
+     *
+     */
+    public static final String DEFAULT_FRAGMENTS_PATH         = "/j2free/fragments";
 
     /**
      *
@@ -0,0 +1,217 @@
+/*
+ * HtmlCompactor.java
+ *
+ * Copyright 2011 FooBrew, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.j2free.util;
+
+import java.io.Writer;
+
+import net.jcip.annotations.NotThreadSafe;
+
+/**
+ * A <tt>Writer</tt> compacting HTML as it is written, in a single pass, into
+ * a buffer that can be reused.  The result is the same as that of
+ * {@link ServletUtils#compressHTML}: line breaks become spaces, runs of
+ * whitespace collapse to a single space, and <tt>" /&gt;"</tt> becomes
+ * <tt>"/&gt;"</tt>.
+ *
+ * At most a run of whitespace and a slash are held back from the buffer,
+ * until the next char shows what they become.  NUL chars, which never occur
+ * in HTML, are dropped, except that {@link #compact} leaves content starting
+ * with one as is, it being framed by its writer, e.g. a
+ * {@link org.j2free.cache.FragmentTemplate}, and compacted already.
+ *
+ * @author Ryan Wilson
+ */
+@NotThreadSafe
+public final class HtmlCompactor extends Writer {
+
+    private static final char NUL = '\u0000';
+
+    private final StringBuilder buffer;
+
+    // The length, and first char, of the run of whitespace held back
+    private int  whitespace;
+    private char first;
+
+    // Whether a space then a slash are held back, in case a '>' follows
+    private boolean slash;
+
+    /**
+     * @param capacity The initial capacity of the buffer
+     */
+    public HtmlCompactor(int capacity) {
+        buffer = new StringBuilder(capacity);
+    }
+
+    /**
+     * @param content
+     * @return The content compacted, or the content itself if there was
+     *         nothing to compact, or it starts with a NUL char
+     */
+    public static String compact(String content) {
+        if (!isCompactable(content))
+            return content;
+
+        HtmlCompactor compactor = new HtmlCompactor(content.length());
+        compactor.write(content, 0, content.length());
+        return compactor.toString();
+    }
+
+    @Override
+    public void write(int c) {
+        put((char) c);
+    }
+
+    @Override
+    public void write(char[] cbuf, int off, int len) {
+        for (int i = off, end = off + len; i < end; i++)
+            put(cbuf[i]);
+    }
+
+    @Override
+    public void write(String str, int off, int len) {
+        for (int i = off, end = off + len; i < end; i++)
+            put(str.charAt(i));
+    }
+
+    @Override
+    public void flush() { }
+
+    @Override
+    public void close() { }
+
+    /**
+     * Ends any run of whitespace held back, so that what is written next is
+     * compacted apart from what came before, e.g. around a hole left for
+     * other content
+     *
+     * @return The number of chars compacted so far
+     */
+    public int mark() {
+        release();
+        return buffer.length();
+    }
+
+    /**
+     * @return The number of chars compacted so far
+     */
+    public int length() {
+        return buffer.length();
+    }
+
+    /**
+     * @return The capacity of the buffer
+     */
+    public int capacity() {
+        return buffer.capacity();
+    }
+
+    /**
+     * Empties the compactor to be written to again, keeping the buffer
+     */
+    public void reset() {
+        buffer.setLength(0);
+        whitespace = 0;
+        slash      = false;
+    }
+
+    /**
+     * @return Everything written, compacted; the compactor can be written
+     *         to after, but a run of whitespace will have been ended
+     */
+    @Override
+    public String toString() {
+        release();
+        return buffer.toString();
+    }
+
+    private void put(char c) {
+        if (c == NUL)
+            return;
+
+        if (isWhitespace(c)) {
+            if (slash) {
+                buffer.append(' ').append('/');
+                slash = false;
+            }
+            if (whitespace++ == 0)
+                first = c;
+            return;
+        }
+
+        if (slash) {
+            slash = false;
+            if (c == '>') {
+                buffer.append('/').append('>');
+                return;
+            }
+            buffer.append(' ').append('/');
+        } else if (whitespace > 0) {
+            char space = whitespace > 1 || first == '\n' ? ' ' : first;
+            whitespace = 0;
+
+            if (space == ' ' && c == '/') {
+                slash = true;
+                return;
+            }
+            buffer.append(space);
+        }
+
+        buffer.append(c);
+    }
+
+    // Writes out whatever is held back
+    private void release() {
+        if (slash) {
+            buffer.append(' ').append('/');
+            slash = false;
+        } else if (whitespace > 0) {
+            buffer.append(whitespace > 1 || first == '\n' ? ' ' : first);
+            whitespace = 0;
+        }
+    }
+
+    /**
+     * @return true if compacting the content would change it
+     */
+    private static boolean isCompactable(String content) {
+        if (content.length() > 0 && content.charAt(0) == NUL)
+            return false;
+
+        boolean prior = false;      // whether the previous char was whitespace
+        for (int i = 0, length = content.length(); i < length; i++) {
+            char c = content.charAt(i);
+            if (c == NUL) {
+                return true;
+            } else if (isWhitespace(c)) {
+                if (c == '\n' || prior)
+                    return true;
+                if (c == ' ' && content.startsWith("/>", i + 1))
+                    return true;
+                prior = true;
+            } else {
+                prior = false;
+            }
+        }
+        return false;
+    }
+
+    // Matches \s in a regex
+    private static boolean isWhitespace(char c) {
+        return c == ' ' || c == '\n' || c == '\t' || c == '\r' || c == '\f' || c == '\u000B';
+    }
+}
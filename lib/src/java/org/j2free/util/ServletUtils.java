@@ -30,6 +30,7 @@ import java.util.Date;
 import java.util.Iterator;
 import java.util.StringTokenizer;
 import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
 
 import javax.servlet.RequestDispatcher;
 import javax.servlet.ServletException;
@@ -43,6 +44,10 @@ import org.apache.commons.lang.ArrayUtils;
 import org.apache.commons.lang.StringUtils;
 import org.apache.commons.logging.LogFactory;
 
+import org.j2free.cache.Fragment;
+import org.j2free.cache.FragmentCache;
+import org.j2free.cache.FragmentTemplate;
+import org.j2free.cache.GzippedFragment;
 import org.j2free.security.SecurityUtils;
 
 import static org.j2free.util.Constants.*;
@@ -803,13 +808,120 @@ public class ServletUtils {
     
     /**
      * Expects to compressHTML HTML by replacing line breaks with spaces, and reducing whitespace to single spaces.
+     * Done in a single pass by an {@link HtmlCompactor}; content that is already compact is returned as is.
      *
      * @param content The string to compressHTML.
      * @return the compressed String, or an empty string if <code>content</code> is null.
      */
     public static String compressHTML(String content) {
         if (StringUtils.isEmpty(content)) return EMPTY;
-        return content.replaceAll("\n", SPACE).replaceAll("\\s{2,}", SPACE).replaceAll(" />", "/>");
+        return HtmlCompactor.compact(content);
+    }
+
+    /**
+     * @param request
+     * @return true if the client accepts gzipped responses
+     */
+    public static boolean acceptsGzip(HttpServletRequest request) {
+        String accepted = request.getHeader("Accept-Encoding");
+        if (accepted == null)
+            return false;
+
+        for (String coding : accepted.split(",")) {
+            String[] parts = coding.trim().split(";");
+            if (!parts[0].trim().equalsIgnoreCase("gzip"))
+                continue;
+
+            // gzip;q=0 means not gzip
+            for (int i = 1; i < parts.length; i++) {
+                String param = parts[i].trim();
+                if (param.startsWith("q=")) {
+                    try {
+                        return Float.parseFloat(param.substring(2)) > 0;
+                    } catch (NumberFormatException e) {
+                        return false;
+                    }
+                }
+            }
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Writes a cached fragment as the whole response, sending its gzipped copy
+     * as-is if it keeps one and the client accepts gzip.  A fragment stored as
+     * a {@link FragmentTemplate} can't be filled in without its cache, and is
+     * left for the caller to render.
+     *
+     * @param request
+     * @param response
+     * @param fragment
+     * @param waitFor How long to wait for the fragment to be initialized
+     * @param unit
+     * @return true if the fragment was written, false if it wasn't initialized
+     *         in time, or is a template
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    public static boolean writeFragment(HttpServletRequest request, HttpServletResponse response, Fragment fragment,
+                                        long waitFor, TimeUnit unit)
+            throws IOException, InterruptedException
+    {
+        return writeFragment(request, response, fragment, null, waitFor, unit);
+    }
+
+    /**
+     * Writes a cached fragment as the whole response, sending its gzipped copy
+     * as-is if it keeps one and the client accepts gzip.  A fragment stored as
+     * a {@link FragmentTemplate} is filled in with the nested fragments from
+     * the cache as it is written.
+     *
+     * @param request
+     * @param response
+     * @param fragment
+     * @param cache The cache holding the fragment, or null to leave templates
+     *        for the caller to render
+     * @param waitFor How long to wait for the fragment to be initialized
+     * @param unit
+     * @return true if the fragment was written, false if it wasn't initialized
+     *         in time, or is a template and there is no cache to fill it from
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    public static boolean writeFragment(HttpServletRequest request, HttpServletResponse response, Fragment fragment,
+                                        FragmentCache<?> cache, long waitFor, TimeUnit unit)
+            throws IOException, InterruptedException
+    {
+        if (fragment instanceof GzippedFragment) {
+            // Whether gzipped or not depends on the request
+            response.addHeader("Vary", "Accept-Encoding");
+
+            if (acceptsGzip(request)) {
+                byte[] gzipped = ((GzippedFragment) fragment).getGzipped(waitFor, unit);
+                if (gzipped != null) {
+                    response.setHeader("Content-Encoding", "gzip");
+                    response.setContentLength(gzipped.length);
+                    response.getOutputStream().write(gzipped);
+                    return true;
+                }
+            }
+        }
+
+        String content = fragment.get(waitFor, unit);
+        if (content == null)
+            return false;
+
+        if (FragmentTemplate.isTemplate(content)) {
+            if (cache == null)
+                return false;
+
+            new FragmentTemplate.Assembler(response.getWriter(), cache).write(content);
+            return true;
+        }
+
+        response.getWriter().write(content);
+        return true;
     }
 
     /**
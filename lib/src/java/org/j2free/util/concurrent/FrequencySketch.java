@@ -0,0 +1,163 @@
+/*
+ * FrequencySketch.java
+ *
+ * Copyright 2011 FooBrew, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.j2free.util.concurrent;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import net.jcip.annotations.ThreadSafe;
+
+/**
+ * A compact, approximate count of how often elements have been seen
+ * recently, for making admission decisions in bounded caches (as in
+ * TinyLFU).
+ *
+ * The sketch is a count-min sketch of 4-bit counters, packed sixteen to
+ * a <tt>long</tt>, so an element's frequency saturates at 15.  Every
+ * <tt>10 * maximumSize</tt> increments all counters are halved, so
+ * elements that were popular long ago eventually lose out to elements
+ * that are popular now.
+ *
+ * Counters are updated with CAS, so concurrent increments are never lost.
+ * Halving is not atomic with respect to concurrent increments, which may
+ * leave a few counters slightly off; that's harmless for an estimate.
+ *
+ * @param <E>
+ * @author Ryan Wilson
+ */
+@ThreadSafe
+public final class FrequencySketch<E>
+{
+    // Seeds for each of the four hash functions
+    private static final long[] SEEDS = {
+        0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L
+    };
+
+    private static final long RESET_MASK = 0x7777777777777777L;
+
+    private final AtomicLongArray table;
+    private final int             tableMask;
+
+    private final int             sampleSize;
+    private final AtomicInteger   additions;
+
+    /**
+     * @param maximumSize the number of elements the sketch should
+     *        distinguish between, typically the maximum size of the cache
+     */
+    public FrequencySketch(int maximumSize)
+    {
+        int size = 1;
+        while (size < Math.max(maximumSize, 16))
+            size <<= 1;
+
+        this.table      = new AtomicLongArray(size);
+        this.tableMask  = size - 1;
+        this.sampleSize = (maximumSize > Integer.MAX_VALUE / 10) ? Integer.MAX_VALUE : Math.max(maximumSize, 16) * 10;
+        this.additions  = new AtomicInteger();
+    }
+
+    /**
+     * @return the estimated number of times the element has been seen,
+     *         between 0 and 15
+     */
+    public int frequency(E e)
+    {
+        int hash  = spread(e.hashCode());
+        int start = (hash & 3) << 2;
+
+        int frequency = Integer.MAX_VALUE;
+        for (int i = 0; i < 4; i++)
+        {
+            long value = table.get(indexOf(hash, i));
+            int  count = (int) ((value >>> ((start + i) << 2)) & 0xfL);
+
+            frequency = Math.min(frequency, count);
+        }
+        return frequency;
+    }
+
+    /**
+     * Records one occurrence of the element, aging the whole sketch if
+     * the sample period has elapsed.
+     */
+    public void increment(E e)
+    {
+        int hash  = spread(e.hashCode());
+        int start = (hash & 3) << 2;
+
+        boolean added = false;
+        for (int i = 0; i < 4; i++)
+            added |= incrementAt(indexOf(hash, i), start + i);
+
+        if (added && additions.incrementAndGet() == sampleSize)
+        {
+            reset();
+            additions.addAndGet(-(sampleSize >>> 1));
+        }
+    }
+
+    /**
+     * Increments the 4-bit counter at <tt>offset</tt> (0-15) within the
+     * long at <tt>index</tt>, unless it is already saturated.
+     *
+     * @return true if the counter was incremented
+     */
+    private boolean incrementAt(int index, int offset)
+    {
+        int  shift = offset << 2;
+        long mask  = 0xfL << shift;
+
+        while (true)
+        {
+            long value = table.get(index);
+            if ((value & mask) == mask)
+                return false;
+
+            if (table.compareAndSet(index, value, value + (1L << shift)))
+                return true;
+        }
+    }
+
+    /**
+     * Halves every counter
+     */
+    private void reset()
+    {
+        for (int i = 0; i < table.length(); i++)
+        {
+            long value = table.get(i);
+            table.compareAndSet(i, value, (value >>> 1) & RESET_MASK);
+        }
+    }
+
+    private int indexOf(int hash, int i)
+    {
+        long h = (hash + SEEDS[i]) * SEEDS[i];
+        h += h >>> 32;
+        return ((int) h) & tableMask;
+    }
+
+    // Guards against poor hashCode implementations
+    private static int spread(int x)
+    {
+        x = ((x >>> 16) ^ x) * 0x45d9f3b;
+        x = ((x >>> 16) ^ x) * 0x45d9f3b;
+        return (x >>> 16) ^ x;
+    }
+}
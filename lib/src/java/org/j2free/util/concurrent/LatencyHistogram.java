@@ -0,0 +1,161 @@
+/*
+ * LatencyHistogram.java
+ *
+ * Copyright 2011 FooBrew, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.j2free.util.concurrent;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import net.jcip.annotations.ThreadSafe;
+
+/**
+ * A lock-free histogram of latencies, in nanoseconds.
+ *
+ * Like an HDR histogram, buckets are log-linear: each power of two is
+ * split into 16 equal sub-buckets, so any recorded value is reported
+ * within about 6% of its true value, from a nanosecond up to about 18
+ * minutes, in a fixed 608 counters.  Longer values are recorded in the
+ * last bucket, but the true maximum is still tracked.
+ *
+ * Recording a value is a handful of atomic increments and never blocks,
+ * so a histogram can be updated by every request.  Reads are not atomic
+ * with respect to concurrent recording, which is fine for monitoring.
+ *
+ * @author Ryan Wilson
+ */
+@ThreadSafe
+public final class LatencyHistogram
+{
+    private static final int SUB_BUCKET_BITS  = 4;
+    private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+    private static final int SUB_BUCKET_MASK  = SUB_BUCKET_COUNT - 1;
+
+    private static final int MAX_MAGNITUDE    = 40;     // 2^40ns, about 18 minutes
+
+    private static final int BUCKET_COUNT     = (MAX_MAGNITUDE - SUB_BUCKET_BITS + 2) * SUB_BUCKET_COUNT;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKET_COUNT);
+
+    private final AtomicLong count = new AtomicLong(),
+                             sum   = new AtomicLong(),
+                             max   = new AtomicLong();
+
+    /**
+     * Records one latency.  Negative values, from a clock that went
+     * backwards, are recorded as zero.
+     *
+     * @param nanos the latency, in nanoseconds
+     */
+    public void record(long nanos)
+    {
+        if (nanos < 0)
+            nanos = 0;
+
+        counts.incrementAndGet(indexOf(nanos));
+        count.incrementAndGet();
+        sum.addAndGet(nanos);
+
+        long current;
+        while (nanos > (current = max.get()))
+        {
+            if (max.compareAndSet(current, nanos))
+                break;
+        }
+    }
+
+    /**
+     * @return the number of latencies recorded
+     */
+    public long getCount()
+    {
+        return count.get();
+    }
+
+    /**
+     * @return the largest latency recorded, in nanoseconds
+     */
+    public long getMax()
+    {
+        return max.get();
+    }
+
+    /**
+     * @return the mean latency, in nanoseconds, or 0 if nothing has been recorded
+     */
+    public long getMean()
+    {
+        long n = count.get();
+        return n == 0 ? 0 : sum.get() / n;
+    }
+
+    /**
+     * @param percentile between 0 and 100, e.g. 99.9
+     * @return the latency, in nanoseconds, at or below which the specified
+     *         percent of recorded latencies fall, or 0 if nothing has been
+     *         recorded
+     */
+    public long getValueAtPercentile(double percentile)
+    {
+        long total = count.get();
+        if (total == 0)
+            return 0;
+
+        percentile = Math.min(Math.max(percentile, 0d), 100d);
+
+        long target = Math.max(1, (long) Math.ceil((percentile / 100d) * total));
+        long seen   = 0;
+
+        for (int i = 0; i < BUCKET_COUNT; i++)
+        {
+            seen += counts.get(i);
+            if (seen >= target)
+                return Math.min(highestValueIn(i), max.get());
+        }
+
+        return max.get();
+    }
+
+    /**
+     * @return the index of the bucket the value belongs in
+     */
+    private static int indexOf(long value)
+    {
+        if (value < SUB_BUCKET_COUNT)
+            return (int) value;
+
+        int magnitude = 63 - Long.numberOfLeadingZeros(value);
+        if (magnitude > MAX_MAGNITUDE)
+            return BUCKET_COUNT - 1;
+
+        int subBucket = (int) (value >>> (magnitude - SUB_BUCKET_BITS)) & SUB_BUCKET_MASK;
+        return (magnitude - SUB_BUCKET_BITS + 1) * SUB_BUCKET_COUNT + subBucket;
+    }
+
+    /**
+     * @return the largest value that would be recorded in the bucket
+     */
+    private static long highestValueIn(int index)
+    {
+        if (index < SUB_BUCKET_COUNT)
+            return index;
+
+        int magnitude = (index / SUB_BUCKET_COUNT) + SUB_BUCKET_BITS - 1;
+        int subBucket = index & SUB_BUCKET_MASK;
+
+        return ((long) (SUB_BUCKET_COUNT + subBucket + 1) << (magnitude - SUB_BUCKET_BITS)) - 1;
+    }
+}
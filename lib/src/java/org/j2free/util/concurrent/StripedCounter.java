@@ -0,0 +1,145 @@
+/*
+ * StripedCounter.java
+ *
+ * Copyright 2011 FooBrew, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.j2free.util.concurrent;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import net.jcip.annotations.GuardedBy;
+import net.jcip.annotations.ThreadSafe;
+
+/**
+ * A counter for hot paths, updated far more often than it is read.
+ *
+ * Uncontended, it is a single <tt>AtomicLong</tt>.  The first time an update
+ * loses a CAS race, the counter grows a set of stripes, one per core and
+ * each on its own cache line, and from then on each thread adds to the
+ * stripe picked by its id, so that threads on different cores rarely
+ * contend for a line.  Counters that are never contended, which is most
+ * of them, never pay for the stripes.
+ *
+ * {@link #sum} is not an atomic snapshot: updates made while it runs may
+ * or may not be counted.
+ *
+ * @author Ryan Wilson
+ */
+@ThreadSafe
+public final class StripedCounter
+{
+    // Longs per stripe; 8 longs fill a 64 byte cache line
+    private static final int PADDING = 8;
+
+    private static final int STRIPES = stripes();
+
+    private final AtomicLong base = new AtomicLong();
+
+    @GuardedBy("this") // for writes
+    private volatile AtomicLongArray cells;
+
+    /**
+     * @param delta the amount to add
+     */
+    public void add(long delta)
+    {
+        AtomicLongArray stripes = cells;
+        if (stripes == null)
+        {
+            long current = base.get();
+            if (base.compareAndSet(current, current + delta))
+                return;
+
+            stripes = expand();
+        }
+        stripes.addAndGet(index(), delta);
+    }
+
+    /**
+     * Adds one
+     */
+    public void increment()
+    {
+        add(1);
+    }
+
+    /**
+     * @return the sum of everything added since creation or the last {@link #reset}
+     */
+    public long sum()
+    {
+        long sum = base.get();
+
+        AtomicLongArray stripes = cells;
+        if (stripes != null)
+        {
+            for (int i = 0; i < STRIPES; i++)
+                sum += stripes.get(i * PADDING);
+        }
+        return sum;
+    }
+
+    /**
+     * Sets the counter back to zero; updates made concurrently may be lost.
+     */
+    public void reset()
+    {
+        base.set(0);
+
+        AtomicLongArray stripes = cells;
+        if (stripes != null)
+        {
+            for (int i = 0; i < STRIPES; i++)
+                stripes.set(i * PADDING, 0);
+        }
+    }
+
+    @Override
+    public String toString()
+    {
+        return Long.toString(sum());
+    }
+
+    private synchronized AtomicLongArray expand()
+    {
+        if (cells == null)
+            cells = new AtomicLongArray(STRIPES * PADDING);
+
+        return cells;
+    }
+
+    private static int index()
+    {
+        long id = Thread.currentThread().getId();
+
+        // Thread ids are sequential, so mix them before masking
+        int h = (int) (id ^ (id >>> 32)) * 0x9e3779b9;
+        h ^= h >>> 16;
+
+        return (h & (STRIPES - 1)) * PADDING;
+    }
+
+    private static int stripes()
+    {
+        int cpus = Math.min(Runtime.getRuntime().availableProcessors(), 64);
+
+        int stripes = 1;
+        while (stripes < cpus)
+            stripes <<= 1;
+
+        return stripes;
+    }
+}
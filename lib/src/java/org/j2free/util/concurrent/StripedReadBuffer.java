@@ -0,0 +1,163 @@
+/*
+ * StripedReadBuffer.java
+ *
+ * Copyright 2011 FooBrew, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.j2free.util.concurrent;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import net.jcip.annotations.ThreadSafe;
+
+/**
+ * A lossy buffer of events recorded on a hot path, e.g. cache hits, to be
+ * replayed in batches by a single thread holding a lock, so that recording
+ * an event never waits for, or contends on, the lock (as in W-TinyLFU's
+ * read buffers).
+ *
+ * The buffer is a set of small rings, one per core, and each thread adds to
+ * the ring picked by its id, as in {@link StripedCounter}.  An event is
+ * dropped if its ring is full, or if another thread on the same ring claims
+ * the slot first; the policies replaying the events only need most of them.
+ *
+ * Only one thread may {@link #drain} at a time, e.g. by holding a lock.
+ *
+ * @param <E>
+ * @author Ryan Wilson
+ */
+@ThreadSafe
+public final class StripedReadBuffer<E>
+{
+    /**
+     * Replays the events drained from the buffer
+     *
+     * @param <E>
+     */
+    public interface Consumer<E>
+    {
+        /**
+         * @param e An event, in the order recorded within its ring
+         */
+        public void accept(E e);
+    }
+
+    /**
+     * The number of events each ring holds
+     */
+    public static final int RING_SIZE = 16;
+
+    private static final int RING_MASK = RING_SIZE - 1;
+
+    // Longs per counter; 8 longs fill a 64 byte cache line
+    private static final int PADDING = 8;
+
+    private static final int STRIPES = stripes();
+
+    private final AtomicReferenceArray<E> slots;
+
+    // The number of events ever claimed, and ever drained, per ring
+    private final AtomicLongArray writes;
+    private final AtomicLongArray reads;
+
+    public StripedReadBuffer()
+    {
+        this.slots  = new AtomicReferenceArray<E>(STRIPES * RING_SIZE);
+        this.writes = new AtomicLongArray(STRIPES * PADDING);
+        this.reads  = new AtomicLongArray(STRIPES * PADDING);
+    }
+
+    /**
+     * Records an event, unless its ring is full or contended
+     *
+     * @param e The event
+     * @return true if the ring is full, and should be drained
+     */
+    public boolean offer(E e)
+    {
+        int stripe  = stripe();
+        int counter = stripe * PADDING;
+
+        long tail = writes.get(counter);
+        if (tail - reads.get(counter) >= RING_SIZE)
+            return true;
+
+        if (writes.compareAndSet(counter, tail, tail + 1))
+        {
+            slots.lazySet(stripe * RING_SIZE + (int) (tail & RING_MASK), e);
+            return tail + 1 - reads.get(counter) >= RING_SIZE;
+        }
+
+        return false;       // another thread on this ring won; drop it
+    }
+
+    /**
+     * Replays and removes the recorded events.  Must not be called by more
+     * than one thread at a time.
+     *
+     * @param consumer
+     * @return The number of events replayed
+     */
+    public int drain(Consumer<? super E> consumer)
+    {
+        int drained = 0;
+        for (int stripe = 0; stripe < STRIPES; stripe++)
+        {
+            int counter = stripe * PADDING;
+
+            long head = reads.get(counter);
+            long tail = writes.get(counter);
+
+            for (; head < tail; head++)
+            {
+                int slot = stripe * RING_SIZE + (int) (head & RING_MASK);
+
+                // Claimed, but not yet written; pick it up on the next drain
+                E e = slots.get(slot);
+                if (e == null)
+                    break;
+
+                slots.lazySet(slot, null);
+                consumer.accept(e);
+                drained++;
+            }
+
+            reads.lazySet(counter, head);
+        }
+        return drained;
+    }
+
+    private static int stripe()
+    {
+        long id = Thread.currentThread().getId();
+
+        // Thread ids are sequential, so mix them before masking
+        int h = (int) (id ^ (id >>> 32)) * 0x9e3779b9;
+        h ^= h >>> 16;
+
+        return h & (STRIPES - 1);
+    }
+
+    private static int stripes()
+    {
+        int cpus = Math.min(Runtime.getRuntime().availableProcessors(), 64);
+
+        int stripes = 1;
+        while (stripes < cpus)
+            stripes <<= 1;
+
+        return stripes;
+    }
+}
@@ -0,0 +1,95 @@
+package org.j2free.cache;
+
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import junit.framework.TestCase;
+
+import org.j2free.cache.FragmentCacheAnalyzer.Ranking;
+
+/**
+ *
+ * @author Ryan Wilson
+ */
+public class FragmentCacheAnalyzerTest extends TestCase {
+
+    private FragmentCacheAnalyzer analyzer;
+
+    public FragmentCacheAnalyzerTest(String testName) {
+        super(testName);
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        analyzer = new FragmentCacheAnalyzer(100, FragmentCacheAnalyzer.DEFAULT_DELIMITERS);
+    }
+
+    public void testPrefixOf() {
+        assertEquals("user", analyzer.prefixOf("user:42:sidebar"));
+        assertEquals("/home", analyzer.prefixOf("/home/feed"));
+        assertEquals("footer", analyzer.prefixOf("footer"));
+    }
+
+    public void testRollsUpIntoPrefix() {
+        analyzer.lookup("user:1", null).rendered(2000000, 10);
+        analyzer.lookup("user:1", null).hit(1000, false, false);
+        analyzer.lookup("user:1", null).hit(1000, false, false);
+        analyzer.lookup("user:2", null).hit(5000, false, true);
+
+        FragmentStats key = analyzer.getKey("user:1");
+        assertEquals(3, key.getLookups());
+        assertEquals(2, key.getHits());
+        assertEquals(1, key.getMisses());
+        assertEquals(2000, key.getMeanRenderMicros());
+        assertEquals(10, key.getMeanSize());
+        assertEquals(4, key.getSavedMillis());
+
+        FragmentStats prefix = analyzer.getPrefix("user");
+        assertEquals(4, prefix.getLookups());
+        assertEquals(2, prefix.getHits());
+        assertEquals(1, prefix.getTimeouts());
+    }
+
+    public void testConditionChanges() {
+        analyzer.lookup("a", "1");
+        analyzer.lookup("a", "1");
+        analyzer.lookup("a", "2");
+        analyzer.lookup("a", null);
+        analyzer.lookup("a", null);
+
+        assertEquals(2, analyzer.getKey("a").getConditionChanges());
+    }
+
+    public void testRanking() {
+        analyzer.lookup("cheap", null).rendered(1000000, 1);
+        analyzer.lookup("costly", null).rendered(50000000, 1);
+        analyzer.lookup("costly", null).hit(0, false, false);
+
+        List<FragmentStats> ranked = analyzer.getKeys(Ranking.RENDER, 1);
+        assertEquals(1, ranked.size());
+        assertEquals("costly", ranked.get(0).getName());
+
+        assertEquals("costly", analyzer.getKeys(Ranking.SAVED, -1).get(0).getName());
+    }
+
+    public void testConcurrentCounts() throws Exception {
+        final int threads = 8, each = 10000;
+        final CountDownLatch done = new CountDownLatch(threads);
+
+        for (int i = 0; i < threads; i++) {
+            new Thread() {
+                @Override
+                public void run() {
+                    for (int j = 0; j < each; j++)
+                        analyzer.lookup("hot", null).hit(1, false, false);
+                    done.countDown();
+                }
+            }.start();
+        }
+        done.await();
+
+        assertEquals(threads * each, analyzer.getKey("hot").getHits());
+        assertEquals(threads * each, analyzer.getPrefix("hot").getLookups());
+    }
+}
@@ -0,0 +1,132 @@
+package org.j2free.cache;
+
+import junit.framework.TestCase;
+
+import org.j2free.cache.impl.memory.MemoryFragment;
+import org.j2free.cache.impl.memory.MemoryFragmentCache;
+
+/**
+ *
+ * @author Ryan Wilson
+ */
+public class FragmentCacheManagerTest extends TestCase {
+
+    private static final int KB = 1024;
+
+    private MemoryFragmentCache  noisy;
+    private MemoryFragmentCache  home;
+    private FragmentCacheManager manager;
+
+    public FragmentCacheManagerTest(String testName) {
+        super(testName);
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        noisy = new MemoryFragmentCache(100);
+        home  = new MemoryFragmentCache(100);
+
+        // Rebalance by hand rather than on a schedule
+        manager = new FragmentCacheManager(200 * KB, 60000);
+        manager.addPartition("noisy", noisy, 100 * KB, 0);
+        manager.addPartition("home", home, 100 * KB, 10);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        manager.shutdown();
+        noisy.destroy();
+        home.destroy();
+        super.tearDown();
+    }
+
+    public void testLendsUnusedQuota() {
+        assertEquals(100 * KB, noisy.getMaxWeight());
+
+        fill(home, "home", 20);
+        fill(noisy, "noisy", 90);
+        manager.rebalance();
+
+        // May grow into the quota home isn't using
+        assertEquals(100 * KB, home.getMaxWeight());
+        assertTrue(noisy.getMaxWeight() > 100 * KB);
+
+        fill(noisy, "more", 60);
+        assertTrue(noisy.getWeight() > 100 * KB);
+        assertEquals(20, home.size());
+    }
+
+    public void testTakesBackFromLowestPriorityFirst() {
+        fill(noisy, "noisy", 95);
+        manager.rebalance();
+        fill(noisy, "more", 60);
+
+        // Home grows into its quota, over the shared budget
+        fill(home, "home", 90);
+        assertTrue(manager.getWeight() > manager.getMaxBytes());
+
+        long borrowed = noisy.getWeight();
+        assertTrue(manager.rebalance() > 0);
+        assertTrue(manager.getWeight() <= manager.getMaxBytes());
+        assertEquals(90, home.size());
+        assertEquals(100 * KB, home.getMaxWeight());
+
+        // Only what the noisy partition borrowed is taken back
+        assertTrue(noisy.getWeight() < borrowed);
+        assertTrue(noisy.getMaxWeight() >= 100 * KB);
+
+        // And lent again once home no longer needs it
+        home.clear();
+        manager.rebalance();
+        assertTrue(noisy.getMaxWeight() > borrowed);
+    }
+
+    public void testCutsBelowQuotaOnlyWhenOversubscribed() {
+        manager.addPartition("extra", new MemoryFragmentCache(100), 100 * KB, 5);
+        fill(home, "home", 90);
+        fill(noisy, "noisy", 90);
+        fill((MemoryFragmentCache) manager.getPartition("extra").getCache(), "extra", 90);
+
+        assertTrue(manager.rebalance() > 0);
+        assertTrue(manager.getWeight() <= manager.getMaxBytes());
+        assertEquals(90, home.size());
+        assertEquals(90, manager.getPartition("extra").getCache().size());
+        assertTrue(noisy.size() < 90);
+
+        manager.getPartition("extra").getCache().destroy();
+    }
+
+    public void testSharesMultiGigabyteBudgets() {
+        long gb = 1000L * 1000 * 1000;
+
+        MemoryFragmentCache large = new MemoryFragmentCache(100);
+        MemoryFragmentCache small = new MemoryFragmentCache(100);
+        FragmentCacheManager huge = new FragmentCacheManager(12 * gb, 60000);
+        try {
+            huge.addPartition("large", large, 8 * gb, 0);
+            huge.addPartition("small", small, 1 * gb, 0);
+
+            // 12GB left over, shared 8:1
+            assertEquals(12 * gb * 8 / 9, large.getMaxWeight(), 1);
+            assertEquals(12 * gb / 9, small.getMaxWeight(), 1);
+        } finally {
+            huge.shutdown();
+            large.destroy();
+            small.destroy();
+        }
+    }
+
+    // Fragments of about 1KB each
+    private void fill(MemoryFragmentCache cache, String prefix, int count) {
+        StringBuilder content = new StringBuilder();
+        for (int i = 0; i < 370; i++)
+            content.append('x');
+
+        for (int i = 0; i < count; i++) {
+            MemoryFragment fragment = cache.putIfAbsent(prefix + i, cache.createFragment(null, 60000));
+            assertTrue(fragment.tryLockForUpdate());
+            fragment.tryUpdateAndRelease(content.toString(), null);
+        }
+    }
+}
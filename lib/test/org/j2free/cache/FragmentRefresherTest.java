@@ -0,0 +1,147 @@
+package org.j2free.cache;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Pattern;
+
+import junit.framework.TestCase;
+
+import org.j2free.cache.impl.memory.MemoryFragment;
+import org.j2free.cache.impl.memory.MemoryFragmentCache;
+
+/**
+ *
+ * @author Ryan Wilson
+ */
+public class FragmentRefresherTest extends TestCase {
+
+    private MemoryFragmentCache cache;
+    private FragmentRefresher refresher;
+
+    private final AtomicInteger renders = new AtomicInteger(0);
+
+    public FragmentRefresherTest(String testName) {
+        super(testName);
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        cache = new MemoryFragmentCache(100);
+
+        // Scan by hand rather than on a schedule
+        refresher = new FragmentRefresher(new FragmentRenderers(), 1, 60000, 3, 10, 100);
+        refresher.getRenderers().register("home", new Callable<String>() {
+            public String call() {
+                renders.incrementAndGet();
+                return "home";
+            }
+        });
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        refresher.shutdown();
+        cache.destroy();
+        super.tearDown();
+    }
+
+    public void testRendersHotMissingFragment() throws Exception {
+        lookup("home", 3);
+        assertEquals(1, refresher.refresh());
+        awaitRefreshes(1);
+        assertEquals("home", cache.get("home").get(0, TimeUnit.MILLISECONDS));
+
+        // Warm now, so left alone until it is about to expire
+        lookup("home", 3);
+        assertEquals(0, refresher.refresh());
+        assertEquals(1, renders.get());
+    }
+
+    public void testRefreshesFragmentAboutToExpire() throws Exception {
+        Fragment fragment = cache.putIfAbsent("home", cache.createFragment(null, 100));
+        assertTrue(fragment.tryLockForUpdate(null));
+        fragment.tryUpdateAndRelease("stale", null);
+
+        lookup("home", 3);
+        assertEquals(1, refresher.refresh());
+
+        awaitRefreshes(1);
+
+        // Refreshed in place, without ever expiring
+        assertSame(fragment, cache.get("home"));
+        assertEquals("home", fragment.get(0, TimeUnit.MILLISECONDS));
+    }
+
+    public void testIgnoresColdAndUnknownFragments() {
+        lookup("home", 2);
+        lookup("unknown", 10);
+        assertEquals(0, refresher.refresh());
+        assertEquals(1, refresher.getTrackedKeys());
+
+        // Lookups from earlier intervals count for half
+        lookup("home", 2);
+        assertEquals(1, refresher.refresh());
+    }
+
+    public void testPatternRenderer() throws Exception {
+        refresher.getRenderers().register(Pattern.compile("user:\\d+"), new FragmentRenderers.Renderer() {
+            public String render(String key) {
+                return "profile of " + key;
+            }
+        });
+
+        lookup("user:42", 3);
+        lookup("user:name", 3);
+        assertEquals(1, refresher.refresh());
+        awaitRefreshes(1);
+        assertEquals("profile of user:42", cache.get("user:42").get(0, TimeUnit.MILLISECONDS));
+        assertFalse(cache.contains("user:name"));
+    }
+
+    public void testScanIsNotCountedAsRequests() throws Exception {
+        final AtomicInteger gets = new AtomicInteger(0);
+        cache.destroy();
+        cache = new MemoryFragmentCache(100) {
+            @Override
+            public MemoryFragment get(String key) {
+                gets.incrementAndGet();
+                return super.get(key);
+            }
+        };
+
+        lookup("home", 3);
+        assertEquals(1, refresher.refresh());
+        awaitRefreshes(1);
+
+        lookup("home", 3);
+        assertEquals(0, refresher.refresh());
+        assertEquals(0, gets.get());
+    }
+
+    public void testRenderersSharedWithRevalidator() {
+        FragmentRevalidator revalidator = new FragmentRevalidator(refresher.getRenderers(), 1, 1);
+        try {
+            assertTrue(revalidator.canRevalidate("home"));
+            refresher.getRenderers().unregister("home");
+            assertFalse(revalidator.canRevalidate("home"));
+            assertFalse(refresher.canRefresh("home"));
+        } finally {
+            revalidator.shutdown();
+        }
+    }
+
+    private void lookup(String key, int times) {
+        for (int i = 0; i < times; i++)
+            refresher.lookup(cache, key, null, 60000);
+    }
+
+    private void awaitRefreshes(long count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (refresher.getRefreshes() < count && System.currentTimeMillis() < deadline)
+            Thread.sleep(5);
+
+        assertEquals(count, refresher.getRefreshes());
+    }
+}
@@ -0,0 +1,67 @@
+package org.j2free.cache;
+
+import java.util.concurrent.Callable;
+import java.util.regex.Pattern;
+
+import junit.framework.TestCase;
+
+/**
+ *
+ * @author Ryan Wilson
+ */
+public class FragmentRenderersTest extends TestCase {
+
+    private FragmentRenderers renderers;
+
+    public FragmentRenderersTest(String testName) {
+        super(testName);
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        renderers = new FragmentRenderers();
+    }
+
+    public void testKeyRendererIsWrappedOnce() throws Exception {
+        Callable<String> home = new Callable<String>() {
+            public String call() {
+                return "<p>home</p>";
+            }
+        };
+        renderers.register("home", home);
+
+        FragmentRenderers.Renderer renderer = renderers.get("home");
+        assertSame(renderer, renderers.get("home"));
+        assertEquals("<p>home</p>", renderer.render("home"));
+
+        assertSame(home, renderers.unregister("home"));
+        assertNull(renderers.get("home"));
+    }
+
+    public void testRemembersResolutionUntilPatternsChange() throws Exception {
+        // Remembered as matching nothing
+        assertFalse(renderers.contains("user:1"));
+        assertFalse(renderers.contains("user:1"));
+
+        Pattern users = Pattern.compile("user:\\d+");
+        renderers.register(users, new FragmentRenderers.Renderer() {
+            public String render(String key) {
+                return "<p>" + key + "</p>";
+            }
+        });
+        assertTrue(renderers.contains("user:1"));
+        assertEquals("<p>user:2</p>", renderers.get("user:2").render("user:2"));
+
+        // A key's own renderer comes first, whatever was remembered
+        renderers.register("user:1", new Callable<String>() {
+            public String call() {
+                return "<p>me</p>";
+            }
+        });
+        assertEquals("<p>me</p>", renderers.get("user:1").render("user:1"));
+
+        assertTrue(renderers.unregister(users));
+        assertFalse(renderers.contains("user:2"));
+    }
+}
@@ -0,0 +1,122 @@
+package org.j2free.cache;
+
+import java.lang.management.ManagementFactory;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import junit.framework.TestCase;
+
+import org.j2free.cache.impl.memory.MemoryFragment;
+
+/**
+ *
+ * @author Ryan Wilson
+ */
+public class FragmentRevalidatorTest extends TestCase {
+
+    private FragmentRevalidator revalidator;
+
+    public FragmentRevalidatorTest(String testName) {
+        super(testName);
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        revalidator = new FragmentRevalidator(new FragmentRenderers(), Executors.newSingleThreadExecutor());
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        revalidator.shutdown();
+        super.tearDown();
+    }
+
+    public void testNoRendererMeansRenderInline() throws Exception {
+        MemoryFragment fragment = render("old", 1);
+        Thread.sleep(5);
+
+        assertTrue(fragment.getStaleness(null) > 0);
+        assertFalse(revalidator.revalidate("a", fragment, null));
+        assertEquals(0, revalidator.getStaleHits());
+    }
+
+    public void testServesStaleWhileRevalidating() throws Exception {
+        final CountDownLatch rendering = new CountDownLatch(1);
+        final CountDownLatch proceed   = new CountDownLatch(1);
+
+        revalidator.getRenderers().register("a", new Callable<String>() {
+            public String call() throws Exception {
+                rendering.countDown();
+                proceed.await();
+                return "new";
+            }
+        });
+
+        MemoryFragment fragment = render("old", 50);
+        assertEquals(0, fragment.getStaleness(null));
+        Thread.sleep(60);
+
+        assertTrue(revalidator.revalidate("a", fragment, null));
+        assertTrue(rendering.await(1, TimeUnit.SECONDS));
+
+        // While the background render is in progress, the old content is served
+        // and more stale hits don't render again
+        assertEquals("old", fragment.get(1, TimeUnit.SECONDS));
+        assertTrue(revalidator.revalidate("a", fragment, null));
+        assertEquals(2, revalidator.getStaleHits());
+
+        proceed.countDown();
+        for (int i = 0; i < 100 && revalidator.getRevalidations() == 0; i++)
+            Thread.sleep(10);
+
+        assertEquals(1, revalidator.getRevalidations());
+        assertEquals("new", fragment.get(1, TimeUnit.SECONDS));
+        assertEquals(0, fragment.getStaleness(null));
+    }
+
+    public void testFullQueueMeansRenderInline() throws Exception {
+        revalidator.getRenderers().register("a", new Callable<String>() {
+            public String call() {
+                return "new";
+            }
+        });
+
+        MemoryFragment fragment = render("old", 1);
+        Thread.sleep(5);
+
+        // Rejects everything, as a full queue would
+        revalidator.shutdown();
+
+        assertFalse(revalidator.revalidate("a", fragment, null));
+        assertEquals(1, revalidator.getRejections());
+        assertEquals(0, revalidator.getStaleHits());
+    }
+
+    public void testPublishesCountersWithJmx() throws Exception {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName("org.j2free:type=FragmentCache,name=\"FragmentRevalidator\"");
+
+        revalidator.setJmxEnabled(true);
+        assertTrue(server.isRegistered(name));
+        assertEquals(0L, server.getAttribute(name, "StaleHits"));
+        assertEquals(0, server.getAttribute(name, "Pending"));
+
+        revalidator.shutdown();
+        assertFalse(server.isRegistered(name));
+    }
+
+    private MemoryFragment render(String content, long timeout) {
+        MemoryFragment fragment = new MemoryFragment(null, timeout);
+        assertEquals(-1, fragment.getStaleness(null));
+        assertTrue(fragment.tryLockForUpdate(null));
+        assertTrue(fragment.tryUpdateAndRelease(content, null));
+        return fragment;
+    }
+}
@@ -0,0 +1,180 @@
+package org.j2free.cache;
+
+import java.io.IOException;
+import java.io.StringWriter;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+import org.j2free.cache.impl.memory.MemoryFragmentCache;
+import org.j2free.cache.impl.offheap.OffHeapFragmentCache;
+import org.j2free.util.HtmlCompactor;
+
+/**
+ *
+ * @author Ryan Wilson
+ */
+public class FragmentTemplateTest extends TestCase {
+
+    private MemoryFragmentCache cache;
+
+    public FragmentTemplateTest(String testName) {
+        super(testName);
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        cache = new MemoryFragmentCache(100);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        cache.destroy();
+        super.tearDown();
+    }
+
+    public void testFillsNestedFragments() throws Exception {
+        render("sidebar", template("<ul>", "friends", "</ul>"), 60000);
+        render("friends", "<li>bob</li>", 60000);
+
+        StringWriter page = new StringWriter();
+        FragmentTemplate.Assembler out = new FragmentTemplate.Assembler(page, cache);
+
+        // Written in pieces, splitting the header and the content
+        String template = template("<div>", "sidebar", "</div>");
+        out.write(template.substring(0, 3));
+        out.write(template.toCharArray(), 3, template.length() - 3);
+
+        assertEquals("<div><ul><li>bob</li></ul></div>", page.toString());
+        assertTrue(out.isComplete());
+
+        // Refreshed without touching the templates
+        render("friends", "<li>alice</li>", 60000);
+        page = new StringWriter();
+        new FragmentTemplate.Assembler(page, cache).write(template);
+        assertEquals("<div><ul><li>alice</li></ul></div>", page.toString());
+    }
+
+    public void testFillsNestedOffHeapFragments() throws Exception {
+        // Chunks smaller than either fragment, so the nested one is read mid-way through the outer
+        OffHeapFragmentCache offHeap = new OffHeapFragmentCache(16, 64 * 1024, 4096, 64);
+        try {
+            String before = repeat('A', 100), after = repeat('B', 100), inner = repeat('C', 150);
+            render(offHeap, "outer", template(before, "inner", after), 60000);
+            render(offHeap, "inner", inner, 60000);
+
+            StringWriter page = new StringWriter();
+            FragmentTemplate.Assembler out = new FragmentTemplate.Assembler(page, offHeap);
+            offHeap.get("outer").writeTo(out, 0, TimeUnit.MILLISECONDS);
+
+            assertEquals(before + inner + after, page.toString());
+            assertTrue(out.isComplete());
+        } finally {
+            offHeap.destroy();
+        }
+    }
+
+    public void testFillsHolesAtEitherEnd() throws Exception {
+        render("a", "A", 60000);
+        render("b", "B", 60000);
+
+        FragmentTemplate.Capture capture = new FragmentTemplate.Capture(16);
+        capture.hole("a");
+        capture.write("-");
+        capture.hole("b");
+
+        StringWriter page = new StringWriter();
+        FragmentTemplate.Assembler out = new FragmentTemplate.Assembler(page, cache);
+        out.write(capture.toString());
+        assertEquals("A-B", page.toString());
+        assertTrue(out.isComplete());
+    }
+
+    public void testIncompleteWhenNestedFragmentIsMissingOrExpired() throws Exception {
+        StringWriter page = new StringWriter();
+        FragmentTemplate.Assembler out = new FragmentTemplate.Assembler(page, cache);
+        out.write(template("a", "missing", "b"));
+        assertEquals("ab", page.toString());
+        assertFalse(out.isComplete());
+
+        render("expiring", "stale", 1);
+        Thread.sleep(5);
+
+        page = new StringWriter();
+        out  = new FragmentTemplate.Assembler(page, cache);
+        out.write(template("a", "expiring", "b"));
+        assertEquals("astaleb", page.toString());
+        assertFalse(out.isComplete());
+    }
+
+    public void testHolesSurviveCompaction() throws Exception {
+        FragmentTemplate.Capture capture = new FragmentTemplate.Capture(16);
+        capture.write("<p>  ");
+        capture.hole("key with  spaces");
+        capture.write("\n</p>");
+
+        render("key with  spaces", "<b>x</b>", 60000);
+
+        // As the fragment compresses it again when updated
+        String template = capture.toString();
+        assertSame(template, HtmlCompactor.compact(template));
+
+        StringWriter page = new StringWriter();
+        new FragmentTemplate.Assembler(page, cache).write(template);
+        assertEquals("<p> <b>x</b> </p>", page.toString());
+    }
+
+    public void testNulInContentIsNeverAHole() throws Exception {
+        render("secret", "<p>someone else's</p>", 60000);
+
+        // Captured, e.g. from a request parameter written into the body
+        FragmentTemplate.Capture capture = new FragmentTemplate.Capture(16);
+        capture.write("<p>\u0000secret\u0000</p>");
+        assertEquals("<p>secret</p>", capture.toString());
+        assertEquals("<p>secret</p>", FragmentTemplate.plain("<p>\u0000secret\u0000</p>"));
+
+        // Stored by other means, a stray NUL is written through, with the rest of the page
+        StringWriter page = new StringWriter();
+        FragmentTemplate.Assembler out = new FragmentTemplate.Assembler(page, cache);
+        out.write("<p>\u0000secret\u0000</p>");
+        out.write("<p>rest of the page</p>");
+        assertEquals("<p>\u0000secret\u0000</p><p>rest of the page</p>", page.toString());
+        assertTrue(out.isComplete());
+
+        // As is a header the capture didn't write
+        page = new StringWriter();
+        out  = new FragmentTemplate.Assembler(page, cache);
+        out.write("\u0000secret\u0000</p>");
+        assertEquals("\u0000secret\u0000</p>", page.toString());
+    }
+
+    private static String template(String before, String key, String after) throws IOException {
+        FragmentTemplate.Capture capture = new FragmentTemplate.Capture(16);
+        capture.write(before);
+        capture.hole(key);
+        capture.write(after);
+        return capture.toString();
+    }
+
+    private static String repeat(char c, int count) {
+        char[] chars = new char[count];
+        Arrays.fill(chars, c);
+        return new String(chars);
+    }
+
+    private void render(String key, String content, long timeout) {
+        render(cache, key, content, timeout);
+    }
+
+    private static <T extends Fragment> void render(FragmentCache<T> cache, String key, String content, long timeout) {
+        T fragment = cache.get(key);
+        if (fragment == null)
+            fragment = cache.putIfAbsent(key, cache.createFragment(null, timeout));
+
+        assertTrue(fragment.tryLockForUpdate());
+        fragment.tryUpdateAndRelease(content, null);
+    }
+}
@@ -0,0 +1,85 @@
+package org.j2free.cache.impl.memcached;
+
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+/**
+ *
+ * @author Ryan Wilson
+ */
+public class MemcachedFragmentCacheTest extends TestCase {
+
+    // Two nodes sharing one server
+    private LocalMemcachedStore    memcached;
+    private MemcachedFragmentCache node1;
+    private MemcachedFragmentCache node2;
+
+    public MemcachedFragmentCacheTest(String testName) {
+        super(testName);
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+
+        memcached = new LocalMemcachedStore();
+        node1 = new MemcachedFragmentCache(memcached, 100, "test:", 60000);
+        node2 = new MemcachedFragmentCache(memcached, 100, "test:", 60000);
+    }
+
+    public void testRenderedOnceServedEverywhere() throws Exception {
+        MemcachedFragment rendering = node1.putIfAbsent("a", node1.createFragment(null, 60000));
+        assertTrue(rendering.tryLockForUpdate(null));
+
+        // The other node can't render it while the first one is
+        MemcachedFragment waiting = node2.putIfAbsent("a", node2.createFragment(null, 60000));
+        assertFalse(waiting.tryLockForUpdate(null));
+
+        assertTrue(rendering.tryUpdateAndRelease("content", null));
+
+        // ...and picks up the result instead
+        assertEquals("content", waiting.get(1, TimeUnit.SECONDS));
+        assertFalse(waiting.tryLockForUpdate(null));
+
+        assertEquals("content", node2.get("a").get(0, TimeUnit.MILLISECONDS));
+    }
+
+    public void testExpiredCopyAdoptsNewerContent() throws Exception {
+        MemcachedFragment stale = render(node2, "a", "old", 20);
+        Thread.sleep(25);
+
+        render(node1, "a", "new", 60000);
+
+        // Rather than rendering it again, node2 takes node1's content
+        assertFalse(stale.tryLockForUpdate(null));
+        assertEquals("new", stale.get(0, TimeUnit.MILLISECONDS));
+    }
+
+    public void testReleaseWithoutUpdateUnlocks() throws Exception {
+        MemcachedFragment fragment = node1.putIfAbsent("a", node1.createFragment(null, 60000));
+        assertTrue(fragment.tryLockForUpdate(null));
+        fragment.tryRelease();
+
+        MemcachedFragment other = node2.putIfAbsent("a", node2.createFragment(null, 60000));
+        assertTrue(other.tryLockForUpdate(null));
+        assertTrue(other.tryUpdateAndRelease("content", null));
+    }
+
+    public void testLongKeysAreHashed() throws Exception {
+        StringBuilder key = new StringBuilder("with spaces ");
+        for (int i = 0; i < 300; i++)
+            key.append('k');
+
+        render(node1, key.toString(), "content", 60000);
+        assertEquals("content", node2.get(key.toString()).get(0, TimeUnit.MILLISECONDS));
+    }
+
+    private MemcachedFragment render(MemcachedFragmentCache cache, String key, String content, long timeout) {
+        MemcachedFragment fragment = cache.putIfAbsent(key, cache.createFragment(null, timeout));
+        if (!fragment.tryLockForUpdate(null))
+            assertTrue(fragment.tryLockForUpdate());
+        assertTrue(fragment.tryUpdateAndRelease(content, null));
+        return fragment;
+    }
+}
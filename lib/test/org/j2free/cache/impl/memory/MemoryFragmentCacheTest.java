@@ -0,0 +1,324 @@
+package org.j2free.cache.impl.memory;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.io.Reader;
+
+import java.lang.ref.WeakReference;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPInputStream;
+
+import junit.framework.TestCase;
+
+import org.j2free.cache.FragmentTemplate;
+
+/**
+ *
+ * @author Ryan Wilson
+ */
+public class MemoryFragmentCacheTest extends TestCase {
+
+    private static final String CONTENT;
+
+    static {
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < 500; i++)
+            builder.append('x');
+        CONTENT = builder.toString();
+    }
+
+    // Roughly 100 fragments of CONTENT
+    private static final long BUDGET = 100 * (MemoryFragmentEvictor.ENTRY_OVERHEAD + 2 * (CONTENT.length() + 10));
+
+    private MemoryFragmentCache cache;
+
+    public MemoryFragmentCacheTest(String testName) {
+        super(testName);
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        cache = new MemoryFragmentCache(100, 0.75f, 1, BUDGET);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        cache.destroy();
+        super.tearDown();
+    }
+
+    public void testStaysWithinBudget() {
+        for (int i = 0; i < 1000; i++)
+            render("key-" + i);
+
+        MemoryFragmentCacheStatistics stats = (MemoryFragmentCacheStatistics) cache.getStatistics();
+        assertTrue(stats.getWeight() <= BUDGET);
+        assertTrue(cache.size() <= 100);
+        assertTrue(stats.getEvictionCount() >= 900);
+        assertEquals(BUDGET, stats.getMaxWeight());
+    }
+
+    public void testFrequentFragmentsSurviveScan() {
+        for (int i = 0; i < 50; i++)
+            render("popular-" + i);
+
+        // A scan of one-off keys, with the popular fragments still being requested
+        for (int i = 0; i < 2000; i++) {
+            render("scan-" + i);
+            cache.get("popular-" + (i % 50));
+        }
+
+        int survivors = 0;
+        for (int i = 0; i < 50; i++) {
+            if (cache.contains("popular-" + i))
+                survivors++;
+        }
+        assertTrue("only " + survivors + " popular fragments survived", survivors >= 45);
+    }
+
+    public void testRemovalReleasesWeight() {
+        render("a");
+        render("b");
+
+        MemoryFragmentCacheStatistics stats = (MemoryFragmentCacheStatistics) cache.getStatistics();
+        assertTrue(stats.getWeight() > 2 * CONTENT.length());
+
+        cache.evict("a");
+        cache.evict("b", cache.get("b"));
+        assertEquals(0, ((MemoryFragmentCacheStatistics) cache.getStatistics()).getWeight());
+        assertEquals(0, cache.getStatistics().getEvictionCount());
+    }
+
+    public void testCleanerOnlyEvictsExpired() throws Exception {
+        MemoryFragment expiring = cache.createFragment(null, 10);
+        cache.put("expiring", expiring);
+        cache.put("fresh", cache.createFragment(null, 60000));
+
+        Thread.sleep(MemoryFragmentCleaner.RESOLUTION + 100);
+        cache.scheduleCleaner(1, TimeUnit.HOURS, true);
+
+        assertFalse(cache.contains("expiring"));
+        assertTrue(cache.contains("fresh"));
+        assertEquals(1, ((MemoryFragmentCacheStatistics) cache.getStatistics()).getLastCleanCount());
+    }
+
+    public void testCleanerKeepsExpiredFragmentsForTheStaleTtl() throws Exception {
+        cache.setStaleTtl(MemoryFragmentCleaner.RESOLUTION);
+        cache.put("expiring", cache.createFragment(null, 10));
+
+        // Expired, but still within its grace, to be served stale
+        Thread.sleep(MemoryFragmentCleaner.RESOLUTION + 100);
+        cache.scheduleCleaner(1, TimeUnit.HOURS, true);
+        assertTrue(cache.contains("expiring"));
+
+        // Rescheduled for the end of its grace, rounded up to the next bucket
+        Thread.sleep(2 * MemoryFragmentCleaner.RESOLUTION + 100);
+        cache.scheduleCleaner(1, TimeUnit.HOURS, true);
+        assertFalse(cache.contains("expiring"));
+    }
+
+    public void testEvictedFragmentsCanBeCollected() throws Exception {
+        render("first");
+        WeakReference<MemoryFragment> first = new WeakReference<MemoryFragment>(cache.get("first"));
+
+        // Evicted to stay within the budget, long before the cleaner would look at them
+        for (int i = 0; i < 500; i++)
+            render("key-" + i);
+        assertFalse(cache.contains("first"));
+
+        for (int i = 0; i < 10 && first.get() != null; i++) {
+            System.gc();
+            Thread.sleep(10);
+        }
+        assertNull(first.get());
+    }
+
+    public void testCompressedContent() throws Exception {
+        MemoryFragmentCache compressing = new MemoryFragmentCache(100, 0.75f, 1, BUDGET, true, true);
+
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < 200; i++)
+            builder.append("<li class=\"item\">caf\u00e9 ").append(i).append("</li>");
+        String content = builder.toString();
+
+        MemoryFragment fragment = compressing.putIfAbsent("page", compressing.createFragment(null, 60000));
+        assertTrue(fragment.tryLockForUpdate(null));
+        assertTrue(fragment.tryUpdateAndRelease(content, null));
+
+        assertEquals(content, fragment.get(0, TimeUnit.MILLISECONDS));
+
+        // Filled and fresh, so served rather than rendered again
+        assertFalse(fragment.tryLockForUpdate(null));
+
+        assertEquals(fragment.weight(), fragment.clone("other", 1000).weight());
+        assertTrue(fragment.weight() * 4 < content.length() * 2);
+
+        Reader gunzip = new InputStreamReader(
+                            new GZIPInputStream(new ByteArrayInputStream(fragment.getGzipped(0, TimeUnit.MILLISECONDS))),
+                            "UTF-8"
+                        );
+        StringBuilder unzipped = new StringBuilder();
+        for (int c; (c = gunzip.read()) >= 0; )
+            unzipped.append((char) c);
+        assertEquals(content, unzipped.toString());
+
+        compressing.destroy();
+    }
+
+    public void testTemplatesAreNotGzipped() throws Exception {
+        MemoryFragmentCache compressing = new MemoryFragmentCache(100, 0.75f, 1, BUDGET, true, true);
+
+        FragmentTemplate.Capture capture = new FragmentTemplate.Capture(16);
+        capture.write("<div>");
+        capture.hole("nested");
+        capture.write("</div>");
+        String template = capture.toString();
+        assertTrue(FragmentTemplate.isTemplate(template));
+
+        MemoryFragment fragment = compressing.putIfAbsent("page", compressing.createFragment(null, 60000));
+        assertTrue(fragment.tryLockForUpdate(null));
+        assertTrue(fragment.tryUpdateAndRelease(template, null));
+
+        // The header is never sent to the client as it is
+        assertEquals(template, fragment.get(0, TimeUnit.MILLISECONDS));
+        assertNull(fragment.getGzipped(0, TimeUnit.MILLISECONDS));
+
+        compressing.destroy();
+    }
+
+    public void testEvictByTag() {
+        render("user:1:profile");
+        render("user:1:sidebar");
+        render("user:2:profile");
+        cache.tag("user:1:profile", Arrays.asList("user-1"));
+        cache.tag("user:1:sidebar", Arrays.asList("user-1", "sidebar"));
+        cache.tag("user:2:profile", Arrays.asList("user-2"));
+
+        assertEquals(2, cache.evictByTag("user-1"));
+        assertFalse(cache.contains("user:1:profile"));
+        assertFalse(cache.contains("user:1:sidebar"));
+        assertTrue(cache.contains("user:2:profile"));
+
+        // Untagged keys, and keys no longer cached, aren't found
+        cache.tag("user:2:profile", Collections.<String>emptyList());
+        assertEquals(0, cache.evictByTag("user-2"));
+        assertEquals(0, cache.evictByTag("sidebar"));
+    }
+
+    public void testEvictByPrefix() {
+        render("user:1:profile");
+        render("user:1:sidebar");
+        render("user:10:profile");
+        render("footer");
+
+        assertEquals(2, cache.evictByPrefix("user:1:"));
+        assertTrue(cache.contains("user:10:profile"));
+        assertTrue(cache.contains("footer"));
+
+        // Fragments evicted to stay within budget leave the index too
+        for (int i = 0; i < 1000; i++)
+            render("key-" + i);
+        assertEquals(cache.size(), cache.evictByPrefix(""));
+        assertEquals(0, cache.size());
+    }
+
+    public void testOneThreadRendersAStaleFragment() throws Exception {
+        final MemoryFragment fragment = cache.putIfAbsent("hot", cache.createFragment(null, 60000));
+        assertTrue(fragment.tryLockForUpdate(null));
+        fragment.tryUpdateAndRelease(CONTENT, "old");
+
+        final int threads = 8;
+        final CountDownLatch start = new CountDownLatch(1), done = new CountDownLatch(threads);
+        final AtomicInteger renders = new AtomicInteger(), misses = new AtomicInteger();
+
+        for (int i = 0; i < threads; i++) {
+            new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        for (int j = 0; j < 1000; j++) {
+                            if (fragment.tryLockForUpdate("new")) {
+                                renders.incrementAndGet();
+                                fragment.tryUpdateAndRelease(CONTENT, "new");
+                            }
+                            if (!CONTENT.equals(fragment.get(0, TimeUnit.MILLISECONDS)))
+                                misses.incrementAndGet();
+                        }
+                    } catch (InterruptedException e) {
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }.start();
+        }
+        start.countDown();
+        done.await();
+
+        // Threads that read the stale version before it was updated must not render it again
+        assertEquals(1, renders.get());
+        assertEquals(0, misses.get());
+    }
+
+    public void testSnapshotRestoresLiveFragments() throws Exception {
+        render("a");
+        render("b");
+        cache.tag("b", Arrays.asList("tagged"));
+
+        MemoryFragment expiring = cache.putIfAbsent("c", cache.createFragment(null, 1));
+        assertTrue(expiring.tryLockForUpdate(null));
+        expiring.tryUpdateAndRelease(CONTENT, null);
+        Thread.sleep(5);
+
+        File file = File.createTempFile("fragments", ".snapshot");
+        try {
+            assertEquals(2, cache.snapshot(file));
+
+            // Into a cache that keeps content deflated, with one key rendered since the restart
+            MemoryFragmentCache restarted = new MemoryFragmentCache(100, 0.75f, 1, 0, true, false);
+            MemoryFragment rendered = restarted.putIfAbsent("a", restarted.createFragment(null, 60000));
+            assertTrue(rendered.tryLockForUpdate(null));
+            rendered.tryUpdateAndRelease("fresh", null);
+
+            assertEquals(1, restarted.restore(file));
+            assertEquals("fresh", restarted.get("a").get(0, TimeUnit.MILLISECONDS));
+            assertEquals(CONTENT, restarted.get("b").get(0, TimeUnit.MILLISECONDS));
+            assertFalse(restarted.get("b").tryLockForUpdate(null));
+            assertFalse(restarted.contains("c"));
+            assertEquals(1, restarted.evictByTag("tagged"));
+
+            // Back out of the deflating cache, then into a plain one from a truncated file
+            assertEquals(1, restarted.snapshot(file));
+            restarted.destroy();
+
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            raf.setLength(raf.length() - 1);
+            raf.close();
+
+            MemoryFragmentCache plain = new MemoryFragmentCache(100);
+            assertEquals(1, plain.restore(file));
+            assertEquals("fresh", plain.get("a").get(0, TimeUnit.MILLISECONDS));
+            plain.destroy();
+        } finally {
+            file.delete();
+        }
+    }
+
+    // Mimics the FragmentCacheTag: insert an empty fragment, then fill it in
+    private void render(String key) {
+        MemoryFragment fragment = cache.get(key);
+        if (fragment == null)
+            fragment = cache.putIfAbsent(key, cache.createFragment(null, 60000));
+
+        if (fragment.tryLockForUpdate(null))
+            fragment.tryUpdateAndRelease(CONTENT, null);
+    }
+}
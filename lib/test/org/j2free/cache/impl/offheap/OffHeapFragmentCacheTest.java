@@ -0,0 +1,121 @@
+package org.j2free.cache.impl.offheap;
+
+import java.io.StringWriter;
+
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+/**
+ *
+ * @author Ryan Wilson
+ */
+public class OffHeapFragmentCacheTest extends TestCase {
+
+    private OffHeapFragmentCache cache;
+
+    public OffHeapFragmentCacheTest(String testName) {
+        super(testName);
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+
+        // 8 chunks of 64 bytes
+        cache = new OffHeapFragmentCache(16, 512, 256, 64);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        cache.destroy();
+        super.tearDown();
+    }
+
+    public void testRoundTrip() throws Exception {
+        // Multi-byte characters straddling chunk boundaries
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < 30; i++)
+            builder.append("caf\u00e9 \u20ac");
+        String content = builder.toString();
+
+        OffHeapFragment fragment = render("a", content);
+
+        StringWriter out = new StringWriter();
+        assertTrue(fragment.writeTo(out, 1, TimeUnit.SECONDS));
+        assertEquals(content, out.toString());
+        assertEquals(content, fragment.get(1, TimeUnit.SECONDS));
+    }
+
+    public void testEvictsToMakeRoom() throws Exception {
+        String content = repeat('x', 200);          // 4 chunks each
+
+        render("a", content);
+        render("b", content);
+        render("c", content);
+
+        assertEquals(2, cache.size());
+        assertEquals(1, cache.getStatistics().getEvictionCount());
+
+        OffHeapFragmentCacheStatistics stats = (OffHeapFragmentCacheStatistics) cache.getStatistics();
+        assertEquals(512, stats.getAllocatedBytes());
+        assertTrue(cache.contains("c"));
+    }
+
+    public void testDiscardedFragmentMisses() throws Exception {
+        String content = repeat('y', 100);
+
+        OffHeapFragment fragment = render("a", content);
+        cache.evict("a");
+
+        // Nothing is copied to the heap; a late reader misses, and renders it again
+        assertEquals(0, ((OffHeapFragmentCacheStatistics) cache.getStatistics()).getAllocatedBytes());
+        assertNull(fragment.get(1, TimeUnit.SECONDS));
+        assertEquals(-1, fragment.getTimeToLive());
+
+        assertTrue(fragment.tryLockForUpdate(null));
+        fragment.tryUpdateAndRelease(content, null);
+        assertEquals(content, fragment.get(1, TimeUnit.SECONDS));
+        assertEquals(0, ((OffHeapFragmentCacheStatistics) cache.getStatistics()).getAllocatedBytes());
+    }
+
+    public void testOversizedContentStaysOnHeap() throws Exception {
+        String content = repeat('z', 1000);
+
+        OffHeapFragment fragment = render("a", content);
+        assertEquals(content, fragment.get(1, TimeUnit.SECONDS));
+        assertEquals(0, ((OffHeapFragmentCacheStatistics) cache.getStatistics()).getAllocatedBytes());
+    }
+
+    public void testCleanerKeepsExpiredFragmentsForTheStaleTtl() throws Exception {
+        OffHeapFragment fragment = render("a", repeat('s', 100), 1);
+        Thread.sleep(5);
+        assertTrue(fragment.getStaleness(null) > 0);
+
+        cache.setStaleTtl(60000);
+        cache.clean();
+        assertTrue(cache.contains("a"));
+
+        cache.setStaleTtl(0);
+        cache.clean();
+        assertFalse(cache.contains("a"));
+    }
+
+    private OffHeapFragment render(String key, String content) {
+        return render(key, content, 60000);
+    }
+
+    private OffHeapFragment render(String key, String content, long timeout) {
+        OffHeapFragment fragment = cache.putIfAbsent(key, cache.createFragment(null, timeout));
+        assertTrue(fragment.tryLockForUpdate(null));
+        assertTrue(fragment.tryUpdateAndRelease(content, null));
+        return fragment;
+    }
+
+    private String repeat(char c, int times) {
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < times; i++)
+            builder.append(c);
+        return builder.toString();
+    }
+}
@@ -0,0 +1,139 @@
+package org.j2free.cache.impl.redis;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+/**
+ *
+ * @author Ryan Wilson
+ */
+public class RedisFragmentCacheTest extends TestCase {
+
+    // Two nodes sharing one server
+    private RedisFragmentCache node1;
+    private RedisFragmentCache node2;
+
+    public RedisFragmentCacheTest(String testName) {
+        super(testName);
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+
+        LocalRedisClient redis = new LocalRedisClient();
+        node1 = new RedisFragmentCache(redis, 100, "test:", 60000);
+        node2 = new RedisFragmentCache(redis, 100, "test:", 60000);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        node1.destroy();
+        node2.destroy();
+        super.tearDown();
+    }
+
+    public void testRenderedOnceServedEverywhere() throws Exception {
+        RedisFragment rendering = node1.putIfAbsent("a", node1.createFragment(null, 60000));
+        assertTrue(rendering.tryLockForUpdate(null));
+
+        // The other node can't render it while the first one is
+        RedisFragment waiting = node2.putIfAbsent("a", node2.createFragment(null, 60000));
+        assertFalse(waiting.tryLockForUpdate(null));
+
+        assertTrue(rendering.tryUpdateAndRelease("content", null));
+
+        // ...and picks up the result instead
+        assertEquals("content", waiting.get(1, TimeUnit.SECONDS));
+        assertFalse(waiting.tryLockForUpdate(null));
+    }
+
+    public void testNearCacheFilledFromRedis() throws Exception {
+        render(node1, "a", "content");
+
+        RedisFragment fragment = node2.get("a");
+        assertNotNull(fragment);
+        assertEquals("content", fragment.get(0, TimeUnit.MILLISECONDS));
+        assertEquals(0, fragment.getStaleness(null));
+
+        assertSame(fragment, node2.get("a"));
+
+        RedisFragmentCacheStatistics stats = (RedisFragmentCacheStatistics) node2.getStatistics();
+        assertEquals(1, stats.getRemoteHits());
+        assertEquals(1, stats.getNearHits());
+    }
+
+    public void testUpdatesInvalidateOtherNodes() throws Exception {
+        render(node1, "a", "old");
+        assertNotNull(node2.get("a"));
+
+        RedisFragment fragment = node1.get("a");
+        assertTrue(fragment.tryLockForUpdate());
+        assertTrue(fragment.tryUpdateAndRelease("new", null));
+
+        assertFalse(node2.size() > 0);
+        assertEquals("new", node2.get("a").get(0, TimeUnit.MILLISECONDS));
+
+        node1.evict("a");
+        assertNull(node2.get("a"));
+    }
+
+    public void testEvictByTagOnEveryNode() throws Exception {
+        render(node1, "user:1", "one");
+        render(node2, "user:2", "two");
+        node1.tag("user:1", Arrays.asList("team-7"));
+        node2.tag("user:2", Arrays.asList("team-7", "user-2"));
+        assertNotNull(node2.get("user:1"));
+
+        assertEquals(2, node1.evictByTag("team-7"));
+        assertNull(node2.get("user:1"));
+        assertNull(node1.get("user:2"));
+
+        // Evicting a key drops it from its other tags
+        assertEquals(0, node1.evictByTag("user-2"));
+
+        render(node1, "user:3", "three");
+        render(node1, "users", "all");
+        assertEquals(1, node2.evictByPrefix("user:"));
+        assertNotNull(node2.get("users"));
+    }
+
+    public void testIndexesExpireWithFragments() throws Exception {
+        LocalRedisClient redis = new LocalRedisClient();
+        RedisFragmentCache node = new RedisFragmentCache(redis, 100, "test:", 0);
+        try {
+            render(node, "user:1", "one", 50);
+            render(node, "user:2", "two", 60000);
+            node.tag("user:1", Arrays.asList("team-7"));
+            node.tag("user:2", Arrays.asList("team-8"));
+
+            Thread.sleep(100);
+
+            // Only what stands for user:2 is left: its content, the set of
+            // keys, its set of tags and the set of keys tagged team-8
+            assertEquals(4, redis.size());
+            assertEquals(Collections.singleton("user:2"), redis.members("test:keys"));
+            assertTrue(redis.members("test:t:team-7").isEmpty());
+
+            Iterator<String> keys = node.keyIterator();
+            assertEquals("user:2", keys.next());
+            assertFalse(keys.hasNext());
+        } finally {
+            node.destroy();
+        }
+    }
+
+    private void render(RedisFragmentCache cache, String key, String content) {
+        render(cache, key, content, 60000);
+    }
+
+    private void render(RedisFragmentCache cache, String key, String content, long timeout) {
+        RedisFragment fragment = cache.putIfAbsent(key, cache.createFragment(null, timeout));
+        assertTrue(fragment.tryLockForUpdate(null));
+        assertTrue(fragment.tryUpdateAndRelease(content, null));
+    }
+}
@@ -0,0 +1,144 @@
+package org.j2free.invoker;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import java.net.URL;
+
+import java.util.Map;
+import java.util.Set;
+
+import javax.servlet.http.HttpServlet;
+
+import junit.framework.TestCase;
+
+import org.j2free.annotations.FilterConfig;
+import org.j2free.annotations.ServletConfig;
+
+/**
+ *
+ * @author Ryan Wilson
+ */
+public class AnnotationIndexTest extends TestCase {
+
+    @ServletConfig
+    public static class AnnotatedServlet extends HttpServlet { }
+
+    private static final String SERVLET = AnnotatedServlet.class.getName();
+
+    private File classes, index;
+
+    public AnnotationIndexTest(String testName) {
+        super(testName);
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+
+        File root = File.createTempFile("annotation-index", "");
+        root.delete();
+        root.mkdirs();
+
+        classes = new File(root, "classes");
+        index   = new File(root, "index.idx");
+
+        copyClass(AnnotatedServlet.class);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        delete(classes.getParentFile());
+        super.tearDown();
+    }
+
+    public void testScanAndReuse() throws Exception {
+        Set<String> servlets = scan().get(ServletConfig.class.getName());
+        assertTrue(servlets.contains(SERVLET));
+        assertTrue(scan().get(FilterConfig.class.getName()).isEmpty());
+        assertTrue(index.isFile());
+
+        // Tamper with the index; an unchanged archive must be served from it, not rescanned
+        replaceInIndex(SERVLET, "com.example.Cached");
+
+        // As unpacking a WAR would
+        File file = new File(classes, SERVLET.replace('.', '/') + ".class");
+        assertTrue(file.setLastModified(file.lastModified() - 3600000));
+
+        servlets = scan().get(ServletConfig.class.getName());
+        assertTrue(servlets.contains("com.example.Cached"));
+        assertFalse(servlets.contains(SERVLET));
+    }
+
+    public void testRescanChangedArchive() throws Exception {
+        scan();
+
+        replaceInIndex(SERVLET, "com.example.Cached");
+
+        // Changing the archive invalidates its entry
+        copyClass(AnnotationIndexTest.class);
+
+        Set<String> servlets = scan().get(ServletConfig.class.getName());
+        assertTrue(servlets.contains(SERVLET));
+        assertFalse(servlets.contains("com.example.Cached"));
+    }
+
+    private Map<String, Set<String>> scan() throws IOException {
+        return new AnnotationIndex(
+                    index, null, 2, ServletConfig.class.getName(), FilterConfig.class.getName()
+                ).scan(new URL[] { classes.toURI().toURL() });
+    }
+
+    private void copyClass(Class<?> klass) throws IOException {
+        String name = klass.getName().replace('.', '/') + ".class";
+
+        File file = new File(classes, name);
+        file.getParentFile().mkdirs();
+
+        InputStream in = klass.getClassLoader().getResourceAsStream(name);
+        OutputStream out = new FileOutputStream(file);
+        try {
+            byte[] buffer = new byte[4096];
+            int read;
+            while ((read = in.read(buffer)) != -1)
+                out.write(buffer, 0, read);
+        } finally {
+            in.close();
+            out.close();
+        }
+    }
+
+    private void replaceInIndex(String target, String replacement) throws IOException {
+        InputStream in = new FileInputStream(index);
+        String contents;
+        try {
+            byte[] bytes = new byte[(int) index.length()];
+            int offset = 0;
+            while (offset < bytes.length)
+                offset += in.read(bytes, offset, bytes.length - offset);
+            contents = new String(bytes, "UTF-8");
+        } finally {
+            in.close();
+        }
+
+        OutputStream out = new FileOutputStream(index);
+        try {
+            out.write(contents.replace(target, replacement).getBytes("UTF-8"));
+        } finally {
+            out.close();
+        }
+    }
+
+    private void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children)
+                delete(child);
+        }
+        file.delete();
+    }
+}
@@ -0,0 +1,87 @@
+package org.j2free.invoker;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.servlet.http.HttpServletResponse;
+
+import junit.framework.TestCase;
+
+/**
+ *
+ * @author Ryan Wilson
+ */
+public class CacheControlPolicyTest extends TestCase {
+
+    private Map<String, Object> headers;
+
+    public CacheControlPolicyTest(String testName) {
+        super(testName);
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        headers = new HashMap<String, Object>();
+    }
+
+    public void testDefaults() {
+        CacheControlPolicy policy = CacheControlPolicy.DEFAULT;
+
+        assertEquals("max-age=21600", policy.resolve("/images/logo.png").cacheControl);
+        assertEquals("max-age=31536000", policy.resolve("/js/app.js").cacheControl);
+        assertNull(policy.resolve("/captcha.jpg").cacheControl);
+        assertNull(policy.resolve("/user/profile").cacheControl);
+        assertNull(policy.resolve("/v1.js/profile").cacheControl);
+
+        // Resolving the same path again returns the remembered rule
+        assertSame(policy.resolve("/js/app.js"), policy.resolve("/js/app.js"));
+
+        policy.apply("/images/logo.png", response());
+        assertEquals("cache", headers.get("Pragma"));
+        assertEquals("max-age=21600", headers.get("Cache-Control"));
+        assertFalse(headers.containsKey("Expires"));
+    }
+
+    public void testConfiguredRules() {
+        Map<String, String> rules = new HashMap<String, String>(CacheControlPolicy.DEFAULT_RULES);
+        rules.put("PNG", "public, max-age=60");
+        rules.put("css", "none");
+        rules.put("html", "no-cache");
+
+        CacheControlPolicy policy = new CacheControlPolicy(rules, Arrays.asList("/private/"), true, 10);
+
+        assertNull(policy.resolve("/style.css").cacheControl);
+        assertNull(policy.resolve("/private/logo.png").cacheControl);
+        assertEquals("max-age=21600", policy.resolve("/captcha.jpg").cacheControl);
+
+        long now = System.currentTimeMillis();
+        policy.apply("/logo.png", response());
+        assertEquals("public, max-age=60", headers.get("Cache-Control"));
+        assertTrue((Long) headers.get("Expires") >= now + 60000);
+
+        headers.clear();
+        policy.apply("/index.html", response());
+        assertEquals("no-cache", headers.get("Pragma"));
+        assertFalse(headers.containsKey("Expires"));
+    }
+
+    private HttpServletResponse response() {
+        return (HttpServletResponse) Proxy.newProxyInstance(
+                    getClass().getClassLoader(),
+                    new Class[] { HttpServletResponse.class },
+                    new InvocationHandler() {
+                        public Object invoke(Object proxy, Method method, Object[] args) {
+                            if (method.getName().endsWith("Header"))
+                                headers.put((String) args[0], args[1]);
+                            return null;
+                        }
+                    }
+                );
+    }
+}
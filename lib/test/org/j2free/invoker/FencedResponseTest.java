@@ -0,0 +1,138 @@
+package org.j2free.invoker;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.io.Writer;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import javax.servlet.http.HttpServletResponse;
+
+import junit.framework.TestCase;
+
+/**
+ *
+ * @author Ryan Wilson
+ */
+public class FencedResponseTest extends TestCase {
+
+    private StringWriter body;
+    private Writer       target;
+    private List<String> calls;
+    private boolean      committed;
+
+    public FencedResponseTest(String testName) {
+        super(testName);
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        body      = new StringWriter();
+        target    = body;
+        calls     = new ArrayList<String>();
+        committed = false;
+    }
+
+    public void testDropsEverythingOnceFenced() throws Exception {
+        FencedResponse resp = new FencedResponse(response());
+
+        // A writer taken before the timeout, as a servlet would have
+        PrintWriter out = resp.getWriter();
+        out.write("before");
+        out.flush();
+
+        assertTrue(resp.fence(HttpServletResponse.SC_SERVICE_UNAVAILABLE));
+        assertTrue(calls.contains("setStatus:503"));
+        assertTrue(resp.isCommitted());
+
+        calls.clear();
+        out.write("after");
+        out.flush();
+        resp.setHeader("X-Late", "1");
+        resp.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+        resp.getWriter().write("later");
+
+        assertEquals("before", body.toString());
+        assertTrue(calls.toString(), calls.isEmpty());
+    }
+
+    public void testAnswersOnceWorkerFinishesWriting() throws Exception {
+        final CountDownLatch writing = new CountDownLatch(1);
+        final CountDownLatch proceed = new CountDownLatch(1);
+        target = new Writer() {
+            @Override
+            public void write(char[] cbuf, int off, int len) throws IOException {
+                writing.countDown();
+                try {
+                    proceed.await();
+                } catch (InterruptedException e) {
+                    throw new IOException(e.toString());
+                }
+                body.write(cbuf, off, len);
+            }
+            @Override public void flush() { }
+            @Override public void close() { }
+        };
+
+        final FencedResponse resp = new FencedResponse(response());
+        final PrintWriter out = resp.getWriter();
+
+        // A worker blocked writing to a slow client
+        Thread worker = new Thread() {
+            @Override
+            public void run() {
+                out.write("slow");
+            }
+        };
+        worker.start();
+        writing.await();
+
+        assertFalse(resp.fence(HttpServletResponse.SC_SERVICE_UNAVAILABLE));
+        assertFalse(calls.contains("setStatus:503"));
+
+        // Answered as the write returns, since nothing was committed
+        proceed.countDown();
+        worker.join();
+        assertTrue(calls.contains("setStatus:503"));
+        assertEquals(1, Collections.frequency(calls, "setStatus:503"));
+    }
+
+    public void testLeavesCommittedResponseAlone() {
+        committed = true;
+        FencedResponse resp = new FencedResponse(response());
+
+        assertFalse(resp.fence(HttpServletResponse.SC_SERVICE_UNAVAILABLE));
+        assertTrue(resp.isFenced());
+        assertFalse(calls.contains("setStatus:503"));
+    }
+
+    private HttpServletResponse response() {
+        return (HttpServletResponse) Proxy.newProxyInstance(
+                    getClass().getClassLoader(),
+                    new Class[] { HttpServletResponse.class },
+                    new InvocationHandler() {
+                        public Object invoke(Object proxy, Method method, Object[] args) {
+                            String name = method.getName();
+                            if (name.equals("getWriter"))
+                                return new PrintWriter(target);
+                            if (name.equals("isCommitted"))
+                                return committed;
+                            if (name.equals("flushBuffer"))
+                                committed = true;
+
+                            calls.add(args == null || args.length == 0 ? name : name + ":" + args[0]);
+                            return null;
+                        }
+                    }
+                );
+    }
+}
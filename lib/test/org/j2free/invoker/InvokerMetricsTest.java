@@ -0,0 +1,77 @@
+package org.j2free.invoker;
+
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+
+import java.util.Set;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.servlet.ServletContext;
+
+import junit.framework.TestCase;
+
+/**
+ *
+ * @author Ryan Wilson
+ */
+public class InvokerMetricsTest extends TestCase {
+
+    private MBeanServer server;
+
+    public InvokerMetricsTest(String testName) {
+        super(testName);
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        server = ManagementFactory.getPlatformMBeanServer();
+    }
+
+    public void testWebappsSharingAJvmKeepTheirOwnMBeans() throws Exception {
+        InvokerMetrics shop = metrics("shop");
+        InvokerMetrics blog = metrics("blog");
+        try {
+            shop.servlet("com.example.HomeServlet");
+            blog.servlet("com.example.HomeServlet");
+            assertEquals(2, registered().size());
+
+            // Undeploying one leaves the other's alone
+            shop.clear();
+            Set<ObjectName> left = registered();
+            assertEquals(1, left.size());
+            assertEquals("\"blog\"", left.iterator().next().getKeyProperty("context"));
+
+            // Along with its static path metrics
+            assertTrue(server.isRegistered(new ObjectName(
+                    "org.j2free:type=InvokerFilter,context=\"blog\",kind=staticPaths,name=\"StaticPathCache\"")));
+        } finally {
+            shop.clear();
+            blog.clear();
+        }
+    }
+
+    private Set<ObjectName> registered() throws Exception {
+        return server.queryNames(new ObjectName("org.j2free:type=InvokerFilter,kind=servlet,*"), null);
+    }
+
+    private InvokerMetrics metrics(final String name) {
+        ServletContext context = (ServletContext) Proxy.newProxyInstance(
+                                    getClass().getClassLoader(),
+                                    new Class[] { ServletContext.class },
+                                    new InvocationHandler() {
+                                        public Object invoke(Object proxy, Method method, Object[] args) {
+                                            return method.getName().equals("getServletContextName") ? name : null;
+                                        }
+                                    }
+                                );
+
+        InvokerMetrics metrics = new InvokerMetrics();
+        metrics.setContext(context);
+        metrics.setJmxEnabled(true);
+        return metrics;
+    }
+}
@@ -0,0 +1,95 @@
+package org.j2free.invoker;
+
+import java.util.HashMap;
+
+import javax.servlet.http.HttpServlet;
+
+import junit.framework.TestCase;
+
+/**
+ *
+ * @author Ryan Wilson
+ */
+public class RoutingTableTest extends TestCase {
+
+    private static class A extends HttpServlet { }
+    private static class B extends HttpServlet { }
+    private static class C extends HttpServlet { }
+    private static class D extends HttpServlet { }
+
+    private RoutingTable table;
+
+    public RoutingTableTest(String testName) {
+        super(testName);
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+
+        HashMap<String, Class<? extends HttpServlet>> mappings = new HashMap<String, Class<? extends HttpServlet>>();
+        mappings.put("/user/*", A.class);
+        mappings.put("/user/admin/*", B.class);
+        mappings.put("*.jsp", C.class);
+        mappings.put("/exact", D.class);
+        mappings.put("/*", D.class);
+
+        HashMap<String, Class<? extends HttpServlet>> regexes = new HashMap<String, Class<? extends HttpServlet>>();
+        regexes.put("/profile/(\\d+)(/.*)?", A.class);
+        regexes.put("/(a|b)/([a-z]+)", B.class);
+        regexes.put("/repeat/(\\w+)/\\1", C.class);
+
+        table = new RoutingTable(mappings, regexes);
+    }
+
+    /**
+     * Test of extension method, of class RoutingTable.
+     */
+    public void testExtension() {
+        assertEquals(C.class, table.extension("/index.jsp"));
+        assertEquals(C.class, table.extension("/a/b/index.jsp"));
+        assertNull(table.extension("/index.jspx"));
+        assertNull(table.extension("/index.js"));
+        assertNull(table.extension("/index"));
+        assertNull(table.extension("/a.jsp/index"));
+    }
+
+    /**
+     * Test of wildcard method, of class RoutingTable.
+     */
+    public void testWildcard() {
+        assertEquals(A.class, table.wildcard("/user/1"));
+        assertEquals(A.class, table.wildcard("/user/"));
+        assertEquals(A.class, table.wildcard("/user/1/edit"));
+        assertEquals(B.class, table.wildcard("/user/admin/1"));
+        assertEquals(B.class, table.wildcard("/user/admin/"));
+        assertEquals(A.class, table.wildcard("/user/admin"));
+
+        assertNull(table.wildcard("/user"));
+        assertNull(table.wildcard("/users/1"));
+        assertNull(table.wildcard("/exact"));
+        assertNull(table.wildcard("/"));
+    }
+
+    /**
+     * Test of regex method, of class RoutingTable.
+     */
+    public void testRegex() {
+        assertEquals(A.class, table.regex("/profile/12"));
+        assertEquals(A.class, table.regex("/profile/12/photos"));
+        assertEquals(B.class, table.regex("/a/xyz"));
+        assertEquals(B.class, table.regex("/b/q"));
+        assertEquals(C.class, table.regex("/repeat/abc/abc"));
+
+        assertNull(table.regex("/profile/x"));
+        assertNull(table.regex("/c/xyz"));
+        assertNull(table.regex("/a/xyz/"));
+        assertNull(table.regex("/repeat/abc/abd"));
+    }
+
+    public void testEmpty() {
+        assertNull(RoutingTable.EMPTY.extension("/index.jsp"));
+        assertNull(RoutingTable.EMPTY.wildcard("/user/1"));
+        assertNull(RoutingTable.EMPTY.regex("/user/1"));
+    }
+}
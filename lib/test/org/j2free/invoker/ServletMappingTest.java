@@ -0,0 +1,156 @@
+package org.j2free.invoker;
+
+import java.io.IOException;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+
+import java.util.LinkedList;
+import java.util.concurrent.Executor;
+
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServlet;
+
+import junit.framework.TestCase;
+
+import org.j2free.annotations.ServletConfig;
+
+/**
+ *
+ * @author Ryan Wilson
+ */
+public class ServletMappingTest extends TestCase {
+
+    private static int created, destroyed;
+
+    @ServletConfig(requireController = false)
+    public static class CountingServlet extends HttpServlet {
+
+        public CountingServlet() {
+            created++;
+        }
+
+        @Override
+        public void service(ServletRequest req, ServletResponse resp) throws ServletException, IOException {
+            if (req == null)
+                throw new ServletException("boom");
+        }
+
+        @Override
+        public void destroy() {
+            destroyed++;
+        }
+    }
+
+    // Runs warming tasks only when told to
+    private static class ManualExecutor implements Executor {
+        private final LinkedList<Runnable> tasks = new LinkedList<Runnable>();
+
+        public void execute(Runnable task) {
+            tasks.add(task);
+        }
+
+        void runAll() {
+            while (!tasks.isEmpty())
+                tasks.removeFirst().run();
+        }
+    }
+
+    private ManualExecutor warmer;
+    private ServletMapping mapping;
+
+    public ServletMappingTest(String testName) {
+        super(testName);
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+
+        created = destroyed = 0;
+        warmer = new ManualExecutor();
+
+        CountingServlet servlet = new CountingServlet();
+        servlet.init(new ServletConfigImpl("counting", null));
+
+        mapping = new ServletMapping(
+                        CountingServlet.class,
+                        servlet,
+                        CountingServlet.class.getAnnotation(ServletConfig.class),
+                        new RouteMetrics(CountingServlet.class.getName(), RouteMetrics.SERVLET),
+                        3,
+                        warmer
+                    );
+    }
+
+    /**
+     * Reaching max uses must not construct a servlet on the request thread,
+     * and the retired instance must be destroyed exactly once.
+     */
+    public void testRecycleInBackground() throws Exception {
+        for (int i = 0; i < 5; i++)
+            mapping.service(dummy(), null, null);
+
+        // Only one replacement is scheduled, and nothing is built until it runs
+        assertEquals(1, created);
+        assertEquals(1, warmer.tasks.size());
+
+        warmer.runAll();
+        assertEquals(2, created);
+        assertEquals(1, destroyed);
+        assertEquals(1, mapping.getMetrics().getRecycles());
+    }
+
+    public void testDestroy() throws Exception {
+        mapping.service(dummy(), null, null);
+        mapping.destroy();
+        assertEquals(1, destroyed);
+
+        // A replacement that finishes after the mapping is destroyed is discarded
+        setUp();
+        for (int i = 0; i < 3; i++)
+            mapping.service(dummy(), null, null);
+        mapping.destroy();
+        warmer.runAll();
+        assertEquals(2, created);
+        assertEquals(2, destroyed);
+    }
+
+    public void testDestroyReleasesReplacementOnce() throws Exception {
+        for (int i = 0; i < 3; i++)
+            mapping.service(dummy(), null, null);
+        warmer.runAll();
+        assertEquals(1, destroyed);
+
+        // The replacement is current, so it's the one destroyed, and only once
+        mapping.destroy();
+        mapping.destroy();
+        assertEquals(2, created);
+        assertEquals(2, destroyed);
+    }
+
+    public void testReleaseOnError() throws Exception {
+        try {
+            mapping.service(null, null, null);
+            fail();
+        } catch (ServletException e) { }
+
+        mapping.destroy();
+        assertEquals(1, destroyed);
+    }
+
+    private ServletRequest dummy() {
+        return (ServletRequest) Proxy.newProxyInstance(
+                    getClass().getClassLoader(),
+                    new Class[] { ServletRequest.class },
+                    new InvocationHandler() {
+                        public Object invoke(Object proxy, Method method, Object[] args) {
+                            return null;
+                        }
+                    }
+                );
+    }
+}
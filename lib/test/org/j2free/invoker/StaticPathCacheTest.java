@@ -0,0 +1,114 @@
+package org.j2free.invoker;
+
+import junit.framework.TestCase;
+
+/**
+ *
+ * @author Ryan Wilson
+ */
+public class StaticPathCacheTest extends TestCase {
+
+    public StaticPathCacheTest(String testName) {
+        super(testName);
+    }
+
+    /**
+     * Test of add and contains methods, of class StaticPathCache.
+     */
+    public void testAddAndContains() {
+        StaticPathCache cache = new StaticPathCache(10);
+
+        assertFalse(cache.contains("/favicon.ico"));
+        cache.add("/favicon.ico");
+        assertTrue(cache.contains("/favicon.ico"));
+
+        assertEquals(1, cache.size());
+        assertEquals(1, cache.getMetrics().getHits());
+        assertEquals(1, cache.getMetrics().getMisses());
+    }
+
+    /**
+     * Checking for a dynamic path, which is never added, counts nothing
+     */
+    public void testPreCheckDoesNotCountMisses() {
+        StaticPathMetrics metrics = new StaticPathMetrics();
+        StaticPathCache cache = new StaticPathCache(10, metrics);
+
+        for (int i = 0; i < 100; i++)
+            assertFalse(cache.contains("/user/" + i));
+
+        assertEquals(0, metrics.getHits());
+        assertEquals(0, metrics.getMisses());
+
+        // Counted across the caches of successive configurations
+        cache.add("/favicon.ico");
+        cache = new StaticPathCache(10, metrics);
+        cache.add("/favicon.ico");
+        assertTrue(cache.contains("/favicon.ico"));
+
+        assertEquals(1, metrics.getHits());
+        assertEquals(2, metrics.getMisses());
+    }
+
+    /**
+     * A scan of one-off URLs must neither grow the cache past its bound,
+     * nor displace paths that are requested repeatedly.
+     */
+    public void testBoundedUnderScan() {
+        StaticPathCache cache = new StaticPathCache(100);
+
+        // Popular static paths, each requested a few times
+        for (int i = 0; i < 100; i++) {
+            String path = "/static/" + i + ".png";
+            for (int j = 0; j < 3; j++) {
+                if (!cache.contains(path))
+                    cache.add(path);
+            }
+        }
+        assertEquals(100, cache.size());
+
+        // A crawler requesting random URLs, once each, while the popular
+        // paths continue to be requested by everyone else
+        for (int i = 0; i < 10000; i++) {
+            String path = "/scan/" + i;
+            if (!cache.contains(path))
+                cache.add(path);
+
+            path = "/static/" + (i % 100) + ".png";
+            if (!cache.contains(path))
+                cache.add(path);
+        }
+
+        assertEquals(100, cache.size());
+        assertTrue(cache.getMetrics().getRejections() > 0);
+
+        int retained = 0;
+        for (int i = 0; i < 100; i++) {
+            if (cache.contains("/static/" + i + ".png"))
+                retained++;
+        }
+        assertTrue("Only retained " + retained + " popular paths", retained >= 90);
+    }
+
+    /**
+     * A path that becomes popular should eventually be admitted.
+     */
+    public void testAdmitsPopularPath() {
+        StaticPathCache cache = new StaticPathCache(10);
+
+        for (int i = 0; i < 10; i++) {
+            String path = "/once/" + i;
+            if (!cache.contains(path))
+                cache.add(path);
+        }
+
+        for (int i = 0; i < 5; i++) {
+            if (!cache.contains("/popular.css"))
+                cache.add("/popular.css");
+        }
+
+        assertTrue(cache.contains("/popular.css"));
+        assertEquals(10, cache.size());
+        assertTrue(cache.getMetrics().getEvictions() > 0);
+    }
+}
@@ -0,0 +1,296 @@
+package org.j2free.jsp.tags;
+
+import java.io.CharArrayReader;
+import java.io.CharArrayWriter;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+
+import java.util.Enumeration;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.Servlet;
+import javax.servlet.ServletConfig;
+import javax.servlet.ServletContext;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpSession;
+import javax.servlet.jsp.JspWriter;
+import javax.servlet.jsp.PageContext;
+import javax.servlet.jsp.el.ExpressionEvaluator;
+import javax.servlet.jsp.el.VariableResolver;
+import javax.servlet.jsp.tagext.BodyContent;
+import javax.servlet.jsp.tagext.BodyTag;
+import javax.servlet.jsp.tagext.Tag;
+
+import junit.framework.TestCase;
+
+import org.j2free.cache.impl.memory.MemoryFragment;
+import org.j2free.cache.impl.memory.MemoryFragmentCache;
+
+/**
+ *
+ * @author Ryan Wilson
+ */
+public class FragmentCacheTagTest extends TestCase {
+
+    private MemoryFragmentCache cache;
+    private StubPageContext     page;
+
+    public FragmentCacheTagTest(String testName) {
+        super(testName);
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        cache = new MemoryFragmentCache(100);
+        page  = new StubPageContext();
+
+        FragmentCacheTag.registerStrategy("test", cache);
+        FragmentCacheTag.enable();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        FragmentCacheTag.disable();
+        super.tearDown();
+    }
+
+    public void testCachesRenderedBody() throws Exception {
+        String body = "<div class=\"greeting\">Hello, world</div>";
+
+        run(tag("a"), body);
+        assertEquals(body, page.getOutput());
+        assertEquals(body, content("a"));
+
+        // Served from the cache, without evaluating the body
+        run(tag("a"), "<div>not evaluated</div>");
+        assertEquals(body + body, page.getOutput());
+    }
+
+    public void testNestedFragmentsServedWithCurrentContent() throws Exception {
+        final FragmentCacheTag outer = tag("outer");
+        run(outer, new Body() {
+            public void evaluate(JspWriter out) throws Exception {
+                out.write("<p>before</p>");
+                run(tag("inner"), "<b>inner</b>");
+                out.write("<p>after</p>");
+            }
+        });
+        assertEquals("<p>before</p><b>inner</b><p>after</p>", page.getOutput());
+        assertEquals("<b>inner</b>", content("inner"));
+
+        // The outer fragment picks up the inner one's new content
+        MemoryFragment inner = cache.get("inner");
+        assertTrue(inner.tryLockForUpdate());
+        assertTrue(inner.tryUpdateAndRelease("<b>changed</b>", null));
+
+        page = new StubPageContext();
+        run(tag("outer"), "<p>not evaluated</p>");
+        assertEquals("<p>before</p><b>changed</b><p>after</p>", page.getOutput());
+    }
+
+    public void testNulInBodyIsNotAHole() throws Exception {
+        run(tag("secret"), "<p>someone else's</p>");
+
+        run(tag("a"), "<p>\u0000secret\u0000</p>");
+        assertEquals("<p>secret</p>", content("a"));
+
+        page = new StubPageContext();
+        run(tag("a"), "<p>not evaluated</p>");
+        assertEquals("<p>secret</p>", page.getOutput());
+    }
+
+    /**
+     * Evaluates the body of the tag as generated JSP code would: the body is
+     * written to whatever writer was current when the tag started, or to the
+     * body content pushed for it
+     */
+    private interface Body {
+        public void evaluate(JspWriter out) throws Exception;
+    }
+
+    private void run(FragmentCacheTag tag, final String body) throws Exception {
+        run(tag, new Body() {
+            public void evaluate(JspWriter out) throws Exception {
+                out.write(body);
+            }
+        });
+    }
+
+    private void run(FragmentCacheTag tag, Body body) throws Exception {
+        JspWriter out = page.getOut();
+        try {
+            int eval = tag.doStartTag();
+            if (eval != Tag.SKIP_BODY) {
+                if (eval == BodyTag.EVAL_BODY_BUFFERED) {
+                    out = page.pushBody();
+                    tag.setBodyContent((BodyContent) out);
+                    tag.doInitBody();
+                }
+
+                do {
+                    body.evaluate(out);
+                } while (tag.doAfterBody() == BodyTag.EVAL_BODY_AGAIN);
+
+                if (eval == BodyTag.EVAL_BODY_BUFFERED)
+                    out = page.popBody();
+            }
+            tag.doEndTag();
+        } finally {
+            tag.doFinally();
+        }
+    }
+
+    private FragmentCacheTag tag(String key) {
+        FragmentCacheTag tag = new FragmentCacheTag();
+        tag.setPageContext(page);
+        tag.setKey(key);
+        tag.setStrategy("test");
+        tag.setTimeout(60000);
+        return tag;
+    }
+
+    private String content(String key) throws Exception {
+        return cache.get(key).get(0, TimeUnit.MILLISECONDS);
+    }
+
+    private static final class StubBodyContent extends BodyContent {
+
+        private final CharArrayWriter buffer = new CharArrayWriter();
+
+        private StubBodyContent(JspWriter enclosing) {
+            super(enclosing);
+        }
+
+        @Override
+        public void write(char[] cbuf, int off, int len) {
+            buffer.write(cbuf, off, len);
+        }
+
+        @Override
+        public Reader getReader() {
+            return new CharArrayReader(buffer.toCharArray());
+        }
+
+        @Override
+        public String getString() {
+            return buffer.toString();
+        }
+
+        @Override
+        public void writeOut(Writer out) throws IOException {
+            buffer.writeTo(out);
+        }
+
+        @Override
+        public void clearBody() {
+            buffer.reset();
+        }
+
+        @Override public void clear() { clearBody(); }
+        @Override public void clearBuffer() { clearBody(); }
+        @Override public void flush() { }
+        @Override public void close() { }
+        @Override public int getRemaining() { return Integer.MAX_VALUE; }
+
+        @Override public void newLine() { print("\n"); }
+        @Override public void print(boolean b) { print(String.valueOf(b)); }
+        @Override public void print(char c) { print(String.valueOf(c)); }
+        @Override public void print(int i) { print(String.valueOf(i)); }
+        @Override public void print(long l) { print(String.valueOf(l)); }
+        @Override public void print(float f) { print(String.valueOf(f)); }
+        @Override public void print(double d) { print(String.valueOf(d)); }
+        @Override public void print(char[] s) { print(new String(s)); }
+        @Override public void print(String s) { buffer.append(s); }
+        @Override public void print(Object o) { print(String.valueOf(o)); }
+        @Override public void println() { newLine(); }
+        @Override public void println(boolean b) { print(b); newLine(); }
+        @Override public void println(char c) { print(c); newLine(); }
+        @Override public void println(int i) { print(i); newLine(); }
+        @Override public void println(long l) { print(l); newLine(); }
+        @Override public void println(float f) { print(f); newLine(); }
+        @Override public void println(double d) { print(d); newLine(); }
+        @Override public void println(char[] s) { print(s); newLine(); }
+        @Override public void println(String s) { print(s); newLine(); }
+        @Override public void println(Object o) { print(o); newLine(); }
+    }
+
+    /**
+     * Just enough of a page for the tag: a writer, a stack of body contents,
+     * and a request without attributes
+     */
+    private static final class StubPageContext extends PageContext {
+
+        private final StubBodyContent page = new StubBodyContent(null);
+
+        private JspWriter out = page;
+
+        private String getOutput() {
+            return page.getString();
+        }
+
+        @Override
+        public JspWriter getOut() {
+            return out;
+        }
+
+        @Override
+        public BodyContent pushBody() {
+            StubBodyContent body = new StubBodyContent(out);
+            out = body;
+            return body;
+        }
+
+        @Override
+        public JspWriter popBody() {
+            out = ((BodyContent) out).getEnclosingWriter();
+            return out;
+        }
+
+        @Override
+        public ServletRequest getRequest() {
+            return (ServletRequest) Proxy.newProxyInstance(
+                        getClass().getClassLoader(),
+                        new Class[] { ServletRequest.class },
+                        new InvocationHandler() {
+                            public Object invoke(Object proxy, Method method, Object[] args) {
+                                return null;
+                            }
+                        }
+                    );
+        }
+
+        @Override public Object getAttribute(String name) { return null; }
+        @Override public Object getAttribute(String name, int scope) { return null; }
+        @Override public Object findAttribute(String name) { return null; }
+        @Override public void setAttribute(String name, Object value) { }
+        @Override public void setAttribute(String name, Object value, int scope) { }
+        @Override public void removeAttribute(String name) { }
+        @Override public void removeAttribute(String name, int scope) { }
+        @Override public int getAttributesScope(String name) { return 0; }
+        @Override public Enumeration getAttributeNamesInScope(int scope) { return null; }
+
+        @Override public void initialize(Servlet servlet, ServletRequest request, ServletResponse response,
+                                         String errorPageURL, boolean needsSession, int bufferSize, boolean autoFlush) { }
+        @Override public void release() { }
+        @Override public HttpSession getSession() { return null; }
+        @Override public Object getPage() { return null; }
+        @Override public ServletResponse getResponse() { return null; }
+        @Override public Exception getException() { return null; }
+        @Override public ServletConfig getServletConfig() { return null; }
+        @Override public ServletContext getServletContext() { return null; }
+        @Override public void forward(String relativeUrlPath) { }
+        @Override public void include(String relativeUrlPath) { }
+        @Override public void include(String relativeUrlPath, boolean flush) { }
+        @Override public void handlePageException(Exception e) { }
+        @Override public void handlePageException(Throwable t) { }
+        @Override public ExpressionEvaluator getExpressionEvaluator() { return null; }
+        @Override public VariableResolver getVariableResolver() { return null; }
+    }
+}
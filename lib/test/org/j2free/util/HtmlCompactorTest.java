@@ -0,0 +1,52 @@
+package org.j2free.util;
+
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+/**
+ *
+ * @author Ryan Wilson
+ */
+public class HtmlCompactorTest extends TestCase {
+
+    public HtmlCompactorTest(String testName) {
+        super(testName);
+    }
+
+    public void testCompacts() {
+        assertEquals("<br/> <p> a b</p>", HtmlCompactor.compact("<br />\n<p>\t\t a\nb</p>"));
+        assertEquals("<img src=x/>", HtmlCompactor.compact("<img src=x   />"));
+        assertEquals("a\tb", HtmlCompactor.compact("a\tb"));
+        assertEquals(" / //> /", HtmlCompactor.compact(" / / /> /"));
+    }
+
+    public void testLeavesCompactContentAlone() {
+        String compact = "<div class=\"a\"><br/>\ttext / more</div>";
+        assertSame(compact, HtmlCompactor.compact(compact));
+    }
+
+    public void testMatchesRegexCompression() {
+        Random random = new Random(42);
+        char[] alphabet = { ' ', ' ', '\n', '\t', '\r', '/', '/', '>', '<', 'a' };
+
+        HtmlCompactor compactor = new HtmlCompactor(16);
+        for (int i = 0; i < 10000; i++) {
+            char[] chars = new char[random.nextInt(20)];
+            for (int j = 0; j < chars.length; j++)
+                chars[j] = alphabet[random.nextInt(alphabet.length)];
+            String html = new String(chars);
+
+            String expected = html.replaceAll("\n", " ").replaceAll("\\s{2,}", " ").replaceAll(" />", "/>");
+
+            assertEquals(expected, HtmlCompactor.compact(html));
+
+            // Written in pieces, as a page would be, into a reused compactor
+            compactor.reset();
+            int split = html.length() / 2;
+            compactor.write(chars, 0, split);
+            compactor.write(html, split, html.length() - split);
+            assertEquals(expected, compactor.toString());
+        }
+    }
+}
@@ -0,0 +1,55 @@
+package org.j2free.util.concurrent;
+
+import junit.framework.TestCase;
+
+/**
+ *
+ * @author Ryan Wilson
+ */
+public class LatencyHistogramTest extends TestCase {
+
+    public LatencyHistogramTest(String testName) {
+        super(testName);
+    }
+
+    public void testEmpty() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.getMean());
+        assertEquals(0, histogram.getValueAtPercentile(99));
+    }
+
+    /**
+     * Percentiles must be reported within the histogram's precision
+     * (one part in sixteen) of the true value.
+     */
+    public void testPercentiles() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (long i = 1; i <= 10000; i++)
+            histogram.record(i * 1000);     // 1us .. 10ms
+
+        assertEquals(10000, histogram.getCount());
+        assertEquals(10000000, histogram.getMax());
+        assertEquals(5000500, histogram.getMean());
+
+        assertWithin(5000000, histogram.getValueAtPercentile(50));
+        assertWithin(9900000, histogram.getValueAtPercentile(99));
+        assertWithin(9990000, histogram.getValueAtPercentile(99.9));
+        assertEquals(10000000, histogram.getValueAtPercentile(100));
+    }
+
+    public void testSmallAndHugeValues() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(-5);
+        histogram.record(3);
+        histogram.record(Long.MAX_VALUE);
+
+        assertEquals(0, histogram.getValueAtPercentile(0));
+        assertEquals(3, histogram.getValueAtPercentile(50));
+        assertEquals(Long.MAX_VALUE, histogram.getMax());
+    }
+
+    private void assertWithin(long expected, long actual) {
+        assertTrue("Expected ~" + expected + " but was " + actual, Math.abs(actual - expected) <= expected / 16);
+    }
+}
@@ -0,0 +1,103 @@
+package org.j2free.util.concurrent;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+/**
+ *
+ * @author Ryan Wilson
+ */
+public class StripedReadBufferTest extends TestCase {
+
+    public StripedReadBufferTest(String testName) {
+        super(testName);
+    }
+
+    public void testDrainsInOrder() {
+        StripedReadBuffer<Integer> buffer = new StripedReadBuffer<Integer>();
+        for (int i = 0; i < 5; i++)
+            assertFalse(buffer.offer(i));
+
+        final List<Integer> drained = new ArrayList<Integer>();
+        StripedReadBuffer.Consumer<Integer> consumer = new StripedReadBuffer.Consumer<Integer>() {
+            public void accept(Integer e) {
+                drained.add(e);
+            }
+        };
+
+        assertEquals(5, buffer.drain(consumer));
+        assertEquals(5, drained.size());
+        for (int i = 0; i < 5; i++)
+            assertEquals(i, drained.get(i).intValue());
+
+        assertEquals(0, buffer.drain(consumer));
+    }
+
+    public void testDropsWhenFull() {
+        StripedReadBuffer<Integer> buffer = new StripedReadBuffer<Integer>();
+
+        // One thread only ever fills its own ring
+        for (int i = 0; i < StripedReadBuffer.RING_SIZE - 1; i++)
+            assertFalse(buffer.offer(i));
+        assertTrue(buffer.offer(-1));
+        assertTrue(buffer.offer(-2));
+
+        final AtomicInteger count = new AtomicInteger();
+        buffer.drain(new StripedReadBuffer.Consumer<Integer>() {
+            public void accept(Integer e) {
+                assertTrue(e != -2);
+                count.incrementAndGet();
+            }
+        });
+        assertEquals(StripedReadBuffer.RING_SIZE, count.get());
+
+        // Room again once drained
+        assertFalse(buffer.offer(0));
+    }
+
+    public void testConcurrentOffersAreNeverDuplicated() throws Exception {
+        final StripedReadBuffer<Integer> buffer = new StripedReadBuffer<Integer>();
+        final int threads = 4, perThread = 10000;
+
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch done  = new CountDownLatch(threads);
+        for (int t = 0; t < threads; t++) {
+            final int base = t * perThread;
+            new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        for (int i = 0; i < perThread; i++)
+                            buffer.offer(base + i);
+                    } catch (InterruptedException e) {
+                        // done
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }.start();
+        }
+
+        final boolean[] seen = new boolean[threads * perThread];
+        final AtomicInteger duplicates = new AtomicInteger();
+        StripedReadBuffer.Consumer<Integer> consumer = new StripedReadBuffer.Consumer<Integer>() {
+            public void accept(Integer e) {
+                if (seen[e])
+                    duplicates.incrementAndGet();
+                seen[e] = true;
+            }
+        };
+
+        start.countDown();
+        while (done.getCount() > 0)
+            buffer.drain(consumer);
+        buffer.drain(consumer);
+
+        assertEquals(0, duplicates.get());
+    }
+}